@@ -0,0 +1,121 @@
+package com.sendmail.milter.benchmarks;
+
+import com.sendmail.milter.AMilterHandlerAdapter;
+import com.sendmail.milter.IMilterHandler;
+import com.sendmail.milter.IMilterStatus;
+import com.sendmail.milter.MilterEnvelope;
+import com.sendmail.milter.MilterMacros;
+import com.sendmail.milter.codec.MilterDecoder;
+import com.sendmail.milter.codec.MilterEncoder;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One envelope, a sender and two recipients with their macros, decoded and dispatched to handlers reading the
+ * addresses and a macro the way most filters do, then aborted.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class EnvelopeBenchmark {
+
+	/**
+	 * <code>properties</code> overrides the {@link Properties} callbacks, <code>macros</code> the {@link MilterMacros}
+	 * ones, and <code>envelope</code> also parses the arguments with {@link MilterEnvelope}.
+	 */
+	@Param({"properties", "macros", "envelope"})
+	public String handler;
+
+	private MilterDecoder decoder;
+	private ByteBuffer envelope;
+	private final int[] seen = new int[1];
+
+	@Setup
+	public void setup() throws IOException {
+		decoder = new MilterDecoder(handler(handler, seen), new MilterEncoder(MtaStream.DISCARD));
+		decoder.decode(new MtaStream().negotiate().connect().toBuffer());
+		envelope = new MtaStream().envelope().abort().toBuffer();
+	}
+
+	@Benchmark
+	public int envelope() throws IOException {
+		envelope.clear();
+		decoder.decode(envelope);
+		return seen[0];
+	}
+
+	private static IMilterHandler handler(String kind, final int[] seen) {
+		if ("properties".equals(kind)) {
+			return new AMilterHandlerAdapter() {
+
+				@Override
+				public IMilterStatus envfrom(byte[][] argv, Properties properties) {
+					seen[0] += argv[0].length + properties.getProperty("{mail_addr}").length();
+					return null;
+				}
+
+				@Override
+				public IMilterStatus envrcpt(byte[][] argv, Properties properties) {
+					seen[0] += argv[0].length + properties.getProperty("{rcpt_addr}").length();
+					return null;
+				}
+			};
+		}
+		if ("macros".equals(kind)) {
+			return new AMilterHandlerAdapter() {
+
+				@Override
+				public IMilterStatus envfromMacros(byte[][] argv, MilterMacros macros) {
+					seen[0] += argv[0].length + macros.get("{mail_addr}").length();
+					return null;
+				}
+
+				@Override
+				public IMilterStatus envrcptMacros(byte[][] argv, MilterMacros macros) {
+					seen[0] += argv[0].length + macros.get("{rcpt_addr}").length();
+					return null;
+				}
+			};
+		}
+		if ("envelope".equals(kind)) {
+			return new AMilterHandlerAdapter() {
+
+				private final MilterEnvelope envelope = new MilterEnvelope();
+
+				@Override
+				public IMilterStatus envfromMacros(byte[][] argv, MilterMacros macros) {
+					envelope.parse(argv);
+					seen[0] += envelope.getDomainLength() + (int) envelope.getSize();
+					return null;
+				}
+
+				@Override
+				public IMilterStatus envrcptMacros(byte[][] argv, MilterMacros macros) {
+					envelope.parse(argv);
+					seen[0] += envelope.getDomainLength() + envelope.getNotify();
+					return null;
+				}
+			};
+		}
+		throw new IllegalArgumentException("Unknown handler " + kind);
+	}
+}
@@ -0,0 +1,117 @@
+package com.sendmail.milter.benchmarks;
+
+import com.sendmail.milter.AMilterHandlerAdapter;
+import com.sendmail.milter.IMilterActions;
+import com.sendmail.milter.IMilterHandler;
+import com.sendmail.milter.IMilterStatus;
+import com.sendmail.milter.MilterMacros;
+import com.sendmail.milter.codec.MilterDecoder;
+import com.sendmail.milter.codec.MilterEncoder;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A whole message from the corpus on an open connection: envelope, headers, body chunks and end of message, decoded
+ * and dispatched. This is the per-message cost capacity is planned around.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MessageBenchmark {
+
+	@Param({MtaStream.PLAIN, MtaStream.NEWSLETTER, MtaStream.ATTACHMENT})
+	public String corpus;
+
+	/**
+	 * <code>none</code> overrides nothing but end of message, <code>bytes</code> reads headers as arrays,
+	 * <code>buffers</code> reads them as buffer views, and <code>body</code> scans the body chunks.
+	 */
+	@Param({"none", "bytes", "buffers", "body"})
+	public String handler;
+
+	private MilterDecoder decoder;
+	private ByteBuffer message;
+	private final int[] seen = new int[1];
+
+	@Setup
+	public void setup() throws IOException {
+		decoder = new MilterDecoder(handler(handler, seen), new MilterEncoder(MtaStream.DISCARD));
+		decoder.decode(new MtaStream().negotiate().connect().toBuffer());
+		message = new MtaStream().envelope().message(corpus).toBuffer();
+	}
+
+	@Benchmark
+	public int message() throws IOException {
+		message.clear();
+		decoder.decode(message);
+		return seen[0];
+	}
+
+	private static IMilterHandler handler(String kind, final int[] seen) {
+		if ("none".equals(kind)) {
+			return new AMilterHandlerAdapter() {
+
+				@Override
+				public IMilterStatus eomMacros(IMilterActions eomActions, MilterMacros macros) {
+					++seen[0];
+					return null;
+				}
+			};
+		}
+		if ("bytes".equals(kind)) {
+			return new AMilterHandlerAdapter() {
+
+				@Override
+				public IMilterStatus header(byte[] name, byte[] value) {
+					seen[0] += name.length + value.length;
+					return null;
+				}
+			};
+		}
+		if ("buffers".equals(kind)) {
+			return new AMilterHandlerAdapter() {
+
+				@Override
+				public IMilterStatus headerBuffer(ByteBuffer name, ByteBuffer value) {
+					seen[0] += name.remaining() + value.remaining();
+					return null;
+				}
+			};
+		}
+		if ("body".equals(kind)) {
+			return new AMilterHandlerAdapter() {
+
+				@Override
+				public IMilterStatus body(ByteBuffer bodyp) {
+					int lines = 0;
+					for (int i = bodyp.position(); i < bodyp.limit(); ++i) {
+						if (bodyp.get(i) == '\n') {
+							++lines;
+						}
+					}
+					seen[0] += lines;
+					return null;
+				}
+			};
+		}
+		throw new IllegalArgumentException("Unknown handler " + kind);
+	}
+}
@@ -0,0 +1,192 @@
+package com.sendmail.milter.benchmarks;
+
+import com.sendmail.milter.MilterConstants;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds the packets a Postfix-like MTA sends for a connection and for messages from the corpus, so benchmarks can
+ * feed them to a decoder without a socket.
+ */
+final class MtaStream {
+
+	/**
+	 * The messages under <code>corpus/</code>: a short personal mail, a multipart newsletter with encoded headers, and
+	 * a mail with a 150 KB base64 attachment.
+	 */
+	static final String PLAIN = "plain";
+	static final String NEWSLETTER = "newsletter";
+	static final String ATTACHMENT = "attachment";
+
+	/**
+	 * A channel that drops the replies, so only the filter side is measured.
+	 */
+	static final WritableByteChannel DISCARD = new WritableByteChannel() {
+
+		@Override
+		public int write(ByteBuffer src) {
+			int count = src.remaining();
+			src.position(src.limit());
+			return count;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	};
+
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+	/**
+	 * Option negotiation offering everything, as a current Postfix does.
+	 */
+	MtaStream negotiate() {
+		begin(MilterConstants.SMFIC_OPTNEG, 12);
+		putInt(6);
+		putInt(0x1FF);
+		putInt(0x1FFFFF);
+		return this;
+	}
+
+	/**
+	 * The connect and helo stages with their macros.
+	 */
+	MtaStream connect() {
+		macros(MilterConstants.SMFIC_CONNECT, "j", "mx1.example.com", "_", "mail-out.example.net [198.51.100.23]",
+				"{daemon_name}", "smtpd", "{if_name}", "mx1.example.com", "{if_addr}", "203.0.113.5",
+				"{client_addr}", "198.51.100.23", "{client_name}", "mail-out.example.net");
+		packet(MilterConstants.SMFIC_CONNECT, "mail-out.example.net\0" + "4\u0000\u0019198.51.100.23\0");
+		macros(MilterConstants.SMFIC_HELO, "{tls_version}", "TLSv1.2", "{cipher}", "ECDHE-RSA-AES256-GCM-SHA384",
+				"{cipher_bits}", "256", "{cert_subject}", "", "{cert_issuer}", "");
+		packet(MilterConstants.SMFIC_HELO, "mail-out.example.net\0");
+		return this;
+	}
+
+	/**
+	 * The envelope of a message with two recipients.
+	 */
+	MtaStream envelope() {
+		macros(MilterConstants.SMFIC_MAIL, "{mail_mailer}", "smtp", "{mail_host}", "example.net", "{mail_addr}",
+				"bob@example.net", "{auth_type}", "", "{auth_authen}", "", "i", "4Xc2Lk0Qz3z9s");
+		packet(MilterConstants.SMFIC_MAIL, "<bob@example.net>\0SIZE=18230\0BODY=8BITMIME\0");
+		macros(MilterConstants.SMFIC_RCPT, "{rcpt_mailer}", "local", "{rcpt_host}", "", "{rcpt_addr}",
+				"alice@example.com");
+		packet(MilterConstants.SMFIC_RCPT, "<alice@example.com>\0NOTIFY=FAILURE,DELAY\0");
+		macros(MilterConstants.SMFIC_RCPT, "{rcpt_mailer}", "local", "{rcpt_host}", "", "{rcpt_addr}",
+				"carol@example.com");
+		packet(MilterConstants.SMFIC_RCPT, "<carol@example.com>\0");
+		return this;
+	}
+
+	/**
+	 * The data stage, the headers and body chunks of a corpus message, and end of message.
+	 */
+	MtaStream message(String corpus) throws IOException {
+		byte[] message = load(corpus);
+		packet(MilterConstants.SMFIC_DATA, "");
+		int pos = 0;
+		while (!(message[pos] == '\r' && message[pos + 1] == '\n')) {
+			int colon = pos;
+			while (message[colon] != ':') {
+				++colon;
+			}
+			int value = colon + 1;
+			if (message[value] == ' ') {
+				++value;
+			}
+			int end = value;
+			// A header ends at a CRLF not followed by white space. Folds are kept, with LF line ends as Postfix sends them.
+			while (!(message[end] == '\r' && message[end + 2] != ' ' && message[end + 2] != '\t')) {
+				++end;
+			}
+			String text = new String(message, value, end - value, StandardCharsets.ISO_8859_1).replace("\r\n", "\n");
+			packet(MilterConstants.SMFIC_HEADER, new String(message, pos, colon - pos, StandardCharsets.ISO_8859_1)
+					+ "\0" + text + "\0");
+			pos = end + 2;
+		}
+		packet(MilterConstants.SMFIC_EOH, "");
+		pos += 2;
+		while (pos < message.length) {
+			int chunk = Math.min(MilterConstants.MILTER_CHUNK_SIZE, message.length - pos);
+			begin(MilterConstants.SMFIC_BODY, chunk);
+			out.write(message, pos, chunk);
+			pos += chunk;
+		}
+		macros(MilterConstants.SMFIC_BODYEOB, "{msg_id}", "<5760ae29.1c2f.4a1b@example.net>");
+		packet(MilterConstants.SMFIC_BODYEOB, "");
+		return this;
+	}
+
+	/**
+	 * Abort the message, as on RSET.
+	 */
+	MtaStream abort() {
+		packet(MilterConstants.SMFIC_ABORT, "");
+		return this;
+	}
+
+	/**
+	 * @return The packets so far, in a direct buffer such as a receive buffer.
+	 */
+	ByteBuffer toBuffer() {
+		byte[] bytes = out.toByteArray();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+		buffer.put(bytes).flip();
+		return buffer;
+	}
+
+	static byte[] load(String corpus) throws IOException {
+		InputStream in = MtaStream.class.getResourceAsStream("/corpus/" + corpus + ".eml");
+		if (in == null) {
+			throw new IOException("No corpus message " + corpus);
+		}
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			for (int count = in.read(buffer); count >= 0; count = in.read(buffer)) {
+				bytes.write(buffer, 0, count);
+			}
+			return bytes.toByteArray();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private void macros(int command, String... pairs) {
+		StringBuilder data = new StringBuilder().append((char) command);
+		for (String value : pairs) {
+			data.append(value).append('\0');
+		}
+		packet(MilterConstants.SMFIC_MACRO, data.toString());
+	}
+
+	private void packet(int command, String data) {
+		byte[] bytes = data.getBytes(StandardCharsets.ISO_8859_1);
+		begin(command, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private void begin(int command, int length) {
+		putInt(length + 1);
+		out.write(command);
+	}
+
+	private void putInt(int value) {
+		out.write(value >>> 24);
+		out.write(value >>> 16);
+		out.write(value >>> 8);
+		out.write(value);
+	}
+}
@@ -0,0 +1,88 @@
+package com.sendmail.milter.benchmarks;
+
+import com.sendmail.milter.CustomMilterStatus;
+import com.sendmail.milter.EncodedMilterStatus;
+import com.sendmail.milter.IMilterStatus;
+import com.sendmail.milter.MilterConstants;
+import com.sendmail.milter.SimpleMilterStatus;
+import com.sendmail.milter.codec.MilterEncoder;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building replies and encoding them: what every rejecting callback pays.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class StatusBenchmark {
+
+	private static final String[] LINES = {"Message rejected as spam", "See https://example.com/policy for details"};
+
+	private CustomMilterStatus custom;
+	private SimpleMilterStatus simple;
+	private EncodedMilterStatus encoded;
+	private MilterEncoder encoder;
+
+	@Setup
+	public void setup() {
+		custom = new CustomMilterStatus("550", "5.7.1", LINES);
+		simple = new SimpleMilterStatus(MilterConstants.SMFIR_REPLYCODE,
+				"550 5.7.1 Message rejected as spam".getBytes(StandardCharsets.US_ASCII));
+		encoded = EncodedMilterStatus.reply("550", "5.7.1", LINES);
+		encoder = new MilterEncoder(MtaStream.DISCARD);
+	}
+
+	@Benchmark
+	public CustomMilterStatus customConstruct() {
+		return new CustomMilterStatus("550", "5.7.1", LINES);
+	}
+
+	@Benchmark
+	public ByteBuffer customGetMessage() {
+		return custom.getMessage();
+	}
+
+	@Benchmark
+	public void customEncode() throws IOException {
+		write(custom);
+	}
+
+	@Benchmark
+	public void simpleEncode() throws IOException {
+		write(simple);
+	}
+
+	@Benchmark
+	public void encodedEncode() throws IOException {
+		write(encoded);
+	}
+
+	@Benchmark
+	public void continueEncode() throws IOException {
+		write(IMilterStatus.SMFIS_CONTINUE);
+	}
+
+	private void write(IMilterStatus status) throws IOException {
+		encoder.writeStatus(status);
+		encoder.flush();
+	}
+}
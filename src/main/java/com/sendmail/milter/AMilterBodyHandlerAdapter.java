@@ -0,0 +1,86 @@
+package com.sendmail.milter;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An adapter for handlers deciding on the whole message body at end of message. Body chunks are collected in a
+ * {@link MilterBodyAccumulator}, available to {@link #eom(IMilterActions, java.util.Properties)} as {@link #body}.
+ * <p>
+ * The accumulator is released when end of message returns, and on {@link #abort()}, {@link #close()} and
+ * {@link #reset()}. Subclasses overriding any of these, {@link #body(ByteBuffer)} or the {@link MilterMacros} variant
+ * of <code>eom</code> must call the overridden method.
+ */
+public abstract class AMilterBodyHandlerAdapter extends AMilterHandlerAdapter {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AMilterBodyHandlerAdapter.class);
+
+	/**
+	 * The body of the current message, collected so far.
+	 */
+	protected final MilterBodyAccumulator body;
+
+	/**
+	 * Keeps bodies up to {@link MilterBodyAccumulator#DEFAULT_THRESHOLD} in memory.
+	 */
+	protected AMilterBodyHandlerAdapter() {
+		this(MilterBodyAccumulator.DEFAULT_THRESHOLD, null);
+	}
+
+	/**
+	 * @param threshold The largest body kept in memory, in bytes.
+	 * @param directory The directory for temporary files, or null for the default one.
+	 */
+	protected AMilterBodyHandlerAdapter(int threshold, File directory) {
+		this.body = new MilterBodyAccumulator(threshold, directory);
+	}
+
+	/**
+	 * Collects the chunk. Returns {@link IMilterStatus#SMFIS_TEMPFAIL} if it cannot be stored.
+	 */
+	@Override
+	public IMilterStatus body(ByteBuffer bodyp) {
+		try {
+			body.append(bodyp);
+			return DEFAULT_CONTINUE;
+		}
+		catch (IOException ex) {
+			LOG.error("Cannot store message body", ex);
+			body.release();
+			return DEFAULT_TEMPFAIL;
+		}
+	}
+
+	@Override
+	public IMilterStatus eomMacros(IMilterActions eomActions, MilterMacros macros) {
+		try {
+			return super.eomMacros(eomActions, macros);
+		}
+		finally {
+			body.release();
+		}
+	}
+
+	@Override
+	public IMilterStatus abort() {
+		body.release();
+		return super.abort();
+	}
+
+	@Override
+	public IMilterStatus close() {
+		body.release();
+		return super.close();
+	}
+
+	@Override
+	public void reset() {
+		body.release();
+		super.reset();
+	}
+}
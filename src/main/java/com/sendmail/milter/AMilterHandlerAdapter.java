@@ -16,7 +16,7 @@ import java.util.Set;
  * An adapter to implement methods in {@link IMilterHandler} interface so subclasses may override only those methods
  * they desire.
  */
-public abstract class AMilterHandlerAdapter implements IMilterHandler {
+public abstract class AMilterHandlerAdapter implements IMilterBufferHandler, IMilterMacroHandler {
 
 	protected final IMilterStatus DEFAULT_CONTINUE = IMilterStatus.SMFIS_CONTINUE;
 	protected final IMilterStatus DEFAULT_ACCEPT = IMilterStatus.SMFIS_ACCEPT;
@@ -29,26 +29,70 @@ public abstract class AMilterHandlerAdapter implements IMilterHandler {
 		return DEFAULT_CONTINUE;
 	}
 
+	/**
+	 * Calls {@link #connect(String, InetAddress, Properties)}. Override to use the macros without building properties.
+	 */
+	@Override
+	public IMilterStatus connectMacros(String hostname, InetAddress hostaddr, MilterMacros macros) {
+		return connect(hostname, hostaddr, macros.toProperties());
+	}
+
 	@Override
 	public IMilterStatus helo(String helohost, Properties properties) {
 		return DEFAULT_CONTINUE;
 	}
 
+	/**
+	 * Calls {@link #helo(String, Properties)}. Override to use the macros without building properties.
+	 */
+	@Override
+	public IMilterStatus heloMacros(String helohost, MilterMacros macros) {
+		return helo(helohost, macros.toProperties());
+	}
+
 	@Override
 	public IMilterStatus envfrom(byte[][] argv, Properties properties) {
 		return DEFAULT_CONTINUE;
 	}
 
+	/**
+	 * Calls {@link #envfrom(byte[][], Properties)}. Override to use the macros without building properties.
+	 */
+	@Override
+	public IMilterStatus envfromMacros(byte[][] argv, MilterMacros macros) {
+		return envfrom(argv, macros.toProperties());
+	}
+
 	@Override
 	public IMilterStatus envrcpt(byte[][] argv, Properties properties) {
 		return DEFAULT_CONTINUE;
 	}
 
+	/**
+	 * Calls {@link #envrcpt(byte[][], Properties)}. Override to use the macros without building properties.
+	 */
+	@Override
+	public IMilterStatus envrcptMacros(byte[][] argv, MilterMacros macros) {
+		return envrcpt(argv, macros.toProperties());
+	}
+
 	@Override
 	public IMilterStatus header(byte[] name, byte[] value) {
 		return DEFAULT_CONTINUE;
 	}
 
+	/**
+	 * Copies the views and calls {@link #header(byte[], byte[])}. Override to handle the views without copying.
+	 */
+	@Override
+	public IMilterStatus headerBuffer(ByteBuffer name, ByteBuffer value) {
+		byte[] nameBytes = new byte[name.remaining()];
+		byte[] valueBytes = new byte[value.remaining()];
+		name.get(nameBytes);
+		value.get(valueBytes);
+		return header(nameBytes, valueBytes);
+	}
+
 	@Override
 	public IMilterStatus body(ByteBuffer bodyp) {
 		return DEFAULT_CONTINUE;
@@ -59,21 +103,53 @@ public abstract class AMilterHandlerAdapter implements IMilterHandler {
 		return DEFAULT_CONTINUE;
 	}
 
+	/**
+	 * Calls {@link #eoh(IMilterActions, Properties)}. Override to use the macros without building properties.
+	 */
+	@Override
+	public IMilterStatus eohMacros(IMilterActions eohActions, MilterMacros macros) {
+		return eoh(eohActions, macros.toProperties());
+	}
+
 	@Override
 	public IMilterStatus eom(IMilterActions eomActions, Properties properties) {
 		return DEFAULT_CONTINUE;
 	}
 
+	/**
+	 * Calls {@link #eom(IMilterActions, Properties)}. Override to use the macros without building properties.
+	 */
+	@Override
+	public IMilterStatus eomMacros(IMilterActions eomActions, MilterMacros macros) {
+		return eom(eomActions, macros.toProperties());
+	}
+
 	@Override
 	public IMilterStatus unknown(byte[] command, Properties properties) {
 		return DEFAULT_CONTINUE;
 	}
 
+	/**
+	 * Calls {@link #unknown(byte[], Properties)}. Override to use the macros without building properties.
+	 */
+	@Override
+	public IMilterStatus unknownMacros(byte[] command, MilterMacros macros) {
+		return unknown(command, macros.toProperties());
+	}
+
 	@Override
 	public IMilterStatus data(Properties properties) {
 		return DEFAULT_CONTINUE;
 	}
 
+	/**
+	 * Calls {@link #data(Properties)}. Override to use the macros without building properties.
+	 */
+	@Override
+	public IMilterStatus dataMacros(MilterMacros macros) {
+		return data(macros.toProperties());
+	}
+
 	@Override
 	public IMilterStatus abort() {
 		return DEFAULT_CONTINUE;
@@ -92,7 +168,8 @@ public abstract class AMilterHandlerAdapter implements IMilterHandler {
 
 	@Override
 	public int getProtocolFlags() {
-		// By default respond to all messages
+		// By default respond to all messages. Negotiation still leaves out the events not overridden, see
+		// MilterHandlerIntrospector.
 		return 0;
 	}
 
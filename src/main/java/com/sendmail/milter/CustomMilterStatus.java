@@ -8,7 +8,8 @@ import java.util.regex.Pattern;
 
 public class CustomMilterStatus implements IMilterStatus {
 
-	String reply = null;
+	final String reply;
+	private final ByteBuffer message;
 
 	/* From RFC 2034 Section 4
 	 * 
@@ -62,28 +63,31 @@ public class CustomMilterStatus implements IMilterStatus {
 		validateRcode(rcode);
 		validateXcode(xcode, rcode);
 
+		StringBuilder text = new StringBuilder();
 		if (messageLines == null || messageLines.length == 0) {
-			this.reply = rcode + " ";
+			text.append(rcode).append(' ');
 			if (xcode != null) {
-				this.reply += xcode;
+				text.append(xcode);
 			}
 		}
 		else {
-			this.reply = "";
 			for (int counter = 0; counter < messageLines.length; ++counter) {
 				boolean isLastLine = (counter == (messageLines.length - 1));
 
-				this.reply += (rcode + ((isLastLine) ? " " : "-"));
+				text.append(rcode).append(isLastLine ? ' ' : '-');
 				if (xcode != null) {
-					this.reply += xcode;
-					this.reply += " ";
+					text.append(xcode).append(' ');
 				}
 
-				this.reply += messageLines[counter];
+				text.append(messageLines[counter]);
 
-				this.reply += ((isLastLine) ? "" : "\r\n");
+				if (!isLastLine) {
+					text.append("\r\n");
+				}
 			}
 		}
+		this.reply = text.toString();
+		this.message = ByteBuffer.wrap(reply.getBytes()).asReadOnlyBuffer();
 	}
 
 	@Override
@@ -91,8 +95,11 @@ public class CustomMilterStatus implements IMilterStatus {
 		return MilterConstants.SMFIR_REPLYCODE;
 	}
 
+	/**
+	 * @return A new read-only buffer over the reply text, which is only encoded once.
+	 */
 	@Override
 	public ByteBuffer getMessage() {
-		return ByteBuffer.wrap(reply.getBytes());
+		return message.duplicate();
 	}
 }
@@ -0,0 +1,171 @@
+package com.sendmail.milter;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A status whose complete reply packet is encoded once, when it is created. Sending it again is a plain copy of the
+ * packet into the output buffer, so handlers returning the same replies over and over should keep them as constants
+ * of this class:
+ * <pre>
+ * private static final IMilterStatus NO_RELAY = EncodedMilterStatus.reply("550", "5.7.1", "Relaying denied");
+ * </pre>
+ * Instances are immutable and may be shared between threads.
+ */
+public final class EncodedMilterStatus implements IMilterStatus {
+
+	/**
+	 * The most replies {@link #reply} keeps. Beyond that, new replies are encoded but not kept.
+	 */
+	private static final int MAX_CACHED_REPLIES = 1024;
+
+	private static final ConcurrentMap<ReplyKey, EncodedMilterStatus> REPLIES
+			= new ConcurrentHashMap<ReplyKey, EncodedMilterStatus>();
+
+	private final int code;
+	private final byte[] frame;
+	private final int messageLength;
+
+	private EncodedMilterStatus(int code, ByteBuffer message) {
+		this.code = code;
+		int wireCode = code == MilterConstants.SMFIP_SKIP ? MilterConstants.SMFIR_SKIP : code;
+		boolean terminate = code == MilterConstants.SMFIR_REPLYCODE || code == MilterConstants.SMFIR_QUARANTINE;
+		this.messageLength = message == null ? 0 : message.remaining();
+		int length = 1 + messageLength + (terminate ? 1 : 0);
+		this.frame = new byte[4 + length];
+		frame[0] = (byte) (length >>> 24);
+		frame[1] = (byte) (length >>> 16);
+		frame[2] = (byte) (length >>> 8);
+		frame[3] = (byte) length;
+		frame[4] = (byte) wireCode;
+		if (message != null) {
+			message.duplicate().get(frame, 5, messageLength);
+		}
+	}
+
+	/**
+	 * @param code The response code, as for {@link SimpleMilterStatus#SimpleMilterStatus(int)}.
+	 * @return A status without message.
+	 */
+	public static EncodedMilterStatus of(int code) {
+		return new EncodedMilterStatus(code, null);
+	}
+
+	/**
+	 * @param status Any status. Its message is copied, so later changes to it are not seen.
+	 * @return The status itself if it is already encoded, or an encoded copy of it.
+	 */
+	public static EncodedMilterStatus of(IMilterStatus status) {
+		if (status instanceof EncodedMilterStatus) {
+			return (EncodedMilterStatus) status;
+		}
+		return new EncodedMilterStatus(status.getCode(), status.getMessage());
+	}
+
+	/**
+	 * Get an encoded custom reply. The same reply is only validated and encoded once and then shared, up to a limit on
+	 * the number of distinct replies kept.
+	 *
+	 * @param rcode The three-digit SMTP reply code, as for {@link CustomMilterStatus#CustomMilterStatus}.
+	 * @param xcode The extended reply code, or null.
+	 * @param messageLines The lines of text of the reply.
+	 * @return The reply status.
+	 * @throws IllegalArgumentException if rcode or xcode is invalid
+	 */
+	public static EncodedMilterStatus reply(String rcode, String xcode, String... messageLines)
+			throws IllegalArgumentException {
+		EncodedMilterStatus status = REPLIES.get(new ReplyKey(rcode, xcode, messageLines));
+		if (status == null) {
+			status = of(new CustomMilterStatus(rcode, xcode, messageLines));
+			if (REPLIES.size() < MAX_CACHED_REPLIES) {
+				// The lines are copied, so the caller changing its array cannot change the key.
+				ReplyKey key = new ReplyKey(rcode, xcode, messageLines == null ? null : messageLines.clone());
+				EncodedMilterStatus raced = REPLIES.putIfAbsent(key, status);
+				if (raced != null) {
+					status = raced;
+				}
+			}
+		}
+		return status;
+	}
+
+	@Override
+	public int getCode() {
+		return code;
+	}
+
+	/**
+	 * @return A new read-only buffer over the message, or null if there is none.
+	 */
+	@Override
+	public ByteBuffer getMessage() {
+		return messageLength == 0 && frame.length == 5 ? null
+				: ByteBuffer.wrap(frame, 5, messageLength).slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return The length of the reply packet, including its length prefix.
+	 */
+	public int getFrameLength() {
+		return frame.length;
+	}
+
+	/**
+	 * @return A new read-only buffer over the reply packet, including its length prefix.
+	 */
+	public ByteBuffer getFrame() {
+		return ByteBuffer.wrap(frame).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Copy the reply packet into a buffer.
+	 *
+	 * @param dst The buffer, with at least {@link #getFrameLength()} bytes remaining.
+	 * @throws java.nio.BufferOverflowException if the buffer does not have room for the packet.
+	 */
+	public void copyFrame(ByteBuffer dst) {
+		dst.put(frame);
+	}
+
+	/**
+	 * The arguments of {@link #reply}, compared as they are given, so a reply already kept is found without
+	 * validating or formatting it again.
+	 */
+	private static final class ReplyKey {
+
+		private final String rcode;
+		private final String xcode;
+		private final String[] lines;
+		private final int hash;
+
+		ReplyKey(String rcode, String xcode, String[] lines) {
+			this.rcode = rcode;
+			this.xcode = xcode;
+			this.lines = lines;
+			int h = rcode == null ? 0 : rcode.hashCode();
+			h = h * 31 + (xcode == null ? 0 : xcode.hashCode());
+			this.hash = h * 31 + Arrays.hashCode(lines);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ReplyKey)) {
+				return false;
+			}
+			ReplyKey other = (ReplyKey) obj;
+			return hash == other.hash && equal(rcode, other.rcode) && equal(xcode, other.xcode)
+					&& Arrays.equals(lines, other.lines);
+		}
+
+		private static boolean equal(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package com.sendmail.milter;
+
+import java.net.InetAddress;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Asynchronous sibling of {@link IMilterHandler}, for handlers waiting on DNS lookups, reputation services or scanners.
+ * Each callback returns a {@link MilterStatusFuture} instead of the status, so no thread waits for the answer; the
+ * runner holds back the rest of the session until the future completes. Wrap a handler in a
+ * {@link MilterAsyncHandlerAdapter} to serve it.
+ * <p>
+ * Callbacks are called one at a time, never before the future of the previous one completes. A null future stands for
+ * {@link IMilterStatus#SMFIS_CONTINUE}. The arguments are the same as those of {@link IMilterMacroHandler}, except that
+ * the body chunk is only valid until the callback returns: copy it to use it after that. The actions of
+ * <code>eoh</code> and <code>eom</code> remain valid until the future completes, and may be called from any thread
+ * until then. While the end of message future is pending, the runner keeps the MTA waiting with progress
+ * notifications; the protocol has no such notifications for the other stages.
+ */
+public interface IMilterAsyncHandler {
+
+	/**
+	 * @see IMilterMacroHandler#connectMacros(String, InetAddress, MilterMacros)
+	 */
+	public MilterStatusFuture connect(String hostname, InetAddress hostaddr, MilterMacros macros);
+
+	/**
+	 * @see IMilterMacroHandler#heloMacros(String, MilterMacros)
+	 */
+	public MilterStatusFuture helo(String helohost, MilterMacros macros);
+
+	/**
+	 * @see IMilterMacroHandler#envfromMacros(byte[][], MilterMacros)
+	 */
+	public MilterStatusFuture envfrom(byte[][] argv, MilterMacros macros);
+
+	/**
+	 * @see IMilterMacroHandler#envrcptMacros(byte[][], MilterMacros)
+	 */
+	public MilterStatusFuture envrcpt(byte[][] argv, MilterMacros macros);
+
+	/**
+	 * @see IMilterHandler#header(byte[], byte[])
+	 */
+	public MilterStatusFuture header(byte[] name, byte[] value);
+
+	/**
+	 * @see IMilterMacroHandler#eohMacros(IMilterActions, MilterMacros)
+	 */
+	public MilterStatusFuture eoh(IMilterActions eohActions, MilterMacros macros);
+
+	/**
+	 * @see IMilterMacroHandler#dataMacros(MilterMacros)
+	 */
+	public MilterStatusFuture data(MilterMacros macros);
+
+	/**
+	 * @param bodyp The body chunk, only valid until this method returns.
+	 * @see IMilterHandler#body(ByteBuffer)
+	 */
+	public MilterStatusFuture body(ByteBuffer bodyp);
+
+	/**
+	 * @see IMilterMacroHandler#eomMacros(IMilterActions, MilterMacros)
+	 */
+	public MilterStatusFuture eom(IMilterActions eomActions, MilterMacros macros);
+
+	/**
+	 * @see IMilterMacroHandler#unknownMacros(byte[], MilterMacros)
+	 */
+	public MilterStatusFuture unknown(byte[] command, MilterMacros macros);
+
+	/**
+	 * The MTA sends no reply to abort, so it is handled synchronously.
+	 *
+	 * @see IMilterHandler#abort()
+	 */
+	public void abort();
+
+	/**
+	 * Also called while a future is pending if the connection closes.
+	 *
+	 * @see IMilterHandler#close()
+	 */
+	public void close();
+
+	/**
+	 * @see IMilterHandler#getActionFlags()
+	 */
+	public int getActionFlags();
+
+	/**
+	 * @see IMilterHandler#getProtocolFlags()
+	 */
+	public int getProtocolFlags();
+
+	/**
+	 * @see IMilterHandler#negotiateVersion(int, int, int)
+	 */
+	public int negotiateVersion(int mtaVersion, int actionFlags, int protocolFlags);
+
+	/**
+	 * @see IMilterHandler#reset()
+	 */
+	public void reset();
+
+	/**
+	 * @see IMilterHandler#getMacros()
+	 */
+	public Map<Integer, Set<String>> getMacros();
+}
@@ -0,0 +1,63 @@
+package com.sendmail.milter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * The actions handed to {@link IMilterHandler#eom eom} by the runner in this library. Modifications are not written
+ * one by one: they are queued and sent together with the end of message status, in a single gathering write where the
+ * connection supports it. A handler that wants to know when that happened can cast its actions to this interface and
+ * finish with a listener.
+ * <p>
+ * A replacement body can also be streamed from a file or another source rather than built in memory. It is split into
+ * packets of at most {@link MilterConstants#MILTER_CHUNK_SIZE} bytes as it is sent, and read only as fast as the MTA
+ * takes it, so about a packet of it is in memory at a time. The source may therefore still be read after
+ * {@link IMilterHandler#eom eom} returns: on a non-blocking runner while the connection is congested, and for an
+ * asynchronous handler once its future completed. It has to stay open until a listener given to
+ * {@link #finish(IMilterStatus, IMilterWriteListener)} is notified; errors reading it then close the connection.
+ */
+public interface IMilterBatchActions extends IMilterActions {
+
+	/**
+	 * Set the resulting EOM status, as {@link #finish(IMilterStatus)} does, and be notified once the queued
+	 * modifications and the status have been written. Only available during {@link IMilterHandler#eom eom}.
+	 *
+	 * @param status send the following status code (optional).
+	 * @param listener notified after {@link IMilterHandler#eom eom} returns, from the thread serving the connection.
+	 * @throws IOException if called outside {@link IMilterHandler#eom eom}.
+	 */
+	public void finish(IMilterStatus status, IMilterWriteListener listener) throws IOException;
+
+	/**
+	 * Replace the body of the current message with part of a file, as {@link #replacebody(java.nio.ByteBuffer)} does.
+	 * The file is transferred to the socket with {@link FileChannel#transferTo}, which the operating system can do
+	 * without copying it through the heap.
+	 *
+	 * @param file The file. Its position is not changed.
+	 * @param position The position of the body data in the file.
+	 * @param count The number of bytes of body data.
+	 * @throws IOException if reading the file or a connection error occurs.
+	 */
+	public void replacebody(FileChannel file, long position, long count) throws IOException;
+
+	/**
+	 * Replace the body of the current message with the content of a stream, as
+	 * {@link #replacebody(java.nio.ByteBuffer)} does.
+	 *
+	 * @param body The body data, read until its end. The stream is not closed.
+	 * @throws IOException if reading the stream or a connection error occurs.
+	 */
+	public void replacebody(InputStream body) throws IOException;
+
+	/**
+	 * Replace the body of the current message with everything read from a channel, as
+	 * {@link #replacebody(java.nio.ByteBuffer)} does. This is the way to stream from any other source of chunks.
+	 *
+	 * @param body A blocking channel with the body data, read until its end. The channel is not closed.
+	 * @throws IOException if reading the channel or a connection error occurs.
+	 */
+	public void replacebody(ReadableByteChannel body) throws IOException;
+}
@@ -0,0 +1,27 @@
+package com.sendmail.milter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Optional extension of {@link IMilterHandler} receiving raw protocol data as buffer views instead of copied arrays.
+ * When a handler implements it, the runner calls these methods in place of their array based counterparts.
+ * <p>
+ * The buffers are read-only views over the runner's receive buffer. They are only valid until the method returns:
+ * afterwards the runner reuses both the views and the memory behind them for the next packet. A handler may move
+ * their position and limit freely, but must copy whatever it wants to keep.
+ * <p>
+ * {@link AMilterHandlerAdapter} implements this interface by copying into arrays and calling the array based methods,
+ * so its subclasses only avoid the copies by overriding the methods below.
+ */
+public interface IMilterBufferHandler extends IMilterHandler {
+
+	/**
+	 * Handle a message header. Replaces {@link IMilterHandler#header(byte[], byte[])}.
+	 *
+	 * @param name Header field name, without the terminating NUL.
+	 * @param value Header field value, without the terminating NUL. See
+	 * {@link IMilterHandler#header(byte[], byte[])} for its format.
+	 * @return <code>SMFIS_</code> return codes from {@link IMilterStatus}.
+	 */
+	public IMilterStatus headerBuffer(ByteBuffer name, ByteBuffer value);
+}
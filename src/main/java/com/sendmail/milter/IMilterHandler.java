@@ -44,7 +44,8 @@ public interface IMilterHandler {
 	 *
 	 * @param argv An array of SMTP command arguments. <code>argv[0]</code> is guaranteed to be the sender address.
 	 * Later arguments are the ESMTP arguments. While the default encoding should be presumed to be ASCII, the value
-	 * decoding is left to the user. Often simply the default {@link String#String(byte[])} constructor is enough.
+	 * decoding is left to the user. Often simply the default {@link String#String(byte[])} constructor is enough;
+	 * {@link MilterEnvelope} parses them without copies.
 	 * @param properties Any properties (macros) received from the MTA.
 	 * @return <code>SMFIS_</code> return codes from {@link IMilterStatus}.
 	 */
@@ -56,7 +57,8 @@ public interface IMilterHandler {
 	 *
 	 * @param argv An array of SMTP command arguments. <code>argv[0]</code> is guaranteed to be the recipient address.
 	 * Later arguments are the ESMTP arguments. While the default encoding should be presumed to be ASCII, the value
-	 * decoding is left to the user. Often simply the default {@link String#String(byte[])} constructor is enough.
+	 * decoding is left to the user. Often simply the default {@link String#String(byte[])} constructor is enough;
+	 * {@link MilterEnvelope} parses them without copies.
 	 * @param properties Any properties (macros) received from the MTA.
 	 * @return <code>SMFIS_</code> return codes from {@link IMilterStatus}.
 	 */
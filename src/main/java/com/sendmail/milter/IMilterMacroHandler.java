@@ -0,0 +1,88 @@
+package com.sendmail.milter;
+
+import java.net.InetAddress;
+
+/**
+ * Optional extension of {@link IMilterHandler} receiving macros as {@link MilterMacros} instead of
+ * {@link java.util.Properties}. When a handler implements it, the runner calls these methods in place of their
+ * {@link java.util.Properties} based counterparts, and never builds the {@link java.util.Properties}.
+ * <p>
+ * Unlike the receive buffer views of {@link IMilterBufferHandler}, the macros are immutable and may be kept.
+ * <p>
+ * {@link AMilterHandlerAdapter} implements this interface by calling the {@link java.util.Properties} based methods
+ * with {@link MilterMacros#toProperties()}, so its subclasses only avoid building them by overriding the methods below.
+ */
+public interface IMilterMacroHandler extends IMilterHandler {
+
+	/**
+	 * Replaces {@link IMilterHandler#connect(String, InetAddress, java.util.Properties)}.
+	 *
+	 * @param hostname The host name of the message sender.
+	 * @param hostaddr The host address.
+	 * @param macros The macros received from the MTA.
+	 * @return <code>SMFIS_</code> return codes from {@link IMilterStatus}.
+	 */
+	public IMilterStatus connectMacros(String hostname, InetAddress hostaddr, MilterMacros macros);
+
+	/**
+	 * Replaces {@link IMilterHandler#helo(String, java.util.Properties)}.
+	 *
+	 * @param helohost Value passed to HELO/EHLO command.
+	 * @param macros The macros received from the MTA.
+	 * @return <code>SMFIS_</code> return codes from {@link IMilterStatus}.
+	 */
+	public IMilterStatus heloMacros(String helohost, MilterMacros macros);
+
+	/**
+	 * Replaces {@link IMilterHandler#envfrom(byte[][], java.util.Properties)}.
+	 *
+	 * @param argv An array of SMTP command arguments, the sender address first.
+	 * @param macros The macros received from the MTA.
+	 * @return <code>SMFIS_</code> return codes from {@link IMilterStatus}.
+	 */
+	public IMilterStatus envfromMacros(byte[][] argv, MilterMacros macros);
+
+	/**
+	 * Replaces {@link IMilterHandler#envrcpt(byte[][], java.util.Properties)}.
+	 *
+	 * @param argv An array of SMTP command arguments, the recipient address first.
+	 * @param macros The macros received from the MTA.
+	 * @return <code>SMFIS_</code> return codes from {@link IMilterStatus}.
+	 */
+	public IMilterStatus envrcptMacros(byte[][] argv, MilterMacros macros);
+
+	/**
+	 * Replaces {@link IMilterHandler#eoh(IMilterActions, java.util.Properties)}.
+	 *
+	 * @param eohActions Interface for effecting message changes.
+	 * @param macros The macros received from the MTA.
+	 * @return <code>SMFIS_</code> return codes from {@link IMilterStatus}.
+	 */
+	public IMilterStatus eohMacros(IMilterActions eohActions, MilterMacros macros);
+
+	/**
+	 * Replaces {@link IMilterHandler#data(java.util.Properties)}.
+	 *
+	 * @param macros The macros received from the MTA.
+	 * @return <code>SMFIS_</code> return codes from {@link IMilterStatus}.
+	 */
+	public IMilterStatus dataMacros(MilterMacros macros);
+
+	/**
+	 * Replaces {@link IMilterHandler#eom(IMilterActions, java.util.Properties)}.
+	 *
+	 * @param eomActions Interface for effecting message changes.
+	 * @param macros The macros received from the MTA.
+	 * @return <code>SMFIS_</code> return codes from {@link IMilterStatus}.
+	 */
+	public IMilterStatus eomMacros(IMilterActions eomActions, MilterMacros macros);
+
+	/**
+	 * Replaces {@link IMilterHandler#unknown(byte[], java.util.Properties)}.
+	 *
+	 * @param command the incoming command.
+	 * @param macros The macros received from the MTA.
+	 * @return <code>SMFIS_</code> return codes from {@link IMilterStatus}.
+	 */
+	public IMilterStatus unknownMacros(byte[] command, MilterMacros macros);
+}
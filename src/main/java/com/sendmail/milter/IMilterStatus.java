@@ -25,7 +25,7 @@ public interface IMilterStatus {
 	/**
 	 * Continue processing the current connection, message, or recipient.
 	 */
-	public static final IMilterStatus SMFIS_CONTINUE = new SimpleMilterStatus(MilterConstants.SMFIR_CONTINUE);
+	public static final IMilterStatus SMFIS_CONTINUE = EncodedMilterStatus.of(MilterConstants.SMFIR_CONTINUE);
 
 	/**
 	 * Rejection. For a connection-oriented routine, reject this connection; call {@link IMilterHandler#close close}.
@@ -33,26 +33,26 @@ public interface IMilterStatus {
 	 * reject this message. For a recipient-oriented routine, reject the current recipient (but continue processing the
 	 * current message).
 	 */
-	public static final IMilterStatus SMFIS_REJECT = new SimpleMilterStatus(MilterConstants.SMFIR_REJECT);
+	public static final IMilterStatus SMFIS_REJECT = EncodedMilterStatus.of(MilterConstants.SMFIR_REJECT);
 
 	/**
 	 * Message discard. For a message- or recipient-oriented routine, accept this message, but silently discard it.
 	 * {@link #SMFIS_DISCARD SMFIS_DISCARD} should not be returned by a connection-oriented routine.
 	 */
-	public static final IMilterStatus SMFIS_DISCARD = new SimpleMilterStatus(MilterConstants.SMFIR_DISCARD);
+	public static final IMilterStatus SMFIS_DISCARD = EncodedMilterStatus.of(MilterConstants.SMFIR_DISCARD);
 
 	/**
 	 * Acceptance. For a connection-oriented routine, accept this connection without further filter processing; call
 	 * {@link IMilterHandler#close close}. For a message- or recipient-oriented routine, accept this message without
 	 * further filtering.
 	 */
-	public static final IMilterStatus SMFIS_ACCEPT = new SimpleMilterStatus(MilterConstants.SMFIR_ACCEPT);
+	public static final IMilterStatus SMFIS_ACCEPT = EncodedMilterStatus.of(MilterConstants.SMFIR_ACCEPT);
 
 	/**
 	 * Skip further body processing. MTA should not send any more BODY chunks. Skip directly to End of Message
 	 * processing.
 	 */
-	public static final IMilterStatus SMFIS_SKIP = new SimpleMilterStatus(MilterConstants.SMFIP_SKIP);
+	public static final IMilterStatus SMFIS_SKIP = EncodedMilterStatus.of(MilterConstants.SMFIP_SKIP);
 
 	/**
 	 * Return a temporary failure, i.e., the corresponding SMTP command will return an appropriate 4xx status code. For
@@ -60,11 +60,11 @@ public interface IMilterStatus {
 	 * connection-oriented routine, fail for this connection; call {@link IMilterHandler#close close}. For a
 	 * recipient-oriented routine, only fail for the current recipient; continue message processing.
 	 */
-	public static final IMilterStatus SMFIS_TEMPFAIL = new SimpleMilterStatus(MilterConstants.SMFIR_TEMPFAIL);
+	public static final IMilterStatus SMFIS_TEMPFAIL = EncodedMilterStatus.of(MilterConstants.SMFIR_TEMPFAIL);
 
 	/**
 	 * Do not send a reply back to the MTA. If you set the SMFIP_NR_* protocol action for a callback, that callback must
 	 * always reply with SMFIS_NOREPLY. If the MTA does not support NOREPLY, send CONTINUE for backwards compatibility.
 	 */
-	public static final IMilterStatus SMFIS_NOREPLY = new SimpleMilterStatus(MilterConstants.SMFIR_CONTINUE);
+	public static final IMilterStatus SMFIS_NOREPLY = EncodedMilterStatus.of(MilterConstants.SMFIR_CONTINUE);
 }
@@ -0,0 +1,23 @@
+package com.sendmail.milter;
+
+import java.io.IOException;
+
+/**
+ * Notified once a batch of replies has been written to the MTA, or failed to be.
+ *
+ * @see IMilterBatchActions#finish(IMilterStatus, IMilterWriteListener)
+ */
+public interface IMilterWriteListener {
+
+	/**
+	 * The replies were handed to the connection.
+	 */
+	public void written();
+
+	/**
+	 * Writing the replies failed. The connection is closed.
+	 *
+	 * @param cause The connection error.
+	 */
+	public void failed(IOException cause);
+}
@@ -0,0 +1,228 @@
+package com.sendmail.milter;
+
+import java.io.ByteArrayOutputStream;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves an {@link IMilterAsyncHandler} as an {@link IMilterHandler}.
+ * <p>
+ * A callback whose future is already complete returns its status right away. Otherwise the callback returns null and
+ * the future is left for the runner to {@link #takePending() take}: {@link com.sendmail.milter.codec.MilterDecoder}
+ * then holds back the reply and the following packets until it completes. A runner unaware of this would reply
+ * {@link IMilterStatus#SMFIS_CONTINUE} without waiting.
+ */
+public final class MilterAsyncHandlerAdapter implements IMilterMacroHandler {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MilterAsyncHandlerAdapter.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final IMilterAsyncHandler handler;
+	private MilterStatusFuture pending;
+
+	/**
+	 * @param handler The asynchronous handler to serve.
+	 */
+	public MilterAsyncHandlerAdapter(IMilterAsyncHandler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * @return The asynchronous handler.
+	 */
+	public IMilterAsyncHandler getHandler() {
+		return handler;
+	}
+
+	/**
+	 * @return true if the last callback left a pending future.
+	 */
+	public boolean isPending() {
+		return pending != null;
+	}
+
+	/**
+	 * Take the future the last callback left pending.
+	 *
+	 * @return The future, or null if the last callback completed synchronously.
+	 */
+	public MilterStatusFuture takePending() {
+		MilterStatusFuture future = pending;
+		pending = null;
+		return future;
+	}
+
+	private IMilterStatus status(MilterStatusFuture future) {
+		pending = null;
+		if (future == null) {
+			return null;
+		}
+		if (!future.isDone()) {
+			pending = future;
+			return null;
+		}
+		if (future.getFailure() != null) {
+			LOG.error("Asynchronous milter handler failed", future.getFailure());
+		}
+		return future.getStatus();
+	}
+
+	/**
+	 * @return The properties as macros, for runners not passing {@link MilterMacros}.
+	 */
+	private static MilterMacros macros(Properties properties) {
+		if (properties == null || properties.isEmpty()) {
+			return MilterMacros.EMPTY;
+		}
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		for (String name : properties.stringPropertyNames()) {
+			byte[] key = name.getBytes(UTF8);
+			byte[] value = properties.getProperty(name).getBytes(UTF8);
+			data.write(key, 0, key.length);
+			data.write(0);
+			data.write(value, 0, value.length);
+			data.write(0);
+		}
+		byte[] bytes = data.toByteArray();
+		return new MilterMacros(bytes, 0, bytes.length, null);
+	}
+
+	@Override
+	public IMilterStatus connectMacros(String hostname, InetAddress hostaddr, MilterMacros macros) {
+		return status(handler.connect(hostname, hostaddr, macros));
+	}
+
+	@Override
+	public IMilterStatus connect(String hostname, InetAddress hostaddr, Properties properties) {
+		return connectMacros(hostname, hostaddr, macros(properties));
+	}
+
+	@Override
+	public IMilterStatus heloMacros(String helohost, MilterMacros macros) {
+		return status(handler.helo(helohost, macros));
+	}
+
+	@Override
+	public IMilterStatus helo(String helohost, Properties properties) {
+		return heloMacros(helohost, macros(properties));
+	}
+
+	@Override
+	public IMilterStatus envfromMacros(byte[][] argv, MilterMacros macros) {
+		return status(handler.envfrom(argv, macros));
+	}
+
+	@Override
+	public IMilterStatus envfrom(byte[][] argv, Properties properties) {
+		return envfromMacros(argv, macros(properties));
+	}
+
+	@Override
+	public IMilterStatus envrcptMacros(byte[][] argv, MilterMacros macros) {
+		return status(handler.envrcpt(argv, macros));
+	}
+
+	@Override
+	public IMilterStatus envrcpt(byte[][] argv, Properties properties) {
+		return envrcptMacros(argv, macros(properties));
+	}
+
+	@Override
+	public IMilterStatus header(byte[] name, byte[] value) {
+		return status(handler.header(name, value));
+	}
+
+	@Override
+	public IMilterStatus eohMacros(IMilterActions eohActions, MilterMacros macros) {
+		return status(handler.eoh(eohActions, macros));
+	}
+
+	@Override
+	public IMilterStatus eoh(IMilterActions eohActions, Properties properties) {
+		return eohMacros(eohActions, macros(properties));
+	}
+
+	@Override
+	public IMilterStatus dataMacros(MilterMacros macros) {
+		return status(handler.data(macros));
+	}
+
+	@Override
+	public IMilterStatus data(Properties properties) {
+		return dataMacros(macros(properties));
+	}
+
+	@Override
+	public IMilterStatus body(ByteBuffer bodyp) {
+		return status(handler.body(bodyp));
+	}
+
+	@Override
+	public IMilterStatus eomMacros(IMilterActions eomActions, MilterMacros macros) {
+		return status(handler.eom(eomActions, macros));
+	}
+
+	@Override
+	public IMilterStatus eom(IMilterActions eomActions, Properties properties) {
+		return eomMacros(eomActions, macros(properties));
+	}
+
+	@Override
+	public IMilterStatus unknownMacros(byte[] command, MilterMacros macros) {
+		return status(handler.unknown(command, macros));
+	}
+
+	@Override
+	public IMilterStatus unknown(byte[] command, Properties properties) {
+		return unknownMacros(command, macros(properties));
+	}
+
+	@Override
+	public IMilterStatus abort() {
+		pending = null;
+		handler.abort();
+		return null;
+	}
+
+	@Override
+	public IMilterStatus close() {
+		pending = null;
+		handler.close();
+		return null;
+	}
+
+	@Override
+	public int getActionFlags() {
+		return handler.getActionFlags();
+	}
+
+	@Override
+	public int getProtocolFlags() {
+		return handler.getProtocolFlags();
+	}
+
+	@Override
+	public int negotiateVersion(int mtaVersion, int actionFlags, int protocolFlags) {
+		return handler.negotiateVersion(mtaVersion, actionFlags, protocolFlags);
+	}
+
+	@Override
+	public void reset() {
+		pending = null;
+		handler.reset();
+	}
+
+	@Override
+	public Map<Integer, Set<String>> getMacros() {
+		return handler.getMacros();
+	}
+}
@@ -0,0 +1,250 @@
+package com.sendmail.milter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Collects the body chunks of a message so a handler can inspect the whole body at end of message.
+ * <p>
+ * Bodies up to a threshold are kept in a direct buffer taken from a pool shared by all accumulators. A body growing
+ * past the threshold is spilled to a temporary file, and {@link #getBody()} then maps that file instead of reading it
+ * into the heap. Either way, the heap use does not depend on the message size.
+ * <p>
+ * {@link #release()} returns the buffer to the pool and deletes the file. {@link AMilterBodyHandlerAdapter} does so
+ * automatically. An accumulator is not thread safe.
+ */
+public final class MilterBodyAccumulator {
+
+	/**
+	 * Default size up to which bodies are kept in memory.
+	 */
+	public static final int DEFAULT_THRESHOLD = 1 << 20;
+
+	/**
+	 * Capacity of the smallest pooled buffer. Pooled buffers are powers of two from this size up.
+	 */
+	private static final int MIN_CAPACITY = 1 << 16;
+	private static final int SIZE_CLASSES = 15;
+
+	/**
+	 * The most memory kept idle in the pool, per buffer size.
+	 */
+	private static final int MAX_POOLED_BYTES = 16 << 20;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static final Queue<ByteBuffer>[] POOL = new Queue[SIZE_CLASSES];
+	private static final AtomicIntegerArray POOLED = new AtomicIntegerArray(SIZE_CLASSES);
+
+	static {
+		for (int i = 0; i < SIZE_CLASSES; ++i) {
+			POOL[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+		}
+	}
+
+	private final int threshold;
+	private final File directory;
+	private ByteBuffer memory;
+	private File file;
+	private RandomAccessFile access;
+	private FileChannel channel;
+	private ByteBuffer mapped;
+	private long size;
+
+	/**
+	 * Creates an accumulator keeping bodies up to {@link #DEFAULT_THRESHOLD} in memory and spilling larger ones to the
+	 * default temporary file directory.
+	 */
+	public MilterBodyAccumulator() {
+		this(DEFAULT_THRESHOLD, null);
+	}
+
+	/**
+	 * @param threshold The largest body kept in memory, in bytes. 0 spills every body.
+	 * @param directory The directory for temporary files, or null for the default one.
+	 */
+	public MilterBodyAccumulator(int threshold, File directory) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException("threshold cannot be negative");
+		}
+		this.threshold = threshold;
+		this.directory = directory;
+	}
+
+	/**
+	 * Add a body chunk.
+	 *
+	 * @param chunk The chunk, as passed to {@link IMilterHandler#body}. Its position is not changed.
+	 * @throws IOException if spilling to the temporary file fails.
+	 */
+	public void append(ByteBuffer chunk) throws IOException {
+		int position = chunk.position();
+		int length = chunk.remaining();
+		if (length == 0) {
+			return;
+		}
+		try {
+			if (channel == null && size + length <= threshold) {
+				reserve((int) size + length);
+				memory.put(chunk);
+			}
+			else {
+				if (channel == null) {
+					spill();
+				}
+				while (chunk.hasRemaining()) {
+					channel.write(chunk);
+				}
+				mapped = null;
+			}
+			size += length;
+		}
+		finally {
+			chunk.position(position);
+		}
+	}
+
+	/**
+	 * @return The number of bytes collected.
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @return true if the body was spilled to a temporary file.
+	 */
+	public boolean isSpilled() {
+		return channel != null;
+	}
+
+	/**
+	 * Get the collected body. For a spilled body this is a read-only mapping of the temporary file, which stays valid
+	 * after {@link #release()} until it is garbage collected; do not keep it longer than needed.
+	 *
+	 * @return A read-only buffer over the body, from position 0 to its size. Valid until the next {@link #append} or
+	 * {@link #release()}.
+	 * @throws IOException if mapping the temporary file fails.
+	 */
+	public ByteBuffer getBody() throws IOException {
+		if (channel != null) {
+			if (mapped == null) {
+				mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			return mapped.duplicate();
+		}
+		if (memory == null) {
+			return ByteBuffer.allocate(0).asReadOnlyBuffer();
+		}
+		ByteBuffer body = memory.asReadOnlyBuffer();
+		body.flip();
+		return body;
+	}
+
+	/**
+	 * @return The temporary file channel holding a spilled body, or null if the body is in memory. Lets a handler
+	 * stream the body on, for example with {@link IMilterBatchActions#replacebody(FileChannel, long, long)}.
+	 */
+	public FileChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Drop the collected body, returning the buffer to the pool and deleting the temporary file. The accumulator can
+	 * be used again afterwards.
+	 */
+	public void release() {
+		size = 0;
+		mapped = null;
+		if (memory != null) {
+			recycle(memory);
+			memory = null;
+		}
+		if (access != null) {
+			try {
+				access.close();
+			}
+			catch (IOException ex) {
+				// Nothing left to do with it.
+			}
+			if (!file.delete()) {
+				file.deleteOnExit();
+			}
+			access = null;
+			channel = null;
+			file = null;
+		}
+	}
+
+	private void reserve(int required) {
+		if (memory != null && memory.capacity() >= required) {
+			return;
+		}
+		ByteBuffer larger = take(Math.min(Math.max(required, MIN_CAPACITY), Math.max(threshold, MIN_CAPACITY)));
+		if (memory != null) {
+			memory.flip();
+			larger.put(memory);
+			recycle(memory);
+		}
+		memory = larger;
+	}
+
+	private void spill() throws IOException {
+		file = File.createTempFile("milter-body", ".tmp", directory);
+		access = new RandomAccessFile(file, "rw");
+		channel = access.getChannel();
+		if (memory != null) {
+			memory.flip();
+			while (memory.hasRemaining()) {
+				channel.write(memory);
+			}
+			recycle(memory);
+			memory = null;
+		}
+	}
+
+	/**
+	 * @return The smallest size class holding the capacity, or {@link #SIZE_CLASSES} if it is too large to pool.
+	 */
+	private static int sizeClass(int capacity) {
+		int sizeClass = 0;
+		while (sizeClass < SIZE_CLASSES && (MIN_CAPACITY << sizeClass) < capacity) {
+			++sizeClass;
+		}
+		return sizeClass;
+	}
+
+	private static ByteBuffer take(int capacity) {
+		int sizeClass = sizeClass(capacity);
+		if (sizeClass == SIZE_CLASSES) {
+			return ByteBuffer.allocateDirect(capacity);
+		}
+		ByteBuffer buffer = POOL[sizeClass].poll();
+		if (buffer != null) {
+			POOLED.decrementAndGet(sizeClass);
+			return buffer;
+		}
+		return ByteBuffer.allocateDirect(MIN_CAPACITY << sizeClass);
+	}
+
+	private static void recycle(ByteBuffer buffer) {
+		int sizeClass = sizeClass(buffer.capacity());
+		if (sizeClass >= SIZE_CLASSES || (MIN_CAPACITY << sizeClass) != buffer.capacity()) {
+			return;
+		}
+		int limit = Math.max(1, MAX_POOLED_BYTES / buffer.capacity());
+		if (POOLED.incrementAndGet(sizeClass) <= limit) {
+			buffer.clear();
+			POOL[sizeClass].offer(buffer);
+		}
+		else {
+			POOLED.decrementAndGet(sizeClass);
+		}
+	}
+}
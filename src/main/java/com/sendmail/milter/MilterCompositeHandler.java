@@ -0,0 +1,754 @@
+package com.sendmail.milter;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Hosts several handlers behind one MTA connection and one negotiation, in place of a chain of milters. Serve it
+ * through a {@link MilterAsyncHandlerAdapter}.
+ * <p>
+ * Negotiation merges the handlers: action flags and macros are combined, and an event is requested from the MTA if any
+ * handler wants it, while replies are only waived if all handlers waive them. Each event then goes to the handlers
+ * that asked for it, in order, or all at once on the executor if there is one. The first terminal status, anything but
+ * continue, accept and skip, is the reply: the remaining handlers are not called, or their results are ignored when
+ * they run concurrently. A handler that accepts gets no more events for the message, or for the connection if it
+ * accepted the connection; the composite accepts once all of them have. Likewise body chunks are skipped once all
+ * handlers skipped them.
+ * <p>
+ * With an executor, the handlers of an event must be independent of each other. They see body chunks as copies, so
+ * they may keep them, and their end of message modifications reach the MTA in no particular order. A handler is never
+ * called again before its previous call returned, even if the composite already replied without waiting for it.
+ */
+public final class MilterCompositeHandler implements IMilterAsyncHandler {
+
+	private static final int CONNECTION = 0;
+	private static final int MESSAGE = 1;
+	private static final int BODY = 2;
+
+	/**
+	 * Protocol flags an event is only left out or unanswered for if all handlers agree.
+	 */
+	private static final int COMMON_FLAGS = MilterConstants.SMFIP_NOCONNECT | MilterConstants.SMFIP_NOHELO
+			| MilterConstants.SMFIP_NOMAIL | MilterConstants.SMFIP_NORCPT | MilterConstants.SMFIP_NOBODY
+			| MilterConstants.SMFIP_NOHDRS | MilterConstants.SMFIP_NOEOH | MilterConstants.SMFIP_NOUNKNOWN
+			| MilterConstants.SMFIP_NODATA | MilterConstants.SMFIP_NR_CONN | MilterConstants.SMFIP_NR_HELO
+			| MilterConstants.SMFIP_NR_MAIL | MilterConstants.SMFIP_NR_RCPT | MilterConstants.SMFIP_NR_DATA
+			| MilterConstants.SMFIP_NR_UNKN | MilterConstants.SMFIP_NR_EOH | MilterConstants.SMFIP_NR_BODY
+			| MilterConstants.SMFIP_NR_HDR;
+
+	private final IMilterHandler[] handlers;
+	private final Executor executor;
+	/**
+	 * Each handler's flags, with all those derived for it, to skip the events it ignores.
+	 */
+	private final int[] protocolFlags;
+	private final boolean[] acceptedConnection;
+	private final boolean[] acceptedMessage;
+	private final boolean[] skipped;
+	private Round previous;
+	private int mtaProtocolFlags;
+
+	/**
+	 * @param executor Runs the handlers of an event concurrently, or null to call them in order on the runner's thread.
+	 * @param handlers The handlers, each serving only this connection.
+	 */
+	public MilterCompositeHandler(Executor executor, IMilterHandler... handlers) {
+		if (handlers.length == 0) {
+			throw new IllegalArgumentException("At least one handler is required");
+		}
+		this.handlers = handlers.clone();
+		this.executor = executor;
+		this.protocolFlags = new int[handlers.length];
+		this.acceptedConnection = new boolean[handlers.length];
+		this.acceptedMessage = new boolean[handlers.length];
+		this.skipped = new boolean[handlers.length];
+		for (int i = 0; i < handlers.length; ++i) {
+			protocolFlags[i] = flags(handlers[i]);
+		}
+	}
+
+	private static int flags(IMilterHandler handler) {
+		return handler.getProtocolFlags() | MilterHandlerIntrospector.protocolFlags(handler);
+	}
+
+	/**
+	 * @return A copy of the hosted handlers.
+	 */
+	public IMilterHandler[] getHandlers() {
+		return handlers.clone();
+	}
+
+	/**
+	 * A callback of the hosted handlers.
+	 */
+	private abstract static class Call {
+
+		abstract IMilterStatus call(IMilterHandler handler, IMilterActions actions);
+	}
+
+	/**
+	 * One event dispatched to the handlers concurrently.
+	 */
+	private final class Round {
+
+		final MilterStatusFuture future = new MilterStatusFuture();
+		final int stage;
+		private int remaining;
+		private boolean finished;
+		private List<ChildActions> actions;
+		private Runnable then;
+
+		Round(int stage) {
+			this.stage = stage;
+		}
+
+		void start(int count) {
+			synchronized (this) {
+				remaining = count;
+			}
+			if (count == 0) {
+				finish(combined(stage));
+				done();
+			}
+		}
+
+		/**
+		 * A handler returned.
+		 */
+		void completed(int index, IMilterStatus status) {
+			if (terminal(record(index, stage, status))) {
+				finish(status);
+			}
+			boolean last;
+			synchronized (this) {
+				last = --remaining == 0;
+			}
+			if (last) {
+				finish(combined(stage));
+				done();
+			}
+		}
+
+		void failed(Throwable failure) {
+			closeActions();
+			future.fail(failure);
+			boolean last;
+			synchronized (this) {
+				last = --remaining == 0;
+			}
+			if (last) {
+				done();
+			}
+		}
+
+		synchronized ChildActions actions(IMilterActions target) {
+			if (target == null) {
+				return null;
+			}
+			if (actions == null) {
+				actions = new ArrayList<ChildActions>(handlers.length);
+			}
+			ChildActions child = new ChildActions(target, this);
+			actions.add(child);
+			return child;
+		}
+
+		private void finish(IMilterStatus status) {
+			closeActions();
+			future.complete(status);
+		}
+
+		private void closeActions() {
+			List<ChildActions> close;
+			synchronized (this) {
+				close = actions;
+			}
+			if (close != null) {
+				for (ChildActions child : close) {
+					child.close();
+				}
+			}
+		}
+
+		/**
+		 * All handlers returned: the next event may go ahead.
+		 */
+		private void done() {
+			Runnable next;
+			synchronized (this) {
+				finished = true;
+				next = then;
+				then = null;
+			}
+			if (next != null) {
+				next.run();
+			}
+		}
+
+		/**
+		 * Run the next event once all handlers returned.
+		 */
+		void then(final Runnable next) {
+			synchronized (this) {
+				if (!finished) {
+					if (then == null) {
+						then = next;
+					}
+					else {
+						// Tasks queued by abort or eom run before the next event's round starts.
+						final Runnable first = then;
+						then = new Runnable() {
+
+							@Override
+							public void run() {
+								first.run();
+								next.run();
+							}
+						};
+					}
+					return;
+				}
+			}
+			next.run();
+		}
+	}
+
+	/**
+	 * The actions as one handler sees them during one event. Its {@link #finish(IMilterStatus)} only sets the status
+	 * of that handler, and the actions close as soon as the composite has replied.
+	 */
+	private static final class ChildActions implements IMilterActions {
+
+		private final IMilterActions target;
+		private final Object lock;
+		private boolean closed;
+		private IMilterStatus finished;
+
+		ChildActions(IMilterActions target, Object lock) {
+			this.target = target;
+			this.lock = lock;
+		}
+
+		void close() {
+			synchronized (lock) {
+				closed = true;
+			}
+		}
+
+		IMilterStatus status(IMilterStatus returned) {
+			synchronized (lock) {
+				return finished != null ? finished : returned;
+			}
+		}
+
+		private void check() throws IOException {
+			if (closed || finished != null) {
+				throw new IOException("Milter actions are only available until eoh or eom returns");
+			}
+		}
+
+		@Override
+		public void addheader(String name, String value) throws IOException {
+			synchronized (lock) {
+				check();
+				target.addheader(name, value);
+			}
+		}
+
+		@Override
+		public void chgheader(String name, int index, String value) throws IOException {
+			synchronized (lock) {
+				check();
+				target.chgheader(name, index, value);
+			}
+		}
+
+		@Override
+		public void insheader(String name, String value) throws IOException {
+			synchronized (lock) {
+				check();
+				target.insheader(name, value);
+			}
+		}
+
+		@Override
+		public void addrcpt(String rcpt) throws IOException {
+			synchronized (lock) {
+				check();
+				target.addrcpt(rcpt);
+			}
+		}
+
+		@Override
+		public void delrcpt(String rcpt) throws IOException {
+			synchronized (lock) {
+				check();
+				target.delrcpt(rcpt);
+			}
+		}
+
+		@Override
+		public void replacebody(ByteBuffer bodyp) throws IOException {
+			synchronized (lock) {
+				check();
+				target.replacebody(bodyp);
+			}
+		}
+
+		@Override
+		public void progress() throws IOException {
+			synchronized (lock) {
+				check();
+				target.progress();
+			}
+		}
+
+		@Override
+		public void finish(IMilterStatus status) throws IOException {
+			synchronized (lock) {
+				check();
+				finished = status == null ? IMilterStatus.SMFIS_CONTINUE : status;
+			}
+		}
+	}
+
+	private MilterStatusFuture dispatch(int noFlag, int stage, IMilterActions actions, Call call) {
+		if (executor == null) {
+			return MilterStatusFuture.completed(sequential(noFlag, stage, actions, call));
+		}
+		Round round = new Round(stage);
+		Round last;
+		synchronized (this) {
+			last = previous;
+			previous = round;
+		}
+		if (last == null) {
+			concurrent(round, noFlag, actions, call);
+		}
+		else {
+			last.then(start(round, noFlag, actions, call));
+		}
+		return round.future;
+	}
+
+	private Runnable start(final Round round, final int noFlag, final IMilterActions actions, final Call call) {
+		return new Runnable() {
+
+			@Override
+			public void run() {
+				concurrent(round, noFlag, actions, call);
+			}
+		};
+	}
+
+	private IMilterStatus sequential(int noFlag, int stage, IMilterActions actions, Call call) {
+		for (int i = 0; i < handlers.length; ++i) {
+			if (participates(i, noFlag, stage)) {
+				ChildActions child = actions == null ? null : new ChildActions(actions, this);
+				IMilterStatus status = call.call(handlers[i], child);
+				if (child != null) {
+					child.close();
+					status = child.status(status);
+				}
+				if (terminal(record(i, stage, status))) {
+					return status;
+				}
+			}
+		}
+		return combined(stage);
+	}
+
+	private void concurrent(final Round round, int noFlag, IMilterActions actions, final Call call) {
+		boolean[] participants = new boolean[handlers.length];
+		int count = 0;
+		synchronized (this) {
+			for (int i = 0; i < handlers.length; ++i) {
+				participants[i] = participates(i, noFlag, round.stage);
+				count += participants[i] ? 1 : 0;
+			}
+		}
+		round.start(count);
+		for (int i = 0; i < handlers.length; ++i) {
+			if (!participants[i]) {
+				continue;
+			}
+			final int index = i;
+			final ChildActions child = round.actions(actions);
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					IMilterStatus status;
+					try {
+						status = call.call(handlers[index], child);
+					}
+					catch (RuntimeException ex) {
+						round.failed(ex);
+						return;
+					}
+					round.completed(index, child == null ? status : child.status(status));
+				}
+			});
+		}
+	}
+
+	private synchronized boolean participates(int i, int noFlag, int stage) {
+		return !acceptedConnection[i] && !acceptedMessage[i] && (protocolFlags[i] & noFlag) == 0
+				&& !(stage == BODY && skipped[i]);
+	}
+
+	/**
+	 * Note what the status means for the handler's further events.
+	 *
+	 * @return The status, with null meaning continue.
+	 */
+	private synchronized IMilterStatus record(int i, int stage, IMilterStatus status) {
+		if (status == null) {
+			return IMilterStatus.SMFIS_CONTINUE;
+		}
+		int code = status.getCode();
+		if (code == MilterConstants.SMFIR_ACCEPT) {
+			if (stage == CONNECTION) {
+				acceptedConnection[i] = true;
+			}
+			else {
+				acceptedMessage[i] = true;
+			}
+		}
+		else if (stage == BODY && skip(status)) {
+			skipped[i] = true;
+		}
+		return status;
+	}
+
+	private static boolean skip(IMilterStatus status) {
+		return status == IMilterStatus.SMFIS_SKIP || status.getCode() == MilterConstants.SMFIR_SKIP;
+	}
+
+	private static boolean terminal(IMilterStatus status) {
+		int code = status.getCode();
+		return code != MilterConstants.SMFIR_CONTINUE && code != MilterConstants.SMFIR_ACCEPT && !skip(status);
+	}
+
+	/**
+	 * @return The reply once no handler returned a terminal status.
+	 */
+	private synchronized IMilterStatus combined(int stage) {
+		boolean accepted = true;
+		boolean skippedAll = true;
+		for (int i = 0; i < handlers.length; ++i) {
+			accepted &= acceptedConnection[i] || acceptedMessage[i];
+			skippedAll &= !participates(i, MilterConstants.SMFIP_NOBODY, BODY);
+		}
+		if (accepted) {
+			return IMilterStatus.SMFIS_ACCEPT;
+		}
+		return stage == BODY && skippedAll ? IMilterStatus.SMFIS_SKIP : IMilterStatus.SMFIS_CONTINUE;
+	}
+
+	private static IMilterStatus connect(IMilterHandler handler, String hostname, InetAddress hostaddr,
+			MilterMacros macros) {
+		return handler instanceof IMilterMacroHandler
+				? ((IMilterMacroHandler) handler).connectMacros(hostname, hostaddr, macros)
+				: handler.connect(hostname, hostaddr, macros.toProperties());
+	}
+
+	@Override
+	public MilterStatusFuture connect(final String hostname, final InetAddress hostaddr, final MilterMacros macros) {
+		return dispatch(MilterConstants.SMFIP_NOCONNECT, CONNECTION, null, new Call() {
+
+			@Override
+			IMilterStatus call(IMilterHandler handler, IMilterActions actions) {
+				return connect(handler, hostname, hostaddr, macros);
+			}
+		});
+	}
+
+	@Override
+	public MilterStatusFuture helo(final String helohost, final MilterMacros macros) {
+		return dispatch(MilterConstants.SMFIP_NOHELO, CONNECTION, null, new Call() {
+
+			@Override
+			IMilterStatus call(IMilterHandler handler, IMilterActions actions) {
+				return handler instanceof IMilterMacroHandler
+						? ((IMilterMacroHandler) handler).heloMacros(helohost, macros)
+						: handler.helo(helohost, macros.toProperties());
+			}
+		});
+	}
+
+	@Override
+	public MilterStatusFuture envfrom(final byte[][] argv, final MilterMacros macros) {
+		endMessage();
+		return dispatch(MilterConstants.SMFIP_NOMAIL, MESSAGE, null, new Call() {
+
+			@Override
+			IMilterStatus call(IMilterHandler handler, IMilterActions actions) {
+				return handler instanceof IMilterMacroHandler
+						? ((IMilterMacroHandler) handler).envfromMacros(argv, macros)
+						: handler.envfrom(argv, macros.toProperties());
+			}
+		});
+	}
+
+	/**
+	 * Forget which handlers accepted or skipped the message. Done when it ends, as the next one need not start with
+	 * an envfrom if no handler asked for it.
+	 */
+	private synchronized void endMessage() {
+		for (int i = 0; i < handlers.length; ++i) {
+			acceptedMessage[i] = false;
+			skipped[i] = false;
+		}
+	}
+
+	@Override
+	public MilterStatusFuture envrcpt(final byte[][] argv, final MilterMacros macros) {
+		return dispatch(MilterConstants.SMFIP_NORCPT, MESSAGE, null, new Call() {
+
+			@Override
+			IMilterStatus call(IMilterHandler handler, IMilterActions actions) {
+				return handler instanceof IMilterMacroHandler
+						? ((IMilterMacroHandler) handler).envrcptMacros(argv, macros)
+						: handler.envrcpt(argv, macros.toProperties());
+			}
+		});
+	}
+
+	@Override
+	public MilterStatusFuture header(final byte[] name, final byte[] value) {
+		return dispatch(MilterConstants.SMFIP_NOHDRS, MESSAGE, null, new Call() {
+
+			@Override
+			IMilterStatus call(IMilterHandler handler, IMilterActions actions) {
+				return handler.header(name, value);
+			}
+		});
+	}
+
+	@Override
+	public MilterStatusFuture eoh(IMilterActions eohActions, final MilterMacros macros) {
+		return dispatch(MilterConstants.SMFIP_NOEOH, MESSAGE, eohActions, new Call() {
+
+			@Override
+			IMilterStatus call(IMilterHandler handler, IMilterActions actions) {
+				return handler instanceof IMilterMacroHandler
+						? ((IMilterMacroHandler) handler).eohMacros(actions, macros)
+						: handler.eoh(actions, macros.toProperties());
+			}
+		});
+	}
+
+	@Override
+	public MilterStatusFuture data(final MilterMacros macros) {
+		return dispatch(MilterConstants.SMFIP_NODATA, MESSAGE, null, new Call() {
+
+			@Override
+			IMilterStatus call(IMilterHandler handler, IMilterActions actions) {
+				return handler instanceof IMilterMacroHandler
+						? ((IMilterMacroHandler) handler).dataMacros(macros)
+						: handler.data(macros.toProperties());
+			}
+		});
+	}
+
+	@Override
+	public MilterStatusFuture body(ByteBuffer bodyp) {
+		final ByteBuffer chunk;
+		if (executor == null) {
+			chunk = bodyp;
+		}
+		else {
+			// The chunk is only valid until this call returns.
+			ByteBuffer copy = ByteBuffer.allocate(bodyp.remaining());
+			copy.put(bodyp.duplicate());
+			copy.flip();
+			chunk = copy.asReadOnlyBuffer();
+		}
+		return dispatch(MilterConstants.SMFIP_NOBODY, BODY, null, new Call() {
+
+			@Override
+			IMilterStatus call(IMilterHandler handler, IMilterActions actions) {
+				return handler.body(chunk.duplicate());
+			}
+		});
+	}
+
+	@Override
+	public MilterStatusFuture eom(IMilterActions eomActions, final MilterMacros macros) {
+		MilterStatusFuture future = dispatch(0, MESSAGE, eomActions, new Call() {
+
+			@Override
+			IMilterStatus call(IMilterHandler handler, IMilterActions actions) {
+				return handler instanceof IMilterMacroHandler
+						? ((IMilterMacroHandler) handler).eomMacros(actions, macros)
+						: handler.eom(actions, macros.toProperties());
+			}
+		});
+		afterPrevious(new Runnable() {
+
+			@Override
+			public void run() {
+				endMessage();
+			}
+		});
+		return future;
+	}
+
+	@Override
+	public MilterStatusFuture unknown(final byte[] command, final MilterMacros macros) {
+		return dispatch(MilterConstants.SMFIP_NOUNKNOWN, MESSAGE, null, new Call() {
+
+			@Override
+			IMilterStatus call(IMilterHandler handler, IMilterActions actions) {
+				return handler instanceof IMilterMacroHandler
+						? ((IMilterMacroHandler) handler).unknownMacros(command, macros)
+						: handler.unknown(command, macros.toProperties());
+			}
+		});
+	}
+
+	@Override
+	public void abort() {
+		afterPrevious(new Runnable() {
+
+			@Override
+			public void run() {
+				for (IMilterHandler handler : handlers) {
+					handler.abort();
+				}
+				endMessage();
+			}
+		});
+	}
+
+	@Override
+	public void close() {
+		afterPrevious(new Runnable() {
+
+			@Override
+			public void run() {
+				for (IMilterHandler handler : handlers) {
+					handler.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Run right away, or once the handlers still running for an event the composite already replied to return.
+	 */
+	private void afterPrevious(Runnable task) {
+		Round last;
+		synchronized (this) {
+			last = previous;
+		}
+		if (last == null) {
+			task.run();
+		}
+		else {
+			last.then(task);
+		}
+	}
+
+	@Override
+	public void reset() {
+		final Round last;
+		synchronized (this) {
+			last = previous;
+		}
+		afterPrevious(new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized (MilterCompositeHandler.this) {
+					for (int i = 0; i < handlers.length; ++i) {
+						handlers[i].reset();
+						acceptedConnection[i] = false;
+						acceptedMessage[i] = false;
+						skipped[i] = false;
+					}
+					// Unless a round of the next session was queued after this one meanwhile.
+					if (previous == last) {
+						previous = null;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return The action flags of all handlers.
+	 */
+	@Override
+	public int getActionFlags() {
+		int flags = 0;
+		for (IMilterHandler handler : handlers) {
+			flags |= handler.getActionFlags();
+		}
+		return flags;
+	}
+
+	/**
+	 * @return The flags leaving out or waiving the reply to an event, if all handlers set them, and the other flags if
+	 * any handler sets them. Includes the flags {@link MilterHandlerIntrospector} derives for each handler, where the
+	 * MTA offers them.
+	 */
+	@Override
+	public synchronized int getProtocolFlags() {
+		int common = COMMON_FLAGS;
+		int any = 0;
+		for (int i = 0; i < handlers.length; ++i) {
+			protocolFlags[i] = flags(handlers[i]);
+			int negotiated = MilterHandlerIntrospector.protocolFlags(handlers[i], mtaProtocolFlags);
+			common &= negotiated;
+			any |= negotiated & ~COMMON_FLAGS;
+		}
+		return common | any;
+	}
+
+	/**
+	 * @return The lowest version any handler negotiates.
+	 */
+	@Override
+	public int negotiateVersion(int mtaVersion, int actionFlags, int protocolFlags) {
+		mtaProtocolFlags = protocolFlags;
+		int version = Integer.MAX_VALUE;
+		for (IMilterHandler handler : handlers) {
+			version = Math.min(version, handler.negotiateVersion(mtaVersion, actionFlags, protocolFlags));
+		}
+		return version;
+	}
+
+	/**
+	 * @return The macros of all handlers, per stage.
+	 */
+	@Override
+	public Map<Integer, Set<String>> getMacros() {
+		Map<Integer, Set<String>> macros = new HashMap<Integer, Set<String>>();
+		for (IMilterHandler handler : handlers) {
+			Map<Integer, Set<String>> requested = handler.getMacros();
+			if (requested == null) {
+				continue;
+			}
+			for (Map.Entry<Integer, Set<String>> entry : requested.entrySet()) {
+				Set<String> names = macros.get(entry.getKey());
+				if (names == null) {
+					names = new HashSet<String>();
+					macros.put(entry.getKey(), names);
+				}
+				names.addAll(entry.getValue());
+			}
+		}
+		return macros;
+	}
+}
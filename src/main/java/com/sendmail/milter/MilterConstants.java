@@ -183,9 +183,16 @@ public final class MilterConstants {
 	 */
 	public static final int SMFIR_TEMPFAIL = 't';
 
+	public static final int SMFIA_UNKNOWN = 'U';
+	public static final int SMFIA_UNIX = 'L';
 	public static final int SMFIA_INET = '4';
 	public static final int SMFIA_INET6 = '6';
 
+	/**
+	 * Largest body chunk the MTA sends or accepts in a single packet, unless a larger size is negotiated.
+	 */
+	public static final int MILTER_CHUNK_SIZE = 65535;
+
 	/**
 	 * Flag for {@link IMilterHandler#getProtocolFlags()} to indicate MTA should NOT send connect info.
 	 */
@@ -0,0 +1,404 @@
+package com.sendmail.milter;
+
+import java.nio.charset.Charset;
+
+/**
+ * A reusable view of the <code>argv</code> passed to {@link IMilterHandler#envfrom} and {@link IMilterHandler#envrcpt},
+ * parsed in place.
+ * <p>
+ * The address in <code>argv[0]</code> is split into local part and domain by offsets into that array, without copies.
+ * The ESMTP parameters <code>SIZE</code>, <code>BODY</code>, <code>NOTIFY</code>, <code>ORCPT</code> and
+ * <code>SMTPUTF8</code> are recognized; any other parameter can be found with {@link #indexOf(String)}. Only the
+ * methods returning a String allocate. A handler typically keeps one envelope per session and calls
+ * {@link #parse(byte[][])} for every command:
+ * <pre>
+ * envelope.parse(argv);
+ * if (envelope.domainEquals("example.com")) ...
+ * </pre>
+ * An envelope is not thread safe, and refers to the parsed <code>argv</code> until the next parse.
+ */
+public final class MilterEnvelope {
+
+	/**
+	 * No <code>BODY</code> parameter.
+	 */
+	public static final int BODY_NONE = 0;
+	public static final int BODY_7BIT = 1;
+	public static final int BODY_8BITMIME = 2;
+	public static final int BODY_BINARYMIME = 3;
+
+	/**
+	 * Flags of the <code>NOTIFY</code> parameter.
+	 */
+	public static final int NOTIFY_NEVER = 0x01;
+	public static final int NOTIFY_SUCCESS = 0x02;
+	public static final int NOTIFY_FAILURE = 0x04;
+	public static final int NOTIFY_DELAY = 0x08;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private byte[][] argv;
+	private byte[] address;
+	private int addressOffset;
+	private int addressLength;
+	private int domainOffset;
+	private long size;
+	private int body;
+	private int notify;
+	private int orcpt;
+	private boolean smtputf8;
+
+	/**
+	 * Parse the arguments of an envelope command.
+	 *
+	 * @param argv The arguments, <code>argv[0]</code> being the address.
+	 * @return this
+	 * @throws IllegalArgumentException if there is no address.
+	 */
+	public MilterEnvelope parse(byte[][] argv) {
+		if (argv == null || argv.length == 0 || argv[0] == null) {
+			throw new IllegalArgumentException("argv must hold an address");
+		}
+		this.argv = argv;
+		this.size = -1;
+		this.body = BODY_NONE;
+		this.notify = 0;
+		this.orcpt = -1;
+		this.smtputf8 = false;
+		parseAddress(argv[0]);
+		for (int i = 1; i < argv.length; ++i) {
+			byte[] arg = argv[i];
+			if (keyword(arg, "SIZE")) {
+				size = number(arg, 5);
+			}
+			else if (keyword(arg, "BODY")) {
+				body = matches(arg, 5, "7BIT") ? BODY_7BIT
+						: matches(arg, 5, "8BITMIME") ? BODY_8BITMIME
+						: matches(arg, 5, "BINARYMIME") ? BODY_BINARYMIME : BODY_NONE;
+			}
+			else if (keyword(arg, "NOTIFY")) {
+				notify = notify(arg, 7);
+			}
+			else if (keyword(arg, "ORCPT")) {
+				orcpt = i;
+			}
+			else if (keyword(arg, "SMTPUTF8")) {
+				smtputf8 = true;
+			}
+		}
+		return this;
+	}
+
+	private void parseAddress(byte[] arg) {
+		int start = 0;
+		int end = arg.length;
+		while (start < end && arg[start] == ' ') {
+			++start;
+		}
+		while (end > start && arg[end - 1] == ' ') {
+			--end;
+		}
+		if (start < end && arg[start] == '<') {
+			++start;
+			if (end > start && arg[end - 1] == '>') {
+				--end;
+			}
+		}
+		// Drop an obsolete source route, "@relay1,@relay2:".
+		if (start < end && arg[start] == '@') {
+			for (int i = start; i < end; ++i) {
+				if (arg[i] == ':') {
+					start = i + 1;
+					break;
+				}
+			}
+		}
+		address = arg;
+		addressOffset = start;
+		addressLength = end - start;
+		domainOffset = -1;
+		boolean quoted = false;
+		for (int i = start; i < end; ++i) {
+			if (arg[i] == '\\' && quoted) {
+				++i;
+			}
+			else if (arg[i] == '"') {
+				quoted = !quoted;
+			}
+			else if (arg[i] == '@' && !quoted) {
+				domainOffset = i + 1;
+			}
+		}
+	}
+
+	private static boolean keyword(byte[] arg, String keyword) {
+		int length = keyword.length();
+		if (arg.length < length || (arg.length > length && arg[length] != '=')) {
+			return false;
+		}
+		return matches(arg, 0, length, keyword);
+	}
+
+	private static boolean matches(byte[] arg, int offset, String value) {
+		return arg.length - offset == value.length() && matches(arg, offset, value.length(), value);
+	}
+
+	private static boolean matches(byte[] arg, int offset, int length, CharSequence value) {
+		if (length != value.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; ++i) {
+			if (toLowerCase(arg[offset + i]) != toLowerCase((byte) value.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte toLowerCase(byte b) {
+		return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+	}
+
+	private static long number(byte[] arg, int offset) {
+		if (offset >= arg.length) {
+			return -1;
+		}
+		long value = 0;
+		for (int i = offset; i < arg.length; ++i) {
+			if (arg[i] < '0' || arg[i] > '9' || value > (Long.MAX_VALUE - 9) / 10) {
+				return -1;
+			}
+			value = value * 10 + (arg[i] - '0');
+		}
+		return value;
+	}
+
+	private static int notify(byte[] arg, int offset) {
+		int flags = 0;
+		for (int start = offset; start < arg.length;) {
+			int end = start;
+			while (end < arg.length && arg[end] != ',') {
+				++end;
+			}
+			int length = end - start;
+			flags |= matches(arg, start, length, "NEVER") ? NOTIFY_NEVER
+					: matches(arg, start, length, "SUCCESS") ? NOTIFY_SUCCESS
+					: matches(arg, start, length, "FAILURE") ? NOTIFY_FAILURE
+					: matches(arg, start, length, "DELAY") ? NOTIFY_DELAY : 0;
+			start = end + 1;
+		}
+		return flags;
+	}
+
+	/**
+	 * @return The array holding the address, <code>argv[0]</code>.
+	 */
+	public byte[] getAddressBytes() {
+		return address;
+	}
+
+	/**
+	 * @return The start of the address in {@link #getAddressBytes()}, past the angle brackets and any source route.
+	 */
+	public int getAddressOffset() {
+		return addressOffset;
+	}
+
+	/**
+	 * @return The length of the address, 0 for the null reverse path <code>&lt;&gt;</code>.
+	 */
+	public int getAddressLength() {
+		return addressLength;
+	}
+
+	/**
+	 * @return true for the null reverse path <code>&lt;&gt;</code> of bounces.
+	 */
+	public boolean isNullPath() {
+		return addressLength == 0;
+	}
+
+	/**
+	 * @return The start of the local part in {@link #getAddressBytes()}. The same as {@link #getAddressOffset()}.
+	 */
+	public int getLocalPartOffset() {
+		return addressOffset;
+	}
+
+	/**
+	 * @return The length of the local part, which is the whole address if it has no domain.
+	 */
+	public int getLocalPartLength() {
+		return domainOffset < 0 ? addressLength : domainOffset - 1 - addressOffset;
+	}
+
+	/**
+	 * @return The start of the domain in {@link #getAddressBytes()}, or -1 if the address has no domain.
+	 */
+	public int getDomainOffset() {
+		return domainOffset;
+	}
+
+	/**
+	 * @return The length of the domain, 0 if the address has none.
+	 */
+	public int getDomainLength() {
+		return domainOffset < 0 ? 0 : addressOffset + addressLength - domainOffset;
+	}
+
+	/**
+	 * Compare the domain, ignoring ASCII case.
+	 *
+	 * @param domain The domain to compare to.
+	 * @return true if the address has this domain.
+	 */
+	public boolean domainEquals(CharSequence domain) {
+		return domainOffset >= 0 && matches(address, domainOffset, getDomainLength(), domain);
+	}
+
+	/**
+	 * Check the domain is the given one or one of its subdomains, ignoring ASCII case.
+	 *
+	 * @param domain A domain such as <code>example.com</code>.
+	 * @return true for <code>example.com</code> and <code>mail.example.com</code>, false for
+	 * <code>badexample.com</code>.
+	 */
+	public boolean domainWithin(CharSequence domain) {
+		int length = getDomainLength();
+		int offset = domainOffset + length - domain.length();
+		if (domainOffset < 0 || offset < domainOffset) {
+			return false;
+		}
+		return (offset == domainOffset || address[offset - 1] == '.')
+				&& matches(address, offset, domain.length(), domain);
+	}
+
+	/**
+	 * Lowercase the ASCII letters of the domain in place, in <code>argv[0]</code>.
+	 *
+	 * @return this
+	 */
+	public MilterEnvelope lowerCaseDomain() {
+		for (int i = domainOffset, end = domainOffset + getDomainLength(); i < end; ++i) {
+			address[i] = toLowerCase(address[i]);
+		}
+		return this;
+	}
+
+	/**
+	 * @return The address, decoded as UTF-8.
+	 */
+	public String getAddress() {
+		return new String(address, addressOffset, addressLength, UTF8);
+	}
+
+	/**
+	 * @return The local part, decoded as UTF-8.
+	 */
+	public String getLocalPart() {
+		return new String(address, addressOffset, getLocalPartLength(), UTF8);
+	}
+
+	/**
+	 * @return The domain, decoded as UTF-8, or null if the address has none.
+	 */
+	public String getDomain() {
+		return domainOffset < 0 ? null : new String(address, domainOffset, getDomainLength(), UTF8);
+	}
+
+	/**
+	 * @return The <code>SIZE</code> parameter, or -1 if absent or invalid.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return The <code>BODY</code> parameter, one of the <code>BODY_</code> constants.
+	 */
+	public int getBody() {
+		return body;
+	}
+
+	/**
+	 * @return The <code>NOTIFY</code> parameter, a combination of the <code>NOTIFY_</code> flags, 0 if absent.
+	 */
+	public int getNotify() {
+		return notify;
+	}
+
+	/**
+	 * @return true if the <code>SMTPUTF8</code> parameter was given.
+	 */
+	public boolean isSmtpUtf8() {
+		return smtputf8;
+	}
+
+	/**
+	 * @return The address of the <code>ORCPT</code> parameter, without its address type and decoded from xtext, or
+	 * null if absent or without a value.
+	 */
+	public String getOriginalRecipient() {
+		if (orcpt < 0) {
+			return null;
+		}
+		byte[] arg = argv[orcpt];
+		if (arg.length <= 6) {
+			// A bare "ORCPT" or "ORCPT=".
+			return null;
+		}
+		int start = 6;
+		while (start < arg.length && arg[start] != ';') {
+			++start;
+		}
+		if (start == arg.length) {
+			start = 5;
+		}
+		byte[] decoded = new byte[arg.length - start - 1];
+		return new String(decoded, 0, decodeXtext(arg, start + 1, decoded.length, decoded, 0), UTF8);
+	}
+
+	/**
+	 * Find an ESMTP parameter.
+	 *
+	 * @param keyword The parameter keyword, such as <code>ENVID</code>. Case does not matter.
+	 * @return The index of the parameter in <code>argv</code>, or -1 if absent. Its value starts at
+	 * <code>keyword.length() + 1</code>.
+	 */
+	public int indexOf(String keyword) {
+		for (int i = 1; i < argv.length; ++i) {
+			if (keyword(argv[i], keyword)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Decode RFC 3461 xtext, where <code>+XX</code> stands for the byte with hexadecimal value XX. The destination may
+	 * be the source array, as the decoded text is never longer.
+	 *
+	 * @param src The xtext.
+	 * @param offset The start of the xtext.
+	 * @param length The length of the xtext.
+	 * @param dst The destination array.
+	 * @param dstOffset The start in the destination array.
+	 * @return The length of the decoded text.
+	 */
+	public static int decodeXtext(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+		int out = dstOffset;
+		for (int i = offset, end = offset + length; i < end; ++i) {
+			byte b = src[i];
+			if (b == '+' && i + 2 < end) {
+				int high = Character.digit(src[i + 1], 16);
+				int low = Character.digit(src[i + 2], 16);
+				if (high >= 0 && low >= 0) {
+					b = (byte) (high << 4 | low);
+					i += 2;
+				}
+			}
+			dst[out++] = b;
+		}
+		return out - dstOffset;
+	}
+}
@@ -0,0 +1,226 @@
+package com.sendmail.milter;
+
+import java.lang.reflect.Method;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Derives protocol flags of a handler from its class, inspected once per class, and from its macros; negotiation
+ * adds them to {@link IMilterHandler#getProtocolFlags()}. These are the <code>SMFIP_NO</code> flags of the
+ * {@link AMilterHandlerAdapter} callbacks a handler does not override, so the MTA does not send events the handler
+ * would only answer with continue, and the <code>SMFIP_NR_</code> flags of the callbacks marked {@link MilterNoReply}.
+ * The callbacks of an {@link IMilterAsyncHandler} served by a {@link MilterAsyncHandlerAdapter} are read from the
+ * asynchronous handler.
+ * <p>
+ * Postfix does not send the macros of events it leaves out, and every later callback sees the macros of earlier
+ * stages. So an event with macros of its own is only left out if no later callback receiving macros is overridden and
+ * {@link IMilterHandler#getMacros()} requests none for its stage. Headers, body chunks and unknown commands have no
+ * macros, and are left out whenever their callbacks are not overridden.
+ */
+public final class MilterHandlerIntrospector {
+
+	/**
+	 * What was found in each handler class. Weak, so the classes of replaced factories can be unloaded.
+	 */
+	private static final Map<Class<?>, ClassFlags> CLASSES
+			= Collections.synchronizedMap(new WeakHashMap<Class<?>, ClassFlags>());
+
+	/**
+	 * The events with macros, in protocol order, as their <code>SMFIP_NO</code> flag, macro stage and callbacks.
+	 */
+	private static final int[] STAGE_FLAGS = {
+		MilterConstants.SMFIP_NOCONNECT, MilterConstants.SMFIP_NOHELO, MilterConstants.SMFIP_NOMAIL,
+		MilterConstants.SMFIP_NORCPT, MilterConstants.SMFIP_NODATA, MilterConstants.SMFIP_NOEOH, 0
+	};
+	private static final int[] STAGES = {
+		MilterConstants.Macros.SMFIM_CONNECT, MilterConstants.Macros.SMFIM_HELO, MilterConstants.Macros.SMFIM_ENVFROM,
+		MilterConstants.Macros.SMFIM_ENVRCPT, MilterConstants.Macros.SMFIM_DATA, MilterConstants.Macros.SMFIM_EOH,
+		MilterConstants.Macros.SMFIM_EOM
+	};
+	private static final String[] STAGE_METHODS = {"connect", "helo", "envfrom", "envrcpt", "data", "eoh", "eom"};
+	/**
+	 * The callbacks that may go without reply, and their <code>SMFIP_NR_</code> flags.
+	 */
+	private static final String[] NO_REPLY_METHODS = {
+		"connect", "helo", "envfrom", "envrcpt", "header", "eoh", "data", "body", "unknown"
+	};
+	private static final int[] NO_REPLY_FLAGS = {
+		MilterConstants.SMFIP_NR_CONN, MilterConstants.SMFIP_NR_HELO, MilterConstants.SMFIP_NR_MAIL,
+		MilterConstants.SMFIP_NR_RCPT, MilterConstants.SMFIP_NR_HDR, MilterConstants.SMFIP_NR_EOH,
+		MilterConstants.SMFIP_NR_DATA, MilterConstants.SMFIP_NR_BODY, MilterConstants.SMFIP_NR_UNKN
+	};
+	private static final Class<?>[][] STAGE_PARAMETERS = {
+		{String.class, InetAddress.class}, {String.class}, {byte[][].class}, {byte[][].class}, {},
+		{IMilterActions.class}, {IMilterActions.class}
+	};
+
+	private MilterHandlerIntrospector() {
+		throw new IllegalStateException("You have no class!");
+	}
+
+	/**
+	 * @param handler The handler.
+	 * @return The <code>SMFIP_NO</code> flags for the events the handler ignores, if it extends
+	 * {@link AMilterHandlerAdapter}, and the <code>SMFIP_NR_</code> flags for its {@link MilterNoReply} callbacks.
+	 */
+	public static int protocolFlags(IMilterHandler handler) {
+		if (handler instanceof MilterAsyncHandlerAdapter) {
+			return protocolFlags(((MilterAsyncHandlerAdapter) handler).getHandler());
+		}
+		ClassFlags found = inspect(handler.getClass(), handler instanceof AMilterHandlerAdapter);
+		int flags = found.flags;
+		if (handler instanceof AMilterHandlerAdapter) {
+			// The macros may differ between instances of the same class.
+			Map<Integer, Set<String>> macros = handler.getMacros();
+			for (int i = STAGE_METHODS.length - 1; i >= 0; --i) {
+				if ((found.stages & (1 << i)) != 0 || requests(macros, STAGES[i])) {
+					break;
+				}
+				flags |= STAGE_FLAGS[i];
+			}
+			if ((flags & MilterConstants.SMFIP_NOUNKNOWN) == 0) {
+				// Unknown commands see the macros of connect and helo.
+				flags &= ~(MilterConstants.SMFIP_NOCONNECT | MilterConstants.SMFIP_NOHELO);
+			}
+		}
+		return flags;
+	}
+
+	/**
+	 * @param handler The asynchronous handler.
+	 * @return The <code>SMFIP_NR_</code> flags for its {@link MilterNoReply} callbacks.
+	 */
+	public static int protocolFlags(IMilterAsyncHandler handler) {
+		return inspect(handler.getClass(), false).flags;
+	}
+
+	private static ClassFlags inspect(Class<?> type, boolean adapter) {
+		ClassFlags found = CLASSES.get(type);
+		if (found == null) {
+			int flags = noReplyEvents(type);
+			int stages = 0;
+			if (adapter) {
+				flags |= unusedEvents(type);
+				for (int i = 0; i < STAGE_METHODS.length; ++i) {
+					if (overridesStage(type, i)) {
+						stages |= 1 << i;
+					}
+				}
+			}
+			found = new ClassFlags(flags, stages);
+			CLASSES.put(type, found);
+		}
+		return found;
+	}
+
+	/**
+	 * @param handler The handler.
+	 * @param mtaProtocolFlags The protocol flags the MTA offers.
+	 * @return The protocol flags to negotiate for the handler: its own, and those derived for it that the MTA offers.
+	 */
+	public static int protocolFlags(IMilterHandler handler, int mtaProtocolFlags) {
+		return handler.getProtocolFlags() | (protocolFlags(handler) & mtaProtocolFlags);
+	}
+
+	private static int noReplyEvents(Class<?> type) {
+		int flags = 0;
+		for (Method method : type.getMethods()) {
+			if (method.isAnnotationPresent(MilterNoReply.class)) {
+				for (int i = 0; i < NO_REPLY_METHODS.length; ++i) {
+					if (NO_REPLY_METHODS[i].equals(callback(method.getName()))) {
+						flags |= NO_REPLY_FLAGS[i];
+					}
+				}
+			}
+		}
+		return flags;
+	}
+
+	/**
+	 * @return The event a method handles, the same for the methods of {@link IMilterBufferHandler} and
+	 * {@link IMilterMacroHandler} as for those of {@link IMilterHandler} they replace.
+	 */
+	private static String callback(String method) {
+		if (method.endsWith("Buffer")) {
+			return method.substring(0, method.length() - "Buffer".length());
+		}
+		if (method.endsWith("Macros")) {
+			return method.substring(0, method.length() - "Macros".length());
+		}
+		return method;
+	}
+
+	/**
+	 * @return The <code>SMFIP_NO</code> flags of the events without macros whose callbacks are not overridden.
+	 */
+	private static int unusedEvents(Class<?> type) {
+		int flags = 0;
+		if (!overrides(type, "header", byte[].class, byte[].class)
+				&& !overrides(type, "headerBuffer", ByteBuffer.class, ByteBuffer.class)) {
+			flags |= MilterConstants.SMFIP_NOHDRS;
+		}
+		if (!overrides(type, "body", ByteBuffer.class)) {
+			flags |= MilterConstants.SMFIP_NOBODY;
+		}
+		if (!overrides(type, "unknown", byte[].class, Properties.class)
+				&& !overrides(type, "unknownMacros", byte[].class, MilterMacros.class)) {
+			flags |= MilterConstants.SMFIP_NOUNKNOWN;
+		}
+		return flags;
+	}
+
+	private static boolean requests(Map<Integer, Set<String>> macros, int stage) {
+		if (macros == null) {
+			return false;
+		}
+		Set<String> names = macros.get(stage);
+		return names != null && !names.isEmpty();
+	}
+
+	private static boolean overridesStage(Class<?> type, int stage) {
+		Class<?>[] parameters = STAGE_PARAMETERS[stage];
+		Class<?>[] withProperties = new Class<?>[parameters.length + 1];
+		Class<?>[] withMacros = new Class<?>[parameters.length + 1];
+		System.arraycopy(parameters, 0, withProperties, 0, parameters.length);
+		System.arraycopy(parameters, 0, withMacros, 0, parameters.length);
+		withProperties[parameters.length] = Properties.class;
+		withMacros[parameters.length] = MilterMacros.class;
+		return overrides(type, STAGE_METHODS[stage], withProperties)
+				|| overrides(type, STAGE_METHODS[stage] + "Macros", withMacros);
+	}
+
+	private static boolean overrides(Class<?> type, String name, Class<?>... parameters) {
+		try {
+			return type.getMethod(name, parameters).getDeclaringClass() != AMilterHandlerAdapter.class;
+		}
+		catch (NoSuchMethodException ex) {
+			throw new IllegalStateException("AMilterHandlerAdapter lacks " + name, ex);
+		}
+	}
+
+	/**
+	 * The part of the flags that only depends on the class.
+	 */
+	private static final class ClassFlags {
+
+		/**
+		 * The <code>SMFIP_NR_</code> flags, and the <code>SMFIP_NO</code> flags of the events without macros.
+		 */
+		final int flags;
+		/**
+		 * Bit per entry of {@link #STAGE_METHODS} whose callback is overridden.
+		 */
+		final int stages;
+
+		ClassFlags(int flags, int stages) {
+			this.flags = flags;
+			this.stages = stages;
+		}
+	}
+}
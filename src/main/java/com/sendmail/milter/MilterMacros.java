@@ -0,0 +1,206 @@
+package com.sendmail.milter;
+
+import java.nio.charset.Charset;
+import java.util.Properties;
+
+/**
+ * Immutable set of macros (symbols) sent by the MTA for one stage, falling back to the macros of earlier stages like
+ * {@link Properties} defaults do.
+ * <p>
+ * The macros are kept as the raw bytes of the MTA's packet, indexed by an open-addressed hash table over the macro
+ * names. Values are only decoded to strings when asked for, and {@link #toProperties()} only builds a
+ * {@link Properties} copy for handlers that want one. Instances may be kept and shared between threads.
+ */
+public final class MilterMacros {
+
+	/**
+	 * Macros without entries or earlier stage.
+	 */
+	public static final MilterMacros EMPTY = new MilterMacros(new byte[0], 0, 0, null);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final byte[] data;
+	private final MilterMacros parent;
+
+	/**
+	 * Hash slots, holding entry number + 1 or 0 when free, followed by name start, name end, value start and value
+	 * end offsets per entry.
+	 */
+	private final int[] index;
+	private final int mask;
+	private final int count;
+	private final String[] values;
+	private volatile Properties properties;
+
+	/**
+	 * @param data The macro packet payload after the stage byte: alternating NUL-terminated names and values. The
+	 * array is taken over, not copied.
+	 * @param offset Start of the entries in <code>data</code>.
+	 * @param length Length of the entries.
+	 * @param parent The macros of the previous stage, or null.
+	 */
+	public MilterMacros(byte[] data, int offset, int length, MilterMacros parent) {
+		this.data = data;
+		this.parent = parent;
+		int end = offset + length;
+		int entries = 0;
+		for (int i = offset; i < end; ++i) {
+			if (data[i] == 0) {
+				++entries;
+			}
+		}
+		entries = (entries + 1) / 2;
+		int slots = Integer.highestOneBit(Math.max(entries, 1) * 2 - 1) << 1;
+		this.mask = slots - 1;
+		this.index = new int[slots + entries * 4];
+		int n = 0;
+		for (int i = offset; i < end;) {
+			int nameEnd = terminator(i, end);
+			int valueStart = Math.min(nameEnd + 1, end);
+			int valueEnd = terminator(valueStart, end);
+			if (nameEnd > i) {
+				int entry = slots + n * 4;
+				index[entry] = i;
+				index[entry + 1] = nameEnd;
+				index[entry + 2] = valueStart;
+				index[entry + 3] = valueEnd;
+				int slot = hash(data, i, nameEnd) & mask;
+				while (index[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				index[slot] = ++n;
+			}
+			i = valueEnd + 1;
+		}
+		this.count = n;
+		this.values = new String[n];
+	}
+
+	private int terminator(int pos, int end) {
+		while (pos < end && data[pos] != 0) {
+			++pos;
+		}
+		return pos;
+	}
+
+	/**
+	 * Get the value of a macro from this stage or an earlier one.
+	 *
+	 * @param name The macro name as requested in {@link IMilterHandler#getMacros()}, such as <code>"j"</code> or
+	 * <code>"{daemon_name}"</code>.
+	 * @return The value, or null if the MTA did not send the macro.
+	 */
+	public String get(String name) {
+		for (MilterMacros macros = this; macros != null; macros = macros.parent) {
+			int entry = macros.find(name);
+			if (entry >= 0) {
+				return macros.value(entry);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param name The macro name.
+	 * @return true if this stage or an earlier one has the macro.
+	 */
+	public boolean containsKey(String name) {
+		for (MilterMacros macros = this; macros != null; macros = macros.parent) {
+			if (macros.find(name) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return The number of macros sent for this stage, not counting earlier stages.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return The macros of the previous stage, or null.
+	 */
+	public MilterMacros getParent() {
+		return parent;
+	}
+
+	/**
+	 * @return The macros as {@link Properties}, with the earlier stages as defaults. Built on first use, then shared:
+	 * the same instance is returned on every call, except for {@link #EMPTY}, which is shared by every connection and
+	 * so returns a new instance each time.
+	 */
+	public Properties toProperties() {
+		if (this == EMPTY) {
+			return new Properties();
+		}
+		Properties result = properties;
+		if (result == null) {
+			result = parent == null ? new Properties() : new Properties(parent.toProperties());
+			int slots = mask + 1;
+			for (int entry = 0; entry < count; ++entry) {
+				int at = slots + entry * 4;
+				result.put(new String(data, index[at], index[at + 1] - index[at], UTF8), value(entry));
+			}
+			properties = result;
+		}
+		return result;
+	}
+
+	private String value(int entry) {
+		String value = values[entry];
+		if (value == null) {
+			int at = mask + 1 + entry * 4;
+			value = values[entry] = new String(data, index[at + 2], index[at + 3] - index[at + 2], UTF8);
+		}
+		return value;
+	}
+
+	/**
+	 * @return The entry number of the name, or -1.
+	 */
+	private int find(String name) {
+		if (count == 0) {
+			return -1;
+		}
+		int slot = hash(name) & mask;
+		for (int n; (n = index[slot]) != 0; slot = (slot + 1) & mask) {
+			int at = mask + 1 + (n - 1) * 4;
+			if (matches(name, index[at], index[at + 1])) {
+				return n - 1;
+			}
+		}
+		return -1;
+	}
+
+	private boolean matches(String name, int start, int end) {
+		if (end - start != name.length()) {
+			return false;
+		}
+		for (int i = start; i < end; ++i) {
+			if ((data[i] & 0xFF) != name.charAt(i - start)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int hash(byte[] bytes, int start, int end) {
+		int h = 0x811C9DC5;
+		for (int i = start; i < end; ++i) {
+			h = (h ^ (bytes[i] & 0xFF)) * 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static int hash(String name) {
+		int h = 0x811C9DC5;
+		for (int i = 0, n = name.length(); i < n; ++i) {
+			h = (h ^ (name.charAt(i) & 0xFF)) * 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,22 @@
+package com.sendmail.milter;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a callback as observe-only: its status is never sent, so the MTA need not wait for it. Negotiation asks for
+ * the matching <code>SMFIP_NR_</code> flag, and where the MTA does not support it the reply is sent as before.
+ * <p>
+ * Applies to the <code>connect</code>, <code>helo</code>, <code>envfrom</code>, <code>envrcpt</code>,
+ * <code>header</code>, <code>eoh</code>, <code>data</code>, <code>body</code> and <code>unknown</code> callbacks of an
+ * {@link IMilterHandler} or {@link IMilterAsyncHandler}, and is read from the handler's class; see
+ * {@link MilterHandlerIntrospector}. Such a callback should return {@link IMilterStatus#SMFIS_NOREPLY}.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface MilterNoReply {
+}
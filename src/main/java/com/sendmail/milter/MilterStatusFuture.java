@@ -0,0 +1,147 @@
+package com.sendmail.milter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The status of an {@link IMilterAsyncHandler} callback, completed later by whatever thread finishes the lookup.
+ * <p>
+ * The library targets Java 1.6, so this plays the part of a <code>CompletionStage&lt;IMilterStatus&gt;</code>. On Java 8
+ * and later a stage is bridged with:
+ * <pre>
+ * MilterStatusFuture future = new MilterStatusFuture();
+ * stage.whenComplete((status, failure) -&gt; future.complete(status, failure));
+ * return future;
+ * </pre>
+ * Everything a handler does for the callback, including its {@link IMilterActions}, must happen before it completes
+ * the future.
+ */
+public final class MilterStatusFuture {
+
+	private boolean done;
+	private IMilterStatus status;
+	private Throwable failure;
+	private List<Runnable> listeners;
+
+	/**
+	 * Creates a pending future.
+	 */
+	public MilterStatusFuture() {
+	}
+
+	/**
+	 * @param status The status.
+	 * @return A future completed with the status.
+	 */
+	public static MilterStatusFuture completed(IMilterStatus status) {
+		MilterStatusFuture future = new MilterStatusFuture();
+		future.complete(status);
+		return future;
+	}
+
+	/**
+	 * Complete with a status.
+	 *
+	 * @param status The status, null meaning {@link IMilterStatus#SMFIS_CONTINUE}.
+	 * @return false if the future was already complete.
+	 */
+	public boolean complete(IMilterStatus status) {
+		return complete(status, null);
+	}
+
+	/**
+	 * Complete with a failure. The MTA is sent {@link IMilterStatus#SMFIS_TEMPFAIL}.
+	 *
+	 * @param failure The cause.
+	 * @return false if the future was already complete.
+	 */
+	public boolean fail(Throwable failure) {
+		return complete(null, failure == null ? new NullPointerException("failure") : failure);
+	}
+
+	/**
+	 * Complete with a status or a failure, in the form of a <code>whenComplete</code> callback.
+	 *
+	 * @param status The status, used if there is no failure.
+	 * @param failure The failure, or null.
+	 * @return false if the future was already complete.
+	 */
+	public boolean complete(IMilterStatus status, Throwable failure) {
+		List<Runnable> notify;
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			this.done = true;
+			this.status = failure != null ? IMilterStatus.SMFIS_TEMPFAIL
+					: status != null ? status : IMilterStatus.SMFIS_CONTINUE;
+			this.failure = failure;
+			notify = listeners;
+			listeners = null;
+			notifyAll();
+		}
+		if (notify != null) {
+			for (Runnable listener : notify) {
+				listener.run();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true once completed.
+	 */
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * @return The status, {@link IMilterStatus#SMFIS_TEMPFAIL} after a failure, or null while pending.
+	 */
+	public synchronized IMilterStatus getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return The failure, or null.
+	 */
+	public synchronized Throwable getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Run a listener once the future completes: on the completing thread, or right away on the calling thread if it
+	 * already has.
+	 *
+	 * @param listener The listener. It should only hand the work over to another thread.
+	 */
+	public void onComplete(Runnable listener) {
+		synchronized (this) {
+			if (!done) {
+				if (listeners == null) {
+					listeners = new ArrayList<Runnable>(1);
+				}
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	/**
+	 * Wait for completion. Only meant for runners that serve a session per thread.
+	 *
+	 * @param timeout The longest time to wait.
+	 * @param unit The unit of the timeout.
+	 * @return true if the future is complete.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public synchronized boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (long left = unit.toNanos(timeout); !done && left > 0; left = deadline - System.nanoTime()) {
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		return done;
+	}
+}
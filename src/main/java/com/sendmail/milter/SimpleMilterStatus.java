@@ -19,7 +19,7 @@ public final class SimpleMilterStatus implements IMilterStatus {
 
 	public SimpleMilterStatus(int status, byte[] message) {
 		this.status = status;
-		this.message = message == null ? null : ByteBuffer.wrap(message);
+		this.message = message == null ? null : ByteBuffer.wrap(message).asReadOnlyBuffer();
 	}
 
 	@Override
@@ -27,8 +27,11 @@ public final class SimpleMilterStatus implements IMilterStatus {
 		return status;
 	}
 
+	/**
+	 * @return null, or a new read-only buffer over the message, so callers cannot disturb each other's position.
+	 */
 	@Override
 	public ByteBuffer getMessage() {
-		return message;
+		return message == null ? null : message.duplicate();
 	}
 }
@@ -0,0 +1,35 @@
+package com.sendmail.milter.capture;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Collects encoded packets in a growing heap buffer.
+ */
+final class MemoryChannel implements WritableByteChannel {
+
+	ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+	@Override
+	public int write(ByteBuffer src) {
+		int count = src.remaining();
+		if (buffer.remaining() < count) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.position() + count, buffer.capacity() * 2));
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+		}
+		buffer.put(src);
+		return count;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return true;
+	}
+
+	@Override
+	public void close() {
+		// Memory only.
+	}
+}
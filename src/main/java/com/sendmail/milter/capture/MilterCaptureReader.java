@@ -0,0 +1,162 @@
+package com.sendmail.milter.capture;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the chunks of a capture file through a memory mapped window, moved along the file as reading goes on, so
+ * captures of any size are read without copying them onto the heap. A capture whose last chunk was cut short, because
+ * it was still being written or the recording process died, ends before that chunk.
+ */
+public final class MilterCaptureReader implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MilterCaptureReader.class);
+
+	/**
+	 * Size of the mapped window, unless a chunk is larger.
+	 */
+	private static final int WINDOW_SIZE = 1 << 28;
+
+	private final FileChannel channel;
+	private final long size;
+	private long windowStart;
+	private MappedByteBuffer window;
+	private ByteBuffer packets;
+
+	private long session;
+	private int direction;
+
+	/**
+	 * @param file The capture file.
+	 * @throws IOException if the file cannot be read or is not a capture.
+	 */
+	public MilterCaptureReader(File file) throws IOException {
+		this.channel = new FileInputStream(file).getChannel();
+		try {
+			this.size = channel.size();
+			map(0, MilterCaptureWriter.HEADER_SIZE);
+			byte[] magic = new byte[MilterCaptureWriter.MAGIC.length];
+			window.get(magic);
+			if (!Arrays.equals(magic, MilterCaptureWriter.MAGIC)) {
+				throw new IOException(file + " is not a milter capture");
+			}
+			int version = window.getInt();
+			if (version != MilterCaptureWriter.VERSION) {
+				throw new IOException("Unsupported milter capture version " + version);
+			}
+		}
+		catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Move to the next chunk.
+	 *
+	 * @return false at the end of the capture.
+	 * @throws IOException if reading fails.
+	 */
+	public boolean next() throws IOException {
+		long position = windowStart + window.position();
+		if (size - position < MilterCaptureWriter.CHUNK_HEADER_SIZE) {
+			truncated(position);
+			return false;
+		}
+		if (window.remaining() < MilterCaptureWriter.CHUNK_HEADER_SIZE) {
+			map(position, MilterCaptureWriter.CHUNK_HEADER_SIZE);
+		}
+		int start = window.position();
+		long chunkSession = window.getLong(start);
+		int chunkDirection = window.get(start + 8);
+		int length = window.getInt(start + 9);
+		if (length < 0 || (chunkDirection != MilterCaptureWriter.TO_FILTER
+				&& chunkDirection != MilterCaptureWriter.TO_MTA)) {
+			throw new IOException("Corrupt milter capture chunk at " + position);
+		}
+		if (size - position - MilterCaptureWriter.CHUNK_HEADER_SIZE < length) {
+			truncated(position);
+			return false;
+		}
+		if (window.remaining() - MilterCaptureWriter.CHUNK_HEADER_SIZE < length) {
+			map(position, MilterCaptureWriter.CHUNK_HEADER_SIZE + length);
+			start = 0;
+		}
+		session = chunkSession;
+		direction = chunkDirection;
+		int packetsStart = start + MilterCaptureWriter.CHUNK_HEADER_SIZE;
+		window.position(packetsStart + length);
+		packets.limit(packetsStart + length);
+		packets.position(packetsStart);
+		return true;
+	}
+
+	/**
+	 * @return The session of the current chunk.
+	 */
+	public long getSession() {
+		return session;
+	}
+
+	/**
+	 * @return The direction of the current chunk, {@link MilterCaptureWriter#TO_FILTER} or
+	 * {@link MilterCaptureWriter#TO_MTA}.
+	 */
+	public int getDirection() {
+		return direction;
+	}
+
+	/**
+	 * @return The packets of the current chunk, as a view of the mapping valid until the next call to {@link #next()}.
+	 * It may be read and moved freely, but not written.
+	 */
+	public ByteBuffer getPackets() {
+		return packets;
+	}
+
+	/**
+	 * @return How far reading has come, in bytes.
+	 */
+	public long getPosition() {
+		return windowStart + window.position();
+	}
+
+	/**
+	 * @return The size of the capture file in bytes.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private void map(long position, int required) throws IOException {
+		if (size - position < required) {
+			throw new EOFException("Milter capture ends within its header");
+		}
+		long length = Math.min(size - position, Math.max(WINDOW_SIZE, required));
+		window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+		windowStart = position;
+		packets = window.duplicate();
+	}
+
+	private void truncated(long position) {
+		if (position < size) {
+			LOG.warn("Milter capture ends with an incomplete chunk at {}, {} bytes ignored", position, size - position);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.sendmail.milter.capture;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes a capture file, shared by the {@link MilterRecordingHandler recorders} of all connections. Each recorder
+ * encodes its chunks on its own and hands them over in pieces, which are appended under a lock, so a session's chunks
+ * may interleave with those of others. Once writing fails, say because the disk is full, the capture stops and the
+ * error is logged, while the handlers go on serving mail.
+ */
+public final class MilterCaptureWriter implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MilterCaptureWriter.class);
+
+	/**
+	 * Direction of chunks with packets from the MTA to the filter.
+	 */
+	public static final int TO_FILTER = '>';
+
+	/**
+	 * Direction of chunks with packets from the filter to the MTA.
+	 */
+	public static final int TO_MTA = '<';
+
+	static final byte[] MAGIC = "MILTRCAP".getBytes(Charset.forName("US-ASCII"));
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = MAGIC.length + 4;
+	/**
+	 * Session id, direction and length.
+	 */
+	static final int CHUNK_HEADER_SIZE = 13;
+
+	private final FileChannel channel;
+	private final AtomicLong sessions = new AtomicLong();
+	private volatile boolean failed;
+
+	/**
+	 * @param file The capture file, replaced if it exists.
+	 * @throws IOException if the file cannot be created.
+	 */
+	public MilterCaptureWriter(File file) throws IOException {
+		this.channel = new FileOutputStream(file).getChannel();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.put(MAGIC).putInt(VERSION).flip();
+		try {
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+		}
+		catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * @return A new session id, never 0.
+	 */
+	public long newSession() {
+		return sessions.incrementAndGet();
+	}
+
+	/**
+	 * Append complete chunks.
+	 *
+	 * @param chunks The chunks. The buffer's position is advanced to its limit, unless the capture has stopped.
+	 */
+	public void write(ByteBuffer chunks) {
+		if (failed) {
+			return;
+		}
+		synchronized (this) {
+			try {
+				while (chunks.hasRemaining()) {
+					channel.write(chunks);
+				}
+			}
+			catch (IOException ex) {
+				if (!failed) {
+					failed = true;
+					LOG.warn("Writing the milter capture failed, capture stopped", ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true once writing failed and the capture stopped.
+	 */
+	public boolean isFailed() {
+		return failed;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		failed = true;
+		channel.close();
+	}
+}
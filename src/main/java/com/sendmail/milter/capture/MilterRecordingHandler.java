@@ -0,0 +1,711 @@
+package com.sendmail.milter.capture;
+
+import com.sendmail.milter.IMilterActions;
+import com.sendmail.milter.IMilterBatchActions;
+import com.sendmail.milter.IMilterBufferHandler;
+import com.sendmail.milter.IMilterHandler;
+import com.sendmail.milter.IMilterMacroHandler;
+import com.sendmail.milter.IMilterStatus;
+import com.sendmail.milter.IMilterWriteListener;
+import com.sendmail.milter.MilterAsyncHandlerAdapter;
+import com.sendmail.milter.MilterConstants;
+import com.sendmail.milter.MilterHandlerIntrospector;
+import com.sendmail.milter.MilterMacros;
+import com.sendmail.milter.codec.MilterEncoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Records the sessions of a handler into a capture. Every callback is written as the packet the MTA sent for it,
+ * preceded by the macros of its stage, and followed by the replies the filter sent: the status, and at end of message
+ * the modifications requested through the {@link IMilterActions}, encoded as {@link MilterEncoder} encodes them. A
+ * session ends with {@link #close()}; a connection reused with {@link MilterConstants#SMFIC_QUIT_NC} starts a new
+ * session, which repeats the option negotiation so it can be replayed on its own.
+ * <p>
+ * The client port is not passed to handlers, so it is recorded as 0. Negotiation must reach the handler to be
+ * recorded, so leave the negotiation cache off while capturing. Sessions are buffered and written when they end, or in
+ * pieces of about 1 MiB. Asynchronous handlers cannot be recorded, and the batch methods of the actions are only
+ * available if the runner's actions are {@link IMilterBatchActions}, as those of
+ * {@link com.sendmail.milter.codec.MilterDecoder} are.
+ */
+public final class MilterRecordingHandler implements IMilterMacroHandler, IMilterBufferHandler {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int FLUSH_SIZE = 1 << 20;
+
+	private final IMilterHandler handler;
+	private final IMilterMacroHandler macroHandler;
+	private final IMilterBufferHandler bufferHandler;
+	private final MilterCaptureWriter writer;
+	private final MilterEncoder encoder;
+	private final RecordingActions actions = new RecordingActions();
+
+	private ByteBuffer chunks = ByteBuffer.allocate(8192);
+	private int chunkStart = -1;
+	private int direction;
+	private int packetStart;
+	private long session;
+	private Object lastMacros;
+
+	private ByteBuffer negotiation;
+	private int mtaProtocolFlags;
+	private int protocolFlags;
+
+	/**
+	 * Modifications requested during end of headers, sent ahead of those of end of message.
+	 */
+	private MemoryChannel eohModifications;
+	private MilterEncoder eohEncoder;
+
+	/**
+	 * @param writer The capture to record into.
+	 * @param handler The handler to record.
+	 * @throws IllegalArgumentException if the handler is a {@link MilterAsyncHandlerAdapter}.
+	 */
+	public MilterRecordingHandler(MilterCaptureWriter writer, IMilterHandler handler) {
+		if (handler instanceof MilterAsyncHandlerAdapter) {
+			throw new IllegalArgumentException("Asynchronous handlers cannot be recorded");
+		}
+		this.writer = writer;
+		this.handler = handler;
+		this.macroHandler = handler instanceof IMilterMacroHandler ? (IMilterMacroHandler) handler : null;
+		this.bufferHandler = handler instanceof IMilterBufferHandler ? (IMilterBufferHandler) handler : null;
+		this.encoder = new MilterEncoder(ByteBuffer.allocate(MilterEncoder.DEFAULT_BUFFER_SIZE), new ReplyChannel());
+	}
+
+	/**
+	 * @return The handler recorded.
+	 */
+	public IMilterHandler getHandler() {
+		return handler;
+	}
+
+	@Override
+	public int negotiateVersion(int mtaVersion, int actionFlags, int protocolFlags) {
+		negotiation = ByteBuffer.allocate(12);
+		negotiation.putInt(mtaVersion).putInt(actionFlags).putInt(protocolFlags).flip();
+		mtaProtocolFlags = protocolFlags;
+		if (session != 0) {
+			// Renegotiated within a session: record it where it happened.
+			packet(MilterConstants.SMFIC_OPTNEG);
+			put(negotiation.duplicate());
+			end();
+		}
+		return handler.negotiateVersion(mtaVersion, actionFlags, protocolFlags);
+	}
+
+	@Override
+	public int getActionFlags() {
+		return handler.getActionFlags();
+	}
+
+	@Override
+	public int getProtocolFlags() {
+		int flags = MilterHandlerIntrospector.protocolFlags(handler, mtaProtocolFlags);
+		// What negotiation keeps, so replies the MTA does not expect are not recorded.
+		protocolFlags = flags & mtaProtocolFlags;
+		return flags;
+	}
+
+	@Override
+	public Map<Integer, Set<String>> getMacros() {
+		return handler.getMacros();
+	}
+
+	@Override
+	public IMilterStatus connectMacros(String hostname, InetAddress hostaddr, MilterMacros macros) {
+		macros(MilterConstants.SMFIC_CONNECT, macros);
+		connect(hostname, hostaddr);
+		return reply(MilterConstants.SMFIP_NR_CONN, macroHandler != null
+				? macroHandler.connectMacros(hostname, hostaddr, macros)
+				: handler.connect(hostname, hostaddr, macros.toProperties()));
+	}
+
+	@Override
+	public IMilterStatus connect(String hostname, InetAddress hostaddr, Properties properties) {
+		macros(MilterConstants.SMFIC_CONNECT, properties);
+		connect(hostname, hostaddr);
+		return reply(MilterConstants.SMFIP_NR_CONN, handler.connect(hostname, hostaddr, properties));
+	}
+
+	private void connect(String hostname, InetAddress hostaddr) {
+		packet(MilterConstants.SMFIC_CONNECT);
+		putString(hostname);
+		if (hostaddr == null) {
+			put((byte) MilterConstants.SMFIA_UNKNOWN);
+		}
+		else {
+			put((byte) (hostaddr instanceof Inet6Address ? MilterConstants.SMFIA_INET6 : MilterConstants.SMFIA_INET));
+			reserve(2);
+			chunks.putShort((short) 0);
+			putString(hostaddr.getHostAddress());
+		}
+		end();
+	}
+
+	@Override
+	public IMilterStatus heloMacros(String helohost, MilterMacros macros) {
+		macros(MilterConstants.SMFIC_HELO, macros);
+		string(MilterConstants.SMFIC_HELO, helohost);
+		return reply(MilterConstants.SMFIP_NR_HELO, macroHandler != null ? macroHandler.heloMacros(helohost, macros)
+				: handler.helo(helohost, macros.toProperties()));
+	}
+
+	@Override
+	public IMilterStatus helo(String helohost, Properties properties) {
+		macros(MilterConstants.SMFIC_HELO, properties);
+		string(MilterConstants.SMFIC_HELO, helohost);
+		return reply(MilterConstants.SMFIP_NR_HELO, handler.helo(helohost, properties));
+	}
+
+	@Override
+	public IMilterStatus envfromMacros(byte[][] argv, MilterMacros macros) {
+		macros(MilterConstants.SMFIC_MAIL, macros);
+		argv(MilterConstants.SMFIC_MAIL, argv);
+		return reply(MilterConstants.SMFIP_NR_MAIL, macroHandler != null ? macroHandler.envfromMacros(argv, macros)
+				: handler.envfrom(argv, macros.toProperties()));
+	}
+
+	@Override
+	public IMilterStatus envfrom(byte[][] argv, Properties properties) {
+		macros(MilterConstants.SMFIC_MAIL, properties);
+		argv(MilterConstants.SMFIC_MAIL, argv);
+		return reply(MilterConstants.SMFIP_NR_MAIL, handler.envfrom(argv, properties));
+	}
+
+	@Override
+	public IMilterStatus envrcptMacros(byte[][] argv, MilterMacros macros) {
+		macros(MilterConstants.SMFIC_RCPT, macros);
+		argv(MilterConstants.SMFIC_RCPT, argv);
+		return reply(MilterConstants.SMFIP_NR_RCPT, macroHandler != null ? macroHandler.envrcptMacros(argv, macros)
+				: handler.envrcpt(argv, macros.toProperties()));
+	}
+
+	@Override
+	public IMilterStatus envrcpt(byte[][] argv, Properties properties) {
+		macros(MilterConstants.SMFIC_RCPT, properties);
+		argv(MilterConstants.SMFIC_RCPT, argv);
+		return reply(MilterConstants.SMFIP_NR_RCPT, handler.envrcpt(argv, properties));
+	}
+
+	@Override
+	public IMilterStatus headerBuffer(ByteBuffer name, ByteBuffer value) {
+		packet(MilterConstants.SMFIC_HEADER);
+		put(name.duplicate());
+		put((byte) 0);
+		put(value.duplicate());
+		put((byte) 0);
+		end();
+		if (bufferHandler != null) {
+			return reply(MilterConstants.SMFIP_NR_HDR, bufferHandler.headerBuffer(name, value));
+		}
+		byte[] nameBytes = new byte[name.remaining()];
+		byte[] valueBytes = new byte[value.remaining()];
+		name.duplicate().get(nameBytes);
+		value.duplicate().get(valueBytes);
+		return reply(MilterConstants.SMFIP_NR_HDR, handler.header(nameBytes, valueBytes));
+	}
+
+	@Override
+	public IMilterStatus header(byte[] name, byte[] value) {
+		packet(MilterConstants.SMFIC_HEADER);
+		put(ByteBuffer.wrap(name));
+		put((byte) 0);
+		put(ByteBuffer.wrap(value));
+		put((byte) 0);
+		end();
+		return reply(MilterConstants.SMFIP_NR_HDR, handler.header(name, value));
+	}
+
+	@Override
+	public IMilterStatus eohMacros(IMilterActions eohActions, MilterMacros macros) {
+		macros(MilterConstants.SMFIC_EOH, macros);
+		empty(MilterConstants.SMFIC_EOH);
+		actions.begin(eohActions, eohEncoder());
+		try {
+			return reply(MilterConstants.SMFIP_NR_EOH, actions.end(macroHandler != null
+					? macroHandler.eohMacros(actions, macros) : handler.eoh(actions, macros.toProperties())));
+		}
+		finally {
+			actions.close();
+		}
+	}
+
+	@Override
+	public IMilterStatus eoh(IMilterActions eohActions, Properties properties) {
+		macros(MilterConstants.SMFIC_EOH, properties);
+		empty(MilterConstants.SMFIC_EOH);
+		actions.begin(eohActions, eohEncoder());
+		try {
+			return reply(MilterConstants.SMFIP_NR_EOH, actions.end(handler.eoh(actions, properties)));
+		}
+		finally {
+			actions.close();
+		}
+	}
+
+	@Override
+	public IMilterStatus dataMacros(MilterMacros macros) {
+		macros(MilterConstants.SMFIC_DATA, macros);
+		empty(MilterConstants.SMFIC_DATA);
+		return reply(MilterConstants.SMFIP_NR_DATA, macroHandler != null ? macroHandler.dataMacros(macros)
+				: handler.data(macros.toProperties()));
+	}
+
+	@Override
+	public IMilterStatus data(Properties properties) {
+		macros(MilterConstants.SMFIC_DATA, properties);
+		empty(MilterConstants.SMFIC_DATA);
+		return reply(MilterConstants.SMFIP_NR_DATA, handler.data(properties));
+	}
+
+	@Override
+	public IMilterStatus body(ByteBuffer bodyp) {
+		packet(MilterConstants.SMFIC_BODY);
+		put(bodyp.duplicate());
+		end();
+		return reply(MilterConstants.SMFIP_NR_BODY, handler.body(bodyp));
+	}
+
+	@Override
+	public IMilterStatus eomMacros(IMilterActions eomActions, MilterMacros macros) {
+		macros(MilterConstants.SMFIC_BODYEOB, macros);
+		empty(MilterConstants.SMFIC_BODYEOB);
+		actions.begin(eomActions, encoder);
+		try {
+			return reply(0, actions.end(macroHandler != null ? macroHandler.eomMacros(actions, macros)
+					: handler.eom(actions, macros.toProperties())));
+		}
+		finally {
+			actions.close();
+			clearMessage();
+		}
+	}
+
+	@Override
+	public IMilterStatus eom(IMilterActions eomActions, Properties properties) {
+		macros(MilterConstants.SMFIC_BODYEOB, properties);
+		empty(MilterConstants.SMFIC_BODYEOB);
+		actions.begin(eomActions, encoder);
+		try {
+			return reply(0, actions.end(handler.eom(actions, properties)));
+		}
+		finally {
+			actions.close();
+			clearMessage();
+		}
+	}
+
+	@Override
+	public IMilterStatus abort() {
+		empty(MilterConstants.SMFIC_ABORT);
+		clearMessage();
+		return handler.abort();
+	}
+
+	@Override
+	public IMilterStatus close() {
+		empty(MilterConstants.SMFIC_QUIT);
+		clearMessage();
+		flush();
+		session = 0;
+		return handler.close();
+	}
+
+	@Override
+	public IMilterStatus unknownMacros(byte[] command, MilterMacros macros) {
+		unknown(command);
+		return reply(MilterConstants.SMFIP_NR_UNKN, macroHandler != null ? macroHandler.unknownMacros(command, macros)
+				: handler.unknown(command, macros.toProperties()));
+	}
+
+	@Override
+	public IMilterStatus unknown(byte[] command, Properties properties) {
+		unknown(command);
+		return reply(MilterConstants.SMFIP_NR_UNKN, handler.unknown(command, properties));
+	}
+
+	private void unknown(byte[] command) {
+		packet(MilterConstants.SMFIC_UNKNOWN);
+		put(ByteBuffer.wrap(command));
+		put((byte) 0);
+		end();
+	}
+
+	@Override
+	public void reset() {
+		handler.reset();
+	}
+
+	/**
+	 * Record the reply to a callback, as the decoder sends it.
+	 */
+	private IMilterStatus reply(int noReplyFlag, IMilterStatus status) {
+		if ((protocolFlags & noReplyFlag) == 0) {
+			IMilterStatus sent = status == null ? IMilterStatus.SMFIS_CONTINUE : status;
+			if (sent == IMilterStatus.SMFIS_SKIP && (mtaProtocolFlags & MilterConstants.SMFIP_SKIP) == 0) {
+				sent = IMilterStatus.SMFIS_CONTINUE;
+			}
+			try {
+				encoder.writeStatus(sent);
+				encoder.flush();
+			}
+			catch (IOException ex) {
+				throw new IllegalStateException("Writing to memory failed", ex);
+			}
+		}
+		if (chunks.position() >= FLUSH_SIZE) {
+			flush();
+		}
+		return status;
+	}
+
+	private MilterEncoder eohEncoder() {
+		if (eohEncoder == null) {
+			eohModifications = new MemoryChannel();
+			eohEncoder = new MilterEncoder(ByteBuffer.allocate(MilterEncoder.DEFAULT_BUFFER_SIZE), eohModifications);
+		}
+		return eohEncoder;
+	}
+
+	private void clearMessage() {
+		if (eohModifications != null) {
+			eohModifications.buffer.clear();
+		}
+	}
+
+	private void macros(int command, MilterMacros macros) {
+		if (macros == lastMacros) {
+			return;
+		}
+		if (macros.size() == 0) {
+			lastMacros = macros;
+			return;
+		}
+		macros(command, macros.toProperties());
+		lastMacros = macros;
+	}
+
+	/**
+	 * Record the macros of the stage, which are the entries of the properties without their defaults. The decoder
+	 * passes the macros of an earlier stage to stages without any of their own, so those already recorded are skipped.
+	 */
+	private void macros(int command, Properties properties) {
+		if (properties == lastMacros) {
+			return;
+		}
+		lastMacros = properties;
+		if (properties.isEmpty()) {
+			return;
+		}
+		packet(MilterConstants.SMFIC_MACRO);
+		put((byte) command);
+		for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+			putString(String.valueOf(entry.getKey()));
+			putString(String.valueOf(entry.getValue()));
+		}
+		end();
+	}
+
+	private void empty(int command) {
+		packet(command);
+		end();
+	}
+
+	private void string(int command, String value) {
+		packet(command);
+		putString(value);
+		end();
+	}
+
+	private void argv(int command, byte[][] argv) {
+		packet(command);
+		for (byte[] arg : argv) {
+			put(ByteBuffer.wrap(arg));
+			put((byte) 0);
+		}
+		end();
+	}
+
+	/**
+	 * Start a packet from the MTA, starting the session with its negotiation first if this is its first packet.
+	 */
+	private void packet(int command) {
+		if (session == 0) {
+			session = writer.newSession();
+			lastMacros = null;
+			if (negotiation != null) {
+				begin(MilterCaptureWriter.TO_FILTER);
+				reserve(17);
+				chunks.putInt(13).put((byte) MilterConstants.SMFIC_OPTNEG).put(negotiation.duplicate());
+			}
+		}
+		begin(MilterCaptureWriter.TO_FILTER);
+		reserve(5);
+		packetStart = chunks.position();
+		chunks.putInt(0).put((byte) command);
+	}
+
+	/**
+	 * End the packet started last, filling in its length.
+	 */
+	private void end() {
+		chunks.putInt(packetStart, chunks.position() - packetStart - 4);
+	}
+
+	/**
+	 * Make the current chunk one of the direction, starting a new one if it is not.
+	 */
+	private void begin(int direction) {
+		if (chunkStart >= 0 && this.direction == direction) {
+			return;
+		}
+		endChunk();
+		reserve(MilterCaptureWriter.CHUNK_HEADER_SIZE);
+		chunkStart = chunks.position();
+		chunks.putLong(session).put((byte) direction).putInt(0);
+		this.direction = direction;
+	}
+
+	private void endChunk() {
+		if (chunkStart >= 0) {
+			chunks.putInt(chunkStart + 9, chunks.position() - chunkStart - MilterCaptureWriter.CHUNK_HEADER_SIZE);
+			chunkStart = -1;
+		}
+	}
+
+	private void flush() {
+		endChunk();
+		chunks.flip();
+		writer.write(chunks);
+		chunks.clear();
+	}
+
+	private void put(byte value) {
+		reserve(1);
+		chunks.put(value);
+	}
+
+	private void put(ByteBuffer value) {
+		reserve(value.remaining());
+		chunks.put(value);
+	}
+
+	private void putString(String value) {
+		put(ByteBuffer.wrap(value.getBytes(UTF8)));
+		put((byte) 0);
+	}
+
+	private void reserve(int count) {
+		if (chunks.remaining() < count) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(chunks.position() + count, chunks.capacity() * 2));
+			chunks.flip();
+			larger.put(chunks);
+			chunks = larger;
+		}
+	}
+
+	/**
+	 * Passes the actions on to the runner's, and records them once they succeed.
+	 */
+	private final class RecordingActions implements IMilterBatchActions {
+
+		private IMilterActions delegate;
+		private MilterEncoder target;
+		private IMilterStatus finished;
+
+		void begin(IMilterActions delegate, MilterEncoder target) {
+			this.delegate = delegate;
+			this.target = target;
+			this.finished = null;
+			if (target == encoder && eohModifications != null && eohModifications.buffer.position() > 0) {
+				try {
+					ByteBuffer modifications = eohModifications.buffer;
+					modifications.flip();
+					encoder.writeRaw(modifications);
+					encoder.flush();
+					modifications.clear();
+				}
+				catch (IOException ex) {
+					throw new IllegalStateException("Writing to memory failed", ex);
+				}
+			}
+		}
+
+		IMilterStatus end(IMilterStatus status) {
+			return finished != null ? finished : status;
+		}
+
+		void close() {
+			delegate = null;
+			target = null;
+		}
+
+		private IMilterActions delegate() throws IOException {
+			if (delegate == null) {
+				throw new IOException("Milter actions are only available until eoh or eom returns");
+			}
+			return delegate;
+		}
+
+		private IMilterBatchActions batch() throws IOException {
+			IMilterActions actions = delegate();
+			if (!(actions instanceof IMilterBatchActions)) {
+				throw new UnsupportedOperationException("The runner's actions are not batch actions");
+			}
+			return (IMilterBatchActions) actions;
+		}
+
+		private void recorded() throws IOException {
+			target.flush();
+		}
+
+		@Override
+		public void addheader(String name, String value) throws IOException {
+			delegate().addheader(name, value);
+			target.writeHeader(MilterConstants.SMFIR_ADDHEADER, -1, name, value);
+			recorded();
+		}
+
+		@Override
+		public void chgheader(String name, int index, String value) throws IOException {
+			delegate().chgheader(name, index, value);
+			target.writeHeader(MilterConstants.SMFIR_CHGHEADER, index, name, value);
+			recorded();
+		}
+
+		@Override
+		public void insheader(String name, String value) throws IOException {
+			delegate().insheader(name, value);
+			target.writeHeader(MilterConstants.SMFIR_INSHEADER, 0, name, value);
+			recorded();
+		}
+
+		@Override
+		public void addrcpt(String rcpt) throws IOException {
+			delegate().addrcpt(rcpt);
+			target.writeString(MilterConstants.SMFIR_ADDRCPT, rcpt);
+			recorded();
+		}
+
+		@Override
+		public void delrcpt(String rcpt) throws IOException {
+			delegate().delrcpt(rcpt);
+			target.writeString(MilterConstants.SMFIR_DELRCPT, rcpt);
+			recorded();
+		}
+
+		@Override
+		public void replacebody(ByteBuffer bodyp) throws IOException {
+			ByteBuffer copy = bodyp.duplicate();
+			delegate().replacebody(bodyp);
+			target.writeBody(copy);
+			recorded();
+		}
+
+		@Override
+		public void replacebody(FileChannel file, long position, long count) throws IOException {
+			IMilterActions actions = delegate();
+			if (actions instanceof IMilterBatchActions) {
+				((IMilterBatchActions) actions).replacebody(file, position, count);
+				target.writeBody(file, position, count);
+				recorded();
+				return;
+			}
+			if (count > Integer.MAX_VALUE) {
+				throw new IOException("Body of " + count + " bytes is too large to pass on without batch actions");
+			}
+			ByteBuffer body = ByteBuffer.allocate((int) count);
+			while (body.hasRemaining()) {
+				if (file.read(body, position + body.position()) < 0) {
+					throw new EOFException("File ends before the body does");
+				}
+			}
+			body.flip();
+			replacebody(body);
+		}
+
+		@Override
+		public void replacebody(InputStream body) throws IOException {
+			// Fail before consuming the body, which is read into memory to be both passed on and recorded.
+			delegate();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			for (int read; (read = body.read(buffer)) >= 0;) {
+				bytes.write(buffer, 0, read);
+			}
+			replacebody(ByteBuffer.wrap(bytes.toByteArray()));
+		}
+
+		@Override
+		public void replacebody(ReadableByteChannel body) throws IOException {
+			// Fail before consuming the body, which is read into memory to be both passed on and recorded.
+			delegate();
+			MemoryChannel bytes = new MemoryChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(8192);
+			while (body.read(buffer) >= 0) {
+				buffer.flip();
+				bytes.write(buffer);
+				buffer.clear();
+			}
+			bytes.buffer.flip();
+			replacebody(bytes.buffer);
+		}
+
+		@Override
+		public void progress() throws IOException {
+			delegate().progress();
+		}
+
+		@Override
+		public void finish(IMilterStatus status) throws IOException {
+			delegate().finish(status);
+			finished = status == null ? IMilterStatus.SMFIS_CONTINUE : status;
+		}
+
+		@Override
+		public void finish(IMilterStatus status, IMilterWriteListener listener) throws IOException {
+			batch().finish(status, listener);
+			finished = status == null ? IMilterStatus.SMFIS_CONTINUE : status;
+		}
+	}
+
+	/**
+	 * Appends the encoded replies to the chunk from the filter.
+	 */
+	private final class ReplyChannel implements WritableByteChannel {
+
+		@Override
+		public int write(ByteBuffer src) {
+			int count = src.remaining();
+			begin(MilterCaptureWriter.TO_MTA);
+			reserve(count);
+			chunks.put(src);
+			return count;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+			// Owned by the recorder.
+		}
+	}
+}
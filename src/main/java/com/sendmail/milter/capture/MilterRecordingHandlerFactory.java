@@ -0,0 +1,60 @@
+package com.sendmail.milter.capture;
+
+import com.sendmail.milter.IMilterHandler;
+import com.sendmail.milter.MilterAsyncHandlerAdapter;
+import com.sendmail.milter.spi.IMilterHandlerFactory;
+import com.sendmail.milter.spi.IMilterHandlerPool;
+
+/**
+ * Wraps the handlers of a factory to record their sessions, while recording is enabled. Asynchronous handlers are
+ * left unwrapped, as they cannot be recorded. Handlers are handed back to the factory unwrapped if it is a pool.
+ */
+public final class MilterRecordingHandlerFactory implements IMilterHandlerPool {
+
+	private final IMilterHandlerFactory factory;
+	private final MilterCaptureWriter writer;
+	private volatile boolean enabled = true;
+
+	/**
+	 * @param factory The factory creating the handlers.
+	 * @param writer The capture to record into.
+	 */
+	public MilterRecordingHandlerFactory(IMilterHandlerFactory factory, MilterCaptureWriter writer) {
+		this.factory = factory;
+		this.writer = writer;
+	}
+
+	/**
+	 * @return true while new handlers are recorded.
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param enabled Whether to record the handlers created from now on. Enabled by default.
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	@Override
+	public IMilterHandler newInstance() {
+		IMilterHandler handler = factory.newInstance();
+		if (!enabled || writer.isFailed() || handler instanceof MilterAsyncHandlerAdapter) {
+			return handler;
+		}
+		return new MilterRecordingHandler(writer, handler);
+	}
+
+	@Override
+	public void release(IMilterHandler handler) {
+		if (!(factory instanceof IMilterHandlerPool)) {
+			return;
+		}
+		if (handler instanceof MilterRecordingHandler) {
+			handler = ((MilterRecordingHandler) handler).getHandler();
+		}
+		((IMilterHandlerPool) factory).release(handler);
+	}
+}
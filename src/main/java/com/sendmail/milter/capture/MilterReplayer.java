@@ -0,0 +1,466 @@
+package com.sendmail.milter.capture;
+
+import com.sendmail.milter.IMilterHandler;
+import com.sendmail.milter.MilterConstants;
+import com.sendmail.milter.MilterStatusFuture;
+import com.sendmail.milter.codec.MilterDecoder;
+import com.sendmail.milter.codec.MilterEncoder;
+import com.sendmail.milter.server.MilterServer;
+import com.sendmail.milter.spi.IMilterHandlerFactory;
+import com.sendmail.milter.spi.IMilterHandlerPool;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replays a capture into the handlers of a factory, as fast as they go, and compares their replies with the recorded
+ * ones. Each recorded session gets a handler of its own, and its packets are fed to a {@link MilterDecoder} straight
+ * from the mapped capture, so a replay runs the same code as the server minus the network. Pending callbacks of
+ * asynchronous handlers are waited for.
+ * <p>
+ * Replies are compared packet by packet after each command: the code, and unless told otherwise the payload, so a
+ * changed reply text or header value counts as a difference too. Negotiation replies and progress notifications are
+ * not compared. A session whose handler throws is counted as a difference and not replayed any further.
+ */
+public final class MilterReplayer {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MilterReplayer.class);
+	private static final int DESCRIBED_PAYLOAD = 64;
+	private static final ByteBuffer NO_REPLIES = ByteBuffer.allocate(0);
+
+	private final IMilterHandlerFactory factory;
+	private int maxDifferences = 100;
+	private boolean comparePayloads = true;
+	private long pendingTimeoutNanos = TimeUnit.SECONDS.toNanos(60);
+
+	/**
+	 * @param factory The factory of the handlers to replay into.
+	 */
+	public MilterReplayer(IMilterHandlerFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * @param maxDifferences The number of differences described in the report; all are counted. 100 by default.
+	 */
+	public void setMaxDifferences(int maxDifferences) {
+		this.maxDifferences = maxDifferences;
+	}
+
+	/**
+	 * @param comparePayloads false to compare only reply codes, such as when handlers add headers with timestamps.
+	 * true by default.
+	 */
+	public void setComparePayloads(boolean comparePayloads) {
+		this.comparePayloads = comparePayloads;
+	}
+
+	/**
+	 * @param time How long to wait for a pending callback before failing its session. 60 seconds by default.
+	 * @param unit The unit of <code>time</code>.
+	 */
+	public void setPendingTimeout(long time, TimeUnit unit) {
+		this.pendingTimeoutNanos = unit.toNanos(time);
+	}
+
+	/**
+	 * Replay a capture.
+	 *
+	 * @param capture The capture file.
+	 * @return The results.
+	 * @throws IOException if the capture cannot be read.
+	 * @throws InterruptedException if interrupted while waiting for a pending callback.
+	 */
+	public Report replay(File capture) throws IOException, InterruptedException {
+		Report report = new Report();
+		Map<Long, Session> sessions = new HashMap<Long, Session>();
+		long started = System.nanoTime();
+		MilterCaptureReader reader = new MilterCaptureReader(capture);
+		try {
+			while (reader.next()) {
+				Long id = reader.getSession();
+				Session session = sessions.get(id);
+				ByteBuffer packets = reader.getPackets();
+				if (reader.getDirection() == MilterCaptureWriter.TO_MTA) {
+					if (session != null && !session.failed) {
+						compare(report, session, packets);
+					}
+					continue;
+				}
+				if (session == null) {
+					session = new Session(id, factory.newInstance());
+					sessions.put(id, session);
+					++report.sessions;
+				}
+				int last = count(report, session, packets);
+				if (!session.failed && !feed(report, session, packets)) {
+					// The session quit, so replies left over were never recorded.
+					compare(report, session, NO_REPLIES.duplicate());
+					end(sessions, session);
+				}
+				else if (session.failed && last == MilterConstants.SMFIC_QUIT) {
+					end(sessions, session);
+				}
+			}
+		}
+		finally {
+			reader.close();
+			report.bytes = reader.getPosition();
+			report.elapsedNanos = System.nanoTime() - started;
+			for (Session session : new ArrayList<Session>(sessions.values())) {
+				end(sessions, session);
+			}
+		}
+		return report;
+	}
+
+	/**
+	 * Count the commands of a chunk.
+	 *
+	 * @return The last command.
+	 */
+	private static int count(Report report, Session session, ByteBuffer packets) throws IOException {
+		int last = 0;
+		for (int at = packets.position(); at + 5 <= packets.limit(); at = next(packets, at)) {
+			last = packets.get(at + 4) & 0xFF;
+			if (last != MilterConstants.SMFIC_MACRO) {
+				++report.commands;
+				session.command = last;
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * @return false once the session quit.
+	 */
+	private boolean feed(Report report, Session session, ByteBuffer packets) throws InterruptedException {
+		try {
+			while (true) {
+				boolean open = session.decoder.decode(packets);
+				MilterStatusFuture pending = session.decoder.getPending();
+				if (pending == null) {
+					session.encoder.flush();
+					return open;
+				}
+				if (!pending.await(pendingTimeoutNanos, TimeUnit.NANOSECONDS)) {
+					throw new IOException("Callback still pending after " + pendingTimeoutNanos / 1000000 + " ms");
+				}
+				session.decoder.resume();
+			}
+		}
+		catch (IOException ex) {
+			fail(report, session, ex);
+		}
+		catch (RuntimeException ex) {
+			fail(report, session, ex);
+		}
+		return true;
+	}
+
+	private void fail(Report report, Session session, Exception ex) {
+		LOG.debug("Replaying milter session {} failed", session.id, ex);
+		session.failed = true;
+		difference(report, session, null, ex.toString());
+	}
+
+	/**
+	 * Compare the recorded replies with those of the replay since the last comparison.
+	 */
+	private void compare(Report report, Session session, ByteBuffer recorded) throws IOException {
+		ByteBuffer replayed = session.replies.buffer;
+		replayed.flip();
+		try {
+			int r = skip(recorded, recorded.position());
+			int x = skip(replayed, replayed.position());
+			while (r < recorded.limit() || x < replayed.limit()) {
+				++report.replies;
+				boolean same = r < recorded.limit() && x < replayed.limit() && same(recorded, r, replayed, x);
+				if (!same) {
+					difference(report, session, describe(recorded, r), describe(replayed, x));
+					return;
+				}
+				r = skip(recorded, next(recorded, r));
+				x = skip(replayed, next(replayed, x));
+			}
+		}
+		finally {
+			replayed.clear();
+		}
+	}
+
+	/**
+	 * @return The start of the first packet at or after the position that is compared.
+	 */
+	private static int skip(ByteBuffer packets, int at) throws IOException {
+		while (at + 5 <= packets.limit()) {
+			int code = packets.get(at + 4);
+			if (code != MilterConstants.SMFIR_PROGRESS && code != MilterConstants.SMFIC_OPTNEG) {
+				return at;
+			}
+			at = next(packets, at);
+		}
+		return packets.limit();
+	}
+
+	/**
+	 * @return The start of the packet after the one at the position.
+	 * @throws IOException if the length of the packet is not that of a command or reply within the chunk.
+	 */
+	private static int next(ByteBuffer packets, int at) throws IOException {
+		int length = packets.getInt(at);
+		if (length < 1 || length > packets.limit() - at - 4) {
+			throw new IOException("Invalid packet length " + length + " in capture chunk at " + at);
+		}
+		return at + 4 + length;
+	}
+
+	private boolean same(ByteBuffer recorded, int r, ByteBuffer replayed, int x) {
+		if (recorded.get(r + 4) != replayed.get(x + 4)) {
+			return false;
+		}
+		if (!comparePayloads) {
+			return true;
+		}
+		int length = recorded.getInt(r);
+		if (length != replayed.getInt(x)) {
+			return false;
+		}
+		for (int i = 5; i < length + 4; ++i) {
+			if (recorded.get(r + i) != replayed.get(x + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The reply code and the start of its payload, with NUL shown as <code>|</code>, or null past the end.
+	 */
+	private static String describe(ByteBuffer packets, int at) {
+		if (at >= packets.limit()) {
+			return null;
+		}
+		int length = packets.getInt(at);
+		StringBuilder text = new StringBuilder().append((char) packets.get(at + 4));
+		if (length > 1) {
+			text.append('(');
+			for (int i = 0; i < Math.min(length - 1, DESCRIBED_PAYLOAD); ++i) {
+				int c = packets.get(at + 5 + i) & 0xFF;
+				text.append(c == 0 ? '|' : c < 0x20 || c >= 0x7F ? '.' : (char) c);
+			}
+			text.append(length - 1 > DESCRIBED_PAYLOAD ? "...)" : ")");
+		}
+		return text.toString();
+	}
+
+	private void difference(Report report, Session session, String recorded, String replayed) {
+		if (!session.differs) {
+			session.differs = true;
+			++report.differingSessions;
+		}
+		if (report.differences.size() < maxDifferences) {
+			report.differences.add(new Difference(session.id, session.command, recorded, replayed));
+		}
+		++report.differenceCount;
+	}
+
+	/**
+	 * Forget a session, and hand its handler back to the pool unless it failed, leaving it in an unknown state.
+	 */
+	private void end(Map<Long, Session> sessions, Session session) {
+		sessions.remove(session.id);
+		if (!session.failed && factory instanceof IMilterHandlerPool) {
+			((IMilterHandlerPool) factory).release(session.handler);
+		}
+	}
+
+	/**
+	 * A recorded session being replayed.
+	 */
+	private static final class Session {
+
+		final long id;
+		final IMilterHandler handler;
+		final MemoryChannel replies = new MemoryChannel();
+		final MilterEncoder encoder = new MilterEncoder(ByteBuffer.allocate(MilterEncoder.DEFAULT_BUFFER_SIZE),
+				replies);
+		final MilterDecoder decoder;
+		int command;
+		boolean failed;
+		boolean differs;
+
+		Session(long id, IMilterHandler handler) {
+			this.id = id;
+			this.handler = handler;
+			this.decoder = new MilterDecoder(handler, encoder);
+		}
+	}
+
+	/**
+	 * A reply that differs from the recorded one.
+	 */
+	public static final class Difference {
+
+		private final long session;
+		private final int command;
+		private final String recorded;
+		private final String replayed;
+
+		Difference(long session, int command, String recorded, String replayed) {
+			this.session = session;
+			this.command = command;
+			this.recorded = recorded;
+			this.replayed = replayed;
+		}
+
+		/**
+		 * @return The recorded session.
+		 */
+		public long getSession() {
+			return session;
+		}
+
+		/**
+		 * @return The last command before the reply, one of the <code>SMFIC_</code> codes.
+		 */
+		public int getCommand() {
+			return command;
+		}
+
+		/**
+		 * @return The recorded reply, as its code and the start of its payload, or null if there was none.
+		 */
+		public String getRecorded() {
+			return recorded;
+		}
+
+		/**
+		 * @return The reply of the replay, or the exception the session failed with, or null if there was none.
+		 */
+		public String getReplayed() {
+			return replayed;
+		}
+
+		@Override
+		public String toString() {
+			return "session " + session + " after " + (char) command + ": recorded " + recorded + ", replayed "
+					+ replayed;
+		}
+	}
+
+	/**
+	 * The results of a replay.
+	 */
+	public static final class Report {
+
+		private long sessions;
+		private long commands;
+		private long replies;
+		private long bytes;
+		private long elapsedNanos;
+		private long differingSessions;
+		private long differenceCount;
+		private final List<Difference> differences = new ArrayList<Difference>();
+
+		/**
+		 * @return The number of sessions replayed.
+		 */
+		public long getSessions() {
+			return sessions;
+		}
+
+		/**
+		 * @return The number of commands replayed, not counting macros.
+		 */
+		public long getCommands() {
+			return commands;
+		}
+
+		/**
+		 * @return The number of replies compared.
+		 */
+		public long getReplies() {
+			return replies;
+		}
+
+		/**
+		 * @return The number of capture bytes read.
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return The time the replay took, in nanoseconds.
+		 */
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		/**
+		 * @return The number of sessions with at least one difference.
+		 */
+		public long getDifferingSessions() {
+			return differingSessions;
+		}
+
+		/**
+		 * @return The number of differences; at most one is counted per recorded chunk of replies.
+		 */
+		public long getDifferenceCount() {
+			return differenceCount;
+		}
+
+		/**
+		 * @return The first differences, up to {@link MilterReplayer#setMaxDifferences the maximum}.
+		 */
+		public List<Difference> getDifferences() {
+			return Collections.unmodifiableList(differences);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder report = new StringBuilder();
+			double seconds = elapsedNanos / 1e9;
+			report.append(String.format("%d sessions, %d commands in %.1f s: %.0f commands/s, %.1f MB/s%n", sessions,
+					commands, seconds, seconds == 0 ? 0 : commands / seconds,
+					seconds == 0 ? 0 : bytes / seconds / 1e6));
+			report.append(String.format("%d replies compared, %d differences in %d sessions%n", replies,
+					differenceCount, differingSessions));
+			for (Difference difference : differences) {
+				report.append("  ").append(difference).append(String.format("%n"));
+			}
+			return report.toString();
+		}
+	}
+
+	/**
+	 * Replay a capture into the factory registered in <code>META-INF/services</code>.
+	 *
+	 * @param args <code>capture-file</code>
+	 * @throws Exception if the replay fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			System.err.println("Usage: " + MilterReplayer.class.getName() + " capture-file");
+			System.exit(2);
+		}
+		MilterReplayer replayer = new MilterReplayer(
+				MilterServer.loadFactory(Thread.currentThread().getContextClassLoader()));
+		Report report = replayer.replay(new File(args[0]));
+		System.out.print(report);
+		System.exit(report.getDifferenceCount() == 0 ? 0 : 1);
+	}
+}
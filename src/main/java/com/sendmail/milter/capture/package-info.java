@@ -0,0 +1,11 @@
+/**
+ * Capture and replay of milter sessions. {@link com.sendmail.milter.capture.MilterRecordingHandler} records the
+ * sessions of a handler through a {@link com.sendmail.milter.capture.MilterCaptureWriter}, and
+ * {@link com.sendmail.milter.capture.MilterReplayer} feeds them to another handler, comparing the replies.
+ * <p>
+ * A capture file starts with the 8 ASCII bytes <code>MILTRCAP</code> and the format version as a 4 byte integer,
+ * followed by chunks: the session id as an 8 byte integer, the direction as a byte, <code>'&gt;'</code> from the MTA
+ * or <code>'&lt;'</code> from the filter, the length as a 4 byte integer, and then that many bytes of milter packets
+ * exactly as they are sent on the wire. Integers are big endian. The chunks of concurrent sessions interleave.
+ */
+package com.sendmail.milter.capture;
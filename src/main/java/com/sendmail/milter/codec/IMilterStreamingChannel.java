@@ -0,0 +1,32 @@
+package com.sendmail.milter.codec;
+
+import java.io.IOException;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A non-blocking channel to the MTA that buffers whatever the socket does not take right away. An encoder writing to
+ * it streams replacement bodies only while the channel is not congested, and holds back the rest of the body, along
+ * with everything encoded after it, until it is {@link MilterEncoder#flush() flushed} again once the channel drained.
+ * So no more than about a packet of body data is ever buffered.
+ */
+public interface IMilterStreamingChannel extends GatheringByteChannel {
+
+	/**
+	 * @return true while the channel holds output the socket did not take yet.
+	 */
+	public boolean isCongested();
+
+	/**
+	 * Write part of a file straight to the socket with {@link FileChannel#transferTo}, which the operating system can
+	 * do without copying the data through the heap. Nothing is written while the channel is congested.
+	 *
+	 * @param file The file. Its position is not changed.
+	 * @param position The position of the data in the file.
+	 * @param count The number of bytes to write.
+	 * @return The number of bytes written. If fewer than <code>count</code>, the channel is congested.
+	 * @throws IOException if reading the file or a connection error occurs.
+	 */
+	public long transferFrom(FileChannel file, long position, long count) throws IOException;
+}
@@ -0,0 +1,1006 @@
+package com.sendmail.milter.codec;
+
+import com.sendmail.milter.IMilterBatchActions;
+import com.sendmail.milter.MilterAsyncHandlerAdapter;
+import com.sendmail.milter.IMilterBufferHandler;
+import com.sendmail.milter.IMilterHandler;
+import com.sendmail.milter.IMilterMacroHandler;
+import com.sendmail.milter.IMilterStatus;
+import com.sendmail.milter.MilterConstants;
+import com.sendmail.milter.MilterConstants.Macros;
+import com.sendmail.milter.MilterMacros;
+import com.sendmail.milter.MilterStatusFuture;
+import com.sendmail.milter.IMilterWriteListener;
+import com.sendmail.milter.metrics.MilterTrace;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Frames the packets of a single MTA connection and dispatches them to an {@link IMilterHandler}, writing the replies
+ * through a {@link MilterEncoder}.
+ * <p>
+ * Packets are read in place from the receive buffer. Body chunks are handed to the handler as a read-only view over
+ * that buffer, which is only valid for the duration of the {@link IMilterHandler#body} call; handlers implementing
+ * {@link IMilterBufferHandler} get header names and values the same way. Macros are kept as one
+ * {@link MilterMacros} per macro packet; {@link java.util.Properties} are only built for handlers not implementing
+ * {@link IMilterMacroHandler}. Apart from the arguments the {@link IMilterHandler} signatures require (strings and
+ * byte arrays), decoding does not allocate.
+ * <p>
+ * A {@link MilterAsyncHandlerAdapter} may leave a callback pending. Decoding then stops after that packet until the
+ * runner sees the {@link #getPending() future} complete and calls {@link #resume()}, which sends the reply; the runner
+ * may send {@link #progress()} notifications meanwhile.
+ * <p>
+ * A decoder is not thread safe. Typical use:
+ * <pre>
+ * ByteBuffer in = ByteBuffer.allocateDirect(MilterDecoder.DEFAULT_BUFFER_SIZE);
+ * while (channel.read(in) &gt;= 0) {
+ *     in.flip();
+ *     boolean open = decoder.decode(in);
+ *     in.compact();
+ *     encoder.flush();
+ *     if (!open) break;
+ * }
+ * </pre>
+ */
+public final class MilterDecoder {
+
+	/**
+	 * Largest packet length accepted by default: a command byte and a maximum sized chunk.
+	 */
+	public static final int DEFAULT_MAX_PACKET_LENGTH = MilterConstants.MILTER_CHUNK_SIZE + 1;
+
+	/**
+	 * Receive buffer size that can hold a packet of {@link #DEFAULT_MAX_PACKET_LENGTH} with its length prefix.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = DEFAULT_MAX_PACKET_LENGTH + 4;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final IMilterHandler handler;
+	private final IMilterBufferHandler bufferHandler;
+	private final IMilterMacroHandler macroHandler;
+	private final MilterAsyncHandlerAdapter asyncHandler;
+	private final MilterEncoder encoder;
+	private final int maxPacketLength;
+	private final Actions actions = new Actions();
+
+	/**
+	 * The stage the MTA reaches before each stage, indexed by the {@link Macros} constants.
+	 */
+	private static final int[] PREVIOUS_STAGE = new int[7];
+
+	static {
+		PREVIOUS_STAGE[Macros.SMFIM_CONNECT] = -1;
+		PREVIOUS_STAGE[Macros.SMFIM_HELO] = Macros.SMFIM_CONNECT;
+		PREVIOUS_STAGE[Macros.SMFIM_ENVFROM] = Macros.SMFIM_HELO;
+		PREVIOUS_STAGE[Macros.SMFIM_ENVRCPT] = Macros.SMFIM_ENVFROM;
+		PREVIOUS_STAGE[Macros.SMFIM_DATA] = Macros.SMFIM_ENVRCPT;
+		PREVIOUS_STAGE[Macros.SMFIM_EOH] = Macros.SMFIM_DATA;
+		PREVIOUS_STAGE[Macros.SMFIM_EOM] = Macros.SMFIM_EOH;
+	}
+
+	/**
+	 * Macros per stage, indexed by the {@link Macros} constants, or null if the MTA sent none. Each falls back to the
+	 * stages the MTA reached before it, so a callback sees the macros of all earlier stages.
+	 */
+	private final MilterMacros[] macros = new MilterMacros[7];
+
+	/**
+	 * Seen by callbacks of stages without macros. Not {@link MilterMacros#EMPTY}, whose shared properties a handler
+	 * could modify for every connection.
+	 */
+	private final MilterMacros noMacros = new MilterMacros(new byte[0], 0, 0, null);
+
+	private MilterNegotiationCache negotiationCache;
+	private ByteBuffer source;
+	private final ByteBuffer[] views = new ByteBuffer[2];
+	private byte[] scratch = new byte[256];
+
+	private int command;
+	/**
+	 * The session id for {@link MilterTrace}, and the reply code sent for the current command.
+	 */
+	private long session = MilterTrace.newSession();
+	private int replied;
+	private MilterStatusFuture pending;
+	private long pendingSince;
+	private int pendingCommand;
+	private int pendingFlag;
+	private boolean pendingBody;
+
+	private int mtaProtocolFlags;
+	private int actionFlags;
+	private int protocolFlags;
+	private boolean closed;
+
+	/**
+	 * @param handler The handler for this connection.
+	 * @param encoder The encoder writing to the MTA.
+	 */
+	public MilterDecoder(IMilterHandler handler, MilterEncoder encoder) {
+		this(handler, encoder, DEFAULT_MAX_PACKET_LENGTH);
+	}
+
+	/**
+	 * @param handler The handler for this connection.
+	 * @param encoder The encoder writing to the MTA.
+	 * @param maxPacketLength The largest packet length accepted. A buffer holding such a packet must be 4 bytes
+	 * larger.
+	 */
+	public MilterDecoder(IMilterHandler handler, MilterEncoder encoder, int maxPacketLength) {
+		this.handler = handler;
+		this.bufferHandler = handler instanceof IMilterBufferHandler ? (IMilterBufferHandler) handler : null;
+		this.macroHandler = handler instanceof IMilterMacroHandler ? (IMilterMacroHandler) handler : null;
+		this.asyncHandler = handler instanceof MilterAsyncHandlerAdapter ? (MilterAsyncHandlerAdapter) handler : null;
+		this.encoder = encoder;
+		this.maxPacketLength = maxPacketLength;
+	}
+
+	/**
+	 * Decode and dispatch all complete packets in the buffer. On return the buffer's position is at the start of the
+	 * first incomplete packet, so the caller can compact it and read more. If the buffer is full and nothing could be
+	 * decoded, the next packet needs a larger buffer; {@link #DEFAULT_BUFFER_SIZE} always suffices. Nothing is decoded
+	 * while a callback is {@link #getPending() pending}.
+	 *
+	 * @param in The receive buffer, flipped for reading.
+	 * @return false once the MTA has quit or negotiation failed, and the connection should be closed.
+	 * @throws IOException if the packet stream is malformed, or writing a reply fails.
+	 */
+	public boolean decode(ByteBuffer in) throws IOException {
+		while (!closed && pending == null && in.remaining() >= 4) {
+			int start = in.position();
+			int length = in.getInt(start);
+			if (length < 1 || length > maxPacketLength) {
+				throw new IOException("Invalid milter packet length " + length);
+			}
+			int end = start + 4 + length;
+			if (end > in.limit()) {
+				break;
+			}
+			int limit = in.limit();
+			int command = in.get(start + 4) & 0xFF;
+			long started = MilterTrace.start();
+			replied = 0;
+			try {
+				dispatch(command, in, start + 5, end);
+			}
+			finally {
+				in.limit(limit);
+				in.position(end);
+				MilterTrace.command(started, session, command, replied, length - 1);
+			}
+		}
+		return !closed;
+	}
+
+	/**
+	 * @return The future of the pending callback, or null if none is pending.
+	 */
+	public MilterStatusFuture getPending() {
+		return pending;
+	}
+
+	/**
+	 * Send the reply of the pending callback once its future is complete. Decoding can go on afterwards, unless
+	 * finishing the stage left another callback pending.
+	 *
+	 * @return true if nothing is pending any more.
+	 * @throws IOException if writing the reply fails.
+	 */
+	public boolean resume() throws IOException {
+		if (pending == null) {
+			return true;
+		}
+		if (!pending.isDone()) {
+			return false;
+		}
+		IMilterStatus status = pending.getStatus();
+		pending = null;
+		command = pendingCommand;
+		replied = 0;
+		try {
+			resume(status);
+		}
+		finally {
+			// Recorded again with the time the reply was pending, and without payload.
+			MilterTrace.command(pendingSince, session, command, replied, 0);
+		}
+		return pending == null;
+	}
+
+	private void resume(IMilterStatus status) throws IOException {
+		switch (pendingCommand) {
+			case MilterConstants.SMFIC_EOH:
+				reply(pendingFlag, actions.resumed(status));
+				break;
+			case MilterConstants.SMFIC_BODYEOB:
+				if (!pendingBody) {
+					finishMessage(actions.resumed(status));
+				}
+				else if (endsMessage(status)) {
+					pendingBody = false;
+					reply(0, status);
+					clearMessage();
+				}
+				else {
+					pendingBody = false;
+					endOfMessage();
+				}
+				break;
+			default:
+				reply(pendingFlag, status);
+				break;
+		}
+	}
+
+	/**
+	 * Notify the MTA that the pending callback is still in progress, restarting its timeout. Only end of message can
+	 * be kept waiting this way.
+	 *
+	 * @return true if a notification was sent.
+	 * @throws IOException if writing the notification fails.
+	 */
+	public boolean progress() throws IOException {
+		if (pending == null || pendingCommand != MilterConstants.SMFIC_BODYEOB) {
+			return false;
+		}
+		encoder.writeCommand(MilterConstants.SMFIR_PROGRESS);
+		encoder.flush();
+		MilterTrace.action(session, MilterConstants.SMFIR_PROGRESS, 0);
+		return true;
+	}
+
+	/**
+	 * Share negotiation results with other connections of the same handler family.
+	 *
+	 * @param negotiationCache The cache, or null to negotiate with the handler on every connection.
+	 */
+	public void setNegotiationCache(MilterNegotiationCache negotiationCache) {
+		this.negotiationCache = negotiationCache;
+	}
+
+	/**
+	 * @return true once the MTA has quit or negotiation failed.
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return The handler this decoder dispatches to.
+	 */
+	public IMilterHandler getHandler() {
+		return handler;
+	}
+
+	private void dispatch(int command, ByteBuffer in, int pos, int end) throws IOException {
+		this.command = command;
+		switch (command) {
+			case MilterConstants.SMFIC_OPTNEG:
+				negotiate(in, pos, end);
+				break;
+			case MilterConstants.SMFIC_MACRO:
+				macro(in, pos, end);
+				break;
+			case MilterConstants.SMFIC_CONNECT:
+				reply(MilterConstants.SMFIP_NR_CONN, connect(in, pos, end));
+				break;
+			case MilterConstants.SMFIC_HELO:
+				reply(MilterConstants.SMFIP_NR_HELO, helo(string(in, pos, terminator(in, pos, end))));
+				break;
+			case MilterConstants.SMFIC_MAIL:
+				reply(MilterConstants.SMFIP_NR_MAIL, envfrom(argv(in, pos, end)));
+				break;
+			case MilterConstants.SMFIC_RCPT:
+				reply(MilterConstants.SMFIP_NR_RCPT, envrcpt(argv(in, pos, end)));
+				break;
+			case MilterConstants.SMFIC_HEADER:
+				reply(MilterConstants.SMFIP_NR_HDR, header(in, pos, end));
+				break;
+			case MilterConstants.SMFIC_EOH:
+				reply(MilterConstants.SMFIP_NR_EOH, actions.run(false));
+				break;
+			case MilterConstants.SMFIC_DATA:
+				reply(MilterConstants.SMFIP_NR_DATA, data());
+				break;
+			case MilterConstants.SMFIC_BODY:
+				reply(MilterConstants.SMFIP_NR_BODY, handler.body(view(in, 0, pos, end)));
+				break;
+			case MilterConstants.SMFIC_BODYEOB:
+				endOfMessage(in, pos, end);
+				break;
+			case MilterConstants.SMFIC_ABORT:
+				handler.abort();
+				clearMessage();
+				break;
+			case MilterConstants.SMFIC_QUIT:
+				handler.close();
+				closed = true;
+				break;
+			case MilterConstants.SMFIC_QUIT_NC:
+				handler.close();
+				handler.reset();
+				clearMessage();
+				session = MilterTrace.newSession();
+				macros[Macros.SMFIM_CONNECT] = null;
+				macros[Macros.SMFIM_HELO] = null;
+				break;
+			case MilterConstants.SMFIC_UNKNOWN:
+				reply(MilterConstants.SMFIP_NR_UNKN, unknown(bytes(in, pos, terminator(in, pos, end))));
+				break;
+			default:
+				throw new IOException("Unknown milter command 0x" + Integer.toHexString(command));
+		}
+	}
+
+	private void negotiate(ByteBuffer in, int pos, int end) throws IOException {
+		if (end - pos < 12) {
+			throw new IOException("Short option negotiation packet");
+		}
+		int mtaVersion = in.getInt(pos);
+		int mtaActions = in.getInt(pos + 4);
+		int mtaProtocol = in.getInt(pos + 8);
+		MilterNegotiation result = negotiationCache != null
+				? negotiationCache.get(handler, mtaVersion, mtaActions, mtaProtocol)
+				: MilterNegotiation.negotiate(handler, mtaVersion, mtaActions, mtaProtocol);
+		this.mtaProtocolFlags = result.getMtaProtocolFlags();
+		this.actionFlags = result.getActionFlags();
+		this.protocolFlags = result.getProtocolFlags();
+		encoder.writeRaw(result.getReply());
+		if (!result.isAccepted()) {
+			closed = true;
+		}
+	}
+
+	private void macro(ByteBuffer in, int pos, int end) {
+		if (pos >= end) {
+			return;
+		}
+		int stage = stage(in.get(pos));
+		if (stage < 0) {
+			return;
+		}
+		MilterMacros previous = PREVIOUS_STAGE[stage] < 0 ? null : macros(PREVIOUS_STAGE[stage]);
+		byte[] data = bytes(in, pos + 1, end);
+		macros[stage] = new MilterMacros(data, 0, data.length, previous == noMacros ? null : previous);
+	}
+
+	private static int stage(int command) {
+		switch (command) {
+			case MilterConstants.SMFIC_CONNECT:
+				return Macros.SMFIM_CONNECT;
+			case MilterConstants.SMFIC_HELO:
+				return Macros.SMFIM_HELO;
+			case MilterConstants.SMFIC_MAIL:
+				return Macros.SMFIM_ENVFROM;
+			case MilterConstants.SMFIC_RCPT:
+				return Macros.SMFIM_ENVRCPT;
+			case MilterConstants.SMFIC_DATA:
+				return Macros.SMFIM_DATA;
+			case MilterConstants.SMFIC_EOH:
+				return Macros.SMFIM_EOH;
+			case MilterConstants.SMFIC_BODYEOB:
+				return Macros.SMFIM_EOM;
+			default:
+				return -1;
+		}
+	}
+
+	/**
+	 * @return The macros a callback of the stage sees: those of the stage, or else of the closest earlier stage.
+	 */
+	private MilterMacros macros(int stage) {
+		for (int s = stage; s >= 0; s = PREVIOUS_STAGE[s]) {
+			if (macros[s] != null) {
+				return macros[s];
+			}
+		}
+		return noMacros;
+	}
+
+	private IMilterStatus connect(ByteBuffer in, int pos, int end) {
+		int hostEnd = terminator(in, pos, end);
+		String hostname = string(in, pos, hostEnd);
+		InetAddress address = null;
+		int i = hostEnd + 1;
+		if (i < end) {
+			int family = in.get(i);
+			// Skip the family and the port.
+			i += 3;
+			if ((family == MilterConstants.SMFIA_INET || family == MilterConstants.SMFIA_INET6) && i < end) {
+				address = address(string(in, i, terminator(in, i, end)));
+			}
+		}
+		MilterMacros stageMacros = macros(Macros.SMFIM_CONNECT);
+		return macroHandler != null ? macroHandler.connectMacros(hostname, address, stageMacros)
+				: handler.connect(hostname, address, stageMacros.toProperties());
+	}
+
+	private IMilterStatus helo(String helohost) {
+		MilterMacros stageMacros = macros(Macros.SMFIM_HELO);
+		return macroHandler != null ? macroHandler.heloMacros(helohost, stageMacros)
+				: handler.helo(helohost, stageMacros.toProperties());
+	}
+
+	private IMilterStatus envfrom(byte[][] argv) {
+		MilterMacros stageMacros = macros(Macros.SMFIM_ENVFROM);
+		return macroHandler != null ? macroHandler.envfromMacros(argv, stageMacros)
+				: handler.envfrom(argv, stageMacros.toProperties());
+	}
+
+	private IMilterStatus envrcpt(byte[][] argv) {
+		MilterMacros stageMacros = macros(Macros.SMFIM_ENVRCPT);
+		return macroHandler != null ? macroHandler.envrcptMacros(argv, stageMacros)
+				: handler.envrcpt(argv, stageMacros.toProperties());
+	}
+
+	private IMilterStatus data() {
+		MilterMacros stageMacros = macros(Macros.SMFIM_DATA);
+		return macroHandler != null ? macroHandler.dataMacros(stageMacros) : handler.data(stageMacros.toProperties());
+	}
+
+	private IMilterStatus unknown(byte[] command) {
+		MilterMacros stageMacros = macros(Macros.SMFIM_HELO);
+		return macroHandler != null ? macroHandler.unknownMacros(command, stageMacros)
+				: handler.unknown(command, stageMacros.toProperties());
+	}
+
+	/**
+	 * Parse an address literal. Anything that is not a literal is rejected rather than passed to
+	 * {@link InetAddress#getByName}, which would resolve it.
+	 */
+	private static InetAddress address(String literal) {
+		if (literal.regionMatches(true, 0, "IPv6:", 0, 5)) {
+			literal = literal.substring(5);
+		}
+		boolean v6 = literal.indexOf(':') >= 0;
+		for (int i = 0, n = literal.length(); i < n; ++i) {
+			char c = literal.charAt(i);
+			if (!(c >= '0' && c <= '9' || c == '.' || v6 && (c == ':' || c == '%' || Character.digit(c, 16) >= 0))) {
+				return null;
+			}
+		}
+		try {
+			return literal.isEmpty() ? null : InetAddress.getByName(literal);
+		}
+		catch (UnknownHostException ex) {
+			return null;
+		}
+	}
+
+	private IMilterStatus header(ByteBuffer in, int pos, int end) {
+		int nameEnd = terminator(in, pos, end);
+		int valuePos = Math.min(nameEnd + 1, end);
+		int valueEnd = terminator(in, valuePos, end);
+		if (bufferHandler != null) {
+			return bufferHandler.headerBuffer(view(in, 0, pos, nameEnd), view(in, 1, valuePos, valueEnd));
+		}
+		return handler.header(bytes(in, pos, nameEnd), bytes(in, valuePos, valueEnd));
+	}
+
+	private void endOfMessage(ByteBuffer in, int pos, int end) throws IOException {
+		if (pos < end) {
+			IMilterStatus status = handler.body(view(in, 0, pos, end));
+			if (suspend(0)) {
+				pendingBody = true;
+				return;
+			}
+			if (endsMessage(status)) {
+				reply(0, status);
+				clearMessage();
+				return;
+			}
+		}
+		endOfMessage();
+	}
+
+	private void endOfMessage() throws IOException {
+		IMilterStatus status = actions.run(true);
+		if (!suspend(0)) {
+			finishMessage(status);
+		}
+	}
+
+	private void finishMessage(IMilterStatus status) throws IOException {
+		reply(0, status);
+		clearMessage();
+		actions.complete();
+	}
+
+	private static boolean endsMessage(IMilterStatus status) {
+		return status != null && status.getCode() != MilterConstants.SMFIR_CONTINUE && status != IMilterStatus.SMFIS_SKIP;
+	}
+
+	/**
+	 * Hold back the reply if the callback of the current command left its future pending.
+	 *
+	 * @return true if the reply is pending.
+	 */
+	private boolean suspend(int noReplyFlag) {
+		if (asyncHandler == null || !asyncHandler.isPending()) {
+			return false;
+		}
+		pending = asyncHandler.takePending();
+		pendingSince = MilterTrace.start();
+		pendingCommand = command;
+		pendingFlag = noReplyFlag;
+		return true;
+	}
+
+	/**
+	 * Send a callback's status, unless the MTA was told not to expect a reply for it or the callback is pending.
+	 */
+	private void reply(int noReplyFlag, IMilterStatus status) throws IOException {
+		if (suspend(noReplyFlag) || (protocolFlags & noReplyFlag) != 0) {
+			return;
+		}
+		if (status == null) {
+			status = IMilterStatus.SMFIS_CONTINUE;
+		}
+		else if (status == IMilterStatus.SMFIS_SKIP && (mtaProtocolFlags & MilterConstants.SMFIP_SKIP) == 0) {
+			status = IMilterStatus.SMFIS_CONTINUE;
+		}
+		encoder.writeStatus(status);
+		replied = status == IMilterStatus.SMFIS_SKIP ? MilterConstants.SMFIR_SKIP : status.getCode();
+	}
+
+	private void clearMessage() {
+		actions.discard();
+		macros[Macros.SMFIM_ENVFROM] = null;
+		macros[Macros.SMFIM_ENVRCPT] = null;
+		macros[Macros.SMFIM_DATA] = null;
+		macros[Macros.SMFIM_EOH] = null;
+		macros[Macros.SMFIM_EOM] = null;
+	}
+
+	/**
+	 * Point one of the reusable read-only views at a region of the receive buffer.
+	 */
+	private ByteBuffer view(ByteBuffer in, int index, int pos, int end) {
+		if (source != in) {
+			source = in;
+			views[0] = null;
+			views[1] = null;
+		}
+		ByteBuffer view = views[index];
+		if (view == null) {
+			view = views[index] = in.asReadOnlyBuffer();
+		}
+		view.limit(end);
+		view.position(pos);
+		return view;
+	}
+
+	/**
+	 * @return The index of the first NUL byte in the region, or end if there is none.
+	 */
+	private static int terminator(ByteBuffer in, int pos, int end) {
+		for (int i = pos; i < end; ++i) {
+			if (in.get(i) == 0) {
+				return i;
+			}
+		}
+		return end;
+	}
+
+	private static byte[] bytes(ByteBuffer in, int pos, int end) {
+		byte[] result = new byte[end - pos];
+		if (in.hasArray()) {
+			System.arraycopy(in.array(), in.arrayOffset() + pos, result, 0, result.length);
+		}
+		else {
+			for (int i = 0; i < result.length; ++i) {
+				result[i] = in.get(pos + i);
+			}
+		}
+		return result;
+	}
+
+	private String string(ByteBuffer in, int pos, int end) {
+		int length = end - pos;
+		if (in.hasArray()) {
+			return new String(in.array(), in.arrayOffset() + pos, length, UTF8);
+		}
+		if (scratch.length < length) {
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		}
+		for (int i = 0; i < length; ++i) {
+			scratch[i] = in.get(pos + i);
+		}
+		return new String(scratch, 0, length, UTF8);
+	}
+
+	private static byte[][] argv(ByteBuffer in, int pos, int end) {
+		int count = 0;
+		for (int i = pos; i < end; i = terminator(in, i, end) + 1) {
+			++count;
+		}
+		byte[][] argv = new byte[count][];
+		for (int i = pos, n = 0; i < end; ++n) {
+			int argEnd = terminator(in, i, end);
+			argv[n] = bytes(in, i, argEnd);
+			i = argEnd + 1;
+		}
+		return argv;
+	}
+
+	/**
+	 * The actions handed to {@link IMilterHandler#eoh} and {@link IMilterHandler#eom}. Modifications are encoded into
+	 * the output buffer and flushed together with the end of message status. The MTA only accepts modifications in
+	 * reply to end of message, so anything requested during end of headers is encoded into a side buffer, which is
+	 * appended ahead of the end of message modifications. Asynchronous handlers get a side buffer for end of message
+	 * too, as they may call the actions from another thread while the output buffer is in use. Bodies streamed from
+	 * files or channels are not read into a side buffer: they are streamed once it is appended.
+	 */
+	private final class Actions implements IMilterBatchActions {
+
+		private boolean active;
+		private boolean eom;
+		private IMilterStatus finished;
+		private IMilterWriteListener listener;
+		private final SideBuffer eohBuffer = new SideBuffer();
+		/**
+		 * Takes the end of message modifications of asynchronous handlers, which may come from any thread.
+		 */
+		private final SideBuffer eomBuffer = new SideBuffer();
+
+		/**
+		 * @return The status, or null if the handler left it pending; the actions then stay available until
+		 * {@link #resumed(IMilterStatus)}.
+		 */
+		IMilterStatus run(boolean eom) throws IOException {
+			this.active = true;
+			this.eom = eom;
+			this.finished = null;
+			this.listener = null;
+			boolean suspended = false;
+			try {
+				IMilterStatus status;
+				if (eom) {
+					eohBuffer.appendTo(encoder);
+					MilterMacros stageMacros = macros(Macros.SMFIM_EOM);
+					status = macroHandler != null ? macroHandler.eomMacros(this, stageMacros)
+							: handler.eom(this, stageMacros.toProperties());
+				}
+				else {
+					MilterMacros stageMacros = macros(Macros.SMFIM_EOH);
+					status = macroHandler != null ? macroHandler.eohMacros(this, stageMacros)
+							: handler.eoh(this, stageMacros.toProperties());
+				}
+				suspended = asyncHandler != null && asyncHandler.isPending();
+				return suspended ? null : resumed(status);
+			}
+			finally {
+				this.active = suspended;
+			}
+		}
+
+		/**
+		 * End the callback, queueing the modifications of an asynchronous end of message.
+		 *
+		 * @return The status to send.
+		 */
+		IMilterStatus resumed(IMilterStatus status) throws IOException {
+			active = false;
+			if (eom) {
+				eomBuffer.appendTo(encoder);
+			}
+			return finished != null ? finished : status;
+		}
+
+		/**
+		 * Send the end of message batch and notify the listener. The side buffers are appended by reference, so they
+		 * are only reused after this flush.
+		 */
+		void complete() throws IOException {
+			IMilterWriteListener notify = listener;
+			listener = null;
+			try {
+				encoder.flush();
+			}
+			catch (IOException ex) {
+				if (notify != null) {
+					notify.failed(ex);
+				}
+				throw ex;
+			}
+			finally {
+				eohBuffer.flushed();
+				eomBuffer.flushed();
+			}
+			if (notify != null) {
+				encoder.whenWritten(notify);
+			}
+		}
+
+		/**
+		 * Drop the buffered modifications, unless they are appended to the encoder and still to be flushed.
+		 */
+		void discard() {
+			eohBuffer.discard();
+			eomBuffer.discard();
+		}
+
+		private MilterEncoder target(int requiredAction) throws IOException {
+			if (!active || finished != null) {
+				throw new IOException("Milter actions are only available until eoh or eom returns");
+			}
+			if ((actionFlags & requiredAction) != requiredAction) {
+				throw new IOException("Milter action 0x" + Integer.toHexString(requiredAction) + " was not negotiated");
+			}
+			SideBuffer side = side();
+			return side != null ? side.encoder() : encoder;
+		}
+
+		/**
+		 * @return The side buffer the modifications go to, or null if they are encoded right away.
+		 */
+		private SideBuffer side() {
+			if (!eom) {
+				return eohBuffer;
+			}
+			return asyncHandler != null ? eomBuffer : null;
+		}
+
+		@Override
+		public void addheader(String name, String value) throws IOException {
+			target(MilterConstants.SMFIF_ADDHDRS).writeHeader(MilterConstants.SMFIR_ADDHEADER, -1, name, value);
+			trace(MilterConstants.SMFIR_ADDHEADER, name, value);
+		}
+
+		@Override
+		public void chgheader(String name, int index, String value) throws IOException {
+			target(MilterConstants.SMFIF_CHGHDRS).writeHeader(MilterConstants.SMFIR_CHGHEADER, index, name, value);
+			trace(MilterConstants.SMFIR_CHGHEADER, name, value);
+		}
+
+		@Override
+		public void insheader(String name, String value) throws IOException {
+			target(MilterConstants.SMFIF_ADDHDRS).writeHeader(MilterConstants.SMFIR_INSHEADER, 0, name, value);
+			trace(MilterConstants.SMFIR_INSHEADER, name, value);
+		}
+
+		@Override
+		public void addrcpt(String rcpt) throws IOException {
+			target(MilterConstants.SMFIF_ADDRCPT).writeString(MilterConstants.SMFIR_ADDRCPT, rcpt);
+			trace(MilterConstants.SMFIR_ADDRCPT, rcpt, null);
+		}
+
+		@Override
+		public void delrcpt(String rcpt) throws IOException {
+			target(MilterConstants.SMFIF_DELRCPT).writeString(MilterConstants.SMFIR_DELRCPT, rcpt);
+			trace(MilterConstants.SMFIR_DELRCPT, rcpt, null);
+		}
+
+		@Override
+		public void replacebody(ByteBuffer bodyp) throws IOException {
+			int size = bodyp.remaining();
+			target(MilterConstants.SMFIF_CHGBODY).writeBody(bodyp);
+			MilterTrace.action(session, MilterConstants.SMFIR_REPLBODY, size);
+		}
+
+		@Override
+		public void replacebody(FileChannel file, long position, long count) throws IOException {
+			MilterEncoder target = target(MilterConstants.SMFIF_CHGBODY);
+			SideBuffer side = side();
+			if (side != null) {
+				side.stream(new StreamedBody(file, position, count));
+			}
+			else {
+				target.writeBody(file, position, count);
+			}
+			MilterTrace.action(session, MilterConstants.SMFIR_REPLBODY, count);
+		}
+
+		@Override
+		public void replacebody(InputStream body) throws IOException {
+			replacebody(Channels.newChannel(body));
+		}
+
+		@Override
+		public void replacebody(ReadableByteChannel body) throws IOException {
+			MilterEncoder target = target(MilterConstants.SMFIF_CHGBODY);
+			SideBuffer side = side();
+			if (side != null) {
+				side.stream(new StreamedBody(body));
+			}
+			else {
+				target.writeBody(body);
+			}
+			MilterTrace.action(session, MilterConstants.SMFIR_REPLBODY, 0);
+		}
+
+		@Override
+		public void progress() throws IOException {
+			// Only the end of message reply may be preceded by progress notifications. Those of asynchronous handlers
+			// are sent by the runner.
+			if (target(0) == encoder) {
+				encoder.writeCommand(MilterConstants.SMFIR_PROGRESS);
+				encoder.flush();
+				MilterTrace.action(session, MilterConstants.SMFIR_PROGRESS, 0);
+			}
+		}
+
+		private void trace(int action, String first, String second) {
+			MilterTrace.action(session, action, first.length() + (second == null ? 0 : second.length()));
+		}
+
+		@Override
+		public void finish(IMilterStatus status) throws IOException {
+			target(0);
+			finished = status == null ? IMilterStatus.SMFIS_CONTINUE : status;
+		}
+
+		@Override
+		public void finish(IMilterStatus status, IMilterWriteListener listener) throws IOException {
+			target(0);
+			if (!eom) {
+				throw new IOException("Write listeners are only available during eom");
+			}
+			finish(status);
+			this.listener = listener;
+		}
+	}
+
+	/**
+	 * Modifications encoded aside, to be appended by reference ahead of the end of message status. Bodies streamed from
+	 * files or channels are only recorded, and streamed in their place once appended.
+	 */
+	private static final class SideBuffer {
+
+		private MemoryChannel bytes;
+		private MilterEncoder encoder;
+		private final List<StreamedBody> bodies = new ArrayList<StreamedBody>();
+		private boolean appended;
+
+		MilterEncoder encoder() {
+			if (encoder == null) {
+				bytes = new MemoryChannel();
+				encoder = new MilterEncoder(ByteBuffer.allocate(MilterEncoder.DEFAULT_BUFFER_SIZE), bytes);
+			}
+			return encoder;
+		}
+
+		void stream(StreamedBody body) throws IOException {
+			encoder().flush();
+			body.mark = bytes.size();
+			bodies.add(body);
+		}
+
+		void appendTo(MilterEncoder out) throws IOException {
+			if (encoder == null || encoder.pending() + bytes.size() == 0 && bodies.isEmpty()) {
+				return;
+			}
+			encoder.flush();
+			appended = true;
+			ByteBuffer contents = bytes.contents();
+			int start = 0;
+			for (StreamedBody body : bodies) {
+				ByteBuffer ahead = contents.duplicate();
+				ahead.limit(body.mark);
+				ahead.position(start);
+				out.append(ahead);
+				body.writeTo(out);
+				start = body.mark;
+			}
+			contents.position(start);
+			out.append(contents);
+		}
+
+		/**
+		 * The appended bytes were written, so the buffer can be reused.
+		 */
+		void flushed() {
+			appended = false;
+			discard();
+		}
+
+		void discard() {
+			if (encoder != null && !appended) {
+				encoder.discard();
+				bytes.clear();
+				bodies.clear();
+			}
+		}
+	}
+
+	/**
+	 * A replacement body recorded in a side buffer, after the given number of its encoded bytes.
+	 */
+	private static final class StreamedBody {
+
+		private final FileChannel file;
+		private final long position;
+		private final long count;
+		private final ReadableByteChannel channel;
+		int mark;
+
+		StreamedBody(FileChannel file, long position, long count) {
+			this.file = file;
+			this.position = position;
+			this.count = count;
+			this.channel = null;
+		}
+
+		StreamedBody(ReadableByteChannel channel) {
+			this.file = null;
+			this.position = 0;
+			this.count = 0;
+			this.channel = channel;
+		}
+
+		void writeTo(MilterEncoder out) throws IOException {
+			if (file != null) {
+				out.writeBody(file, position, count);
+			}
+			else {
+				out.writeBody(channel);
+			}
+		}
+	}
+
+	/**
+	 * Collects modifications in a growing heap buffer.
+	 */
+	private static final class MemoryChannel implements WritableByteChannel {
+
+		private ByteBuffer buffer = ByteBuffer.allocate(1024);
+		private ByteBuffer view;
+
+		@Override
+		public int write(ByteBuffer src) {
+			int count = src.remaining();
+			if (buffer.remaining() < count) {
+				ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.position() + count, buffer.capacity() * 2));
+				buffer.flip();
+				larger.put(buffer);
+				buffer = larger;
+				view = null;
+			}
+			buffer.put(src);
+			return count;
+		}
+
+		int size() {
+			return buffer.position();
+		}
+
+		/**
+		 * @return A view of the collected bytes, valid until the next {@link #clear()}.
+		 */
+		ByteBuffer contents() {
+			if (view == null) {
+				view = buffer.duplicate();
+			}
+			view.limit(buffer.position());
+			view.position(0);
+			return view;
+		}
+
+		void clear() {
+			buffer.clear();
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+			// Nothing to release.
+		}
+	}
+}
@@ -0,0 +1,799 @@
+package com.sendmail.milter.codec;
+
+import com.sendmail.milter.EncodedMilterStatus;
+import com.sendmail.milter.IMilterStatus;
+import com.sendmail.milter.IMilterWriteListener;
+import com.sendmail.milter.MilterConstants;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes milter packets into an output buffer, draining it to a channel whenever the next packet does not fit.
+ * <p>
+ * Strings are written as UTF-8 directly into the buffer and status messages are copied without touching their
+ * position, so encoding does not allocate. An encoder belongs to a single connection and is not thread safe.
+ * <p>
+ * Larger encoded data can be {@link #append appended} by reference instead of being copied. If the channel is a
+ * {@link GatheringByteChannel}, the next {@link #flush()} then writes the output buffer and the appended buffers in
+ * order with a single gathering write.
+ * <p>
+ * Replacement bodies can be streamed from a file or channel. On an {@link IMilterStreamingChannel}, streaming stops
+ * whenever the channel is congested: the rest of the body, and everything encoded after it, is {@link #isHeld() held}
+ * back until the next {@link #flush()} once the channel drained.
+ */
+public final class MilterEncoder {
+
+	/**
+	 * Default size of the output buffer. Large enough to send a maximum sized body chunk in one piece.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = MilterConstants.MILTER_CHUNK_SIZE + 5;
+
+	private final ByteBuffer out;
+	private final WritableByteChannel channel;
+	private final GatheringByteChannel gathering;
+	private final IMilterStreamingChannel streaming;
+	/**
+	 * Output held back while a streaming channel is congested, in the order it is to be written.
+	 */
+	private final ArrayDeque<Held> held = new ArrayDeque<Held>();
+
+	/**
+	 * Buffers appended by reference, each with the output buffer position it follows.
+	 */
+	private ByteBuffer[] appended = new ByteBuffer[2];
+	private int[] marks = new int[2];
+	private int appendedCount;
+
+	/**
+	 * Reused by gathering writes: the segments to write, and views of the output buffer between appended buffers.
+	 */
+	private ByteBuffer[] segments;
+	private ByteBuffer[] outViews;
+
+	/**
+	 * Creates an encoder with a direct output buffer of {@link #DEFAULT_BUFFER_SIZE} bytes.
+	 *
+	 * @param channel The channel to the MTA.
+	 */
+	public MilterEncoder(WritableByteChannel channel) {
+		this(ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE), channel);
+	}
+
+	/**
+	 * @param out The output buffer. It is cleared and owned by the encoder from now on.
+	 * @param channel The channel to the MTA. If it is non-blocking, it must buffer anything it cannot write right away,
+	 * since {@link #flush()} keeps writing until the output buffer is empty. An {@link IMilterStreamingChannel} only
+	 * gets streamed bodies while it is not congested.
+	 */
+	public MilterEncoder(ByteBuffer out, WritableByteChannel channel) {
+		this.out = out;
+		this.channel = channel;
+		this.gathering = channel instanceof GatheringByteChannel ? (GatheringByteChannel) channel : null;
+		this.streaming = channel instanceof IMilterStreamingChannel ? (IMilterStreamingChannel) channel : null;
+		out.clear();
+	}
+
+	/**
+	 * Write the reply for a status returned by a handler.
+	 *
+	 * @param status The status. {@link IMilterStatus#SMFIS_SKIP} is sent as {@link MilterConstants#SMFIR_SKIP}. An
+	 * {@link EncodedMilterStatus} is copied as is.
+	 * @throws IOException if a connection error occurs.
+	 */
+	public void writeStatus(IMilterStatus status) throws IOException {
+		if (status instanceof EncodedMilterStatus) {
+			EncodedMilterStatus encoded = (EncodedMilterStatus) status;
+			if (encoded.getFrameLength() <= out.capacity()) {
+				room(encoded.getFrameLength());
+				encoded.copyFrame(out);
+				return;
+			}
+		}
+		int code = status.getCode();
+		if (code == MilterConstants.SMFIP_SKIP) {
+			code = MilterConstants.SMFIR_SKIP;
+		}
+		ByteBuffer message = status.getMessage();
+		int length = message == null ? 0 : message.remaining();
+		boolean terminate = code == MilterConstants.SMFIR_REPLYCODE || code == MilterConstants.SMFIR_QUARANTINE;
+		if (terminate) {
+			length++;
+		}
+		begin(code, length);
+		if (message != null) {
+			putCopy(message);
+		}
+		if (terminate) {
+			putByte(0);
+		}
+	}
+
+	/**
+	 * Write the option negotiation reply.
+	 *
+	 * @param version The negotiated protocol version.
+	 * @param actionFlags The <code>SMFIF_</code> flags the filter will use.
+	 * @param protocolFlags The <code>SMFIP_</code> flags the filter requests.
+	 * @param macros The macros to request per stage, or null to leave the MTA defaults.
+	 * @throws IOException if a connection error occurs.
+	 */
+	public void writeNegotiation(int version, int actionFlags, int protocolFlags, Map<Integer, Set<String>> macros)
+			throws IOException {
+		int length = 12;
+		if (macros != null) {
+			for (Map.Entry<Integer, Set<String>> stage : macros.entrySet()) {
+				length += 4 + 1;
+				for (Iterator<String> it = stage.getValue().iterator(); it.hasNext();) {
+					length += utf8Length(it.next()) + (it.hasNext() ? 1 : 0);
+				}
+			}
+		}
+		begin(MilterConstants.SMFIC_OPTNEG, length);
+		putInt(version);
+		putInt(actionFlags);
+		putInt(protocolFlags);
+		if (macros != null) {
+			for (Map.Entry<Integer, Set<String>> stage : macros.entrySet()) {
+				putInt(stage.getKey());
+				for (Iterator<String> it = stage.getValue().iterator(); it.hasNext();) {
+					putUtf8(it.next());
+					if (it.hasNext()) {
+						putByte(' ');
+					}
+				}
+				putByte(0);
+			}
+		}
+	}
+
+	/**
+	 * Write a packet without payload, such as {@link MilterConstants#SMFIR_PROGRESS}.
+	 *
+	 * @param command The reply command.
+	 * @throws IOException if a connection error occurs.
+	 */
+	public void writeCommand(int command) throws IOException {
+		begin(command, 0);
+	}
+
+	/**
+	 * Write a packet with one NUL-terminated string, such as {@link MilterConstants#SMFIR_ADDRCPT}.
+	 *
+	 * @param command The reply command.
+	 * @param value The string.
+	 * @throws IOException if a connection error occurs.
+	 */
+	public void writeString(int command, String value) throws IOException {
+		begin(command, utf8Length(value) + 1);
+		putUtf8(value);
+		putByte(0);
+	}
+
+	/**
+	 * Write a packet with two NUL-terminated strings, such as {@link MilterConstants#SMFIR_ADDRCPT_PAR}.
+	 *
+	 * @param command The reply command.
+	 * @param first The first string.
+	 * @param second The second string.
+	 * @throws IOException if a connection error occurs.
+	 */
+	public void writeStrings(int command, String first, String second) throws IOException {
+		begin(command, utf8Length(first) + utf8Length(second) + 2);
+		putUtf8(first);
+		putByte(0);
+		putUtf8(second);
+		putByte(0);
+	}
+
+	/**
+	 * Write a header modification packet.
+	 *
+	 * @param command One of {@link MilterConstants#SMFIR_ADDHEADER}, {@link MilterConstants#SMFIR_CHGHEADER} or
+	 * {@link MilterConstants#SMFIR_INSHEADER}.
+	 * @param index The header index, or a negative number for commands that take none.
+	 * @param name The header name.
+	 * @param value The header value. null is sent as an empty value, which deletes the header on change.
+	 * @throws IOException if a connection error occurs.
+	 */
+	public void writeHeader(int command, int index, String name, String value) throws IOException {
+		if (value == null) {
+			value = "";
+		}
+		begin(command, (index < 0 ? 0 : 4) + utf8Length(name) + utf8Length(value) + 2);
+		if (index >= 0) {
+			putInt(index);
+		}
+		putUtf8(name);
+		putByte(0);
+		putUtf8(value);
+		putByte(0);
+	}
+
+	/**
+	 * Write the remaining bytes of a buffer as {@link MilterConstants#SMFIR_REPLBODY} packets of at most
+	 * {@link MilterConstants#MILTER_CHUNK_SIZE} bytes each. The buffer's position is advanced to its limit.
+	 *
+	 * @param body The body data.
+	 * @throws IOException if a connection error occurs.
+	 */
+	public void writeBody(ByteBuffer body) throws IOException {
+		int limit = body.limit();
+		int chunk = Math.min(MilterConstants.MILTER_CHUNK_SIZE, out.capacity() - 5);
+		try {
+			while (body.position() < limit) {
+				int length = Math.min(chunk, limit - body.position());
+				begin(MilterConstants.SMFIR_REPLBODY, length);
+				body.limit(body.position() + length);
+				out.put(body);
+				body.limit(limit);
+			}
+		}
+		finally {
+			body.limit(limit);
+		}
+	}
+
+	/**
+	 * Write part of a file as {@link MilterConstants#SMFIR_REPLBODY} packets of at most
+	 * {@link MilterConstants#MILTER_CHUNK_SIZE} bytes each. The data is not copied into the output buffer but
+	 * transferred from the file to the channel with {@link FileChannel#transferTo}, which the operating system can do
+	 * without copying when the channel is a socket. On an {@link IMilterStreamingChannel} it is transferred to the
+	 * socket behind it, as far as the socket takes it, and the rest is {@link #isHeld() held} back. The file's position
+	 * is not changed.
+	 *
+	 * @param file The file.
+	 * @param position The position of the body data in the file.
+	 * @param count The number of bytes to write.
+	 * @throws EOFException if the file ends before <code>count</code> bytes.
+	 * @throws IOException if reading the file or a connection error occurs.
+	 */
+	public void writeBody(FileChannel file, long position, long count) throws IOException {
+		if (position < 0 || count < 0) {
+			throw new IllegalArgumentException("Negative file position or count");
+		}
+		if (file.size() - position < count) {
+			throw new EOFException("File ends before " + count + " bytes from position " + position);
+		}
+		if (streaming != null) {
+			stream(new FileBody(file, position, position + count));
+			return;
+		}
+		long end = position + count;
+		while (position < end) {
+			int length = (int) Math.min(MilterConstants.MILTER_CHUNK_SIZE, end - position);
+			begin(MilterConstants.SMFIR_REPLBODY, length);
+			flush();
+			for (long chunkEnd = position + length; position < chunkEnd;) {
+				long transferred = file.transferTo(position, chunkEnd - position, channel);
+				if (transferred <= 0 && position >= file.size()) {
+					throw new EOFException("File truncated while writing body");
+				}
+				position += transferred;
+			}
+		}
+	}
+
+	/**
+	 * Write everything read from a blocking channel as {@link MilterConstants#SMFIR_REPLBODY} packets. The data is
+	 * read straight into the output buffer, filling each packet up to {@link MilterConstants#MILTER_CHUNK_SIZE} bytes
+	 * or as much as the output buffer holds, and each packet is written before the next is read. On an
+	 * {@link IMilterStreamingChannel}, reading stops while the channel is congested and the rest is
+	 * {@link #isHeld() held} back, so the channel never buffers much more than a packet either.
+	 *
+	 * @param body The body data, read until its end. The channel is not closed.
+	 * @throws IOException if reading the body or a connection error occurs.
+	 */
+	public void writeBody(ReadableByteChannel body) throws IOException {
+		if (streaming != null) {
+			stream(new ChannelBody(body));
+			return;
+		}
+		while (readPacket(body)) {
+			// Each packet is flushed by the room the next one makes.
+		}
+	}
+
+	/**
+	 * Read up to a packet of body data straight into the output buffer.
+	 *
+	 * @return false once the body ended.
+	 */
+	private boolean readPacket(ReadableByteChannel body) throws IOException {
+		int chunk = Math.min(MilterConstants.MILTER_CHUNK_SIZE, out.capacity() - 5);
+		room(5 + chunk);
+		int start = out.position();
+		int dataStart = start + 5;
+		out.position(dataStart);
+		out.limit(dataStart + chunk);
+		boolean more = true;
+		try {
+			while (out.hasRemaining()) {
+				if (body.read(out) < 0) {
+					more = false;
+					break;
+				}
+			}
+		}
+		finally {
+			out.limit(out.capacity());
+		}
+		int length = out.position() - dataStart;
+		if (length == 0) {
+			out.position(start);
+		}
+		else {
+			out.putInt(start, length + 1);
+			out.put(start + 4, (byte) MilterConstants.SMFIR_REPLBODY);
+		}
+		return more;
+	}
+
+	/**
+	 * Copy complete, already encoded packets to the output.
+	 *
+	 * @param packets The encoded packets. The buffer's position is advanced to its limit.
+	 * @throws IOException if a connection error occurs.
+	 */
+	public void writeRaw(ByteBuffer packets) throws IOException {
+		while (packets.hasRemaining()) {
+			if (!out.hasRemaining()) {
+				flush();
+			}
+			int limit = packets.limit();
+			packets.limit(packets.position() + Math.min(out.remaining(), packets.remaining()));
+			out.put(packets);
+			packets.limit(limit);
+		}
+	}
+
+	/**
+	 * Queue complete, already encoded packets to be written by the next {@link #flush()}, after everything written to
+	 * the encoder before them, without copying them into the output buffer. If the channel is not a
+	 * {@link GatheringByteChannel}, they are copied like {@link #writeRaw} does.
+	 *
+	 * @param packets The encoded packets. Neither their content nor the buffer may change until the next
+	 * {@link #flush()} returns, which advances the position to the limit.
+	 * @throws IOException if a connection error occurs.
+	 */
+	public void append(ByteBuffer packets) throws IOException {
+		if (gathering == null) {
+			writeRaw(packets);
+			return;
+		}
+		if (!packets.hasRemaining()) {
+			return;
+		}
+		if (appendedCount == appended.length) {
+			ByteBuffer[] largerAppended = new ByteBuffer[appendedCount * 2];
+			int[] largerMarks = new int[appendedCount * 2];
+			System.arraycopy(appended, 0, largerAppended, 0, appendedCount);
+			System.arraycopy(marks, 0, largerMarks, 0, appendedCount);
+			appended = largerAppended;
+			marks = largerMarks;
+		}
+		appended[appendedCount] = packets;
+		marks[appendedCount++] = out.position();
+	}
+
+	/**
+	 * Write all buffered and appended packets to the channel. While output is {@link #isHeld() held} back, they are
+	 * held back behind it, and as much of the held back output is written as the channel takes.
+	 *
+	 * @throws IOException if a connection error occurs. Anything held back is dropped then.
+	 */
+	public void flush() throws IOException {
+		if (held.isEmpty()) {
+			writeOut();
+			return;
+		}
+		hold();
+		pump();
+	}
+
+	/**
+	 * @return true while part of a streamed body, and everything encoded after it, waits for a congested
+	 * {@link IMilterStreamingChannel} to drain. Calling {@link #flush()} then goes on with it.
+	 */
+	public boolean isHeld() {
+		return !held.isEmpty();
+	}
+
+	/**
+	 * Notify a listener once everything flushed so far is written: right away, unless output is {@link #isHeld() held}
+	 * back.
+	 *
+	 * @param listener The listener. It is told about a failure if the held back output cannot be written.
+	 */
+	public void whenWritten(IMilterWriteListener listener) {
+		if (held.isEmpty()) {
+			listener.written();
+		}
+		else {
+			held.add(new Notification(listener));
+		}
+	}
+
+	private void stream(Held body) throws IOException {
+		flush();
+		held.add(body);
+		pump();
+	}
+
+	/**
+	 * Write held back output until the channel is congested.
+	 */
+	private void pump() throws IOException {
+		try {
+			while (!held.isEmpty() && !streaming.isCongested()) {
+				if (!held.peek().write()) {
+					break;
+				}
+				held.poll();
+			}
+		}
+		catch (IOException ex) {
+			fail(ex);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Hold back a copy of the buffered and appended packets.
+	 */
+	private void hold() {
+		int size = pending();
+		if (size == 0) {
+			return;
+		}
+		ByteBuffer packets = ByteBuffer.allocate(size);
+		ByteBuffer view = out.duplicate();
+		int start = 0;
+		for (int i = 0; i <= appendedCount; ++i) {
+			int end = i < appendedCount ? marks[i] : out.position();
+			view.limit(end);
+			view.position(start);
+			packets.put(view);
+			start = end;
+			if (i < appendedCount) {
+				packets.put(appended[i]);
+			}
+		}
+		packets.flip();
+		clear();
+		held.add(new Packets(packets));
+	}
+
+	private void fail(IOException cause) {
+		for (Held output : held) {
+			output.failed(cause);
+		}
+		held.clear();
+	}
+
+	private void writeOut() throws IOException {
+		if (appendedCount > 0) {
+			flushGathering();
+			return;
+		}
+		out.flip();
+		try {
+			while (out.hasRemaining()) {
+				channel.write(out);
+			}
+		}
+		finally {
+			out.clear();
+		}
+	}
+
+	private void flushGathering() throws IOException {
+		if (segments == null || segments.length < appendedCount * 2 + 1) {
+			segments = new ByteBuffer[appendedCount * 2 + 1];
+			ByteBuffer[] views = new ByteBuffer[appendedCount + 1];
+			if (outViews != null) {
+				System.arraycopy(outViews, 0, views, 0, outViews.length);
+			}
+			outViews = views;
+		}
+		int count = 0;
+		int start = 0;
+		for (int i = 0; i <= appendedCount; ++i) {
+			int end = i < appendedCount ? marks[i] : out.position();
+			if (end > start) {
+				ByteBuffer view = outViews[i];
+				if (view == null) {
+					view = outViews[i] = out.duplicate();
+				}
+				view.limit(end);
+				view.position(start);
+				segments[count++] = view;
+				start = end;
+			}
+			if (i < appendedCount) {
+				segments[count++] = appended[i];
+			}
+		}
+		try {
+			for (int first = 0; first < count;) {
+				gathering.write(segments, first, count - first);
+				while (first < count && !segments[first].hasRemaining()) {
+					++first;
+				}
+			}
+		}
+		finally {
+			out.clear();
+			for (int i = 0; i < appendedCount; ++i) {
+				appended[i] = null;
+			}
+			for (int i = 0; i < count; ++i) {
+				segments[i] = null;
+			}
+			appendedCount = 0;
+		}
+	}
+
+	/**
+	 * Drop everything encoded or appended since the last {@link #flush()}, and anything held back. Listeners waiting
+	 * for held back output are told it failed.
+	 */
+	public void discard() {
+		clear();
+		if (!held.isEmpty()) {
+			fail(new IOException("Connection closed before the held back replies were written"));
+		}
+	}
+
+	private void clear() {
+		out.clear();
+		for (int i = 0; i < appendedCount; ++i) {
+			appended[i] = null;
+		}
+		appendedCount = 0;
+	}
+
+	/**
+	 * @return The number of bytes encoded or appended but not yet flushed.
+	 */
+	public int pending() {
+		int pending = out.position();
+		for (int i = 0; i < appendedCount; ++i) {
+			pending += appended[i].remaining();
+		}
+		return pending;
+	}
+
+	/**
+	 * Start a packet. Packets larger than the buffer are flushed in pieces as they are written.
+	 */
+	private void begin(int command, int length) throws IOException {
+		room(Math.min(4 + 1 + length, out.capacity()));
+		out.putInt(length + 1);
+		out.put((byte) command);
+	}
+
+	private void room(int length) throws IOException {
+		if (out.remaining() < length) {
+			flush();
+		}
+	}
+
+	private void putByte(int b) throws IOException {
+		room(1);
+		out.put((byte) b);
+	}
+
+	private void putInt(int i) throws IOException {
+		room(4);
+		out.putInt(i);
+	}
+
+	private void putCopy(ByteBuffer src) throws IOException {
+		int position = src.position();
+		int limit = src.limit();
+		while (position < limit) {
+			room(1);
+			int length = Math.min(out.remaining(), limit - position);
+			if (src.hasArray()) {
+				out.put(src.array(), src.arrayOffset() + position, length);
+			}
+			else {
+				for (int i = position; i < position + length; ++i) {
+					out.put(src.get(i));
+				}
+			}
+			position += length;
+		}
+	}
+
+	/**
+	 * @param s The string.
+	 * @return The number of bytes {@link #putUtf8} will write for the string.
+	 */
+	static int utf8Length(CharSequence s) {
+		int length = 0;
+		for (int i = 0, n = s.length(); i < n; ++i) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				length++;
+			}
+			else if (c < 0x800) {
+				length += 2;
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				++i;
+			}
+			else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+				length++;
+			}
+			else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * UTF-8 encode a string into the output buffer. Unpaired surrogates are written as '?', like
+	 * {@link String#getBytes(java.nio.charset.Charset)} does.
+	 */
+	private void putUtf8(CharSequence s) throws IOException {
+		for (int i = 0, n = s.length(); i < n; ++i) {
+			room(4);
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				out.put((byte) c);
+			}
+			else if (c < 0x800) {
+				out.put((byte) (0xC0 | (c >> 6)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				out.put((byte) (0xF0 | (cp >> 18)));
+				out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (cp & 0x3F)));
+			}
+			else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+				out.put((byte) '?');
+			}
+			else {
+				out.put((byte) (0xE0 | (c >> 12)));
+				out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	/**
+	 * Output held back on a congested {@link IMilterStreamingChannel}.
+	 */
+	private abstract class Held {
+
+		/**
+		 * Write as much as the channel takes without congestion.
+		 *
+		 * @return true once all of it is written.
+		 */
+		abstract boolean write() throws IOException;
+
+		void failed(IOException cause) {
+			// Nobody to tell.
+		}
+	}
+
+	/**
+	 * Copies of packets encoded after a held back body.
+	 */
+	private final class Packets extends Held {
+
+		private final ByteBuffer packets;
+
+		Packets(ByteBuffer packets) {
+			this.packets = packets;
+		}
+
+		@Override
+		boolean write() throws IOException {
+			streaming.write(packets);
+			return !packets.hasRemaining();
+		}
+	}
+
+	/**
+	 * A body transferred from a file, packet by packet.
+	 */
+	private final class FileBody extends Held {
+
+		private final FileChannel file;
+		private long position;
+		private long chunkEnd;
+		private final long end;
+
+		FileBody(FileChannel file, long position, long end) {
+			this.file = file;
+			this.position = position;
+			this.chunkEnd = position;
+			this.end = end;
+		}
+
+		@Override
+		boolean write() throws IOException {
+			while (position < end && !streaming.isCongested()) {
+				if (position == chunkEnd) {
+					int length = (int) Math.min(MilterConstants.MILTER_CHUNK_SIZE, end - position);
+					begin(MilterConstants.SMFIR_REPLBODY, length);
+					writeOut();
+					chunkEnd = position + length;
+					continue;
+				}
+				long transferred = streaming.transferFrom(file, position, chunkEnd - position);
+				if (transferred <= 0 && position >= file.size()) {
+					throw new EOFException("File truncated while writing body");
+				}
+				position += transferred;
+			}
+			return position == end;
+		}
+	}
+
+	/**
+	 * A body read from a channel, packet by packet.
+	 */
+	private final class ChannelBody extends Held {
+
+		private final ReadableByteChannel body;
+
+		ChannelBody(ReadableByteChannel body) {
+			this.body = body;
+		}
+
+		@Override
+		boolean write() throws IOException {
+			while (!streaming.isCongested()) {
+				boolean more = readPacket(body);
+				writeOut();
+				if (!more) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * A listener to notify once the output ahead of it is written.
+	 */
+	private final class Notification extends Held {
+
+		private final IMilterWriteListener listener;
+
+		Notification(IMilterWriteListener listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		boolean write() {
+			listener.written();
+			return true;
+		}
+
+		@Override
+		void failed(IOException cause) {
+			listener.failed(cause);
+		}
+	}
+}
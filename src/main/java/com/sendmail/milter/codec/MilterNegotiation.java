@@ -0,0 +1,137 @@
+package com.sendmail.milter.codec;
+
+import com.sendmail.milter.IMilterHandler;
+import com.sendmail.milter.IMilterStatus;
+import com.sendmail.milter.MilterConstants;
+import com.sendmail.milter.MilterHandlerIntrospector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The outcome of option negotiation between a handler and the MTA, with its reply packet already encoded.
+ */
+public final class MilterNegotiation {
+
+	static final int NR_FLAGS = MilterConstants.SMFIP_NR_CONN | MilterConstants.SMFIP_NR_HELO
+			| MilterConstants.SMFIP_NR_MAIL | MilterConstants.SMFIP_NR_RCPT | MilterConstants.SMFIP_NR_DATA
+			| MilterConstants.SMFIP_NR_UNKN | MilterConstants.SMFIP_NR_EOH | MilterConstants.SMFIP_NR_BODY
+			| MilterConstants.SMFIP_NR_HDR;
+
+	private final boolean accepted;
+	private final int version;
+	private final int mtaProtocolFlags;
+	private final int actionFlags;
+	private final int protocolFlags;
+	private final ByteBuffer reply;
+
+	private MilterNegotiation(boolean accepted, int version, int mtaProtocolFlags, int actionFlags, int protocolFlags,
+			ByteBuffer reply) {
+		this.accepted = accepted;
+		this.version = version;
+		this.mtaProtocolFlags = mtaProtocolFlags;
+		this.actionFlags = actionFlags;
+		this.protocolFlags = protocolFlags;
+		this.reply = reply;
+	}
+
+	/**
+	 * Negotiate with a handler, calling {@link IMilterHandler#negotiateVersion}, {@link IMilterHandler#getActionFlags},
+	 * {@link IMilterHandler#getProtocolFlags} and {@link IMilterHandler#getMacros} as described there. The protocol
+	 * flags also get those {@link MilterHandlerIntrospector} derives for the handler.
+	 *
+	 * @param handler The handler.
+	 * @param mtaVersion Milter protocol version of the MTA.
+	 * @param mtaActions Action flags supported by the MTA.
+	 * @param mtaProtocol Protocol flags supported by the MTA.
+	 * @return The negotiation result.
+	 */
+	public static MilterNegotiation negotiate(IMilterHandler handler, int mtaVersion, int mtaActions, int mtaProtocol) {
+		int version = handler.negotiateVersion(mtaVersion, mtaActions, mtaProtocol);
+		int actions = handler.getActionFlags();
+		// Events the handler ignores or only observes are left out or go unanswered where the MTA can do so.
+		int protocol = MilterHandlerIntrospector.protocolFlags(handler, mtaProtocol);
+		Map<Integer, Set<String>> requested = handler.getMacros();
+		if (version < 2 || (actions & ~mtaActions) != 0 || (protocol & ~NR_FLAGS & ~mtaProtocol) != 0) {
+			return new MilterNegotiation(false, 0, mtaProtocol, 0, 0, encode(null, 0, 0, 0, null));
+		}
+		// No-reply flags the MTA lacks are emulated by replying anyway.
+		protocol &= mtaProtocol;
+		if (requested != null && !requested.isEmpty() && (mtaActions & MilterConstants.SMFIF_SETSYMLIST) != 0) {
+			actions |= MilterConstants.SMFIF_SETSYMLIST;
+		}
+		else {
+			requested = null;
+		}
+		version = Math.min(version, mtaVersion);
+		return new MilterNegotiation(true, version, mtaProtocol, actions, protocol,
+				encode(IMilterStatus.SMFIS_CONTINUE, version, actions, protocol, requested));
+	}
+
+	private static ByteBuffer encode(IMilterStatus accepted, int version, int actions, int protocol,
+			Map<Integer, Set<String>> macros) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		MilterEncoder encoder = new MilterEncoder(ByteBuffer.allocate(256), Channels.newChannel(bytes));
+		try {
+			if (accepted == null) {
+				encoder.writeStatus(IMilterStatus.SMFIS_TEMPFAIL);
+			}
+			else {
+				encoder.writeNegotiation(version, actions, protocol, macros);
+			}
+			encoder.flush();
+		}
+		catch (IOException ex) {
+			throw new IllegalStateException("Writing to memory failed", ex);
+		}
+		return ByteBuffer.wrap(bytes.toByteArray()).asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return false if the handler requires something the MTA does not support, and the connection must be refused.
+	 */
+	public boolean isAccepted() {
+		return accepted;
+	}
+
+	/**
+	 * @return The negotiated protocol version.
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return The protocol flags the MTA offered.
+	 */
+	public int getMtaProtocolFlags() {
+		return mtaProtocolFlags;
+	}
+
+	/**
+	 * @return The action flags the handler will use.
+	 */
+	public int getActionFlags() {
+		return actionFlags;
+	}
+
+	/**
+	 * @return The protocol flags agreed with the MTA.
+	 */
+	public int getProtocolFlags() {
+		return protocolFlags;
+	}
+
+	/**
+	 * @return A new read-only buffer over the encoded reply: the negotiation packet, or a temporary failure if the
+	 * negotiation was refused.
+	 */
+	public ByteBuffer getReply() {
+		return reply.duplicate();
+	}
+}
@@ -0,0 +1,74 @@
+package com.sendmail.milter.codec;
+
+import com.sendmail.milter.IMilterHandler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers the negotiation results of a family of handlers per MTA capability set, so each further connection from
+ * an MTA with the same capabilities skips the negotiation callbacks and reuses the encoded reply.
+ * <p>
+ * Only share a cache between handlers whose negotiation depends on nothing but the MTA's version and flags, and which
+ * do not need {@link IMilterHandler#negotiateVersion} to be called on every instance.
+ */
+public final class MilterNegotiationCache {
+
+	private final ConcurrentMap<Key, MilterNegotiation> results = new ConcurrentHashMap<Key, MilterNegotiation>();
+
+	/**
+	 * Look up the result for the MTA capabilities, negotiating with the handler if there is none yet.
+	 *
+	 * @param handler The handler to negotiate with on a miss.
+	 * @param mtaVersion Milter protocol version of the MTA.
+	 * @param mtaActions Action flags supported by the MTA.
+	 * @param mtaProtocol Protocol flags supported by the MTA.
+	 * @return The negotiation result.
+	 */
+	public MilterNegotiation get(IMilterHandler handler, int mtaVersion, int mtaActions, int mtaProtocol) {
+		Key key = new Key(mtaVersion, mtaActions, mtaProtocol);
+		MilterNegotiation result = results.get(key);
+		if (result == null) {
+			result = MilterNegotiation.negotiate(handler, mtaVersion, mtaActions, mtaProtocol);
+			MilterNegotiation raced = results.putIfAbsent(key, result);
+			if (raced != null) {
+				result = raced;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Forget all results, for example after the handlers' configuration changed.
+	 */
+	public void clear() {
+		results.clear();
+	}
+
+	private static final class Key {
+
+		private final int version;
+		private final int actions;
+		private final int protocol;
+
+		Key(int version, int actions, int protocol) {
+			this.version = version;
+			this.actions = actions;
+			this.protocol = protocol;
+		}
+
+		@Override
+		public int hashCode() {
+			return (version * 31 + actions) * 31 + protocol;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return version == other.version && actions == other.actions && protocol == other.protocol;
+		}
+	}
+}
@@ -0,0 +1,6 @@
+/**
+ * Streaming encoder and decoder for the milter wire protocol. A {@link com.sendmail.milter.codec.MilterDecoder} frames
+ * the length-prefixed packets sent by the MTA and dispatches them to an {@link com.sendmail.milter.IMilterHandler},
+ * writing the replies through a {@link com.sendmail.milter.codec.MilterEncoder}.
+ */
+package com.sendmail.milter.codec;
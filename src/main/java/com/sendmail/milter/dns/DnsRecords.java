@@ -0,0 +1,67 @@
+package com.sendmail.milter.dns;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+/**
+ * Queries through the DNS provider of JNDI, to the name servers the system is configured with. Unlike the resolver
+ * behind {@link java.net.InetAddress}, it tells a name that does not exist from a server that failed or did not answer.
+ */
+final class DnsRecords {
+
+	private DnsRecords() {
+		throw new IllegalStateException("You have no class!");
+	}
+
+	/**
+	 * @param name The name to look up.
+	 * @param type The record type, such as <code>A</code> or <code>PTR</code>.
+	 * @return The records of the type, empty if the name does not exist or has none.
+	 * @throws IOException if a name server failed or did not answer.
+	 */
+	static List<String> lookup(String name, String type) throws IOException {
+		try {
+			DirContext context = new InitialDirContext(environment());
+			try {
+				Attribute records = context.getAttributes(name, new String[] { type }).get(type);
+				if (records == null) {
+					return Collections.emptyList();
+				}
+				List<String> values = new ArrayList<String>(records.size());
+				NamingEnumeration<?> all = records.getAll();
+				while (all.hasMore()) {
+					values.add(String.valueOf(all.next()));
+				}
+				return values;
+			}
+			finally {
+				context.close();
+			}
+		}
+		catch (NameNotFoundException ex) {
+			return Collections.emptyList();
+		}
+		catch (NamingException ex) {
+			throw new IOException("Looking up " + type + " records of " + name + " failed: " + ex.getMessage(), ex);
+		}
+	}
+
+	private static Hashtable<String, String> environment() {
+		Hashtable<String, String> environment = new Hashtable<String, String>();
+		environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.dns.DnsContextFactory");
+		environment.put(Context.PROVIDER_URL, "dns:");
+		return environment;
+	}
+}
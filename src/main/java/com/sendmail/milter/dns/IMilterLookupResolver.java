@@ -0,0 +1,22 @@
+package com.sendmail.milter.dns;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+
+/**
+ * Looks something up about a client address for a {@link MilterLookupCache}, such as its host name or its listing in a
+ * DNSBL zone. Runs on the thread the cache runs lookups on, and may block.
+ *
+ * @param <V> The type of the values found.
+ */
+public interface IMilterLookupResolver<V> {
+
+	/**
+	 * @param address The client address.
+	 * @param zone The zone to look in, as given to the cache.
+	 * @return The value found or the absence of one, with how long it may be cached.
+	 * @throws IOException if the lookup failed, say it timed out, rather than finding nothing.
+	 */
+	public MilterLookupResult<V> resolve(InetAddress address, String zone) throws IOException;
+}
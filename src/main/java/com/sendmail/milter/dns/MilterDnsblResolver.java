@@ -0,0 +1,79 @@
+package com.sendmail.milter.dns;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks client addresses up in DNSBL zones, the way RBLs are queried: the octets of an IPv4 address, or the nibbles of
+ * an IPv6 address, in reverse order, prepended to the zone. A listing is found as the addresses it resolves to, such as
+ * <code>127.0.0.2</code>, which tell why the client is listed.
+ * <p>
+ * The lookups go through the DNS provider of JNDI, to the name servers the system is configured with. Unlike the
+ * resolver behind {@link InetAddress}, it tells a name that does not exist from a server that failed or did not answer:
+ * only the former means the client is not listed, while the latter fails the lookup, so the cache keeps it for its
+ * {@link MilterLookupCache#setFailureTtl failure TTL} only. It does not tell the TTL of the records either, so listings
+ * and their absence are cached for fixed times.
+ */
+public final class MilterDnsblResolver implements IMilterLookupResolver<InetAddress[]> {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final long listedTtl;
+	private final long unlistedTtl;
+
+	/**
+	 * Create a resolver leaving the TTLs to the cache.
+	 */
+	public MilterDnsblResolver() {
+		this.listedTtl = -1;
+		this.unlistedTtl = -1;
+	}
+
+	/**
+	 * @param listedTtl How long a listing is cached.
+	 * @param unlistedTtl How long the absence of a listing is cached.
+	 * @param unit The unit of the TTLs.
+	 */
+	public MilterDnsblResolver(long listedTtl, long unlistedTtl, TimeUnit unit) {
+		this.listedTtl = unit.toNanos(listedTtl);
+		this.unlistedTtl = unit.toNanos(unlistedTtl);
+	}
+
+	@Override
+	public MilterLookupResult<InetAddress[]> resolve(InetAddress address, String zone) throws IOException {
+		List<String> records = DnsRecords.lookup(queryName(address, zone), "A");
+		if (records.isEmpty()) {
+			return unlistedTtl < 0 ? MilterLookupResult.<InetAddress[]>notFound()
+					: MilterLookupResult.<InetAddress[]>notFound(unlistedTtl, TimeUnit.NANOSECONDS);
+		}
+		InetAddress[] listing = new InetAddress[records.size()];
+		for (int i = 0; i < listing.length; ++i) {
+			// A literal address, so nothing is looked up.
+			listing[i] = InetAddress.getByName(records.get(i));
+		}
+		return MilterLookupResult.found(listing, listedTtl < 0 ? Long.MAX_VALUE : listedTtl, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @param address The client address.
+	 * @param zone The DNSBL zone, such as <code>zen.spamhaus.org</code>.
+	 * @return The name to look up for the address in the zone.
+	 */
+	public static String queryName(InetAddress address, String zone) {
+		byte[] bytes = address.getAddress();
+		StringBuilder name = new StringBuilder(bytes.length * 4 + zone.length() + 1);
+		for (int i = bytes.length - 1; i >= 0; --i) {
+			int b = bytes[i] & 0xFF;
+			if (bytes.length == 4) {
+				name.append(b).append('.');
+			}
+			else {
+				name.append(HEX[b & 0xF]).append('.').append(HEX[b >>> 4]).append('.');
+			}
+		}
+		return name.append(zone).toString();
+	}
+}
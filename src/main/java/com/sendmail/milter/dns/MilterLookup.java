@@ -0,0 +1,132 @@
+package com.sendmail.milter.dns;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A lookup of a {@link MilterLookupCache}, in flight or complete. Every session asking for the same address and zone
+ * while it is in flight or cached gets the same instance.
+ * <p>
+ * Blocking handlers call {@link #get(long, TimeUnit)}. Asynchronous handlers register a listener with
+ * {@link #onComplete(Runnable)} and complete their {@link com.sendmail.milter.MilterStatusFuture} from it.
+ *
+ * @param <V> The type of the value.
+ */
+public final class MilterLookup<V> {
+
+	private boolean done;
+	private V value;
+	private boolean found;
+	private IOException failure;
+	private long expires;
+	private List<Runnable> listeners;
+
+	MilterLookup() {
+	}
+
+	/**
+	 * @return false if already complete.
+	 */
+	boolean complete(MilterLookupResult<V> result, IOException failure, long expires) {
+		List<Runnable> notify;
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			this.done = true;
+			this.value = result == null ? null : result.getValue();
+			this.found = result != null && result.isFound();
+			this.failure = failure;
+			this.expires = expires;
+			notify = listeners;
+			listeners = null;
+			notifyAll();
+		}
+		if (notify != null) {
+			for (Runnable listener : notify) {
+				listener.run();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if complete and older than its TTL.
+	 */
+	synchronized boolean isExpired(long now) {
+		return done && now - expires >= 0;
+	}
+
+	/**
+	 * @return true once complete.
+	 */
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * @return true if complete and a value was found.
+	 */
+	public synchronized boolean isFound() {
+		return found;
+	}
+
+	/**
+	 * @return The value found, or null if none was, the lookup failed or it is still in flight.
+	 */
+	public synchronized V getValue() {
+		return value;
+	}
+
+	/**
+	 * @return The failure, or null.
+	 */
+	public synchronized IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Run a listener once the lookup completes: on the resolving thread, or right away on the calling thread if it
+	 * already has.
+	 *
+	 * @param listener The listener. It should only hand the work over to another thread.
+	 */
+	public void onComplete(Runnable listener) {
+		synchronized (this) {
+			if (!done) {
+				if (listeners == null) {
+					listeners = new ArrayList<Runnable>(1);
+				}
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	/**
+	 * Wait for the lookup to complete.
+	 *
+	 * @param timeout The longest time to wait.
+	 * @param unit The unit of the timeout.
+	 * @return The value found, or null if none was.
+	 * @throws IOException if the lookup failed or did not complete in time.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public synchronized V get(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (long left = unit.toNanos(timeout); !done && left > 0; left = deadline - System.nanoTime()) {
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		if (!done) {
+			throw new IOException("Lookup still in flight after " + unit.toMillis(timeout) + " ms");
+		}
+		if (failure != null) {
+			throw new IOException(failure.getMessage(), failure);
+		}
+		return value;
+	}
+}
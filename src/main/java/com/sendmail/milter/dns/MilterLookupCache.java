@@ -0,0 +1,327 @@
+package com.sendmail.milter.dns;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches what a {@link IMilterLookupResolver} finds about client addresses, shared by every session of a filter, so a
+ * client opening connection after connection is only looked up once per TTL.
+ * <p>
+ * Entries are kept for the TTL the resolver gives, bounded by {@link #setMaxTtl}. Finding nothing is cached too, for
+ * the {@link #setNegativeTtl negative TTL} unless the resolver gives one, and failures for the
+ * {@link #setFailureTtl failure TTL}, so a zone that stops answering is not asked again by every session. Sessions
+ * asking for a lookup still in flight wait for the same one instead of starting their own. Past the maximum number of
+ * entries the least recently used are dropped.
+ * <p>
+ * The entries are spread over segments, each with a lock of its own, so sessions on different threads rarely wait for
+ * each other. The resolver is never called with a segment locked.
+ *
+ * @param <V> The type of the values found.
+ */
+public final class MilterLookupCache<V> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MilterLookupCache.class);
+
+	private final IMilterLookupResolver<V> resolver;
+	private final Executor executor;
+	private final Segment<V>[] segments;
+	private final int mask;
+
+	private volatile long negativeTtl = TimeUnit.MINUTES.toNanos(5);
+	private volatile long failureTtl = TimeUnit.SECONDS.toNanos(10);
+	private volatile long maxTtl = TimeUnit.HOURS.toNanos(1);
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * Create a cache resolving on the thread of the first session to ask.
+	 *
+	 * @param resolver The resolver.
+	 * @param maxEntries The most entries to keep.
+	 */
+	public MilterLookupCache(IMilterLookupResolver<V> resolver, int maxEntries) {
+		this(resolver, maxEntries, null);
+	}
+
+	/**
+	 * @param resolver The resolver.
+	 * @param maxEntries The most entries to keep.
+	 * @param executor The executor to resolve on, so {@link #lookup} does not block, or null to resolve on the thread
+	 * of the first session to ask.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public MilterLookupCache(IMilterLookupResolver<V> resolver, int maxEntries, Executor executor) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("Cache must hold at least one entry: " + maxEntries);
+		}
+		this.resolver = resolver;
+		this.executor = executor;
+		int count = Integer.highestOneBit(Math.min(maxEntries,
+				Math.max(1, Math.min(64, Runtime.getRuntime().availableProcessors() * 2))));
+		this.segments = new Segment[count];
+		for (int i = 0; i < count; ++i) {
+			segments[i] = new Segment<V>((maxEntries + count - 1) / count);
+		}
+		this.mask = count - 1;
+	}
+
+	/**
+	 * @param ttl How long finding nothing is cached when the resolver does not say. Five minutes by default.
+	 * @param unit The unit of <code>ttl</code>.
+	 */
+	public void setNegativeTtl(long ttl, TimeUnit unit) {
+		this.negativeTtl = unit.toNanos(ttl);
+	}
+
+	/**
+	 * @param ttl How long a failed lookup is cached before it is tried again. Ten seconds by default.
+	 * @param unit The unit of <code>ttl</code>.
+	 */
+	public void setFailureTtl(long ttl, TimeUnit unit) {
+		this.failureTtl = unit.toNanos(ttl);
+	}
+
+	/**
+	 * @param ttl The longest any entry is cached, and how long values are cached when the resolver does not say. One
+	 * hour by default.
+	 * @param unit The unit of <code>ttl</code>.
+	 */
+	public void setMaxTtl(long ttl, TimeUnit unit) {
+		this.maxTtl = unit.toNanos(ttl);
+	}
+
+	/**
+	 * Look an address up, or join the lookup of it already cached or in flight.
+	 *
+	 * @param address The client address.
+	 * @param zone The zone to look in, passed to the resolver.
+	 * @return The lookup. Without an executor it is complete, unless another thread is resolving it.
+	 */
+	public MilterLookup<V> lookup(InetAddress address, String zone) {
+		Key key = new Key(address, zone);
+		Segment<V> segment = segments[key.hashCode() & mask];
+		MilterLookup<V> lookup;
+		synchronized (segment) {
+			lookup = segment.get(key);
+			if (lookup != null) {
+				if (!lookup.isDone()) {
+					coalesced.incrementAndGet();
+					return lookup;
+				}
+				if (!lookup.isExpired(System.nanoTime())) {
+					hits.incrementAndGet();
+					return lookup;
+				}
+			}
+			lookup = new MilterLookup<V>();
+			segment.put(key, lookup);
+		}
+		misses.incrementAndGet();
+		start(segment, key, lookup);
+		return lookup;
+	}
+
+	/**
+	 * Look an address up and wait for the result.
+	 *
+	 * @param address The client address.
+	 * @param zone The zone to look in, passed to the resolver.
+	 * @param timeout The longest time to wait.
+	 * @param unit The unit of the timeout.
+	 * @return The value found, or null if none was.
+	 * @throws IOException if the lookup failed, now or within the failure TTL, or did not complete in time.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public V get(InetAddress address, String zone, long timeout, TimeUnit unit)
+			throws IOException, InterruptedException {
+		return lookup(address, zone).get(timeout, unit);
+	}
+
+	/**
+	 * Drop the entry of an address, so it is looked up again. A lookup in flight still completes for those waiting.
+	 *
+	 * @param address The client address.
+	 * @param zone The zone.
+	 */
+	public void invalidate(InetAddress address, String zone) {
+		Key key = new Key(address, zone);
+		Segment<V> segment = segments[key.hashCode() & mask];
+		synchronized (segment) {
+			segment.remove(key);
+		}
+	}
+
+	/**
+	 * Drop every entry.
+	 */
+	public void clear() {
+		for (Segment<V> segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return The number of entries, including those expired but not yet replaced or evicted.
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment<V> segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return How many lookups were answered from a completed entry.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return How many lookups called the resolver.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return How many lookups joined one in flight.
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	private void start(final Segment<V> segment, final Key key, final MilterLookup<V> lookup) {
+		if (executor == null) {
+			resolve(segment, key, lookup);
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					resolve(segment, key, lookup);
+				}
+			});
+		}
+		catch (RejectedExecutionException ex) {
+			complete(segment, key, lookup, null, new IOException("Lookup rejected by the executor", ex));
+		}
+	}
+
+	private void resolve(Segment<V> segment, Key key, MilterLookup<V> lookup) {
+		MilterLookupResult<V> result = null;
+		IOException failure = null;
+		try {
+			result = resolver.resolve(key.address, key.zone);
+			if (result == null) {
+				failure = new IOException("Resolver returned no result");
+			}
+		}
+		catch (IOException ex) {
+			failure = ex;
+		}
+		catch (RuntimeException ex) {
+			LOG.error("Resolver failed looking up {} in {}", key.address.getHostAddress(), key.zone, ex);
+			failure = new IOException(ex.toString(), ex);
+		}
+		catch (Error ex) {
+			// Still complete the lookup, or those waiting for it would wait on, and it would never be tried again.
+			LOG.error("Resolver failed looking up {} in {}", key.address.getHostAddress(), key.zone, ex);
+			complete(segment, key, lookup, null, new IOException(ex.toString(), ex));
+			throw ex;
+		}
+		complete(segment, key, lookup, failure == null ? result : null, failure);
+	}
+
+	private void complete(Segment<V> segment, Key key, MilterLookup<V> lookup, MilterLookupResult<V> result,
+			IOException failure) {
+		long ttl;
+		if (failure != null) {
+			ttl = failureTtl;
+		}
+		else if (result.getTtlNanos() >= 0) {
+			ttl = result.getTtlNanos();
+		}
+		else {
+			ttl = result.isFound() ? maxTtl : negativeTtl;
+		}
+		ttl = Math.min(ttl, maxTtl);
+		lookup.complete(result, failure, System.nanoTime() + ttl);
+		// Only remove this lookup, not one started after it was invalidated.
+		if (ttl <= 0) {
+			synchronized (segment) {
+				if (segment.get(key) == lookup) {
+					segment.remove(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The entries of one segment, least recently used first.
+	 */
+	private static final class Segment<V> extends LinkedHashMap<Key, MilterLookup<V>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+
+		Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, MilterLookup<V>> eldest) {
+			return size() > capacity;
+		}
+	}
+
+	private static final class Key {
+
+		final InetAddress address;
+		final String zone;
+		private final int hash;
+
+		Key(InetAddress address, String zone) {
+			this.address = address;
+			this.zone = zone == null ? "" : zone;
+			int h = address.hashCode() * 31 + this.zone.hashCode();
+			// Spread the bits, as the segment is picked by the lowest.
+			this.hash = h ^ (h >>> 16) ^ (h >>> 7);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return address.equals(other.address) && zone.equals(other.zone);
+		}
+	}
+}
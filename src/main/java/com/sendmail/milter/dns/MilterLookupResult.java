@@ -0,0 +1,72 @@
+package com.sendmail.milter.dns;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a {@link IMilterLookupResolver} found, and how long it may be cached.
+ *
+ * @param <V> The type of the value.
+ */
+public final class MilterLookupResult<V> {
+
+	private final V value;
+	private final boolean found;
+	private final long ttlNanos;
+
+	private MilterLookupResult(V value, boolean found, long ttlNanos) {
+		this.value = value;
+		this.found = found;
+		this.ttlNanos = ttlNanos;
+	}
+
+	/**
+	 * @param <V> The type of the value.
+	 * @param value The value found.
+	 * @param ttl How long it may be cached, such as the TTL of the DNS records. The cache's maximum TTL still applies.
+	 * @param unit The unit of <code>ttl</code>.
+	 * @return The result.
+	 */
+	public static <V> MilterLookupResult<V> found(V value, long ttl, TimeUnit unit) {
+		return new MilterLookupResult<V>(value, true, Math.max(0, unit.toNanos(ttl)));
+	}
+
+	/**
+	 * @param <V> The type of the value.
+	 * @param ttl How long the absence may be cached, such as the minimum TTL of the zone's SOA record.
+	 * @param unit The unit of <code>ttl</code>.
+	 * @return The result.
+	 */
+	public static <V> MilterLookupResult<V> notFound(long ttl, TimeUnit unit) {
+		return new MilterLookupResult<V>(null, false, Math.max(0, unit.toNanos(ttl)));
+	}
+
+	/**
+	 * @param <V> The type of the value.
+	 * @return The result of finding nothing, cached for the cache's
+	 * {@link MilterLookupCache#setNegativeTtl negative TTL}.
+	 */
+	public static <V> MilterLookupResult<V> notFound() {
+		return new MilterLookupResult<V>(null, false, -1);
+	}
+
+	/**
+	 * @return true if a value was found.
+	 */
+	public boolean isFound() {
+		return found;
+	}
+
+	/**
+	 * @return The value, or null if none was found.
+	 */
+	public V getValue() {
+		return value;
+	}
+
+	/**
+	 * @return How long the result may be cached in nanoseconds, or -1 for the cache's default.
+	 */
+	public long getTtlNanos() {
+		return ttlNanos;
+	}
+}
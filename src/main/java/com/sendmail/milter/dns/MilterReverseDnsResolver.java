@@ -0,0 +1,40 @@
+package com.sendmail.milter.dns;
+
+import java.io.IOException;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks up the host names of client addresses, ignoring the zone. Only a name whose forward lookup gives the address
+ * back is taken as found, so the names found are forward-confirmed. The MTA usually passes the name to
+ * {@link com.sendmail.milter.IMilterHandler#connect} already, so this is for filters that need it for other addresses,
+ * such as those in <code>Received</code> headers.
+ * <p>
+ * The lookups go through the DNS provider of JNDI, as those of {@link MilterDnsblResolver} do, so an address without a
+ * name is told from a name server that failed or did not answer, which fails the lookup. The TTL of the records is not
+ * told, so names and their absence are cached for the times the cache is configured with.
+ */
+public final class MilterReverseDnsResolver implements IMilterLookupResolver<String> {
+
+	@Override
+	public MilterLookupResult<String> resolve(InetAddress address, String zone) throws IOException {
+		byte[] bytes = address.getAddress();
+		boolean ipv4 = address instanceof Inet4Address;
+		String reverse = MilterDnsblResolver.queryName(address, ipv4 ? "in-addr.arpa" : "ip6.arpa");
+		for (String name : DnsRecords.lookup(reverse, "PTR")) {
+			if (name.endsWith(".")) {
+				name = name.substring(0, name.length() - 1);
+			}
+			for (String forward : DnsRecords.lookup(name, ipv4 ? "A" : "AAAA")) {
+				// A literal address, so nothing is looked up.
+				if (Arrays.equals(bytes, InetAddress.getByName(forward).getAddress())) {
+					return MilterLookupResult.found(name, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+				}
+			}
+		}
+		return MilterLookupResult.notFound();
+	}
+}
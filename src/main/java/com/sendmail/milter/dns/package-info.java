@@ -0,0 +1,6 @@
+/**
+ * Lookups about client addresses shared by every session. {@link com.sendmail.milter.dns.MilterLookupCache} caches
+ * what an {@link com.sendmail.milter.dns.IMilterLookupResolver} finds, such as DNSBL listings or host names, with TTLs,
+ * negative caching and a bound on its size, and lets concurrent sessions wait for one lookup of the same address.
+ */
+package com.sendmail.milter.dns;
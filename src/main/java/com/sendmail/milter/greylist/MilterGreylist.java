@@ -0,0 +1,454 @@
+package com.sendmail.milter.greylist;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Greylisting triplets, the client address, envelope sender and recipient, kept outside the heap so millions of them
+ * cost the garbage collector nothing. A triplet seen for the first time is deferred; once the client retries after the
+ * {@link #setDelay delay}, within the {@link #setRetryWindow retry window}, it passes and keeps passing for the
+ * {@link #setLifetime lifetime} after it was last seen. Call it from
+ * {@link com.sendmail.milter.IMilterHandler#envrcpt envrcpt}:
+ *
+ * <pre>
+ * if (greylist.check(hostaddr, sender, argv) &gt; 0) {
+ *     return TEMPFAIL;
+ * }
+ * </pre>
+ * <p>
+ * Triplets are not stored, only a 128 bit hash of them, in open addressed tables with linear probing, spread over
+ * segments with a lock each. Each table is a direct buffer, or a region of a memory mapped file so the triplets outlive
+ * a restart. Expired triplets are never swept all at once: every check removes a couple of expired entries after a
+ * cursor moving round its segment, and an expired entry met while probing is reused.
+ * <p>
+ * A mapped file is written by the operating system as it sees fit, and is only complete once {@link #flush()} or
+ * {@link #close()} returns. Direct buffers count against <code>-XX:MaxDirectMemorySize</code> and are only freed once
+ * collected.
+ */
+public final class MilterGreylist implements Closeable {
+
+	static final byte[] MAGIC = "MILTGREY".getBytes(Charset.forName("US-ASCII"));
+	static final int VERSION = 1;
+
+	/**
+	 * Key, first seen, expiry and passes.
+	 */
+	private static final int SLOT_SIZE = 32;
+	private static final int MAX_SEGMENT_SLOTS = 1 << 25;
+	private static final int MIN_SEGMENT_SLOTS = 1 << 4;
+	private static final int HEADER_ALIGNMENT = 4096;
+	/**
+	 * Slots the sweep cursor moves on each check.
+	 */
+	private static final int SWEEP_STEP = 2;
+	/**
+	 * Slots the sweep cursor moves when a full segment has no expired entry to reuse on the probe sequence.
+	 */
+	private static final int FULL_SWEEP_STEP = 1024;
+	/**
+	 * Times are stored as seconds since the start of 2020, which fit an int until 2088.
+	 */
+	private static final long EPOCH_MILLIS = 1577836800000L;
+	private static final long FNV_PRIME = 0x100000001B3L;
+	private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+	private final Segment[] segments;
+	private final int mask;
+	private final RandomAccessFile file;
+	private final MappedByteBuffer header;
+
+	private volatile int delay = 300;
+	private volatile int retryWindow = 4 * 3600;
+	private volatile int lifetime = 36 * 86400;
+
+	private final AtomicLong overflows = new AtomicLong();
+
+	/**
+	 * Create a greylist in direct buffers, lost when the process exits.
+	 *
+	 * @param capacity The most triplets to hold.
+	 */
+	public MilterGreylist(int capacity) {
+		long slots = slots(capacity);
+		int count = segmentCount(slots);
+		this.segments = new Segment[count];
+		for (int i = 0; i < count; ++i) {
+			segments[i] = new Segment(ByteBuffer.allocateDirect((int) (slots / count * SLOT_SIZE)), null, 0, 0);
+		}
+		this.mask = count - 1;
+		this.file = null;
+		this.header = null;
+	}
+
+	/**
+	 * Create a greylist persisted in a memory mapped file, or open the one already in it. An existing file keeps the
+	 * capacity it was created with.
+	 *
+	 * @param path The file.
+	 * @param capacity The most triplets to hold, if the file is created.
+	 * @throws IOException if the file cannot be mapped or is not a greylist.
+	 */
+	public MilterGreylist(File path, int capacity) throws IOException {
+		this.file = new RandomAccessFile(path, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			int count;
+			int segmentSlots;
+			boolean created = channel.size() == 0;
+			if (created) {
+				long slots = slots(capacity);
+				count = segmentCount(slots);
+				segmentSlots = (int) (slots / count);
+			}
+			else {
+				ByteBuffer prefix = ByteBuffer.allocate(MAGIC.length + 12);
+				channel.read(prefix, 0);
+				prefix.flip();
+				byte[] magic = new byte[MAGIC.length];
+				if (prefix.remaining() < prefix.capacity()) {
+					throw new IOException(path + " is not a greylist");
+				}
+				prefix.get(magic);
+				if (!Arrays.equals(magic, MAGIC)) {
+					throw new IOException(path + " is not a greylist");
+				}
+				int version = prefix.getInt();
+				if (version != VERSION) {
+					throw new IOException("Unsupported greylist version " + version);
+				}
+				count = prefix.getInt();
+				segmentSlots = prefix.getInt();
+				if (Integer.bitCount(count) != 1 || Integer.bitCount(segmentSlots) != 1
+						|| segmentSlots > MAX_SEGMENT_SLOTS) {
+					throw new IOException("Corrupt greylist header in " + path);
+				}
+			}
+			int headerSize = headerSize(count);
+			long segmentSize = (long) segmentSlots * SLOT_SIZE;
+			long size = headerSize + count * segmentSize;
+			if (!created && channel.size() < size) {
+				throw new IOException(path + " is shorter than its header says, " + channel.size() + " < " + size);
+			}
+			this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerSize);
+			if (created) {
+				header.put(MAGIC).putInt(VERSION).putInt(count).putInt(segmentSlots);
+			}
+			this.segments = new Segment[count];
+			for (int i = 0; i < count; ++i) {
+				int sizeOffset = MAGIC.length + 12 + i * 4;
+				MappedByteBuffer table = channel.map(FileChannel.MapMode.READ_WRITE, headerSize + i * segmentSize,
+						segmentSize);
+				segments[i] = new Segment(table, header, sizeOffset, header.getInt(sizeOffset));
+			}
+			this.mask = count - 1;
+		}
+		catch (IOException ex) {
+			file.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * @param delay How long a client must wait before retrying a new triplet. Five minutes by default.
+	 * @param unit The unit of <code>delay</code>.
+	 */
+	public void setDelay(long delay, TimeUnit unit) {
+		this.delay = (int) unit.toSeconds(delay);
+	}
+
+	/**
+	 * @param retryWindow How long a new triplet is kept waiting for the retry, from when it was first seen. Four hours
+	 * by default.
+	 * @param unit The unit of <code>retryWindow</code>.
+	 */
+	public void setRetryWindow(long retryWindow, TimeUnit unit) {
+		this.retryWindow = (int) unit.toSeconds(retryWindow);
+	}
+
+	/**
+	 * @param lifetime How long a triplet that passed keeps passing after it was last seen. 36 days by default.
+	 * @param unit The unit of <code>lifetime</code>.
+	 */
+	public void setLifetime(long lifetime, TimeUnit unit) {
+		this.lifetime = (int) unit.toSeconds(lifetime);
+	}
+
+	/**
+	 * Check a triplet, recording it if it is new.
+	 *
+	 * @param client The client address.
+	 * @param sender The <code>argv</code> of {@link com.sendmail.milter.IMilterHandler#envfrom envfrom}. Only the
+	 * address, the first element, is used, as it is given.
+	 * @param recipient The <code>argv</code> of {@link com.sendmail.milter.IMilterHandler#envrcpt envrcpt}. Only the
+	 * address is used.
+	 * @return 0 if the triplet passes, or how many milliseconds the client has yet to wait. Triplets that cannot be
+	 * recorded because the greylist is full pass.
+	 */
+	public long check(InetAddress client, byte[][] sender, byte[][] recipient) {
+		byte[] address = client.getAddress();
+		byte[] from = sender.length > 0 ? sender[0] : null;
+		byte[] to = recipient.length > 0 ? recipient[0] : null;
+		long hi = hash(hash(hash(0xCBF29CE484222325L, address, FNV_PRIME), from, FNV_PRIME), to, FNV_PRIME);
+		long lo = hash(hash(hash(0x243F6A8885A308D3L, address, GOLDEN), from, GOLDEN), to, GOLDEN);
+		hi = mix(hi);
+		lo = mix(lo);
+		if (hi == 0 && lo == 0) {
+			lo = 1;
+		}
+		int now = (int) ((System.currentTimeMillis() - EPOCH_MILLIS) / 1000);
+		long wait = segments[(int) lo & mask].check(hi, lo, now, delay, retryWindow, lifetime);
+		if (wait < 0) {
+			overflows.incrementAndGet();
+			return 0;
+		}
+		return wait * 1000;
+	}
+
+	/**
+	 * @return The number of triplets held, including those expired but not yet swept.
+	 */
+	public long size() {
+		long size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return The most triplets the greylist holds.
+	 */
+	public long getCapacity() {
+		long capacity = 0;
+		for (Segment segment : segments) {
+			capacity += segment.maxSize;
+		}
+		return capacity;
+	}
+
+	/**
+	 * @return How many new triplets passed because their segment was full.
+	 */
+	public long getOverflowCount() {
+		return overflows.get();
+	}
+
+	/**
+	 * Write the triplets of a file backed greylist out to the file. Does nothing for one in direct buffers.
+	 * <p>
+	 * Checks go on meanwhile, as the segments are not locked while their pages are written, so a triplet checked while
+	 * flushing may or may not be written out by this call.
+	 */
+	public void flush() {
+		if (file == null) {
+			return;
+		}
+		for (Segment segment : segments) {
+			((MappedByteBuffer) segment.table).force();
+		}
+		header.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (file != null) {
+			flush();
+			file.close();
+		}
+	}
+
+	private static long hash(long h, byte[] bytes, long multiplier) {
+		if (bytes != null) {
+			for (byte b : bytes) {
+				h = (h ^ (b & 0xFF)) * multiplier;
+			}
+		}
+		// The length keeps the fields apart, so moving bytes from one to the next changes the hash.
+		return (h ^ (bytes == null ? 0xFFFF : bytes.length)) * multiplier;
+	}
+
+	/**
+	 * The finalizer of MurmurHash3, spreading every bit of the hash over the whole of it.
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		return h ^ (h >>> 33);
+	}
+
+	private static long slots(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Greylist must hold at least one triplet: " + capacity);
+		}
+		// At most three quarters full, so probes stay short.
+		long slots = Math.max(MIN_SEGMENT_SLOTS, (long) capacity * 4 / 3 + 1);
+		return Long.highestOneBit(slots * 2 - 1);
+	}
+
+	private static int segmentCount(long slots) {
+		long count = Integer.highestOneBit(Math.max(1, Math.min(64, Runtime.getRuntime().availableProcessors() * 2)));
+		count = Math.max(count, slots / MAX_SEGMENT_SLOTS);
+		count = Math.min(count, slots / MIN_SEGMENT_SLOTS);
+		if (count > 1 << 16) {
+			throw new IllegalArgumentException("Greylist too large: " + slots + " slots");
+		}
+		return (int) count;
+	}
+
+	private static int headerSize(int count) {
+		int size = MAGIC.length + 12 + count * 4;
+		return (size + HEADER_ALIGNMENT - 1) / HEADER_ALIGNMENT * HEADER_ALIGNMENT;
+	}
+
+	/**
+	 * One open addressed table. A slot holds the two halves of the key, 0 and 0 when empty, the time the triplet was
+	 * first seen, the time it expires and the number of times it passed, times in seconds since {@link #EPOCH_MILLIS}.
+	 */
+	private static final class Segment {
+
+		private final ByteBuffer table;
+		private final ByteBuffer header;
+		private final int sizeOffset;
+		private final int slotMask;
+		private final int maxSize;
+		private int size;
+		private int cursor;
+
+		Segment(ByteBuffer table, ByteBuffer header, int sizeOffset, int size) {
+			this.table = table;
+			this.header = header;
+			this.sizeOffset = sizeOffset;
+			int slots = table.capacity() / SLOT_SIZE;
+			this.slotMask = slots - 1;
+			this.maxSize = slots / 4 * 3;
+			this.size = size;
+		}
+
+		/**
+		 * @return Seconds to wait, 0 to pass, or -1 if full.
+		 */
+		synchronized long check(long hi, long lo, int now, int delay, int retryWindow, int lifetime) {
+			sweep(now, SWEEP_STEP);
+			long wait = probe(hi, lo, now, delay, retryWindow, lifetime);
+			if (wait < 0) {
+				sweep(now, FULL_SWEEP_STEP);
+				wait = probe(hi, lo, now, delay, retryWindow, lifetime);
+			}
+			return wait;
+		}
+
+		private long probe(long hi, long lo, int now, int delay, int retryWindow, int lifetime) {
+			int reusable = -1;
+			int i = (int) hi & slotMask;
+			for (;; i = (i + 1) & slotMask) {
+				int offset = i * SLOT_SIZE;
+				long slotHi = table.getLong(offset);
+				long slotLo = table.getLong(offset + 8);
+				if (slotHi == 0 && slotLo == 0) {
+					break;
+				}
+				boolean expired = table.getInt(offset + 20) - now <= 0;
+				if (slotHi == hi && slotLo == lo) {
+					if (expired) {
+						reusable = i;
+						break;
+					}
+					if (table.getInt(offset + 24) > 0) {
+						table.putInt(offset + 20, now + lifetime);
+						table.putInt(offset + 24, table.getInt(offset + 24) + 1);
+						return 0;
+					}
+					int wait = table.getInt(offset + 16) + delay - now;
+					if (wait > 0) {
+						return wait;
+					}
+					table.putInt(offset + 20, now + lifetime);
+					table.putInt(offset + 24, 1);
+					return 0;
+				}
+				if (expired && reusable < 0) {
+					reusable = i;
+				}
+			}
+			if (reusable < 0) {
+				if (size >= maxSize) {
+					return -1;
+				}
+				reusable = i;
+				resize(size + 1);
+			}
+			int offset = reusable * SLOT_SIZE;
+			table.putLong(offset, hi);
+			table.putLong(offset + 8, lo);
+			table.putInt(offset + 16, now);
+			table.putInt(offset + 20, now + Math.max(retryWindow, delay + 1));
+			table.putInt(offset + 24, 0);
+			return Math.max(1, delay);
+		}
+
+		/**
+		 * Remove the expired triplets among the slots after the cursor.
+		 */
+		private void sweep(int now, int slots) {
+			for (int n = 0; n < slots; ++n) {
+				int offset = cursor * SLOT_SIZE;
+				if ((table.getLong(offset) != 0 || table.getLong(offset + 8) != 0)
+						&& table.getInt(offset + 20) - now <= 0) {
+					// The slot may be refilled from the slots after it, so it is looked at again.
+					remove(cursor);
+				}
+				else {
+					cursor = (cursor + 1) & slotMask;
+				}
+			}
+		}
+
+		/**
+		 * Empty a slot, moving back the triplets after it that would no longer be found past the gap.
+		 */
+		private void remove(int i) {
+			for (int j = (i + 1) & slotMask;; j = (j + 1) & slotMask) {
+				int offset = j * SLOT_SIZE;
+				long slotHi = table.getLong(offset);
+				if (slotHi == 0 && table.getLong(offset + 8) == 0) {
+					break;
+				}
+				int home = (int) slotHi & slotMask;
+				if (((j - home) & slotMask) >= ((j - i) & slotMask)) {
+					for (int k = 0; k < SLOT_SIZE; k += 8) {
+						table.putLong(i * SLOT_SIZE + k, table.getLong(offset + k));
+					}
+					i = j;
+				}
+			}
+			int offset = i * SLOT_SIZE;
+			for (int k = 0; k < SLOT_SIZE; k += 8) {
+				table.putLong(offset + k, 0);
+			}
+			resize(size - 1);
+		}
+
+		private void resize(int size) {
+			this.size = size;
+			if (header != null) {
+				// Each segment writes its own slot of the header, without moving its position.
+				header.putInt(sizeOffset, size);
+			}
+		}
+	}
+}
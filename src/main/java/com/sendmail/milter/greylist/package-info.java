@@ -0,0 +1,5 @@
+/**
+ * Greylisting. {@link com.sendmail.milter.greylist.MilterGreylist} keeps client, sender and recipient triplets outside
+ * the heap, optionally in a memory mapped file, and expires them as it goes.
+ */
+package com.sendmail.milter.greylist;
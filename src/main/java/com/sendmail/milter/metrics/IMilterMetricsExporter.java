@@ -0,0 +1,23 @@
+package com.sendmail.milter.metrics;
+
+/**
+ * Publishes {@link MilterMetrics} to a monitoring system, such as {@link MilterMetricsMBeanExporter} for JMX.
+ */
+public interface IMilterMetricsExporter {
+
+	/**
+	 * Start publishing metrics.
+	 *
+	 * @param name The name to publish them under, usually the filter's.
+	 * @param metrics The metrics.
+	 * @throws IllegalStateException if the metrics cannot be published, such as when the name is taken.
+	 */
+	public void export(String name, MilterMetrics metrics);
+
+	/**
+	 * Stop publishing metrics. Nothing happens if none are published under the name.
+	 *
+	 * @param name The name they were published under.
+	 */
+	public void unexport(String name);
+}
@@ -0,0 +1,132 @@
+package com.sendmail.milter.metrics;
+
+/**
+ * A latency histogram in nanoseconds, recorded without locks. Buckets grow logarithmically with 16 linear steps per
+ * power of two, as in HdrHistogram, so any value is reported within 1/16 of itself while the histogram stays a fixed
+ * array covering up to about 18 minutes. Longer latencies count in the last bucket.
+ */
+public final class MilterLatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final long MAX_VALUE = (1L << 40) - 1;
+	static final int BUCKETS = index(MAX_VALUE) + 1;
+
+	/**
+	 * The buckets, followed by the sum of the recorded values.
+	 */
+	private final StripedCounters counters = new StripedCounters(BUCKETS + 1);
+
+	/**
+	 * Record a latency.
+	 *
+	 * @param nanos The latency in nanoseconds. Negative values count as 0.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counters.add(index(Math.min(nanos, MAX_VALUE)), 1);
+		counters.add(BUCKETS, nanos);
+	}
+
+	/**
+	 * @return The recorded values so far. Recording may go on meanwhile, so the snapshot can miss some.
+	 */
+	public Snapshot getSnapshot() {
+		return new Snapshot(counters.get(0, BUCKETS), counters.get(BUCKETS));
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * @return The highest value counted in the bucket.
+	 */
+	static long highestValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * The recorded values at one point in time.
+	 */
+	public static final class Snapshot {
+
+		private final long[] buckets;
+		private final long count;
+		private final long sum;
+
+		Snapshot(long[] buckets, long sum) {
+			long total = 0;
+			for (long bucket : buckets) {
+				total += bucket;
+			}
+			this.buckets = buckets;
+			this.count = total;
+			this.sum = sum;
+		}
+
+		/**
+		 * @return The number of values.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return The sum of the values in nanoseconds.
+		 */
+		public long getSum() {
+			return sum;
+		}
+
+		/**
+		 * @return The mean in nanoseconds, or 0 if empty.
+		 */
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * @param percentile The percentile, from 0 to 100.
+		 * @return The value in nanoseconds that the percentile of values does not exceed, as the highest value of its
+		 * bucket, or 0 if empty.
+		 */
+		public long getValueAtPercentile(double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * count));
+			long seen = 0;
+			for (int i = 0; i < buckets.length; ++i) {
+				seen += buckets[i];
+				if (seen >= rank) {
+					return highestValue(i);
+				}
+			}
+			return highestValue(buckets.length - 1);
+		}
+
+		/**
+		 * @return The highest value in nanoseconds, as the highest value of its bucket, or 0 if empty.
+		 */
+		public long getMax() {
+			for (int i = buckets.length - 1; i >= 0; --i) {
+				if (buckets[i] != 0) {
+					return highestValue(i);
+				}
+			}
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package com.sendmail.milter.metrics;
+
+import com.sendmail.milter.IMilterHandler;
+import com.sendmail.milter.IMilterStatus;
+import com.sendmail.milter.MilterAsyncHandlerAdapter;
+import com.sendmail.milter.MilterConstants;
+
+/**
+ * Latency histograms per callback, counts of the reply codes returned, and the body bytes seen, for all handlers
+ * {@link #wrap(IMilterHandler) wrapped} with it. Usually one per filter, shared by all its connections; recording
+ * takes no locks and spreads over stripes per thread, so connections on different cores do not contend.
+ * <p>
+ * While {@link #setEnabled(boolean) disabled}, wrapped handlers call through without reading the clock, and
+ * {@link MilterMetricsHandlerFactory} does not wrap new handlers at all.
+ */
+public final class MilterMetrics {
+
+	/**
+	 * The timed callbacks, in protocol order.
+	 */
+	public static final int CONNECT = 0;
+	public static final int HELO = 1;
+	public static final int ENVFROM = 2;
+	public static final int ENVRCPT = 3;
+	public static final int HEADER = 4;
+	public static final int EOH = 5;
+	public static final int DATA = 6;
+	public static final int BODY = 7;
+	public static final int EOM = 8;
+	public static final int UNKNOWN = 9;
+
+	private static final String[] CALLBACKS = {
+		"connect", "helo", "envfrom", "envrcpt", "header", "eoh", "data", "body", "eom", "unknown"
+	};
+
+	/**
+	 * Returned by {@link #start()} while disabled.
+	 */
+	static final long NOT_TIMED = Long.MIN_VALUE;
+
+	/**
+	 * Counters per reply code, indexed by the code's character, followed by the body bytes.
+	 */
+	private static final int BODY_BYTES = 256;
+
+	private final MilterLatencyHistogram[] latencies = new MilterLatencyHistogram[CALLBACKS.length];
+	private final StripedCounters counters = new StripedCounters(BODY_BYTES + 1);
+	private volatile boolean enabled = true;
+
+	/**
+	 * Creates enabled metrics.
+	 */
+	public MilterMetrics() {
+		for (int i = 0; i < latencies.length; ++i) {
+			latencies[i] = new MilterLatencyHistogram();
+		}
+	}
+
+	/**
+	 * @return The number of callbacks timed, {@link #CONNECT} to {@link #UNKNOWN}.
+	 */
+	public static int getCallbackCount() {
+		return CALLBACKS.length;
+	}
+
+	/**
+	 * @param callback One of {@link #CONNECT} to {@link #UNKNOWN}.
+	 * @return The callback's method name.
+	 */
+	public static String getCallbackName(int callback) {
+		return CALLBACKS[callback];
+	}
+
+	/**
+	 * Wrap a handler to record into these metrics, keeping {@link MilterAsyncHandlerAdapter} the outermost so the
+	 * runner still recognizes an asynchronous handler; its callbacks are timed until their futures complete.
+	 *
+	 * @param handler The handler.
+	 * @return The wrapped handler.
+	 */
+	public IMilterHandler wrap(IMilterHandler handler) {
+		if (handler instanceof MilterAsyncHandlerAdapter) {
+			return new MilterAsyncHandlerAdapter(new MilterMetricsAsyncHandler(this, (MilterAsyncHandlerAdapter) handler));
+		}
+		return new MilterMetricsHandler(this, handler);
+	}
+
+	/**
+	 * @return true while recording.
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param enabled Whether to record.
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @param callback One of {@link #CONNECT} to {@link #UNKNOWN}.
+	 * @return The callback's latency histogram.
+	 */
+	public MilterLatencyHistogram getLatency(int callback) {
+		return latencies[callback];
+	}
+
+	/**
+	 * @param code A reply code, such as {@link MilterConstants#SMFIR_REJECT}. Callbacks returning null count as
+	 * {@link MilterConstants#SMFIR_CONTINUE}, and {@link IMilterStatus#SMFIS_SKIP} as {@link MilterConstants#SMFIR_SKIP}.
+	 * @return How often callbacks returned the code.
+	 */
+	public long getStatusCount(int code) {
+		return code < 0 || code >= BODY_BYTES ? 0 : counters.get(code);
+	}
+
+	/**
+	 * @return The body bytes handlers were given.
+	 */
+	public long getBodyBytes() {
+		return counters.get(BODY_BYTES);
+	}
+
+	/**
+	 * @return The time a callback starts, or {@link #NOT_TIMED} while disabled.
+	 */
+	long start() {
+		return enabled ? System.nanoTime() : NOT_TIMED;
+	}
+
+	/**
+	 * Record a callback that returned, unless it was not timed.
+	 */
+	void record(int callback, long start, IMilterStatus status) {
+		if (start == NOT_TIMED) {
+			return;
+		}
+		latencies[callback].record(System.nanoTime() - start);
+		int code;
+		if (status == null) {
+			code = MilterConstants.SMFIR_CONTINUE;
+		}
+		else if (status == IMilterStatus.SMFIS_SKIP) {
+			code = MilterConstants.SMFIR_SKIP;
+		}
+		else {
+			code = status.getCode() & 0xFF;
+		}
+		counters.add(code, 1);
+	}
+
+	void recordBody(long start, int bytes) {
+		if (start != NOT_TIMED) {
+			counters.add(BODY_BYTES, bytes);
+		}
+	}
+}
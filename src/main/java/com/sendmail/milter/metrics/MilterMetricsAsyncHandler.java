@@ -0,0 +1,156 @@
+package com.sendmail.milter.metrics;
+
+import com.sendmail.milter.IMilterActions;
+import com.sendmail.milter.IMilterAsyncHandler;
+import com.sendmail.milter.MilterAsyncHandlerAdapter;
+import com.sendmail.milter.MilterHandlerIntrospector;
+import com.sendmail.milter.MilterMacros;
+import com.sendmail.milter.MilterStatusFuture;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Times the callbacks of an asynchronous handler into {@link MilterMetrics}, until their futures complete.
+ */
+final class MilterMetricsAsyncHandler implements IMilterAsyncHandler {
+
+	private final MilterMetrics metrics;
+	private final MilterAsyncHandlerAdapter adapter;
+	private final IMilterAsyncHandler handler;
+	private int mtaProtocolFlags;
+
+	MilterMetricsAsyncHandler(MilterMetrics metrics, MilterAsyncHandlerAdapter adapter) {
+		this.metrics = metrics;
+		this.adapter = adapter;
+		this.handler = adapter.getHandler();
+	}
+
+	/**
+	 * @return The adapter that served the handler before it was wrapped.
+	 */
+	MilterAsyncHandlerAdapter getAdapter() {
+		return adapter;
+	}
+
+	private MilterStatusFuture record(final int callback, final long start, final MilterStatusFuture future) {
+		if (start == MilterMetrics.NOT_TIMED) {
+			return future;
+		}
+		if (future == null) {
+			metrics.record(callback, start, null);
+		}
+		else if (future.isDone()) {
+			metrics.record(callback, start, future.getStatus());
+		}
+		else {
+			future.onComplete(new Runnable() {
+
+				@Override
+				public void run() {
+					metrics.record(callback, start, future.getStatus());
+				}
+			});
+		}
+		return future;
+	}
+
+	@Override
+	public MilterStatusFuture connect(String hostname, InetAddress hostaddr, MilterMacros macros) {
+		long start = metrics.start();
+		return record(MilterMetrics.CONNECT, start, handler.connect(hostname, hostaddr, macros));
+	}
+
+	@Override
+	public MilterStatusFuture helo(String helohost, MilterMacros macros) {
+		long start = metrics.start();
+		return record(MilterMetrics.HELO, start, handler.helo(helohost, macros));
+	}
+
+	@Override
+	public MilterStatusFuture envfrom(byte[][] argv, MilterMacros macros) {
+		long start = metrics.start();
+		return record(MilterMetrics.ENVFROM, start, handler.envfrom(argv, macros));
+	}
+
+	@Override
+	public MilterStatusFuture envrcpt(byte[][] argv, MilterMacros macros) {
+		long start = metrics.start();
+		return record(MilterMetrics.ENVRCPT, start, handler.envrcpt(argv, macros));
+	}
+
+	@Override
+	public MilterStatusFuture header(byte[] name, byte[] value) {
+		long start = metrics.start();
+		return record(MilterMetrics.HEADER, start, handler.header(name, value));
+	}
+
+	@Override
+	public MilterStatusFuture eoh(IMilterActions eohActions, MilterMacros macros) {
+		long start = metrics.start();
+		return record(MilterMetrics.EOH, start, handler.eoh(eohActions, macros));
+	}
+
+	@Override
+	public MilterStatusFuture data(MilterMacros macros) {
+		long start = metrics.start();
+		return record(MilterMetrics.DATA, start, handler.data(macros));
+	}
+
+	@Override
+	public MilterStatusFuture body(ByteBuffer bodyp) {
+		long start = metrics.start();
+		metrics.recordBody(start, bodyp.remaining());
+		return record(MilterMetrics.BODY, start, handler.body(bodyp));
+	}
+
+	@Override
+	public MilterStatusFuture eom(IMilterActions eomActions, MilterMacros macros) {
+		long start = metrics.start();
+		return record(MilterMetrics.EOM, start, handler.eom(eomActions, macros));
+	}
+
+	@Override
+	public MilterStatusFuture unknown(byte[] command, MilterMacros macros) {
+		long start = metrics.start();
+		return record(MilterMetrics.UNKNOWN, start, handler.unknown(command, macros));
+	}
+
+	@Override
+	public void abort() {
+		handler.abort();
+	}
+
+	@Override
+	public void close() {
+		handler.close();
+	}
+
+	@Override
+	public int getActionFlags() {
+		return handler.getActionFlags();
+	}
+
+	@Override
+	public int getProtocolFlags() {
+		return handler.getProtocolFlags() | (MilterHandlerIntrospector.protocolFlags(handler) & mtaProtocolFlags);
+	}
+
+	@Override
+	public int negotiateVersion(int mtaVersion, int actionFlags, int protocolFlags) {
+		mtaProtocolFlags = protocolFlags;
+		return handler.negotiateVersion(mtaVersion, actionFlags, protocolFlags);
+	}
+
+	@Override
+	public void reset() {
+		handler.reset();
+	}
+
+	@Override
+	public Map<Integer, Set<String>> getMacros() {
+		return handler.getMacros();
+	}
+}
@@ -0,0 +1,224 @@
+package com.sendmail.milter.metrics;
+
+import com.sendmail.milter.IMilterActions;
+import com.sendmail.milter.IMilterBufferHandler;
+import com.sendmail.milter.IMilterHandler;
+import com.sendmail.milter.IMilterMacroHandler;
+import com.sendmail.milter.IMilterStatus;
+import com.sendmail.milter.MilterAsyncHandlerAdapter;
+import com.sendmail.milter.MilterHandlerIntrospector;
+import com.sendmail.milter.MilterMacros;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Times the callbacks of a handler into {@link MilterMetrics}. Passes macros and header buffers on as the handler
+ * takes them, and negotiates the protocol flags the handler would get unwrapped, so wrapping changes nothing else.
+ * Callbacks that throw are not recorded.
+ */
+public final class MilterMetricsHandler implements IMilterMacroHandler, IMilterBufferHandler {
+
+	private final MilterMetrics metrics;
+	private final IMilterHandler handler;
+	private final IMilterMacroHandler macroHandler;
+	private final IMilterBufferHandler bufferHandler;
+	private int mtaProtocolFlags;
+
+	/**
+	 * @param metrics The metrics to record into.
+	 * @param handler The handler to time. Asynchronous handlers are wrapped by {@link MilterMetrics#wrap} instead.
+	 * @throws IllegalArgumentException if the handler is a {@link MilterAsyncHandlerAdapter}.
+	 */
+	public MilterMetricsHandler(MilterMetrics metrics, IMilterHandler handler) {
+		if (handler instanceof MilterAsyncHandlerAdapter) {
+			throw new IllegalArgumentException("Asynchronous handlers are wrapped by MilterMetrics.wrap");
+		}
+		this.metrics = metrics;
+		this.handler = handler;
+		this.macroHandler = handler instanceof IMilterMacroHandler ? (IMilterMacroHandler) handler : null;
+		this.bufferHandler = handler instanceof IMilterBufferHandler ? (IMilterBufferHandler) handler : null;
+	}
+
+	/**
+	 * @return The handler timed.
+	 */
+	public IMilterHandler getHandler() {
+		return handler;
+	}
+
+	private IMilterStatus record(int callback, long start, IMilterStatus status) {
+		metrics.record(callback, start, status);
+		return status;
+	}
+
+	@Override
+	public IMilterStatus connectMacros(String hostname, InetAddress hostaddr, MilterMacros macros) {
+		long start = metrics.start();
+		return record(MilterMetrics.CONNECT, start, macroHandler != null
+				? macroHandler.connectMacros(hostname, hostaddr, macros)
+				: handler.connect(hostname, hostaddr, macros.toProperties()));
+	}
+
+	@Override
+	public IMilterStatus connect(String hostname, InetAddress hostaddr, Properties properties) {
+		long start = metrics.start();
+		return record(MilterMetrics.CONNECT, start, handler.connect(hostname, hostaddr, properties));
+	}
+
+	@Override
+	public IMilterStatus heloMacros(String helohost, MilterMacros macros) {
+		long start = metrics.start();
+		return record(MilterMetrics.HELO, start, macroHandler != null ? macroHandler.heloMacros(helohost, macros)
+				: handler.helo(helohost, macros.toProperties()));
+	}
+
+	@Override
+	public IMilterStatus helo(String helohost, Properties properties) {
+		long start = metrics.start();
+		return record(MilterMetrics.HELO, start, handler.helo(helohost, properties));
+	}
+
+	@Override
+	public IMilterStatus envfromMacros(byte[][] argv, MilterMacros macros) {
+		long start = metrics.start();
+		return record(MilterMetrics.ENVFROM, start, macroHandler != null ? macroHandler.envfromMacros(argv, macros)
+				: handler.envfrom(argv, macros.toProperties()));
+	}
+
+	@Override
+	public IMilterStatus envfrom(byte[][] argv, Properties properties) {
+		long start = metrics.start();
+		return record(MilterMetrics.ENVFROM, start, handler.envfrom(argv, properties));
+	}
+
+	@Override
+	public IMilterStatus envrcptMacros(byte[][] argv, MilterMacros macros) {
+		long start = metrics.start();
+		return record(MilterMetrics.ENVRCPT, start, macroHandler != null ? macroHandler.envrcptMacros(argv, macros)
+				: handler.envrcpt(argv, macros.toProperties()));
+	}
+
+	@Override
+	public IMilterStatus envrcpt(byte[][] argv, Properties properties) {
+		long start = metrics.start();
+		return record(MilterMetrics.ENVRCPT, start, handler.envrcpt(argv, properties));
+	}
+
+	@Override
+	public IMilterStatus headerBuffer(ByteBuffer name, ByteBuffer value) {
+		long start = metrics.start();
+		if (bufferHandler != null) {
+			return record(MilterMetrics.HEADER, start, bufferHandler.headerBuffer(name, value));
+		}
+		byte[] nameBytes = new byte[name.remaining()];
+		byte[] valueBytes = new byte[value.remaining()];
+		name.duplicate().get(nameBytes);
+		value.duplicate().get(valueBytes);
+		return record(MilterMetrics.HEADER, start, handler.header(nameBytes, valueBytes));
+	}
+
+	@Override
+	public IMilterStatus header(byte[] name, byte[] value) {
+		long start = metrics.start();
+		return record(MilterMetrics.HEADER, start, handler.header(name, value));
+	}
+
+	@Override
+	public IMilterStatus eohMacros(IMilterActions eohActions, MilterMacros macros) {
+		long start = metrics.start();
+		return record(MilterMetrics.EOH, start, macroHandler != null ? macroHandler.eohMacros(eohActions, macros)
+				: handler.eoh(eohActions, macros.toProperties()));
+	}
+
+	@Override
+	public IMilterStatus eoh(IMilterActions eohActions, Properties properties) {
+		long start = metrics.start();
+		return record(MilterMetrics.EOH, start, handler.eoh(eohActions, properties));
+	}
+
+	@Override
+	public IMilterStatus dataMacros(MilterMacros macros) {
+		long start = metrics.start();
+		return record(MilterMetrics.DATA, start, macroHandler != null ? macroHandler.dataMacros(macros)
+				: handler.data(macros.toProperties()));
+	}
+
+	@Override
+	public IMilterStatus data(Properties properties) {
+		long start = metrics.start();
+		return record(MilterMetrics.DATA, start, handler.data(properties));
+	}
+
+	@Override
+	public IMilterStatus body(ByteBuffer bodyp) {
+		long start = metrics.start();
+		metrics.recordBody(start, bodyp.remaining());
+		return record(MilterMetrics.BODY, start, handler.body(bodyp));
+	}
+
+	@Override
+	public IMilterStatus eomMacros(IMilterActions eomActions, MilterMacros macros) {
+		long start = metrics.start();
+		return record(MilterMetrics.EOM, start, macroHandler != null ? macroHandler.eomMacros(eomActions, macros)
+				: handler.eom(eomActions, macros.toProperties()));
+	}
+
+	@Override
+	public IMilterStatus eom(IMilterActions eomActions, Properties properties) {
+		long start = metrics.start();
+		return record(MilterMetrics.EOM, start, handler.eom(eomActions, properties));
+	}
+
+	@Override
+	public IMilterStatus unknownMacros(byte[] command, MilterMacros macros) {
+		long start = metrics.start();
+		return record(MilterMetrics.UNKNOWN, start, macroHandler != null ? macroHandler.unknownMacros(command, macros)
+				: handler.unknown(command, macros.toProperties()));
+	}
+
+	@Override
+	public IMilterStatus unknown(byte[] command, Properties properties) {
+		long start = metrics.start();
+		return record(MilterMetrics.UNKNOWN, start, handler.unknown(command, properties));
+	}
+
+	@Override
+	public IMilterStatus abort() {
+		return handler.abort();
+	}
+
+	@Override
+	public IMilterStatus close() {
+		return handler.close();
+	}
+
+	@Override
+	public int getActionFlags() {
+		return handler.getActionFlags();
+	}
+
+	@Override
+	public int getProtocolFlags() {
+		return MilterHandlerIntrospector.protocolFlags(handler, mtaProtocolFlags);
+	}
+
+	@Override
+	public int negotiateVersion(int mtaVersion, int actionFlags, int protocolFlags) {
+		mtaProtocolFlags = protocolFlags;
+		return handler.negotiateVersion(mtaVersion, actionFlags, protocolFlags);
+	}
+
+	@Override
+	public void reset() {
+		handler.reset();
+	}
+
+	@Override
+	public Map<Integer, Set<String>> getMacros() {
+		return handler.getMacros();
+	}
+}
@@ -0,0 +1,70 @@
+package com.sendmail.milter.metrics;
+
+import com.sendmail.milter.IMilterHandler;
+import com.sendmail.milter.MilterAsyncHandlerAdapter;
+import com.sendmail.milter.codec.MilterNegotiationCache;
+import com.sendmail.milter.spi.IMilterHandlerFactory;
+import com.sendmail.milter.spi.IMilterHandlerPool;
+import com.sendmail.milter.spi.IMilterNegotiationCacheProvider;
+
+/**
+ * Wraps the handlers of a factory to record into {@link MilterMetrics}, while it is enabled. Handlers created while
+ * it is disabled are not wrapped, and cost nothing for the life of their connection. Handlers are handed back to the
+ * factory unwrapped if it is a pool, and negotiate through its cache if it shares one.
+ */
+public final class MilterMetricsHandlerFactory implements IMilterHandlerPool, IMilterNegotiationCacheProvider {
+
+	private final IMilterHandlerFactory factory;
+	private final MilterMetrics metrics;
+
+	/**
+	 * @param factory The factory creating the handlers.
+	 * @param metrics The metrics to record into.
+	 */
+	public MilterMetricsHandlerFactory(IMilterHandlerFactory factory, MilterMetrics metrics) {
+		this.factory = factory;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return The metrics recorded into.
+	 */
+	public MilterMetrics getMetrics() {
+		return metrics;
+	}
+
+	@Override
+	public IMilterHandler newInstance() {
+		IMilterHandler handler = factory.newInstance();
+		return metrics.isEnabled() ? metrics.wrap(handler) : handler;
+	}
+
+	@Override
+	public void release(IMilterHandler handler) {
+		if (factory instanceof IMilterHandlerPool) {
+			((IMilterHandlerPool) factory).release(unwrap(handler));
+		}
+	}
+
+	@Override
+	public MilterNegotiationCache getNegotiationCache(IMilterHandler handler) {
+		if (factory instanceof IMilterNegotiationCacheProvider) {
+			return ((IMilterNegotiationCacheProvider) factory).getNegotiationCache(unwrap(handler));
+		}
+		return null;
+	}
+
+	/**
+	 * @return The handler the factory created, without the metrics wrapper if it has one.
+	 */
+	private static IMilterHandler unwrap(IMilterHandler handler) {
+		if (handler instanceof MilterMetricsHandler) {
+			return ((MilterMetricsHandler) handler).getHandler();
+		}
+		if (handler instanceof MilterAsyncHandlerAdapter
+				&& ((MilterAsyncHandlerAdapter) handler).getHandler() instanceof MilterMetricsAsyncHandler) {
+			return ((MilterMetricsAsyncHandler) ((MilterAsyncHandlerAdapter) handler).getHandler()).getAdapter();
+		}
+		return handler;
+	}
+}
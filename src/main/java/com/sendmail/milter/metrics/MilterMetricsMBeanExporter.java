@@ -0,0 +1,232 @@
+package com.sendmail.milter.metrics;
+
+import com.sendmail.milter.MilterConstants;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceNotFoundException;
+import javax.management.InvalidAttributeValueException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Publishes metrics as MBeans named <code>com.sendmail.milter:type=MilterMetrics,name=...</code>. For every callback
+ * there are its count, mean, median, 99th and 99.9th percentile and maximum latency in microseconds, such as
+ * <code>eomCount</code> or <code>eomP99</code>; then the count of every reply code, such as <code>rejectCount</code>,
+ * the body bytes, and whether the metrics are enabled, which is writable.
+ */
+public final class MilterMetricsMBeanExporter implements IMilterMetricsExporter {
+
+	private static final String[] STATISTICS = {"Count", "Mean", "P50", "P99", "P999", "Max"};
+	private static final int[] CODES = {
+		MilterConstants.SMFIR_CONTINUE, MilterConstants.SMFIR_ACCEPT, MilterConstants.SMFIR_REJECT,
+		MilterConstants.SMFIR_TEMPFAIL, MilterConstants.SMFIR_DISCARD, MilterConstants.SMFIR_REPLYCODE,
+		MilterConstants.SMFIR_SKIP, MilterConstants.SMFIR_CONN_FAIL
+	};
+	private static final String[] CODE_NAMES = {
+		"continue", "accept", "reject", "tempfail", "discard", "replycode", "skip", "connFail"
+	};
+	private static final MBeanInfo INFO = info();
+
+	private final MBeanServer server;
+
+	/**
+	 * Publish to the platform MBean server.
+	 */
+	public MilterMetricsMBeanExporter() {
+		this(ManagementFactory.getPlatformMBeanServer());
+	}
+
+	/**
+	 * @param server The MBean server to publish to.
+	 */
+	public MilterMetricsMBeanExporter(MBeanServer server) {
+		this.server = server;
+	}
+
+	private static MBeanInfo info() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (int callback = 0; callback < MilterMetrics.getCallbackCount(); ++callback) {
+			String name = MilterMetrics.getCallbackName(callback);
+			attributes.add(new MBeanAttributeInfo(name + "Count", "long", "Calls of " + name, true, false, false));
+			for (int i = 1; i < STATISTICS.length; ++i) {
+				attributes.add(new MBeanAttributeInfo(name + STATISTICS[i], "double",
+						STATISTICS[i] + " latency of " + name + " in microseconds", true, false, false));
+			}
+		}
+		for (String code : CODE_NAMES) {
+			attributes.add(new MBeanAttributeInfo(code + "Count", "long", "Callbacks returning " + code, true, false,
+					false));
+		}
+		attributes.add(new MBeanAttributeInfo("bodyBytes", "long", "Body bytes seen", true, false, false));
+		attributes.add(new MBeanAttributeInfo("enabled", "boolean", "Whether metrics are recorded", true, true, true));
+		return new MBeanInfo(MilterMetrics.class.getName(), "Milter handler metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0],
+				new MBeanNotificationInfo[0]);
+	}
+
+	private static ObjectName objectName(String name) {
+		try {
+			return new ObjectName("com.sendmail.milter:type=MilterMetrics,name=" + ObjectName.quote(name));
+		}
+		catch (MalformedObjectNameException ex) {
+			throw new IllegalArgumentException("Invalid metrics name " + name, ex);
+		}
+	}
+
+	@Override
+	public void export(String name, MilterMetrics metrics) {
+		try {
+			server.registerMBean(new MetricsMBean(metrics), objectName(name));
+		}
+		catch (JMException ex) {
+			throw new IllegalStateException("Cannot export metrics " + name, ex);
+		}
+	}
+
+	@Override
+	public void unexport(String name) {
+		try {
+			server.unregisterMBean(objectName(name));
+		}
+		catch (InstanceNotFoundException ex) {
+			// Not exported.
+		}
+		catch (JMException ex) {
+			throw new IllegalStateException("Cannot unexport metrics " + name, ex);
+		}
+	}
+
+	private static final class MetricsMBean implements DynamicMBean {
+
+		private final MilterMetrics metrics;
+
+		MetricsMBean(MilterMetrics metrics) {
+			this.metrics = metrics;
+		}
+
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			return get(attribute, new MilterLatencyHistogram.Snapshot[MilterMetrics.getCallbackCount()]);
+		}
+
+		/**
+		 * @param snapshots Snapshots already taken, so reading several attributes of a callback takes one.
+		 */
+		private Object get(String attribute, MilterLatencyHistogram.Snapshot[] snapshots)
+				throws AttributeNotFoundException {
+			for (int callback = 0; callback < snapshots.length; ++callback) {
+				String name = MilterMetrics.getCallbackName(callback);
+				if (!attribute.startsWith(name)) {
+					continue;
+				}
+				String statistic = attribute.substring(name.length());
+				for (int i = 0; i < STATISTICS.length; ++i) {
+					if (STATISTICS[i].equals(statistic)) {
+						if (snapshots[callback] == null) {
+							snapshots[callback] = metrics.getLatency(callback).getSnapshot();
+						}
+						return statistic(snapshots[callback], i);
+					}
+				}
+			}
+			for (int i = 0; i < CODE_NAMES.length; ++i) {
+				if (attribute.equals(CODE_NAMES[i] + "Count")) {
+					return metrics.getStatusCount(CODES[i]);
+				}
+			}
+			if ("bodyBytes".equals(attribute)) {
+				return metrics.getBodyBytes();
+			}
+			if ("enabled".equals(attribute)) {
+				return metrics.isEnabled();
+			}
+			throw new AttributeNotFoundException(attribute);
+		}
+
+		private static Object statistic(MilterLatencyHistogram.Snapshot snapshot, int statistic) {
+			switch (statistic) {
+				case 0:
+					return snapshot.getCount();
+				case 1:
+					return snapshot.getMean() / 1000;
+				case 2:
+					return snapshot.getValueAtPercentile(50) / 1000.0;
+				case 3:
+					return snapshot.getValueAtPercentile(99) / 1000.0;
+				case 4:
+					return snapshot.getValueAtPercentile(99.9) / 1000.0;
+				default:
+					return snapshot.getMax() / 1000.0;
+			}
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			MilterLatencyHistogram.Snapshot[] snapshots =
+					new MilterLatencyHistogram.Snapshot[MilterMetrics.getCallbackCount()];
+			AttributeList result = new AttributeList();
+			for (String attribute : attributes) {
+				try {
+					result.add(new Attribute(attribute, get(attribute, snapshots)));
+				}
+				catch (AttributeNotFoundException ex) {
+					// Left out, as the interface requires.
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException, InvalidAttributeValueException {
+			if (!"enabled".equals(attribute.getName())) {
+				throw new AttributeNotFoundException(attribute.getName());
+			}
+			if (!(attribute.getValue() instanceof Boolean)) {
+				throw new InvalidAttributeValueException("enabled takes a boolean");
+			}
+			metrics.setEnabled((Boolean) attribute.getValue());
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			AttributeList result = new AttributeList();
+			for (Object item : attributes) {
+				Attribute attribute = (Attribute) item;
+				try {
+					setAttribute(attribute);
+					result.add(attribute);
+				}
+				catch (JMException ex) {
+					// Left out, as the interface requires.
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature)
+				throws MBeanException, ReflectionException {
+			throw new ReflectionException(new NoSuchMethodException(actionName));
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			return INFO;
+		}
+	}
+}
@@ -0,0 +1,352 @@
+package com.sendmail.milter.metrics;
+
+import com.sendmail.milter.MilterConstants;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An always-on trace of the last events of every session: each command the MTA sends, with the reply code, payload
+ * size and time spent handling it, and each modification a handler makes. Records are four longs in a fixed set of
+ * preallocated rings shared by all threads, each session writing to one of them, without locks or allocation. The
+ * memory taken does not grow with the number of threads, so sessions on virtual threads cost no more than others.
+ * <p>
+ * The records of the last few seconds can be {@link #dump(Appendable) dumped} on demand, and are logged at warning
+ * level when handling a command takes longer than the {@link #setSlowThreshold slow threshold}, at most once a
+ * second. {@link com.sendmail.milter.codec.MilterDecoder} records the events; other runners can call
+ * {@link #command} and {@link #action} the same way.
+ */
+public final class MilterTrace {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MilterTrace.class);
+
+	/**
+	 * Returned by {@link #start()} while disabled.
+	 */
+	public static final long NOT_TRACED = Long.MIN_VALUE;
+
+	private static final int RECORD_LONGS = 4;
+	private static final long MIN_DUMP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+	private static final int RING_COUNT = Integer.highestOneBit(Math.min(64,
+			Runtime.getRuntime().availableProcessors() * 4 - 1));
+
+	private static final AtomicLong SESSIONS = new AtomicLong();
+	private static final AtomicLong LAST_DUMP = new AtomicLong(System.nanoTime() - MIN_DUMP_INTERVAL);
+
+	private static volatile boolean enabled = true;
+	private static volatile Ring[] rings = newRings(65536);
+	private static volatile long slowNanos = Long.MAX_VALUE;
+	private static volatile long windowNanos = TimeUnit.SECONDS.toNanos(10);
+
+	private MilterTrace() {
+		throw new IllegalStateException("You have no class!");
+	}
+
+	/**
+	 * @return true while recording.
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param enabled Whether to record. Enabled by default.
+	 */
+	public static void setEnabled(boolean enabled) {
+		MilterTrace.enabled = enabled;
+	}
+
+	/**
+	 * @param records The number of records kept in all, rounded up to a power of two and spread over the rings. 65536
+	 * by default, taking 2 MiB. The records kept so far are dropped.
+	 */
+	public static void setCapacity(int records) {
+		if (records < 1 || records > 1 << 24) {
+			throw new IllegalArgumentException("Trace capacity must be between 1 and 2^24 records");
+		}
+		rings = newRings(Integer.highestOneBit(records * 2 - 1));
+	}
+
+	/**
+	 * @param time How long handling a command may take before the trace is logged, or 0 to never log it. Off by
+	 * default.
+	 * @param unit The unit of <code>time</code>.
+	 */
+	public static void setSlowThreshold(long time, TimeUnit unit) {
+		slowNanos = time <= 0 ? Long.MAX_VALUE : unit.toNanos(time);
+	}
+
+	/**
+	 * @param time How far back dumps go. 10 seconds by default; older records are also overwritten once their ring is
+	 * full.
+	 * @param unit The unit of <code>time</code>.
+	 */
+	public static void setDumpWindow(long time, TimeUnit unit) {
+		windowNanos = unit.toNanos(time);
+	}
+
+	/**
+	 * @return A new session id.
+	 */
+	public static long newSession() {
+		return SESSIONS.incrementAndGet();
+	}
+
+	/**
+	 * @return The time handling an event starts, or {@link #NOT_TRACED} while disabled.
+	 */
+	public static long start() {
+		return enabled ? System.nanoTime() : NOT_TRACED;
+	}
+
+	/**
+	 * Record a command handled, and log the trace if it was slow.
+	 *
+	 * @param start The time from {@link #start()}.
+	 * @param session The session id.
+	 * @param command The command, one of the <code>SMFIC_</code> codes.
+	 * @param status The reply code sent, one of the <code>SMFIR_</code> codes, or 0 if none was.
+	 * @param size The payload size.
+	 */
+	public static void command(long start, long session, int command, int status, int size) {
+		if (start == NOT_TRACED) {
+			return;
+		}
+		long elapsed = System.nanoTime() - start;
+		ring(session).add(start, session, (long) (command & 0xFF) << 40 | (long) (status & 0xFF) << 32
+				| (size & 0xFFFFFFFFL), elapsed);
+		if (elapsed >= slowNanos) {
+			slow(session, command, elapsed);
+		}
+	}
+
+	/**
+	 * Record a modification requested by a handler.
+	 *
+	 * @param session The session id.
+	 * @param action The modification, one of the <code>SMFIR_</code> codes.
+	 * @param size The size of its arguments, or 0 if unknown.
+	 */
+	public static void action(long session, int action, long size) {
+		if (!enabled) {
+			return;
+		}
+		ring(session).add(System.nanoTime(), session, (long) (action & 0xFF) << 40 | Math.min(size, 0xFFFFFFFFL), 0);
+	}
+
+	private static Ring ring(long session) {
+		Ring[] current = rings;
+		return current[(int) session & (current.length - 1)];
+	}
+
+	private static void slow(long session, int command, long elapsed) {
+		long last = LAST_DUMP.get();
+		long now = System.nanoTime();
+		if (now - last < MIN_DUMP_INTERVAL || !LAST_DUMP.compareAndSet(last, now) || !LOG.isWarnEnabled()) {
+			return;
+		}
+		StringBuilder trace = new StringBuilder();
+		trace.append("Milter session ").append(session).append(" took ").append(elapsed / 1000)
+				.append(" us for ").append(name(command)).append(", trace:\n");
+		try {
+			dump(windowNanos, TimeUnit.NANOSECONDS, trace);
+		}
+		catch (IOException ex) {
+			throw new IllegalStateException("Appending to a StringBuilder failed", ex);
+		}
+		LOG.warn(trace.toString());
+	}
+
+	/**
+	 * Dump the records of the {@link #setDumpWindow dump window}, oldest first, one per line.
+	 *
+	 * @param out Where to write the records.
+	 * @return The number of records written.
+	 * @throws IOException if writing fails.
+	 */
+	public static int dump(Appendable out) throws IOException {
+		return dump(windowNanos, TimeUnit.NANOSECONDS, out);
+	}
+
+	/**
+	 * Dump the recent records, oldest first, one per line: the age in milliseconds, session, event, reply code, payload
+	 * size and handling time in microseconds. Records being written meanwhile may be missed.
+	 *
+	 * @param window How far back to go.
+	 * @param unit The unit of <code>window</code>.
+	 * @param out Where to write the records.
+	 * @return The number of records written.
+	 * @throws IOException if writing fails.
+	 */
+	public static int dump(long window, TimeUnit unit, Appendable out) throws IOException {
+		long now = System.nanoTime();
+		long since = now - unit.toNanos(window);
+		List<long[]> copies = new ArrayList<long[]>();
+		int total = 0;
+		for (Ring ring : rings) {
+			long[] copy = ring.copy(since);
+			if (copy.length > 0) {
+				copies.add(copy);
+				total += copy.length / RECORD_LONGS;
+			}
+		}
+		// Merge by time. Each ring is in order, except that a command is recorded after the modifications made while
+		// handling it, and sessions sharing a ring may finish their commands out of order.
+		int[] next = new int[copies.size()];
+		for (int written = 0; written < total; ++written) {
+			int oldest = -1;
+			for (int i = 0; i < next.length; ++i) {
+				if (next[i] < copies.get(i).length && (oldest < 0
+						|| copies.get(i)[next[i]] - copies.get(oldest)[next[oldest]] < 0)) {
+					oldest = i;
+				}
+			}
+			long[] records = copies.get(oldest);
+			int at = next[oldest];
+			next[oldest] += RECORD_LONGS;
+			long event = records[at + 2];
+			int status = (int) (event >>> 32) & 0xFF;
+			out.append(String.format("%10.3fms session=%d %s status=%s size=%d time=%dus",
+					(records[at] - now) / 1e6, records[at + 1], name((int) (event >>> 40) & 0xFF),
+					status == 0 ? "-" : String.valueOf((char) status), event & 0xFFFFFFFFL, records[at + 3] / 1000))
+					.append('\n');
+		}
+		return total;
+	}
+
+	/**
+	 * @return The name of a command or modification.
+	 */
+	private static String name(int event) {
+		switch (event) {
+			case MilterConstants.SMFIC_OPTNEG:
+				return "optneg";
+			case MilterConstants.SMFIC_MACRO:
+				return "macro";
+			case MilterConstants.SMFIC_CONNECT:
+				return "connect";
+			case MilterConstants.SMFIC_HELO:
+				return "helo";
+			case MilterConstants.SMFIC_MAIL:
+				return "envfrom";
+			case MilterConstants.SMFIC_RCPT:
+				return "envrcpt";
+			case MilterConstants.SMFIC_HEADER:
+				return "header";
+			case MilterConstants.SMFIC_EOH:
+				return "eoh";
+			case MilterConstants.SMFIC_DATA:
+				return "data";
+			case MilterConstants.SMFIC_BODY:
+				return "body";
+			case MilterConstants.SMFIC_BODYEOB:
+				return "eom";
+			case MilterConstants.SMFIC_ABORT:
+				return "abort";
+			case MilterConstants.SMFIC_QUIT:
+				return "quit";
+			case MilterConstants.SMFIC_QUIT_NC:
+				return "quit_nc";
+			case MilterConstants.SMFIC_UNKNOWN:
+				return "unknown";
+			case MilterConstants.SMFIR_ADDHEADER:
+				return "addheader";
+			case MilterConstants.SMFIR_CHGHEADER:
+				return "chgheader";
+			case MilterConstants.SMFIR_INSHEADER:
+				return "insheader";
+			case MilterConstants.SMFIR_ADDRCPT:
+				return "addrcpt";
+			case MilterConstants.SMFIR_DELRCPT:
+				return "delrcpt";
+			case MilterConstants.SMFIR_REPLBODY:
+				return "replacebody";
+			case MilterConstants.SMFIR_PROGRESS:
+				return "progress";
+			default:
+				return "0x" + Integer.toHexString(event);
+		}
+	}
+
+	/**
+	 * @param capacity The number of records in all, a power of two.
+	 */
+	private static Ring[] newRings(int capacity) {
+		Ring[] created = new Ring[RING_COUNT];
+		for (int i = 0; i < created.length; ++i) {
+			created[i] = new Ring(Math.max(1, capacity / RING_COUNT));
+		}
+		return created;
+	}
+
+	/**
+	 * The records of the sessions picking one ring. Writers claim a slot each and stamp it once written; dumps copy the
+	 * records and keep those stamped the same before and after copying. A writer overtaken by a whole lap of the ring
+	 * drops its record rather than tear the newer one.
+	 */
+	private static final class Ring {
+
+		private final AtomicLongArray records;
+		private final AtomicLongArray stamps;
+		private final int mask;
+		private final AtomicLong claimed = new AtomicLong();
+
+		Ring(int capacity) {
+			this.records = new AtomicLongArray(capacity * RECORD_LONGS);
+			this.stamps = new AtomicLongArray(capacity);
+			this.mask = capacity - 1;
+		}
+
+		void add(long time, long session, long event, long elapsed) {
+			long index = claimed.getAndIncrement();
+			int slot = (int) index & mask;
+			// A slot holds record n stamped n + 1, is 0 before its first, and negative while written.
+			long previous = index > mask ? index - mask : 0;
+			if (!stamps.compareAndSet(slot, previous, -index - 1)) {
+				return;
+			}
+			int at = slot * RECORD_LONGS;
+			records.lazySet(at, time);
+			records.lazySet(at + 1, session);
+			records.lazySet(at + 2, event);
+			records.lazySet(at + 3, elapsed);
+			stamps.lazySet(slot, index + 1);
+		}
+
+		/**
+		 * @return The complete records not older than the time, in the order they were claimed.
+		 */
+		long[] copy(long since) {
+			long end = claimed.get();
+			long start = Math.max(0, end - mask - 1);
+			long[] copy = new long[(int) (end - start) * RECORD_LONGS];
+			int length = 0;
+			for (long i = start; i < end; ++i) {
+				int slot = (int) i & mask;
+				int at = slot * RECORD_LONGS;
+				if (stamps.get(slot) != i + 1) {
+					continue;
+				}
+				long time = records.get(at);
+				copy[length + 1] = records.get(at + 1);
+				copy[length + 2] = records.get(at + 2);
+				copy[length + 3] = records.get(at + 3);
+				if (stamps.get(slot) != i + 1 || time - since < 0) {
+					continue;
+				}
+				copy[length] = time;
+				length += RECORD_LONGS;
+			}
+			return length == copy.length ? copy : Arrays.copyOf(copy, length);
+		}
+	}
+}
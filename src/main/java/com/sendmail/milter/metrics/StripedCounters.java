@@ -0,0 +1,56 @@
+package com.sendmail.milter.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters spread over stripes picked by thread, so threads on different cores rarely update the same cache line.
+ * Reads sum the stripes and are only consistent per counter.
+ */
+final class StripedCounters {
+
+	/**
+	 * Slots left unused after each stripe's counters, so the end of one stripe and the start of the next are never on
+	 * the same cache line.
+	 */
+	private static final int PADDING = 16;
+
+	private final AtomicLongArray[] stripes;
+	private final int mask;
+
+	StripedCounters(int size) {
+		int count = Integer.highestOneBit(Math.max(1, Math.min(64, Runtime.getRuntime().availableProcessors() * 2)) * 2
+				- 1);
+		this.stripes = new AtomicLongArray[count];
+		for (int i = 0; i < count; ++i) {
+			stripes[i] = new AtomicLongArray(size + PADDING);
+		}
+		this.mask = count - 1;
+	}
+
+	void add(int index, long delta) {
+		stripes[(int) Thread.currentThread().getId() & mask].addAndGet(index, delta);
+	}
+
+	long get(int index) {
+		long sum = 0;
+		for (AtomicLongArray stripe : stripes) {
+			sum += stripe.get(index);
+		}
+		return sum;
+	}
+
+	/**
+	 * @param from The first counter.
+	 * @param to After the last counter.
+	 * @return The sums of the counters in the range.
+	 */
+	long[] get(int from, int to) {
+		long[] sums = new long[to - from];
+		for (AtomicLongArray stripe : stripes) {
+			for (int i = from; i < to; ++i) {
+				sums[i - from] += stripe.get(i);
+			}
+		}
+		return sums;
+	}
+}
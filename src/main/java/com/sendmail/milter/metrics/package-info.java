@@ -0,0 +1,7 @@
+/**
+ * Handler metrics. {@link com.sendmail.milter.metrics.MilterMetrics} decorates handlers to record per-callback
+ * latency histograms, reply counts and body bytes, which an
+ * {@link com.sendmail.milter.metrics.IMilterMetricsExporter} publishes, for example over JMX.
+ * {@link com.sendmail.milter.metrics.MilterTrace} keeps the last events of every session for diagnosing stalls.
+ */
+package com.sendmail.milter.metrics;
@@ -0,0 +1,625 @@
+package com.sendmail.milter.mime;
+
+import java.io.ByteArrayOutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Decodes raw header values as handlers receive them: RFC 2047 encoded words, raw 8-bit UTF-8 as sent with
+ * SMTPUTF8, and RFC 2231 parameters.
+ * <p>
+ * Decoding is built for the hot path of a handler. Each thread has its own decoder, obtained through
+ * {@link #forCurrentThread()}, which keeps its {@link CharsetDecoder}s and decodes into a reused {@link CharBuffer};
+ * charset lookups are cached for all threads. Values that are plain ASCII without encoded words are not decoded at
+ * all, but returned as a view of the bytes.
+ * <pre>
+ * CharSequence subject = HeaderDecoder.forCurrentThread().decode(value);
+ * </pre>
+ */
+public final class HeaderDecoder {
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Stands for unsupported charsets in the lookup cache.
+	 */
+	private static final Object UNSUPPORTED = new Object();
+	private static final int MAX_CACHED_CHARSETS = 256;
+	private static final ConcurrentMap<String, Object> CHARSETS = new ConcurrentHashMap<String, Object>();
+
+	private static final ThreadLocal<HeaderDecoder> DECODERS = new ThreadLocal<HeaderDecoder>() {
+
+		@Override
+		protected HeaderDecoder initialValue() {
+			return new HeaderDecoder();
+		}
+	};
+
+	private final Map<Charset, CharsetDecoder> decoders = new HashMap<Charset, CharsetDecoder>();
+	private final CharsetDecoder strictUtf8 = UTF8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPORT)
+			.onUnmappableCharacter(CodingErrorAction.REPORT);
+	private final AsciiSequence ascii = new AsciiSequence();
+	private final byte[] lastName = new byte[64];
+	private int lastNameLength = -1;
+	private Charset lastCharset;
+	private CharBuffer chars = CharBuffer.allocate(256);
+	private byte[] input = new byte[256];
+	private byte[] scratch = new byte[256];
+	private ByteBuffer scratchBuffer = ByteBuffer.wrap(scratch);
+
+	private HeaderDecoder() {
+	}
+
+	/**
+	 * @return The decoder of the current thread.
+	 */
+	public static HeaderDecoder forCurrentThread() {
+		return DECODERS.get();
+	}
+
+	/**
+	 * Decode a header value to a string.
+	 *
+	 * @param value The raw header value.
+	 * @return The decoded value.
+	 */
+	public static String decodeToString(byte[] value) {
+		return forCurrentThread().decode(value).toString();
+	}
+
+	/**
+	 * Look up a charset by name, caching the result.
+	 *
+	 * @param name The charset name.
+	 * @return The charset, or null if it is not supported.
+	 */
+	public static Charset charset(String name) {
+		Object cached = CHARSETS.get(name);
+		if (cached == null) {
+			try {
+				cached = Charset.forName(name);
+			}
+			catch (IllegalCharsetNameException ex) {
+				cached = UNSUPPORTED;
+			}
+			catch (UnsupportedCharsetException ex) {
+				cached = UNSUPPORTED;
+			}
+			if (CHARSETS.size() < MAX_CACHED_CHARSETS) {
+				CHARSETS.putIfAbsent(name, cached);
+			}
+		}
+		return cached == UNSUPPORTED ? null : (Charset) cached;
+	}
+
+	/**
+	 * Decode a header value.
+	 *
+	 * @param value The raw header value, as passed to {@link com.sendmail.milter.IMilterHandler#header}.
+	 * @return The decoded value. It is reused by the next call on this thread: copy it, for example with
+	 * <code>toString()</code>, to keep it.
+	 */
+	public CharSequence decode(byte[] value) {
+		return decode(value, 0, value.length);
+	}
+
+	/**
+	 * Decode a header value.
+	 *
+	 * @param value A buffer with the raw header value between its position and limit, as passed to
+	 * {@link com.sendmail.milter.IMilterBufferHandler#headerBuffer}. Its position is not changed.
+	 * @return The decoded value. It is reused by the next call on this thread.
+	 */
+	public CharSequence decode(ByteBuffer value) {
+		int length = value.remaining();
+		if (value.hasArray()) {
+			return decode(value.array(), value.arrayOffset() + value.position(), length);
+		}
+		if (input.length < length) {
+			input = new byte[Math.max(length, input.length * 2)];
+		}
+		value.duplicate().get(input, 0, length);
+		return decode(input, 0, length);
+	}
+
+	/**
+	 * Decode a header value.
+	 *
+	 * @param value An array with the raw header value.
+	 * @param offset The start of the value.
+	 * @param length The length of the value.
+	 * @return The decoded value. It is reused by the next call on this thread.
+	 */
+	public CharSequence decode(byte[] value, int offset, int length) {
+		int end = offset + length;
+		boolean plain = true;
+		for (int i = offset; i < end && plain; ++i) {
+			plain = value[i] >= 0 && !(value[i] == '=' && i + 1 < end && value[i + 1] == '?');
+		}
+		if (plain) {
+			return ascii.set(value, offset, length);
+		}
+		chars.clear();
+		boolean afterWord = false;
+		for (int i = offset; i < end;) {
+			int next = i;
+			int wordEnd = -1;
+			while (next < end) {
+				if (value[next] == '=' && next + 1 < end && value[next + 1] == '?') {
+					wordEnd = encodedWordEnd(value, next, end);
+					if (wordEnd > 0) {
+						break;
+					}
+				}
+				++next;
+			}
+			// Only white space separates adjacent encoded words, and it is dropped.
+			if (!(afterWord && wordEnd > 0 && whitespace(value, i, next))) {
+				appendText(value, i, next);
+			}
+			if (wordEnd < 0) {
+				break;
+			}
+			appendWord(value, next, wordEnd);
+			afterWord = true;
+			i = wordEnd;
+		}
+		chars.flip();
+		return chars;
+	}
+
+	private static boolean whitespace(byte[] value, int start, int end) {
+		for (int i = start; i < end; ++i) {
+			if (value[i] != ' ' && value[i] != '\t' && value[i] != '\r' && value[i] != '\n') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The end of the encoded word starting at <code>start</code>, or -1 if there is none or its charset is not
+	 * supported.
+	 */
+	private int encodedWordEnd(byte[] value, int start, int end) {
+		int charsetEnd = indexOf(value, '?', start + 2, end);
+		if (charsetEnd < 0 || charsetEnd + 3 >= end || value[charsetEnd + 2] != '?') {
+			return -1;
+		}
+		byte encoding = value[charsetEnd + 1];
+		if (encoding != 'B' && encoding != 'b' && encoding != 'Q' && encoding != 'q') {
+			return -1;
+		}
+		for (int i = charsetEnd + 3; i + 1 < end; ++i) {
+			if (value[i] == ' ' || value[i] == '\t') {
+				return -1;
+			}
+			if (value[i] == '?' && value[i + 1] == '=') {
+				return charset(value, start + 2, charsetEnd) != null ? i + 2 : -1;
+			}
+		}
+		return -1;
+	}
+
+	private Charset charset(byte[] value, int start, int end) {
+		// RFC 2231 allows a language after the charset.
+		int star = indexOf(value, '*', start, end);
+		int length = (star < 0 ? end : star) - start;
+		// Encoded words of one value nearly always share their charset, so remember the last one.
+		if (length == lastNameLength && lastCharset != null) {
+			boolean same = true;
+			for (int i = 0; i < length && same; ++i) {
+				same = value[start + i] == lastName[i];
+			}
+			if (same) {
+				return lastCharset;
+			}
+		}
+		Charset charset = charset(new String(value, start, length, LATIN1));
+		if (charset != null && length <= lastName.length) {
+			System.arraycopy(value, start, lastName, 0, length);
+			lastNameLength = length;
+			lastCharset = charset;
+		}
+		return charset;
+	}
+
+	private static int indexOf(byte[] value, int b, int start, int end) {
+		for (int i = start; i < end; ++i) {
+			if (value[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void appendText(byte[] value, int start, int end) {
+		boolean ascii = true;
+		for (int i = start; i < end && ascii; ++i) {
+			ascii = value[i] >= 0;
+		}
+		if (ascii) {
+			reserve(end - start);
+			for (int i = start; i < end; ++i) {
+				chars.put((char) value[i]);
+			}
+			return;
+		}
+		// Raw 8-bit text is UTF-8 with SMTPUTF8, or else most likely Latin-1.
+		reserve(end - start);
+		int position = chars.position();
+		strictUtf8.reset();
+		ByteBuffer in = wrapInput(value, start, end);
+		if (strictUtf8.decode(in, chars, true).isError() || strictUtf8.flush(chars).isError()) {
+			chars.position(position);
+			for (int i = start; i < end; ++i) {
+				chars.put((char) (value[i] & 0xFF));
+			}
+		}
+	}
+
+	private void appendWord(byte[] value, int start, int end) {
+		int charsetEnd = indexOf(value, '?', start + 2, end);
+		Charset charset = charset(value, start + 2, charsetEnd);
+		byte encoding = value[charsetEnd + 1];
+		int textStart = charsetEnd + 3;
+		int textEnd = end - 2;
+		int length = encoding == 'B' || encoding == 'b' ? base64(value, textStart, textEnd)
+				: quotedPrintable(value, textStart, textEnd);
+		CharsetDecoder decoder = decoders.get(charset);
+		if (decoder == null) {
+			decoder = charset.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			decoders.put(charset, decoder);
+		}
+		reserve((int) (length * decoder.maxCharsPerByte()) + 1);
+		decoder.reset();
+		scratchBuffer.limit(length);
+		scratchBuffer.position(0);
+		decoder.decode(scratchBuffer, chars, true);
+		decoder.flush(chars);
+	}
+
+	private ByteBuffer wrapInput(byte[] value, int start, int end) {
+		if (scratch.length < end - start) {
+			growScratch(end - start);
+		}
+		System.arraycopy(value, start, scratch, 0, end - start);
+		scratchBuffer.limit(end - start);
+		scratchBuffer.position(0);
+		return scratchBuffer;
+	}
+
+	private void growScratch(int length) {
+		scratch = new byte[Math.max(length, scratch.length * 2)];
+		scratchBuffer = ByteBuffer.wrap(scratch);
+	}
+
+	private void reserve(int length) {
+		if (chars.remaining() < length) {
+			CharBuffer larger = CharBuffer.allocate(Math.max(chars.position() + length, chars.capacity() * 2));
+			chars.flip();
+			larger.put(chars);
+			chars = larger;
+		}
+	}
+
+	/**
+	 * Decode the Q encoding into the scratch buffer.
+	 *
+	 * @return The number of bytes decoded.
+	 */
+	private int quotedPrintable(byte[] value, int start, int end) {
+		if (scratch.length < end - start) {
+			growScratch(end - start);
+		}
+		int length = 0;
+		for (int i = start; i < end; ++i) {
+			byte b = value[i];
+			if (b == '_') {
+				b = ' ';
+			}
+			else if (b == '=' && i + 2 < end) {
+				int high = Character.digit(value[i + 1], 16);
+				int low = Character.digit(value[i + 2], 16);
+				if (high >= 0 && low >= 0) {
+					b = (byte) (high << 4 | low);
+					i += 2;
+				}
+			}
+			scratch[length++] = b;
+		}
+		return length;
+	}
+
+	/**
+	 * Decode base64 into the scratch buffer, skipping anything outside the alphabet.
+	 *
+	 * @return The number of bytes decoded.
+	 */
+	private int base64(byte[] value, int start, int end) {
+		if (scratch.length < end - start) {
+			growScratch(end - start);
+		}
+		int length = 0;
+		int bits = 0;
+		int count = 0;
+		for (int i = start; i < end; ++i) {
+			int digit = base64Digit(value[i]);
+			if (digit < 0) {
+				continue;
+			}
+			bits = bits << 6 | digit;
+			if (++count == 4) {
+				scratch[length++] = (byte) (bits >> 16);
+				scratch[length++] = (byte) (bits >> 8);
+				scratch[length++] = (byte) bits;
+				bits = 0;
+				count = 0;
+			}
+		}
+		if (count == 3) {
+			scratch[length++] = (byte) (bits >> 10);
+			scratch[length++] = (byte) (bits >> 2);
+		}
+		else if (count == 2) {
+			scratch[length++] = (byte) (bits >> 4);
+		}
+		return length;
+	}
+
+	private static int base64Digit(byte b) {
+		if (b >= 'A' && b <= 'Z') {
+			return b - 'A';
+		}
+		if (b >= 'a' && b <= 'z') {
+			return b - 'a' + 26;
+		}
+		if (b >= '0' && b <= '9') {
+			return b - '0' + 52;
+		}
+		if (b == '+') {
+			return 62;
+		}
+		if (b == '/') {
+			return 63;
+		}
+		return -1;
+	}
+
+	/**
+	 * Get a parameter of a structured header value such as <code>Content-Type</code> or
+	 * <code>Content-Disposition</code>, decoding RFC 2231 continuations and charsets.
+	 *
+	 * @param value The header value.
+	 * @param name The parameter name, such as <code>filename</code>.
+	 * @return The decoded parameter value, or null if there is none.
+	 */
+	public static String parameter(CharSequence value, String name) {
+		String plain = null;
+		String extended = null;
+		String[] segments = null;
+		boolean[] encodedSegments = null;
+		int length = value.length();
+		int i = indexOf(value, ';', 0);
+		while (i >= 0 && i < length) {
+			int start = skipWhitespace(value, i + 1);
+			int equals = indexOf(value, '=', start);
+			if (equals < 0) {
+				break;
+			}
+			int semicolon = indexOf(value, ';', start);
+			if (semicolon >= 0 && semicolon < equals) {
+				// A parameter without a value, which does not take the next one's.
+				i = semicolon;
+				continue;
+			}
+			String attribute = value.subSequence(start, equals).toString().trim();
+			int pos = skipWhitespace(value, equals + 1);
+			StringBuilder text = new StringBuilder();
+			if (pos < length && value.charAt(pos) == '"') {
+				for (++pos; pos < length && value.charAt(pos) != '"'; ++pos) {
+					char c = value.charAt(pos);
+					if (c == '\\' && pos + 1 < length) {
+						c = value.charAt(++pos);
+					}
+					text.append(c);
+				}
+				i = indexOf(value, ';', pos);
+			}
+			else {
+				int stop = indexOf(value, ';', pos);
+				text.append(value.subSequence(pos, stop < 0 ? length : stop).toString().trim());
+				i = stop;
+			}
+			if (!attribute.regionMatches(true, 0, name, 0, name.length())) {
+				continue;
+			}
+			String suffix = attribute.substring(name.length());
+			if (suffix.length() == 0) {
+				plain = text.toString();
+			}
+			else if (suffix.equals("*")) {
+				extended = text.toString();
+			}
+			else if (suffix.charAt(0) == '*') {
+				boolean encoded = suffix.endsWith("*");
+				int index;
+				try {
+					index = Integer.parseInt(suffix.substring(1, encoded ? suffix.length() - 1 : suffix.length()));
+				}
+				catch (NumberFormatException ex) {
+					continue;
+				}
+				if (index < 0 || index >= 1000) {
+					continue;
+				}
+				if (segments == null || segments.length <= index) {
+					String[] largerSegments = new String[Math.max(index + 1, 8)];
+					boolean[] largerEncoded = new boolean[largerSegments.length];
+					if (segments != null) {
+						System.arraycopy(segments, 0, largerSegments, 0, segments.length);
+						System.arraycopy(encodedSegments, 0, largerEncoded, 0, segments.length);
+					}
+					segments = largerSegments;
+					encodedSegments = largerEncoded;
+				}
+				segments[index] = text.toString();
+				encodedSegments[index] = encoded;
+			}
+		}
+		if (extended != null) {
+			return decodeExtended(extended, true);
+		}
+		if (segments != null && segments[0] != null) {
+			return continuation(segments, encodedSegments);
+		}
+		return plain;
+	}
+
+	private static String continuation(String[] segments, boolean[] encoded) {
+		Charset charset = null;
+		StringBuilder result = new StringBuilder();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (int n = 0; n < segments.length && segments[n] != null; ++n) {
+			String segment = segments[n];
+			if (!encoded[n]) {
+				flushBytes(bytes, charset, result);
+				result.append(segment);
+				continue;
+			}
+			if (n == 0) {
+				int first = segment.indexOf('\'');
+				int second = first < 0 ? -1 : segment.indexOf('\'', first + 1);
+				if (second >= 0) {
+					charset = charset(segment.substring(0, first));
+					segment = segment.substring(second + 1);
+				}
+			}
+			percentDecode(segment, bytes);
+		}
+		flushBytes(bytes, charset, result);
+		return result.toString();
+	}
+
+	private static String decodeExtended(String value, boolean withCharset) {
+		Charset charset = null;
+		if (withCharset) {
+			int first = value.indexOf('\'');
+			int second = first < 0 ? -1 : value.indexOf('\'', first + 1);
+			if (second >= 0) {
+				charset = charset(value.substring(0, first));
+				value = value.substring(second + 1);
+			}
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		percentDecode(value, bytes);
+		StringBuilder result = new StringBuilder();
+		flushBytes(bytes, charset, result);
+		return result.toString();
+	}
+
+	private static void percentDecode(String value, ByteArrayOutputStream bytes) {
+		for (int i = 0; i < value.length(); ++i) {
+			char c = value.charAt(i);
+			if (c == '%' && i + 2 < value.length()) {
+				int high = Character.digit(value.charAt(i + 1), 16);
+				int low = Character.digit(value.charAt(i + 2), 16);
+				if (high >= 0 && low >= 0) {
+					bytes.write(high << 4 | low);
+					i += 2;
+					continue;
+				}
+			}
+			bytes.write(c);
+		}
+	}
+
+	private static void flushBytes(ByteArrayOutputStream bytes, Charset charset, StringBuilder result) {
+		if (bytes.size() == 0) {
+			return;
+		}
+		byte[] data = bytes.toByteArray();
+		bytes.reset();
+		if (charset != null) {
+			result.append(new String(data, charset));
+			return;
+		}
+		try {
+			result.append(UTF8.newDecoder().decode(ByteBuffer.wrap(data)));
+		}
+		catch (CharacterCodingException ex) {
+			result.append(new String(data, LATIN1));
+		}
+	}
+
+	private static int indexOf(CharSequence value, char c, int start) {
+		for (int i = start, n = value.length(); i < n; ++i) {
+			if (value.charAt(i) == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int skipWhitespace(CharSequence value, int i) {
+		while (i < value.length() && Character.isWhitespace(value.charAt(i))) {
+			++i;
+		}
+		return i;
+	}
+
+	/**
+	 * A reused view of plain ASCII bytes as characters.
+	 */
+	private static final class AsciiSequence implements CharSequence {
+
+		private byte[] value;
+		private int offset;
+		private int length;
+
+		AsciiSequence set(byte[] value, int offset, int length) {
+			this.value = value;
+			this.offset = offset;
+			this.length = length;
+			return this;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= length) {
+				throw new IndexOutOfBoundsException("Index " + index + ", length " + length);
+			}
+			return (char) value[offset + index];
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return toString().substring(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return new String(value, offset, length, LATIN1);
+		}
+	}
+}
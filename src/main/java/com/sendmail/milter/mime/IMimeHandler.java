@@ -0,0 +1,45 @@
+package com.sendmail.milter.mime;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the structure of a message from a {@link MimeParser}. The message itself is the part at depth 0; the parts
+ * of a multipart part are one level deeper. Events of a part come in the order start, headers, content, end, and the
+ * parts of a multipart come between its headers and its end.
+ */
+public interface IMimeHandler {
+
+	/**
+	 * A part starts.
+	 *
+	 * @param depth The nesting depth of the part.
+	 */
+	public void partStart(int depth);
+
+	/**
+	 * A header of the current part.
+	 *
+	 * @param depth The nesting depth of the part.
+	 * @param name The header field name.
+	 * @param value The header field value, unfolded, with each byte as one ISO-8859-1 character. Encoded words are not
+	 * decoded.
+	 */
+	public void partHeader(int depth, String name, String value);
+
+	/**
+	 * A piece of the content of the current part, still in its transfer encoding. Only parts that are not multipart
+	 * have content; the preamble and epilogue of multiparts are not reported. A part's content may come in any number
+	 * of pieces, which do not follow line boundaries.
+	 *
+	 * @param depth The nesting depth of the part.
+	 * @param content A read-only view of the content, only valid until the method returns.
+	 */
+	public void partContent(int depth, ByteBuffer content);
+
+	/**
+	 * The current part ends.
+	 *
+	 * @param depth The nesting depth of the part.
+	 */
+	public void partEnd(int depth);
+}
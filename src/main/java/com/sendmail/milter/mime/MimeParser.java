@@ -0,0 +1,491 @@
+package com.sendmail.milter.mime;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Push parser for the MIME structure of a message, fed the headers and body chunks as a handler receives them. Events
+ * are reported to an {@link IMimeHandler} as soon as the input allows, so a handler can decide on a part while the
+ * rest of the message is still on its way, and return early from {@link com.sendmail.milter.IMilterHandler#body}.
+ * <p>
+ * Boundaries are recognized across chunk edges. Memory use is bounded: each nesting level keeps its boundary, and only
+ * the headers of the current part and the start of the current line are buffered. Content is passed on as views of
+ * the chunks, without copying. Multiparts nested deeper than {@link #MAX_DEPTH} levels are reported as plain content.
+ * <p>
+ * Typical use from a handler: pass the message headers to {@link #header(byte[], byte[])}, the body chunks to
+ * {@link #body(ByteBuffer)}, and call {@link #end()} at end of message and {@link #reset()} on abort. A parser is not
+ * thread safe.
+ */
+public final class MimeParser {
+
+	/**
+	 * Deepest multipart nesting that is parsed.
+	 */
+	public static final int MAX_DEPTH = 32;
+
+	/**
+	 * Default limit of the buffered headers of a single part. Headers beyond it are dropped.
+	 */
+	public static final int DEFAULT_MAX_HEADER_LENGTH = 64 * 1024;
+
+	/**
+	 * Longest boundary accepted. RFC 2046 allows 70 characters; longer ones are tolerated up to this length.
+	 */
+	private static final int MAX_BOUNDARY_LENGTH = 200;
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private static final int HEADERS = 0;
+	private static final int CONTENT = 1;
+	private static final int DELIMITER = 2;
+
+	private final IMimeHandler handler;
+
+	/**
+	 * Headers of the current part, and the length of the current header line.
+	 */
+	private final byte[] header;
+	private int headerLength;
+	private int headerLineLength;
+	private final StringBuilder text = new StringBuilder();
+
+	/**
+	 * Boundary per nesting level, null for parts that are not multipart, and whether its close delimiter was seen.
+	 */
+	private final byte[][] boundaries = new byte[MAX_DEPTH][];
+	private final boolean[] closed = new boolean[MAX_DEPTH];
+
+	/**
+	 * Line end and start of the line being checked for a delimiter, or a CR that may start a line end.
+	 */
+	private final byte[] hold = new byte[2 + 2 + MAX_BOUNDARY_LENGTH + 2];
+	private final ByteBuffer holdView = ByteBuffer.wrap(hold).asReadOnlyBuffer();
+	private int held;
+	private int eolLength;
+	private boolean lineStart;
+
+	private int depth = -1;
+	private int state;
+	private boolean bodyStarted;
+	private String contentType;
+	private int matchLevel;
+	private boolean closeDelimiter;
+	private boolean stopped;
+
+	private ByteBuffer source;
+	private ByteBuffer view;
+
+	/**
+	 * @param handler The handler receiving the events.
+	 */
+	public MimeParser(IMimeHandler handler) {
+		this(handler, DEFAULT_MAX_HEADER_LENGTH);
+	}
+
+	/**
+	 * @param handler The handler receiving the events.
+	 * @param maxHeaderLength The limit of the buffered headers of a single part.
+	 */
+	public MimeParser(IMimeHandler handler, int maxHeaderLength) {
+		this.handler = handler;
+		this.header = new byte[maxHeaderLength];
+	}
+
+	/**
+	 * Pass a header of the message.
+	 *
+	 * @param name Header field name, as passed to {@link com.sendmail.milter.IMilterHandler#header}.
+	 * @param value Header field value.
+	 */
+	public void header(byte[] name, byte[] value) {
+		header(new String(name, LATIN1), new String(value, LATIN1));
+	}
+
+	/**
+	 * Pass a header of the message.
+	 *
+	 * @param name Header field name.
+	 * @param value Header field value, folded or not.
+	 */
+	public void header(String name, String value) {
+		if (stopped || bodyStarted) {
+			return;
+		}
+		begin();
+		text.setLength(0);
+		for (int i = 0, n = value.length(); i < n; ++i) {
+			char c = value.charAt(i);
+			if (c != '\r' && c != '\n') {
+				text.append(c);
+			}
+		}
+		field(name.trim(), text.toString().trim());
+	}
+
+	/**
+	 * Pass a body chunk. All events it completes are reported before this method returns.
+	 *
+	 * @param chunk The chunk, as passed to {@link com.sendmail.milter.IMilterHandler#body}. Its position is not
+	 * changed.
+	 */
+	public void body(ByteBuffer chunk) {
+		if (stopped) {
+			return;
+		}
+		begin();
+		if (!bodyStarted) {
+			bodyStarted = true;
+			startContent();
+		}
+		for (int i = chunk.position(), end = chunk.limit(); i < end && !stopped;) {
+			switch (state) {
+				case HEADERS:
+					i = headers(chunk, i, end);
+					break;
+				case CONTENT:
+					i = content(chunk, i, end);
+					break;
+				default:
+					i = delimiter(chunk, i, end);
+					break;
+			}
+		}
+	}
+
+	/**
+	 * End the message, reporting the end of all open parts, and prepare for the next message.
+	 */
+	public void end() {
+		if (!stopped && depth >= 0) {
+			if (!bodyStarted) {
+				startContent();
+			}
+			if (state == CONTENT && held > 0 && boundaries[depth] == null) {
+				emitHold();
+			}
+			while (depth >= 0) {
+				handler.partEnd(depth--);
+			}
+		}
+		reset();
+	}
+
+	/**
+	 * Stop reporting events for the current message, for example once a handler has made up its mind. Further input
+	 * is ignored until {@link #end()} or {@link #reset()}.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * @return true if {@link #stop()} was called for the current message.
+	 */
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	/**
+	 * Drop the current message without reporting further events, for example when it is aborted.
+	 */
+	public void reset() {
+		for (int i = 0; i < MAX_DEPTH; ++i) {
+			boundaries[i] = null;
+			closed[i] = false;
+		}
+		depth = -1;
+		bodyStarted = false;
+		contentType = null;
+		headerLength = 0;
+		headerLineLength = 0;
+		held = 0;
+		eolLength = 0;
+		stopped = false;
+		source = null;
+		view = null;
+	}
+
+	private void begin() {
+		if (depth < 0) {
+			depth = 0;
+			handler.partStart(0);
+		}
+	}
+
+	private int headers(ByteBuffer in, int i, int end) {
+		for (; i < end; ++i) {
+			byte b = in.get(i);
+			if (headerLength < header.length) {
+				header[headerLength++] = b;
+			}
+			if (b == '\n') {
+				if (headerLineLength == 0) {
+					endHeaders();
+					return i + 1;
+				}
+				headerLineLength = 0;
+			}
+			else if (b != '\r') {
+				++headerLineLength;
+			}
+		}
+		return end;
+	}
+
+	private void endHeaders() {
+		String name = null;
+		for (int i = 0; i < headerLength && !stopped;) {
+			int lineEnd = i;
+			while (lineEnd < headerLength && header[lineEnd] != '\n') {
+				++lineEnd;
+			}
+			int contentEnd = lineEnd > i && header[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+			if (contentEnd > i && (header[i] == ' ' || header[i] == '\t')) {
+				if (name != null) {
+					latin1(i, contentEnd);
+				}
+			}
+			else {
+				if (name != null) {
+					field(name, text.toString().trim());
+					name = null;
+				}
+				int colon = i;
+				while (colon < contentEnd && header[colon] != ':') {
+					++colon;
+				}
+				if (colon < contentEnd && colon > i) {
+					text.setLength(0);
+					latin1(i, colon);
+					name = text.toString().trim();
+					text.setLength(0);
+					latin1(colon + 1, contentEnd);
+				}
+			}
+			i = lineEnd + 1;
+		}
+		if (name != null && !stopped) {
+			field(name, text.toString().trim());
+		}
+		headerLength = 0;
+		headerLineLength = 0;
+		startContent();
+	}
+
+	private void latin1(int start, int end) {
+		for (int i = start; i < end; ++i) {
+			text.append((char) (header[i] & 0xFF));
+		}
+	}
+
+	private void field(String name, String value) {
+		if ("Content-Type".equalsIgnoreCase(name)) {
+			contentType = value;
+		}
+		handler.partHeader(depth, name, value);
+	}
+
+	private void startContent() {
+		boundaries[depth] = depth < MAX_DEPTH - 1 ? boundary(contentType) : null;
+		closed[depth] = false;
+		contentType = null;
+		state = CONTENT;
+		lineStart = true;
+		held = 0;
+		eolLength = 0;
+	}
+
+	private int content(ByteBuffer in, int i, int end) {
+		boolean emit = boundaries[depth] == null;
+		int run = i;
+		for (; i < end; ++i) {
+			byte b = in.get(i);
+			if (lineStart) {
+				hold[held++] = b;
+				int verdict = held < hold.length ? match() : -1;
+				if (verdict == 0) {
+					continue;
+				}
+				if (verdict > 0) {
+					held = 0;
+					eolLength = 0;
+					lineStart = false;
+					if (b == '\n') {
+						endDelimiter();
+					}
+					else {
+						state = DELIMITER;
+					}
+					return i + 1;
+				}
+				// Not a delimiter: what was held is content, and this byte is looked at as any other.
+				--held;
+				if (emit) {
+					emitHold();
+				}
+				held = 0;
+				eolLength = 0;
+				lineStart = false;
+				run = i;
+			}
+			else if (held > 0) {
+				// A CR at the end of the previous chunk.
+				if (b == '\n') {
+					hold[held++] = b;
+					eolLength = held;
+					lineStart = true;
+					run = i + 1;
+					continue;
+				}
+				if (emit) {
+					emitHold();
+				}
+				held = 0;
+			}
+			if (b == '\n') {
+				int eolStart = i > run && in.get(i - 1) == '\r' ? i - 1 : i;
+				if (emit && eolStart > run) {
+					emit(in, run, eolStart);
+				}
+				held = 0;
+				for (int j = eolStart; j <= i; ++j) {
+					hold[held++] = in.get(j);
+				}
+				eolLength = held;
+				lineStart = true;
+				run = i + 1;
+				if (stopped) {
+					return end;
+				}
+			}
+		}
+		if (!lineStart && end > run) {
+			int stop = end;
+			if (in.get(end - 1) == '\r') {
+				stop = end - 1;
+				held = 0;
+				hold[held++] = '\r';
+			}
+			if (emit && stop > run) {
+				emit(in, run, stop);
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Check the held line start against the boundaries in scope.
+	 *
+	 * @return 1 if it is a delimiter, -1 if it cannot be one, 0 if more input is needed.
+	 */
+	private int match() {
+		int length = held - eolLength;
+		for (int j = 0; j < Math.min(length, 2); ++j) {
+			if (hold[eolLength + j] != '-') {
+				return -1;
+			}
+		}
+		if (length <= 2) {
+			return 0;
+		}
+		boolean undecided = false;
+		for (int level = depth; level >= 0; --level) {
+			byte[] boundary = boundaries[level];
+			if (boundary == null || closed[level]) {
+				continue;
+			}
+			int compared = length - 2;
+			int start = eolLength + 2;
+			int prefix = Math.min(compared, boundary.length);
+			boolean same = true;
+			for (int j = 0; j < prefix && same; ++j) {
+				same = hold[start + j] == boundary[j];
+			}
+			if (!same) {
+				continue;
+			}
+			if (compared <= boundary.length) {
+				undecided = true;
+				continue;
+			}
+			byte next = hold[start + boundary.length];
+			if (compared == boundary.length + 1) {
+				if (next == ' ' || next == '\t' || next == '\r' || next == '\n') {
+					matchLevel = level;
+					closeDelimiter = false;
+					return 1;
+				}
+				if (next == '-') {
+					undecided = true;
+				}
+			}
+			else if (next == '-' && hold[start + boundary.length + 1] == '-') {
+				matchLevel = level;
+				closeDelimiter = true;
+				return 1;
+			}
+		}
+		return undecided ? 0 : -1;
+	}
+
+	private int delimiter(ByteBuffer in, int i, int end) {
+		for (; i < end; ++i) {
+			if (in.get(i) == '\n') {
+				endDelimiter();
+				return i + 1;
+			}
+		}
+		return end;
+	}
+
+	private void endDelimiter() {
+		while (depth > matchLevel) {
+			boundaries[depth] = null;
+			handler.partEnd(depth--);
+		}
+		if (closeDelimiter) {
+			closed[depth] = true;
+			state = CONTENT;
+			lineStart = true;
+		}
+		else {
+			++depth;
+			boundaries[depth] = null;
+			handler.partStart(depth);
+			state = HEADERS;
+		}
+	}
+
+	private void emitHold() {
+		if (held == 0) {
+			return;
+		}
+		holdView.limit(held);
+		holdView.position(0);
+		handler.partContent(depth, holdView);
+	}
+
+	private void emit(ByteBuffer in, int pos, int end) {
+		if (source != in) {
+			source = in;
+			view = in.asReadOnlyBuffer();
+		}
+		view.limit(end);
+		view.position(pos);
+		handler.partContent(depth, view);
+	}
+
+	/**
+	 * @return The boundary of a multipart content type, or null.
+	 */
+	private static byte[] boundary(String contentType) {
+		if (contentType == null || !contentType.regionMatches(true, 0, "multipart/", 0, 10)) {
+			return null;
+		}
+		String boundary = HeaderDecoder.parameter(contentType, "boundary");
+		if (boundary == null || boundary.length() == 0 || boundary.length() > MAX_BOUNDARY_LENGTH) {
+			return null;
+		}
+		return boundary.getBytes(LATIN1);
+	}
+}
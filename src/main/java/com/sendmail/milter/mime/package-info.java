@@ -0,0 +1,6 @@
+/**
+ * Tools for looking into message content as it streams through a handler. A
+ * {@link com.sendmail.milter.mime.MimeParser} is fed the headers and body chunks a handler receives and reports the
+ * MIME structure to an {@link com.sendmail.milter.mime.IMimeHandler} as it goes.
+ */
+package com.sendmail.milter.mime;
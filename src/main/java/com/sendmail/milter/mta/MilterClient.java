@@ -0,0 +1,421 @@
+package com.sendmail.milter.mta;
+
+import com.sendmail.milter.MilterConstants;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * The MTA side of a milter connection, over a blocking channel. Events the negotiation left out are not sent, and
+ * replies waived by no-reply flags are not awaited; both return {@link MilterConstants#SMFIR_CONTINUE}. Progress
+ * notifications are skipped while awaiting a reply.
+ */
+public final class MilterClient implements Closeable {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ByteChannel channel;
+	private ByteBuffer out = ByteBuffer.allocate(4096);
+	private final ByteBuffer length = ByteBuffer.allocate(4);
+	private ByteBuffer in = ByteBuffer.allocate(4096);
+
+	private int version;
+	private int actionFlags;
+	private int protocolFlags;
+	private String replyText;
+	private int modifications;
+
+	/**
+	 * @param channel A connected blocking channel to the filter.
+	 */
+	public MilterClient(ByteChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Negotiate options, as the first thing on the connection.
+	 *
+	 * @param version The protocol version offered.
+	 * @param actionFlags The <code>SMFIF_</code> actions offered.
+	 * @param protocolFlags The <code>SMFIP_</code> protocol flags offered.
+	 * @return true if the filter accepted, false if it answered with a temporary failure.
+	 * @throws IOException if the connection fails or the reply is malformed.
+	 */
+	public boolean negotiate(int version, int actionFlags, int protocolFlags) throws IOException {
+		begin(MilterConstants.SMFIC_OPTNEG);
+		out.putInt(version).putInt(actionFlags).putInt(protocolFlags);
+		send();
+		int code = receive();
+		if (code != MilterConstants.SMFIC_OPTNEG) {
+			return false;
+		}
+		if (in.remaining() < 12) {
+			throw new IOException("Short option negotiation reply");
+		}
+		this.version = in.getInt();
+		this.actionFlags = in.getInt();
+		this.protocolFlags = in.getInt();
+		return true;
+	}
+
+	/**
+	 * @return The negotiated protocol version.
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return The negotiated actions.
+	 */
+	public int getActionFlags() {
+		return actionFlags;
+	}
+
+	/**
+	 * @return The negotiated protocol flags.
+	 */
+	public int getProtocolFlags() {
+		return protocolFlags;
+	}
+
+	/**
+	 * @return The text of the last {@link MilterConstants#SMFIR_REPLYCODE} reply, or null.
+	 */
+	public String getReplyText() {
+		return replyText;
+	}
+
+	/**
+	 * @return The number of modifications received with the last end of message reply.
+	 */
+	public int getModifications() {
+		return modifications;
+	}
+
+	/**
+	 * Send macros for the next command.
+	 *
+	 * @param command The command the macros are for, such as {@link MilterConstants#SMFIC_MAIL}.
+	 * @param namesAndValues Alternating macro names and values.
+	 * @throws IOException if the connection fails.
+	 */
+	public void macros(int command, String... namesAndValues) throws IOException {
+		begin(MilterConstants.SMFIC_MACRO);
+		put((byte) command);
+		for (String value : namesAndValues) {
+			putString(value);
+		}
+		send();
+	}
+
+	/**
+	 * @param hostname The client's host name.
+	 * @param address The client's address, or null for an unknown family.
+	 * @param port The client's port.
+	 * @return The reply code.
+	 * @throws IOException if the connection fails or the reply is malformed.
+	 */
+	public int connect(String hostname, InetAddress address, int port) throws IOException {
+		if ((protocolFlags & MilterConstants.SMFIP_NOCONNECT) != 0) {
+			return MilterConstants.SMFIR_CONTINUE;
+		}
+		begin(MilterConstants.SMFIC_CONNECT);
+		putString(hostname);
+		if (address == null) {
+			put((byte) MilterConstants.SMFIA_UNKNOWN);
+		}
+		else {
+			put((byte) (address instanceof Inet6Address ? MilterConstants.SMFIA_INET6 : MilterConstants.SMFIA_INET));
+			reserve(2);
+			out.putShort((short) port);
+			putString(address.getHostAddress());
+		}
+		return command(MilterConstants.SMFIP_NR_CONN);
+	}
+
+	/**
+	 * @param helohost The host name the client greeted with.
+	 * @return The reply code.
+	 * @throws IOException if the connection fails or the reply is malformed.
+	 */
+	public int helo(String helohost) throws IOException {
+		if ((protocolFlags & MilterConstants.SMFIP_NOHELO) != 0) {
+			return MilterConstants.SMFIR_CONTINUE;
+		}
+		begin(MilterConstants.SMFIC_HELO);
+		putString(helohost);
+		return command(MilterConstants.SMFIP_NR_HELO);
+	}
+
+	/**
+	 * @param argv The sender in angle brackets, followed by ESMTP parameters.
+	 * @return The reply code.
+	 * @throws IOException if the connection fails or the reply is malformed.
+	 */
+	public int envfrom(String... argv) throws IOException {
+		if ((protocolFlags & MilterConstants.SMFIP_NOMAIL) != 0) {
+			return MilterConstants.SMFIR_CONTINUE;
+		}
+		begin(MilterConstants.SMFIC_MAIL);
+		for (String arg : argv) {
+			putString(arg);
+		}
+		return command(MilterConstants.SMFIP_NR_MAIL);
+	}
+
+	/**
+	 * @param argv The recipient in angle brackets, followed by ESMTP parameters.
+	 * @return The reply code.
+	 * @throws IOException if the connection fails or the reply is malformed.
+	 */
+	public int envrcpt(String... argv) throws IOException {
+		if ((protocolFlags & MilterConstants.SMFIP_NORCPT) != 0) {
+			return MilterConstants.SMFIR_CONTINUE;
+		}
+		begin(MilterConstants.SMFIC_RCPT);
+		for (String arg : argv) {
+			putString(arg);
+		}
+		return command(MilterConstants.SMFIP_NR_RCPT);
+	}
+
+	/**
+	 * @return The reply code.
+	 * @throws IOException if the connection fails or the reply is malformed.
+	 */
+	public int data() throws IOException {
+		if ((protocolFlags & MilterConstants.SMFIP_NODATA) != 0) {
+			return MilterConstants.SMFIR_CONTINUE;
+		}
+		begin(MilterConstants.SMFIC_DATA);
+		return command(MilterConstants.SMFIP_NR_DATA);
+	}
+
+	/**
+	 * @param name The header name.
+	 * @param value The header value, with folds as LF and without the leading space, which is
+	 * added if the filter asked for {@link MilterConstants#SMFIP_HDR_LEADSPC}.
+	 * @return The reply code.
+	 * @throws IOException if the connection fails or the reply is malformed.
+	 */
+	public int header(String name, String value) throws IOException {
+		if ((protocolFlags & MilterConstants.SMFIP_NOHDRS) != 0) {
+			return MilterConstants.SMFIR_CONTINUE;
+		}
+		begin(MilterConstants.SMFIC_HEADER);
+		putString(name);
+		putString((protocolFlags & MilterConstants.SMFIP_HDR_LEADSPC) != 0 ? " " + value : value);
+		return command(MilterConstants.SMFIP_NR_HDR);
+	}
+
+	/**
+	 * @return The reply code.
+	 * @throws IOException if the connection fails or the reply is malformed.
+	 */
+	public int eoh() throws IOException {
+		if ((protocolFlags & MilterConstants.SMFIP_NOEOH) != 0) {
+			return MilterConstants.SMFIR_CONTINUE;
+		}
+		begin(MilterConstants.SMFIC_EOH);
+		return command(MilterConstants.SMFIP_NR_EOH);
+	}
+
+	/**
+	 * Send body data, in chunks of at most {@link MilterConstants#MILTER_CHUNK_SIZE} bytes, until the filter replies
+	 * with anything but continue.
+	 *
+	 * @param body The body data. Its position is advanced past the bytes sent.
+	 * @return The reply code to the last chunk sent.
+	 * @throws IOException if the connection fails or the reply is malformed.
+	 */
+	public int body(ByteBuffer body) throws IOException {
+		if ((protocolFlags & MilterConstants.SMFIP_NOBODY) != 0) {
+			body.position(body.limit());
+			return MilterConstants.SMFIR_CONTINUE;
+		}
+		int code = MilterConstants.SMFIR_CONTINUE;
+		while (body.hasRemaining() && code == MilterConstants.SMFIR_CONTINUE) {
+			int chunk = Math.min(MilterConstants.MILTER_CHUNK_SIZE, body.remaining());
+			begin(MilterConstants.SMFIC_BODY);
+			reserve(chunk);
+			int limit = body.limit();
+			body.limit(body.position() + chunk);
+			out.put(body);
+			body.limit(limit);
+			code = command(MilterConstants.SMFIP_NR_BODY);
+		}
+		return code;
+	}
+
+	/**
+	 * End the message, counting the modifications that precede the reply.
+	 *
+	 * @return The reply code.
+	 * @throws IOException if the connection fails or the reply is malformed.
+	 */
+	public int eom() throws IOException {
+		begin(MilterConstants.SMFIC_BODYEOB);
+		send();
+		modifications = 0;
+		while (true) {
+			int code = reply();
+			switch (code) {
+				case MilterConstants.SMFIR_ADDHEADER:
+				case MilterConstants.SMFIR_INSHEADER:
+				case MilterConstants.SMFIR_CHGHEADER:
+				case MilterConstants.SMFIR_ADDRCPT:
+				case MilterConstants.SMFIR_ADDRCPT_PAR:
+				case MilterConstants.SMFIR_DELRCPT:
+				case MilterConstants.SMFIR_CHGFROM:
+				case MilterConstants.SMFIR_REPLBODY:
+				case MilterConstants.SMFIR_QUARANTINE:
+					++modifications;
+					break;
+				default:
+					return code;
+			}
+		}
+	}
+
+	/**
+	 * Abort the current message.
+	 *
+	 * @throws IOException if the connection fails.
+	 */
+	public void abort() throws IOException {
+		begin(MilterConstants.SMFIC_ABORT);
+		send();
+	}
+
+	/**
+	 * End the SMTP session but keep the connection for the next one, which starts with {@link #connect}.
+	 *
+	 * @throws IOException if the connection fails.
+	 */
+	public void quitNewConnection() throws IOException {
+		begin(MilterConstants.SMFIC_QUIT_NC);
+		send();
+	}
+
+	/**
+	 * End the session and the connection, then close the channel.
+	 *
+	 * @throws IOException if the connection fails.
+	 */
+	public void quit() throws IOException {
+		try {
+			begin(MilterConstants.SMFIC_QUIT);
+			send();
+		}
+		finally {
+			close();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Send the packet, and await its reply unless the flag waives it.
+	 */
+	private int command(int noReplyFlag) throws IOException {
+		send();
+		if ((protocolFlags & noReplyFlag) != 0) {
+			return MilterConstants.SMFIR_CONTINUE;
+		}
+		return reply();
+	}
+
+	/**
+	 * @return The next reply code other than progress, with its payload left in the input buffer.
+	 */
+	private int reply() throws IOException {
+		while (true) {
+			int code = receive();
+			switch (code) {
+				case MilterConstants.SMFIR_PROGRESS:
+					continue;
+				case MilterConstants.SMFIR_REPLYCODE:
+					int end = in.limit();
+					while (end > in.position() && in.get(end - 1) == 0) {
+						--end;
+					}
+					replyText = new String(in.array(), in.position(), end - in.position(), UTF8);
+					return code;
+				default:
+					return code;
+			}
+		}
+	}
+
+	private void begin(int command) {
+		out.clear();
+		out.putInt(0);
+		out.put((byte) command);
+	}
+
+	private void send() throws IOException {
+		out.putInt(0, out.position() - 4);
+		out.flip();
+		while (out.hasRemaining()) {
+			channel.write(out);
+		}
+	}
+
+	/**
+	 * @return The code of the next packet, with its payload in the input buffer.
+	 */
+	private int receive() throws IOException {
+		length.clear();
+		fill(length);
+		int size = length.getInt(0);
+		if (size < 1 || size > MilterConstants.MILTER_CHUNK_SIZE + 1) {
+			throw new IOException("Invalid milter packet length " + size);
+		}
+		if (in.capacity() < size) {
+			in = ByteBuffer.allocate(size);
+		}
+		in.clear().limit(size);
+		fill(in);
+		in.flip();
+		return in.get() & 0xFF;
+	}
+
+	private void fill(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException("Milter connection closed");
+			}
+		}
+	}
+
+	private void put(byte value) {
+		reserve(1);
+		out.put(value);
+	}
+
+	private void putString(String value) {
+		byte[] bytes = value.getBytes(UTF8);
+		reserve(bytes.length + 1);
+		out.put(bytes).put((byte) 0);
+	}
+
+	private void reserve(int count) {
+		if (out.remaining() < count) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(out.position() + count, out.capacity() * 2));
+			out.flip();
+			larger.put(out);
+			out = larger;
+		}
+	}
+}
@@ -0,0 +1,670 @@
+package com.sendmail.milter.mta;
+
+import com.sendmail.milter.MilterConstants;
+import com.sendmail.milter.metrics.MilterLatencyHistogram;
+import com.sendmail.milter.server.MilterServer;
+import com.sendmail.milter.spi.IMilterHandlerFactory;
+import com.sendmail.milter.spi.IMilterHandlerWarmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the capacity of a filter without a real MTA. A number of connections, each on a thread of its own, play the
+ * MTA for as long as configured: they negotiate, then run SMTP sessions of connect, helo and a few messages picked from
+ * a weighted mix, each sent as envelope, headers, body and end of message, and reuse the connection for the next
+ * session with {@link MilterConstants#SMFIC_QUIT_NC}, so the handler is {@link com.sendmail.milter.IMilterHandler#reset()
+ * reset} in between. Messages ended early by the filter are aborted, as an MTA would.
+ * <p>
+ * The {@link Report} gives the throughput, the verdicts, and the latency percentiles of whole messages and of the end
+ * of message alone. A filter given as a factory is served by a {@link MilterServer} on the loopback interface, so the
+ * numbers include the codec and event loop the filter runs on in production.
+ */
+public final class MilterLoadGenerator implements IMilterHandlerWarmup {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MilterLoadGenerator.class);
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final int VERSION = 6;
+
+	private int connections = 8;
+	private long durationNanos = TimeUnit.SECONDS.toNanos(10);
+	private int messagesPerSession = 1;
+	private int sessionsPerConnection = 100;
+	private final List<Message> messages = new ArrayList<Message>();
+	private final List<Integer> weights = new ArrayList<Integer>();
+
+	/**
+	 * @param connections The number of concurrent MTA connections. 8 by default.
+	 */
+	public void setConnections(int connections) {
+		if (connections < 1) {
+			throw new IllegalArgumentException("At least one connection is required");
+		}
+		this.connections = connections;
+	}
+
+	/**
+	 * @param time How long to run. 10 seconds by default.
+	 * @param unit The unit of <code>time</code>.
+	 */
+	public void setDuration(long time, TimeUnit unit) {
+		if (time <= 0) {
+			throw new IllegalArgumentException("The duration must be positive");
+		}
+		this.durationNanos = unit.toNanos(time);
+	}
+
+	/**
+	 * @param messagesPerSession The number of messages sent in each SMTP session. 1 by default.
+	 */
+	public void setMessagesPerSession(int messagesPerSession) {
+		if (messagesPerSession < 1) {
+			throw new IllegalArgumentException("At least one message per session is required");
+		}
+		this.messagesPerSession = messagesPerSession;
+	}
+
+	/**
+	 * @param sessionsPerConnection The number of SMTP sessions on a connection before it is closed, the others
+	 * reusing it with {@link MilterConstants#SMFIC_QUIT_NC}. 100 by default; 1 opens a connection per session.
+	 */
+	public void setSessionsPerConnection(int sessionsPerConnection) {
+		if (sessionsPerConnection < 1) {
+			throw new IllegalArgumentException("At least one session per connection is required");
+		}
+		this.sessionsPerConnection = sessionsPerConnection;
+	}
+
+	/**
+	 * Add a message to the mix. Without any, a mix of generated messages is sent: 70% short notes, 25% HTML
+	 * newsletters and 5% messages with a 200 KiB attachment.
+	 *
+	 * @param weight How often the message is picked, relative to the weights of the others.
+	 * @param message The message.
+	 */
+	public void addMessage(int weight, Message message) {
+		if (weight < 1) {
+			throw new IllegalArgumentException("The weight must be positive");
+		}
+		messages.add(message);
+		weights.add(weight);
+	}
+
+	/**
+	 * Serve the factory on the loopback interface for the duration of the run.
+	 *
+	 * @param factory The filter.
+	 * @return The results.
+	 * @throws IOException if the server cannot be started.
+	 * @throws InterruptedException if interrupted while waiting for the connections.
+	 */
+	public Report run(IMilterHandlerFactory factory) throws IOException, InterruptedException {
+		MilterServer server = new MilterServer(factory, new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0),
+				Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+		server.start();
+		try {
+			return run(server.getLocalAddress());
+		}
+		finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Run against a filter already listening.
+	 *
+	 * @param address The address of the filter.
+	 * @return The results.
+	 * @throws InterruptedException if interrupted while waiting for the connections.
+	 */
+	public Report run(SocketAddress address) throws InterruptedException {
+		if (messages.isEmpty()) {
+			addDefaultMessages();
+		}
+		Run run = new Run(address, System.nanoTime() + durationNanos);
+		Thread[] threads = new Thread[connections];
+		for (int i = 0; i < threads.length; ++i) {
+			threads[i] = new Thread(new Worker(run, i), "milter-mta-" + i);
+			threads[i].start();
+		}
+		try {
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		}
+		catch (InterruptedException ex) {
+			for (Thread thread : threads) {
+				thread.interrupt();
+			}
+			throw ex;
+		}
+		return new Report(run, System.nanoTime() - run.started);
+	}
+
+	/**
+	 * Warm a factory up with a {@link #run(IMilterHandlerFactory) run}, typically a short one.
+	 *
+	 * @param factory The filter.
+	 * @throws IOException if the server cannot be started or any session failed.
+	 * @throws InterruptedException if interrupted while waiting for the connections.
+	 */
+	@Override
+	public void warmUp(IMilterHandlerFactory factory) throws IOException, InterruptedException {
+		Report report = run(factory);
+		LOG.debug("Warm-up: {}", report);
+		if (report.getErrors() > 0) {
+			throw new IOException(report.getErrors() + " warm-up sessions failed");
+		}
+	}
+
+	private void addDefaultMessages() {
+		Random random = new Random(0);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 30; ++i) {
+			text.append(words(random, 12)).append("\r\n");
+		}
+		addMessage(70, new Message("alice@example.com", new String[] {"bob@example.org"},
+				("From: Alice <alice@example.com>\r\nTo: Bob <bob@example.org>\r\nSubject: " + words(random, 5)
+				+ "\r\nDate: Mon, 2 Mar 2026 10:00:00 +0000\r\nMessage-ID: <note@example.com>\r\n\r\n" + text)
+				.getBytes(ASCII)));
+
+		StringBuilder html = new StringBuilder("<html><body>\r\n");
+		for (int i = 0; i < 200; ++i) {
+			html.append("<p><a href=\"https://news.example.com/").append(i).append("\">").append(words(random, 16))
+					.append("</a></p>\r\n");
+		}
+		html.append("</body></html>\r\n");
+		String[] subscribers = new String[10];
+		for (int i = 0; i < subscribers.length; ++i) {
+			subscribers[i] = "subscriber" + i + "@example.org";
+		}
+		addMessage(25, new Message("news@example.com", subscribers,
+				("From: News <news@example.com>\r\nTo: undisclosed-recipients:;\r\nSubject: " + words(random, 6)
+				+ "\r\nDate: Mon, 2 Mar 2026 10:00:00 +0000\r\nMessage-ID: <news@example.com>\r\n"
+				+ "List-Unsubscribe: <https://news.example.com/unsubscribe>,\r\n <mailto:leave@example.com>\r\n"
+				+ "MIME-Version: 1.0\r\nContent-Type: text/html; charset=us-ascii\r\n\r\n" + html).getBytes(ASCII)));
+
+		byte[] attachment = new byte[200 * 1024];
+		random.nextBytes(attachment);
+		StringBuilder mime = new StringBuilder();
+		mime.append("From: Carol <carol@example.com>\r\nTo: Dave <dave@example.org>\r\nSubject: Report\r\n")
+				.append("Date: Mon, 2 Mar 2026 10:00:00 +0000\r\nMessage-ID: <report@example.com>\r\n")
+				.append("MIME-Version: 1.0\r\nContent-Type: multipart/mixed; boundary=\"b\"\r\n\r\n")
+				.append("--b\r\nContent-Type: text/plain\r\n\r\n").append(text)
+				.append("--b\r\nContent-Type: application/octet-stream\r\nContent-Transfer-Encoding: base64\r\n")
+				.append("Content-Disposition: attachment; filename=\"report.bin\"\r\n\r\n");
+		base64(attachment, mime);
+		mime.append("--b--\r\n");
+		addMessage(5, new Message("carol@example.com", new String[] {"dave@example.org"},
+				mime.toString().getBytes(ASCII)));
+	}
+
+	private static String words(Random random, int count) {
+		StringBuilder words = new StringBuilder();
+		for (int i = 0; i < count; ++i) {
+			if (i > 0) {
+				words.append(' ');
+			}
+			int length = 2 + random.nextInt(8);
+			for (int j = 0; j < length; ++j) {
+				words.append((char) ('a' + random.nextInt(26)));
+			}
+		}
+		return words.toString();
+	}
+
+	private static void base64(byte[] data, StringBuilder out) {
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for (int i = 0; i < data.length; i += 3) {
+			int bits = (data[i] & 0xFF) << 16 | (i + 1 < data.length ? (data[i + 1] & 0xFF) << 8 : 0)
+					| (i + 2 < data.length ? data[i + 2] & 0xFF : 0);
+			out.append(alphabet.charAt(bits >>> 18)).append(alphabet.charAt(bits >>> 12 & 0x3F))
+					.append(i + 1 < data.length ? alphabet.charAt(bits >>> 6 & 0x3F) : '=')
+					.append(i + 2 < data.length ? alphabet.charAt(bits & 0x3F) : '=');
+			if (i % 57 == 54) {
+				out.append("\r\n");
+			}
+		}
+		out.append("\r\n");
+	}
+
+	/**
+	 * A message to send, split once into headers and body.
+	 */
+	public static final class Message {
+
+		private final String sender;
+		private final String[] recipients;
+		private final List<String> headers = new ArrayList<String>();
+		private final byte[] body;
+
+		/**
+		 * @param sender The envelope sender, without angle brackets.
+		 * @param recipients The envelope recipients, without angle brackets.
+		 * @param rfc822 The message, headers and body. Line ends are sent to the filter as CRLF, whichever are used
+		 * here.
+		 */
+		public Message(String sender, String[] recipients, byte[] rfc822) {
+			if (recipients.length == 0) {
+				throw new IllegalArgumentException("At least one recipient is required");
+			}
+			this.sender = sender;
+			this.recipients = recipients.clone();
+			int at = 0;
+			StringBuilder header = null;
+			while (at < rfc822.length) {
+				int end = at;
+				while (end < rfc822.length && rfc822[end] != '\n') {
+					++end;
+				}
+				int next = end + 1;
+				if (end > at && rfc822[end - 1] == '\r') {
+					--end;
+				}
+				String line = new String(rfc822, at, end - at, ASCII);
+				at = next;
+				if (line.isEmpty()) {
+					break;
+				}
+				if (header != null && (line.charAt(0) == ' ' || line.charAt(0) == '\t')) {
+					header.append('\n').append(line);
+					continue;
+				}
+				if (header != null) {
+					headers.add(header.toString());
+				}
+				header = new StringBuilder(line);
+			}
+			if (header != null) {
+				headers.add(header.toString());
+			}
+			ByteArrayOutputStream crlf = new ByteArrayOutputStream(rfc822.length - Math.min(at, rfc822.length) + 64);
+			for (int i = at; i < rfc822.length; ++i) {
+				if (rfc822[i] == '\n' && (i == at || rfc822[i - 1] != '\r')) {
+					crlf.write('\r');
+				}
+				crlf.write(rfc822[i]);
+			}
+			this.body = crlf.toByteArray();
+		}
+
+		/**
+		 * @return The size of the message as sent.
+		 */
+		int size() {
+			int size = body.length;
+			for (String header : headers) {
+				size += header.length() + 2;
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * The state shared by the connections of one run.
+	 */
+	private final class Run {
+
+		final SocketAddress address;
+		final long started = System.nanoTime();
+		final long deadline;
+		final Message[] mix;
+		final int[] cumulative;
+		final AtomicLong messages = new AtomicLong();
+		final AtomicLong sessions = new AtomicLong();
+		final AtomicLong connections = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+		final AtomicLongArray verdicts = new AtomicLongArray(256);
+		final MilterLatencyHistogram messageLatency = new MilterLatencyHistogram();
+		final MilterLatencyHistogram eomLatency = new MilterLatencyHistogram();
+
+		Run(SocketAddress address, long deadline) {
+			this.address = address;
+			this.deadline = deadline;
+			this.mix = MilterLoadGenerator.this.messages.toArray(new Message[0]);
+			this.cumulative = new int[mix.length];
+			int total = 0;
+			for (int i = 0; i < mix.length; ++i) {
+				total += weights.get(i);
+				cumulative[i] = total;
+			}
+		}
+
+		Message pick(Random random) {
+			int value = random.nextInt(cumulative[cumulative.length - 1]);
+			int i = 0;
+			while (cumulative[i] <= value) {
+				++i;
+			}
+			return mix[i];
+		}
+
+		boolean running() {
+			return System.nanoTime() - deadline < 0 && !Thread.currentThread().isInterrupted();
+		}
+	}
+
+	/**
+	 * One MTA connection, opened again whenever it fails or its sessions are done.
+	 */
+	private final class Worker implements Runnable {
+
+		private final Run run;
+		private final int id;
+		private final Random random;
+		private long queueId;
+
+		Worker(Run run, int id) {
+			this.run = run;
+			this.id = id;
+			this.random = new Random(id);
+		}
+
+		@Override
+		public void run() {
+			while (run.running()) {
+				SocketChannel channel;
+				try {
+					channel = SocketChannel.open(run.address);
+					channel.socket().setTcpNoDelay(true);
+				}
+				catch (IOException ex) {
+					LOG.warn("Cannot connect to the filter at {}", run.address, ex);
+					run.errors.incrementAndGet();
+					return;
+				}
+				MilterClient client = new MilterClient(channel);
+				try {
+					run.connections.incrementAndGet();
+					if (!client.negotiate(VERSION, MilterConstants.SMFI_CURRENT_ACTSIONS,
+							MilterConstants.SMFI_CURRENT_PROTOCOL)) {
+						throw new IOException("The filter refused to negotiate");
+					}
+					for (int i = 0; i < sessionsPerConnection && run.running(); ++i) {
+						if (i > 0) {
+							client.quitNewConnection();
+						}
+						session(client);
+					}
+					client.quit();
+				}
+				catch (IOException ex) {
+					LOG.debug("Milter connection failed", ex);
+					run.errors.incrementAndGet();
+				}
+				finally {
+					try {
+						client.close();
+					}
+					catch (IOException ex) {
+						// Already failed.
+					}
+				}
+			}
+		}
+
+		private void session(MilterClient client) throws IOException {
+			run.sessions.incrementAndGet();
+			InetAddress address = InetAddress.getByAddress(new byte[] {(byte) 192, 0, 2, (byte) (id + 1)});
+			String hostname = "client" + id + ".example.net";
+			client.macros(MilterConstants.SMFIC_CONNECT, "j", "mx.example.com", "{daemon_name}", "MTA", "_",
+					hostname + " [" + address.getHostAddress() + "]", "{client_addr}", address.getHostAddress());
+			int code = client.connect(hostname, address, 1024 + random.nextInt(60000));
+			if (code == MilterConstants.SMFIR_CONTINUE) {
+				code = client.helo(hostname);
+			}
+			if (code != MilterConstants.SMFIR_CONTINUE) {
+				// The filter is done with the session, so the MTA only counts the messages it would have sent.
+				for (int i = 0; i < messagesPerSession; ++i) {
+					verdict(code);
+				}
+				return;
+			}
+			for (int i = 0; i < messagesPerSession && run.running(); ++i) {
+				message(client, run.pick(random));
+			}
+		}
+
+		private void message(MilterClient client, Message message) throws IOException {
+			long start = System.nanoTime();
+			client.macros(MilterConstants.SMFIC_MAIL, "i", Long.toHexString(++queueId << 8 | id), "{mail_addr}",
+					message.sender);
+			int code = client.envfrom("<" + message.sender + ">", "SIZE=" + message.size());
+			if (code == MilterConstants.SMFIR_CONTINUE) {
+				int accepted = 0;
+				for (String recipient : message.recipients) {
+					client.macros(MilterConstants.SMFIC_RCPT, "{rcpt_addr}", recipient);
+					code = client.envrcpt("<" + recipient + ">");
+					if (code == MilterConstants.SMFIR_CONTINUE) {
+						++accepted;
+					}
+					else if (!rejected(code)) {
+						break;
+					}
+				}
+				if (accepted > 0 && (code == MilterConstants.SMFIR_CONTINUE || rejected(code))) {
+					code = content(client, message);
+				}
+			}
+			if (code == MilterConstants.SMFIR_CONTINUE || code == MilterConstants.SMFIR_SKIP) {
+				long eom = System.nanoTime();
+				code = client.eom();
+				long end = System.nanoTime();
+				run.eomLatency.record(end - eom);
+				run.messageLatency.record(end - start);
+			}
+			else {
+				client.abort();
+				run.messageLatency.record(System.nanoTime() - start);
+			}
+			run.bytes.addAndGet(message.size());
+			verdict(code);
+		}
+
+		private int content(MilterClient client, Message message) throws IOException {
+			int code = client.data();
+			for (int i = 0; i < message.headers.size() && code == MilterConstants.SMFIR_CONTINUE; ++i) {
+				String header = message.headers.get(i);
+				int colon = header.indexOf(':');
+				if (colon < 0) {
+					continue;
+				}
+				int value = colon + 1;
+				while (value < header.length() && header.charAt(value) == ' ') {
+					++value;
+				}
+				code = client.header(header.substring(0, colon), header.substring(value));
+			}
+			if (code == MilterConstants.SMFIR_CONTINUE) {
+				code = client.eoh();
+			}
+			if (code == MilterConstants.SMFIR_CONTINUE) {
+				code = client.body(ByteBuffer.wrap(message.body));
+			}
+			return code;
+		}
+
+		private boolean rejected(int code) {
+			return code == MilterConstants.SMFIR_REJECT || code == MilterConstants.SMFIR_TEMPFAIL
+					|| code == MilterConstants.SMFIR_REPLYCODE;
+		}
+
+		private void verdict(int code) {
+			run.messages.incrementAndGet();
+			run.verdicts.incrementAndGet(code & 0xFF);
+		}
+	}
+
+	/**
+	 * The results of a run.
+	 */
+	public static final class Report {
+
+		private final long elapsedNanos;
+		private final long messages;
+		private final long sessions;
+		private final long connections;
+		private final long errors;
+		private final long bytes;
+		private final long[] verdicts;
+		private final MilterLatencyHistogram.Snapshot messageLatency;
+		private final MilterLatencyHistogram.Snapshot eomLatency;
+
+		private Report(MilterLoadGenerator.Run run, long elapsedNanos) {
+			this.elapsedNanos = elapsedNanos;
+			this.messages = run.messages.get();
+			this.sessions = run.sessions.get();
+			this.connections = run.connections.get();
+			this.errors = run.errors.get();
+			this.bytes = run.bytes.get();
+			this.verdicts = new long[run.verdicts.length()];
+			for (int i = 0; i < verdicts.length; ++i) {
+				verdicts[i] = run.verdicts.get(i);
+			}
+			this.messageLatency = run.messageLatency.getSnapshot();
+			this.eomLatency = run.eomLatency.getSnapshot();
+		}
+
+		/**
+		 * @return The time the run took, in nanoseconds.
+		 */
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		/**
+		 * @return The number of messages sent, whatever their verdict.
+		 */
+		public long getMessages() {
+			return messages;
+		}
+
+		/**
+		 * @return The number of SMTP sessions.
+		 */
+		public long getSessions() {
+			return sessions;
+		}
+
+		/**
+		 * @return The number of connections opened.
+		 */
+		public long getConnections() {
+			return connections;
+		}
+
+		/**
+		 * @return The number of connections that failed.
+		 */
+		public long getErrors() {
+			return errors;
+		}
+
+		/**
+		 * @return The messages per second.
+		 */
+		public double getThroughput() {
+			return elapsedNanos == 0 ? 0 : messages * 1e9 / elapsedNanos;
+		}
+
+		/**
+		 * @return The message bytes per second.
+		 */
+		public double getByteThroughput() {
+			return elapsedNanos == 0 ? 0 : bytes * 1e9 / elapsedNanos;
+		}
+
+		/**
+		 * @param code One of the <code>SMFIR_</code> reply codes.
+		 * @return The number of messages the filter gave the reply as verdict.
+		 */
+		public long getVerdictCount(int code) {
+			return verdicts[code & 0xFF];
+		}
+
+		/**
+		 * @return The latencies of whole messages, from envelope sender to verdict.
+		 */
+		public MilterLatencyHistogram.Snapshot getMessageLatency() {
+			return messageLatency;
+		}
+
+		/**
+		 * @return The latencies of end of message, where filters usually do their work.
+		 */
+		public MilterLatencyHistogram.Snapshot getEomLatency() {
+			return eomLatency;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder report = new StringBuilder();
+			report.append(String.format("%d messages in %.1f s: %.1f msg/s, %.2f MB/s%n", messages, elapsedNanos / 1e9,
+					getThroughput(), getByteThroughput() / 1e6));
+			report.append(String.format("%d sessions on %d connections, %d failed%n", sessions, connections, errors));
+			report.append("verdicts:");
+			for (int i = 0; i < verdicts.length; ++i) {
+				if (verdicts[i] > 0) {
+					report.append(' ').append((char) i).append('=').append(verdicts[i]);
+				}
+			}
+			report.append(String.format("%n"));
+			latency(report, "message", messageLatency);
+			latency(report, "eom", eomLatency);
+			return report.toString();
+		}
+
+		private static void latency(StringBuilder report, String name, MilterLatencyHistogram.Snapshot snapshot) {
+			report.append(String.format("%-8s mean %8.1f us  p50 %8.1f us  p99 %8.1f us  p99.9 %8.1f us  max %8.1f us%n",
+					name, snapshot.getMean() / 1e3, snapshot.getValueAtPercentile(50) / 1e3,
+					snapshot.getValueAtPercentile(99) / 1e3, snapshot.getValueAtPercentile(99.9) / 1e3,
+					snapshot.getMax() / 1e3));
+		}
+	}
+
+	/**
+	 * Run against the factory registered in <code>META-INF/services</code>, or a filter already listening.
+	 *
+	 * @param args <code>[connections [seconds [host:port]]]</code>
+	 * @throws Exception if the run fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		MilterLoadGenerator generator = new MilterLoadGenerator();
+		if (args.length > 0) {
+			generator.setConnections(Integer.parseInt(args[0]));
+		}
+		if (args.length > 1) {
+			generator.setDuration(Long.parseLong(args[1]), TimeUnit.SECONDS);
+		}
+		Report report;
+		if (args.length > 2) {
+			int colon = args[2].lastIndexOf(':');
+			if (colon < 0) {
+				throw new IllegalArgumentException("Expected host:port, got " + args[2]);
+			}
+			report = generator.run(new InetSocketAddress(args[2].substring(0, colon),
+					Integer.parseInt(args[2].substring(colon + 1))));
+		}
+		else {
+			report = generator.run(MilterServer.loadFactory(Thread.currentThread().getContextClassLoader()));
+		}
+		System.out.print(report);
+	}
+}
@@ -0,0 +1,7 @@
+/**
+ * The MTA side of the protocol, for testing filters without Sendmail or Postfix.
+ * {@link com.sendmail.milter.mta.MilterClient} sends the commands of one connection, and
+ * {@link com.sendmail.milter.mta.MilterLoadGenerator} drives many of them to measure a filter's throughput and
+ * latency.
+ */
+package com.sendmail.milter.mta;
@@ -0,0 +1,182 @@
+package com.sendmail.milter.server;
+
+import com.sendmail.milter.codec.MilterDecoder;
+import com.sendmail.milter.spi.IMilterHandlerFactory;
+
+import java.io.IOException;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Milter server running every session on a thread of its own, for handlers that block in their callbacks. By default
+ * the sessions run on the executor from {@link SessionExecutors#newSessionExecutor()}, which uses virtual threads on
+ * Java 21 and later, and platform threads before that.
+ */
+public final class BlockingMilterServer {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BlockingMilterServer.class);
+
+	private static final int MAX_SPARE_BUFFERS = 64;
+
+	private final IMilterHandlerFactory factory;
+	private final SocketAddress address;
+	private final ExecutorService executor;
+	private final Set<SocketChannel> sessions = Collections.newSetFromMap(
+			new ConcurrentHashMap<SocketChannel, Boolean>());
+	private final Queue<ByteBuffer> spare = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger spareCount = new AtomicInteger();
+	private ServerSocketChannel server;
+	private Thread acceptor;
+
+	/**
+	 * @param factory The factory creating a handler per session.
+	 * @param address The address to listen on.
+	 */
+	public BlockingMilterServer(IMilterHandlerFactory factory, SocketAddress address) {
+		this(factory, address, SessionExecutors.newSessionExecutor());
+	}
+
+	/**
+	 * @param factory The factory creating a handler per session.
+	 * @param address The address to listen on.
+	 * @param executor The executor running the sessions. Each session occupies a thread until the MTA disconnects, so
+	 * it must not be bounded below the expected number of concurrent sessions. It is shut down by {@link #stop()}.
+	 */
+	public BlockingMilterServer(IMilterHandlerFactory factory, SocketAddress address, ExecutorService executor) {
+		this.factory = factory;
+		this.address = address;
+		this.executor = executor;
+	}
+
+	/**
+	 * Bind the listening socket and start accepting sessions.
+	 *
+	 * @throws IOException if the socket cannot be bound.
+	 */
+	public synchronized void start() throws IOException {
+		if (server != null) {
+			throw new IllegalStateException("Server already started");
+		}
+		server = ServerSocketChannel.open();
+		try {
+			server.socket().setReuseAddress(true);
+			server.socket().bind(address, 1024);
+		}
+		catch (IOException ex) {
+			server.close();
+			server = null;
+			throw ex;
+		}
+		final ServerSocketChannel listening = server;
+		acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept(listening);
+			}
+		}, "milter-acceptor");
+		acceptor.start();
+	}
+
+	/**
+	 * Stop accepting sessions, close all open ones and wait for their threads to finish.
+	 *
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public synchronized void stop() throws InterruptedException {
+		if (server == null) {
+			return;
+		}
+		try {
+			server.close();
+		}
+		catch (IOException ex) {
+			// Nothing left to release.
+		}
+		acceptor.join();
+		for (SocketChannel channel : sessions) {
+			EventLoop.closeQuietly(channel);
+		}
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		server = null;
+	}
+
+	/**
+	 * @return The bound address, or null if the server is not running.
+	 */
+	public synchronized SocketAddress getLocalAddress() {
+		return server == null ? null : server.socket().getLocalSocketAddress();
+	}
+
+	private void accept(ServerSocketChannel listening) {
+		while (true) {
+			SocketChannel channel;
+			try {
+				channel = listening.accept();
+			}
+			catch (ClosedChannelException ex) {
+				return;
+			}
+			catch (IOException ex) {
+				LOG.warn("Failed accepting milter connection", ex);
+				continue;
+			}
+			try {
+				channel.socket().setTcpNoDelay(true);
+				sessions.add(channel);
+				executor.execute(new BlockingSession(this, channel, factory));
+			}
+			catch (RejectedExecutionException ex) {
+				LOG.warn("Milter session rejected", ex);
+				closed(channel);
+			}
+			catch (Exception ex) {
+				LOG.warn("Failed setting up milter session", ex);
+				closed(channel);
+			}
+		}
+	}
+
+	void closed(SocketChannel channel) {
+		sessions.remove(channel);
+		EventLoop.closeQuietly(channel);
+	}
+
+	/**
+	 * @return A cleared buffer able to hold any packet.
+	 */
+	ByteBuffer acquire() {
+		ByteBuffer buffer = spare.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocate(MilterDecoder.DEFAULT_BUFFER_SIZE);
+		}
+		spareCount.decrementAndGet();
+		return buffer;
+	}
+
+	void release(ByteBuffer buffer) {
+		if (spareCount.incrementAndGet() <= MAX_SPARE_BUFFERS) {
+			buffer.clear();
+			spare.add(buffer);
+		}
+		else {
+			spareCount.decrementAndGet();
+		}
+	}
+}
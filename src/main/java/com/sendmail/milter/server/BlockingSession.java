@@ -0,0 +1,97 @@
+package com.sendmail.milter.server;
+
+import com.sendmail.milter.codec.MilterDecoder;
+import com.sendmail.milter.codec.MilterEncoder;
+import com.sendmail.milter.spi.IMilterHandlerFactory;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A session served by a thread of its own, with plain blocking reads and writes. Sessions start with small buffers and
+ * borrow a full sized one from the server only while a large packet is being received.
+ */
+final class BlockingSession implements Runnable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BlockingSession.class);
+
+	static final int SMALL_BUFFER_SIZE = 4096;
+
+	private final BlockingMilterServer server;
+	private final SocketChannel channel;
+	private final IMilterHandlerFactory factory;
+
+	BlockingSession(BlockingMilterServer server, SocketChannel channel, IMilterHandlerFactory factory) {
+		this.server = server;
+		this.channel = channel;
+		this.factory = factory;
+	}
+
+	@Override
+	public void run() {
+		ByteBuffer small = ByteBuffer.allocate(SMALL_BUFFER_SIZE);
+		ByteBuffer in = small;
+		MilterEncoder encoder = new MilterEncoder(ByteBuffer.allocate(SMALL_BUFFER_SIZE), channel);
+		MilterDecoder decoder = null;
+		boolean failed = false;
+		try {
+			decoder = new MilterDecoder(factory.newInstance(), encoder);
+			Sessions.start(factory, decoder);
+			while (true) {
+				if (!in.hasRemaining()) {
+					// A packet larger than the small buffer.
+					ByteBuffer large = server.acquire();
+					in.flip();
+					large.put(in);
+					in.clear();
+					in = large;
+				}
+				if (channel.read(in) < 0) {
+					break;
+				}
+				in.flip();
+				boolean open;
+				try {
+					open = decoder.decode(in);
+					while (open && decoder.getPending() != null) {
+						encoder.flush();
+						Sessions.await(decoder);
+						open = decoder.decode(in);
+					}
+				}
+				finally {
+					encoder.flush();
+				}
+				in.compact();
+				if (!open) {
+					break;
+				}
+				if (in != small && in.position() == 0) {
+					server.release(in);
+					in = small;
+				}
+			}
+		}
+		catch (IOException ex) {
+			LOG.debug("Milter session failed", ex);
+		}
+		catch (RuntimeException ex) {
+			LOG.error("Milter handler failed", ex);
+			failed = true;
+		}
+		finally {
+			if (in != small) {
+				server.release(in);
+			}
+			if (decoder != null) {
+				Sessions.end(factory, decoder, failed);
+			}
+			server.closed(channel);
+		}
+	}
+}
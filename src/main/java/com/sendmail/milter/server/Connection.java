@@ -0,0 +1,313 @@
+package com.sendmail.milter.server;
+
+import com.sendmail.milter.codec.IMilterStreamingChannel;
+import com.sendmail.milter.codec.MilterDecoder;
+import com.sendmail.milter.codec.MilterEncoder;
+import com.sendmail.milter.spi.IMilterHandlerFactory;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One MTA connection on an {@link EventLoop}. Serves as the encoder's channel: replies the socket does not take right
+ * away are queued and written when it becomes writable, and reading is paused while too much output is queued.
+ * Gathering writes are passed on to the socket as such, and files are transferred to it. Streamed bodies are held back
+ * by the encoder while anything is queued, and go on once the socket drained. Reading is also paused while the handler
+ * is pending or a body is held back.
+ */
+final class Connection implements IMilterStreamingChannel {
+
+	private static final Logger LOG = LoggerFactory.getLogger(Connection.class);
+
+	private static final int MAX_QUEUED_OUTPUT = 1 << 20;
+
+	private final EventLoop loop;
+	private final SocketChannel channel;
+	private final IMilterHandlerFactory factory;
+	private final MilterEncoder encoder;
+	private final MilterDecoder decoder;
+	SelectionKey key;
+	/**
+	 * Heartbeat scheduling, owned by the loop.
+	 */
+	boolean waiting;
+	long heartbeat;
+	private final Runnable resumer = new Runnable() {
+
+		@Override
+		public void run() {
+			loop.resume(Connection.this);
+		}
+	};
+	private boolean suspended;
+	private ByteBuffer partial;
+	private ByteBuffer queued;
+	/**
+	 * The socket did not take all of a file transfer.
+	 */
+	private boolean full;
+	private boolean quit;
+	private boolean failed;
+	private boolean closed;
+
+	Connection(EventLoop loop, SocketChannel channel, IMilterHandlerFactory factory) {
+		this.loop = loop;
+		this.channel = channel;
+		this.factory = factory;
+		// The loop's transmit buffer is shared; it is always flushed before the loop moves to another connection.
+		this.encoder = new MilterEncoder(loop.transmitBuffer(), this);
+		this.decoder = new MilterDecoder(factory.newInstance(), encoder);
+		Sessions.start(factory, decoder);
+	}
+
+	void ready(SelectionKey key) {
+		try {
+			if (key.isWritable()) {
+				drain();
+			}
+			if (key.isValid() && key.isReadable()) {
+				read();
+			}
+		}
+		catch (IOException ex) {
+			LOG.debug("Milter connection failed", ex);
+			close();
+		}
+		catch (RuntimeException ex) {
+			LOG.error("Milter handler failed", ex);
+			failed = true;
+			close();
+		}
+	}
+
+	private void read() throws IOException {
+		ByteBuffer in = partial != null ? partial : loop.receiveBuffer();
+		int count = channel.read(in);
+		if (count < 0) {
+			close();
+			return;
+		}
+		in.flip();
+		process(in);
+	}
+
+	private void process(ByteBuffer in) throws IOException {
+		boolean open;
+		try {
+			open = decoder.decode(in);
+		}
+		finally {
+			encoder.flush();
+		}
+		if (!open) {
+			quit = true;
+			in.clear();
+			if (!isCongested() && !encoder.isHeld()) {
+				close();
+			}
+			return;
+		}
+		if (in == partial) {
+			partial.compact();
+			if (partial.position() == 0) {
+				loop.release(partial);
+				partial = null;
+			}
+		}
+		else {
+			if (in.hasRemaining()) {
+				partial = loop.acquire();
+				partial.put(in);
+			}
+			in.clear();
+		}
+		if (decoder.getPending() != null) {
+			suspend();
+		}
+	}
+
+	private void suspend() {
+		suspended = true;
+		interest();
+		loop.waiting(this);
+		decoder.getPending().onComplete(resumer);
+	}
+
+	/**
+	 * Send the reply the handler completed, then decode the packets held back meanwhile.
+	 */
+	void resume() {
+		if (closed || !suspended) {
+			return;
+		}
+		try {
+			boolean done = Sessions.resume(decoder);
+			encoder.flush();
+			if (!done) {
+				decoder.getPending().onComplete(resumer);
+				return;
+			}
+			suspended = false;
+			if (partial != null) {
+				partial.flip();
+				process(partial);
+			}
+			if (!closed) {
+				interest();
+			}
+		}
+		catch (IOException ex) {
+			LOG.debug("Milter connection failed", ex);
+			close();
+		}
+		catch (RuntimeException ex) {
+			LOG.error("Milter handler failed", ex);
+			failed = true;
+			close();
+		}
+	}
+
+	/**
+	 * Notify the MTA that the handler is still at work.
+	 *
+	 * @return true while the handler is pending.
+	 */
+	boolean heartbeat() {
+		if (closed || !suspended) {
+			return false;
+		}
+		try {
+			decoder.progress();
+			return true;
+		}
+		catch (IOException ex) {
+			LOG.debug("Milter connection failed", ex);
+			close();
+			return false;
+		}
+	}
+
+	private void drain() throws IOException {
+		full = false;
+		if (queued != null) {
+			queued.flip();
+			channel.write(queued);
+			queued.compact();
+		}
+		if (encoder.isHeld() && !isCongested()) {
+			encoder.flush();
+		}
+		if (quit && !isCongested() && !encoder.isHeld()) {
+			close();
+			return;
+		}
+		interest();
+	}
+
+	/**
+	 * Read unless suspended, too much output is queued or a body is held back, and write while output is queued.
+	 */
+	private void interest() {
+		int pending = queued == null ? 0 : queued.position();
+		int ops = pending > 0 || full ? SelectionKey.OP_WRITE : 0;
+		if (!suspended && pending < MAX_QUEUED_OUTPUT && !encoder.isHeld()) {
+			ops |= SelectionKey.OP_READ;
+		}
+		key.interestOps(ops);
+	}
+
+	@Override
+	public boolean isCongested() {
+		return full || queued != null && queued.position() > 0;
+	}
+
+	@Override
+	public long transferFrom(FileChannel file, long position, long count) throws IOException {
+		if (isCongested()) {
+			return 0;
+		}
+		long transferred = file.transferTo(position, count, channel);
+		if (transferred < count) {
+			full = true;
+			interest();
+		}
+		return transferred;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		int count = src.remaining();
+		if (queued == null || queued.position() == 0) {
+			channel.write(src);
+		}
+		enqueue(src);
+		return count;
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		long count = 0;
+		for (int i = offset; i < offset + length; ++i) {
+			count += srcs[i].remaining();
+		}
+		if (queued == null || queued.position() == 0) {
+			channel.write(srcs, offset, length);
+		}
+		for (int i = offset; i < offset + length; ++i) {
+			enqueue(srcs[i]);
+		}
+		return count;
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	private void enqueue(ByteBuffer src) {
+		if (src.hasRemaining()) {
+			if (queued == null) {
+				queued = ByteBuffer.allocate(Math.max(src.remaining(), MilterEncoder.DEFAULT_BUFFER_SIZE));
+			}
+			else if (queued.remaining() < src.remaining()) {
+				ByteBuffer larger = ByteBuffer.allocate(Math.max(queued.position() + src.remaining(),
+						queued.capacity() * 2));
+				queued.flip();
+				larger.put(queued);
+				queued = larger;
+			}
+			queued.put(src);
+			interest();
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (key != null) {
+			key.cancel();
+		}
+		EventLoop.closeQuietly(channel);
+		encoder.discard();
+		if (partial != null) {
+			loop.release(partial);
+			partial = null;
+		}
+		Sessions.end(factory, decoder, failed);
+	}
+}
@@ -0,0 +1,236 @@
+package com.sendmail.milter.server;
+
+import com.sendmail.milter.codec.MilterDecoder;
+import com.sendmail.milter.codec.MilterEncoder;
+import com.sendmail.milter.spi.IMilterHandlerFactory;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A selector thread serving its share of the connections. The receive and transmit buffers are shared by all
+ * connections of the loop; a connection only holds a buffer of its own while a packet is split across reads.
+ * <p>
+ * Connections waiting for an asynchronous handler are resumed on the loop once the handler completes, and get their
+ * progress notifications from the select timeout; no thread waits for the handler.
+ */
+final class EventLoop implements Runnable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(EventLoop.class);
+
+	private static final int MAX_SPARE_BUFFERS = 16;
+
+	private final IMilterHandlerFactory factory;
+	private final Selector selector;
+	private final Queue<SocketChannel> incoming = new ConcurrentLinkedQueue<SocketChannel>();
+	private final Queue<Connection> resumed = new ConcurrentLinkedQueue<Connection>();
+	/**
+	 * Connections waiting for a handler, in order of their next heartbeat, as all use the same interval.
+	 */
+	private final ArrayDeque<Connection> waiting = new ArrayDeque<Connection>();
+	private final ArrayDeque<ByteBuffer> spare = new ArrayDeque<ByteBuffer>();
+	private final ByteBuffer receive = ByteBuffer.allocateDirect(MilterDecoder.DEFAULT_BUFFER_SIZE);
+	private final ByteBuffer transmit = ByteBuffer.allocateDirect(MilterEncoder.DEFAULT_BUFFER_SIZE);
+	private volatile boolean running = true;
+	private EventLoop[] group;
+	private int next;
+
+	EventLoop(IMilterHandlerFactory factory) throws IOException {
+		this.factory = factory;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Accept connections on this loop, spreading them over the group.
+	 */
+	void listen(ServerSocketChannel server, EventLoop[] group) throws IOException {
+		this.group = group;
+		server.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Hand a connection to this loop. May be called from any thread.
+	 */
+	void assign(SocketChannel channel) {
+		incoming.add(channel);
+		selector.wakeup();
+	}
+
+	void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				selector.select(timeout());
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept((ServerSocketChannel) key.channel());
+					}
+					else {
+						((Connection) key.attachment()).ready(key);
+					}
+				}
+				// Also picks up connections this loop accepted for itself.
+				register();
+				for (Connection connection; (connection = resumed.poll()) != null;) {
+					connection.resume();
+				}
+				heartbeats();
+			}
+		}
+		catch (IOException ex) {
+			LOG.error("Milter event loop failed", ex);
+		}
+		finally {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Connection) {
+					((Connection) key.attachment()).close();
+				}
+			}
+			for (SocketChannel channel; (channel = incoming.poll()) != null;) {
+				closeQuietly(channel);
+			}
+			try {
+				selector.close();
+			}
+			catch (IOException ex) {
+				LOG.warn("Failed closing selector", ex);
+			}
+		}
+	}
+
+	/**
+	 * Resume a connection once its handler completed. May be called from any thread.
+	 */
+	void resume(Connection connection) {
+		resumed.add(connection);
+		selector.wakeup();
+	}
+
+	/**
+	 * Send progress notifications to the connection until it is resumed.
+	 */
+	void waiting(Connection connection) {
+		if (!connection.waiting) {
+			connection.waiting = true;
+			connection.heartbeat = now() + Sessions.HEARTBEAT_MILLIS;
+			waiting.add(connection);
+		}
+	}
+
+	private long timeout() {
+		Connection first = waiting.peek();
+		return first == null ? 0 : Math.max(1, first.heartbeat - now());
+	}
+
+	private void heartbeats() {
+		long now = now();
+		for (Connection first; (first = waiting.peek()) != null && first.heartbeat <= now;) {
+			waiting.poll();
+			if (first.heartbeat()) {
+				first.heartbeat = now + Sessions.HEARTBEAT_MILLIS;
+				waiting.add(first);
+			}
+			else {
+				first.waiting = false;
+			}
+		}
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	private void accept(ServerSocketChannel server) {
+		for (int i = 0; i < 64; ++i) {
+			SocketChannel channel;
+			try {
+				channel = server.accept();
+			}
+			catch (IOException ex) {
+				LOG.warn("Failed accepting milter connection", ex);
+				return;
+			}
+			if (channel == null) {
+				return;
+			}
+			EventLoop loop = group[next];
+			next = (next + 1) % group.length;
+			if (loop == this) {
+				incoming.add(channel);
+			}
+			else {
+				loop.assign(channel);
+			}
+		}
+	}
+
+	private void register() {
+		for (SocketChannel channel; (channel = incoming.poll()) != null;) {
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				Connection connection = new Connection(this, channel, factory);
+				connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+			}
+			catch (Exception ex) {
+				LOG.warn("Failed setting up milter connection", ex);
+				closeQuietly(channel);
+			}
+		}
+	}
+
+	ByteBuffer receiveBuffer() {
+		return receive;
+	}
+
+	ByteBuffer transmitBuffer() {
+		return transmit;
+	}
+
+	/**
+	 * @return A cleared buffer for holding a split packet.
+	 */
+	ByteBuffer acquire() {
+		ByteBuffer buffer = spare.poll();
+		return buffer != null ? buffer : ByteBuffer.allocate(MilterDecoder.DEFAULT_BUFFER_SIZE);
+	}
+
+	void release(ByteBuffer buffer) {
+		if (spare.size() < MAX_SPARE_BUFFERS) {
+			buffer.clear();
+			spare.add(buffer);
+		}
+	}
+
+	static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		}
+		catch (IOException ex) {
+			// Closing anyway.
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package com.sendmail.milter.server;
+
+import com.sendmail.milter.spi.IMilterHandlerFactory;
+
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Iterator;
+import java.util.ServiceLoader;
+
+/**
+ * Non-blocking milter server. A few event loop threads, each with its own {@link java.nio.channels.Selector},
+ * multiplex all MTA connections and call the {@link com.sendmail.milter.IMilterHandler} callbacks directly, so a
+ * handler must not block. Each connection gets its own handler from the factory.
+ */
+public final class MilterServer {
+
+	private final IMilterHandlerFactory factory;
+	private final SocketAddress address;
+	private final EventLoop[] loops;
+	private ServerSocketChannel server;
+	private Thread[] threads;
+
+	/**
+	 * Creates a server for the factory found through {@link #loadFactory(ClassLoader)}, with one event loop per
+	 * available processor.
+	 *
+	 * @param port The TCP port to listen on, on all interfaces.
+	 */
+	public MilterServer(int port) {
+		this(loadFactory(Thread.currentThread().getContextClassLoader()), new InetSocketAddress(port),
+				Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param factory The factory creating a handler per connection.
+	 * @param address The address to listen on.
+	 * @param eventLoops The number of event loop threads.
+	 */
+	public MilterServer(IMilterHandlerFactory factory, SocketAddress address, int eventLoops) {
+		if (eventLoops < 1) {
+			throw new IllegalArgumentException("At least one event loop is required");
+		}
+		this.factory = factory;
+		this.address = address;
+		this.loops = new EventLoop[eventLoops];
+	}
+
+	/**
+	 * Find the first {@link IMilterHandlerFactory} registered in <code>META-INF/services</code>.
+	 *
+	 * @param loader The class loader to search.
+	 * @return The factory.
+	 * @throws IllegalStateException if no factory is registered.
+	 */
+	public static IMilterHandlerFactory loadFactory(ClassLoader loader) {
+		Iterator<IMilterHandlerFactory> it = ServiceLoader.load(IMilterHandlerFactory.class, loader).iterator();
+		if (!it.hasNext()) {
+			throw new IllegalStateException("No " + IMilterHandlerFactory.class.getName() + " service registered");
+		}
+		return it.next();
+	}
+
+	/**
+	 * Bind the listening socket and start the event loops.
+	 *
+	 * @throws IOException if the socket cannot be bound.
+	 */
+	public synchronized void start() throws IOException {
+		if (server != null) {
+			throw new IllegalStateException("Server already started");
+		}
+		server = ServerSocketChannel.open();
+		try {
+			server.socket().setReuseAddress(true);
+			server.socket().bind(address, 1024);
+			server.configureBlocking(false);
+			for (int i = 0; i < loops.length; ++i) {
+				loops[i] = new EventLoop(factory);
+			}
+			loops[0].listen(server, loops);
+		}
+		catch (IOException ex) {
+			for (EventLoop loop : loops) {
+				if (loop != null) {
+					loop.shutdown();
+				}
+			}
+			server.close();
+			server = null;
+			throw ex;
+		}
+		threads = new Thread[loops.length];
+		for (int i = 0; i < loops.length; ++i) {
+			threads[i] = new Thread(loops[i], "milter-loop-" + i);
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * Stop accepting connections, close all open ones and wait for the event loops to finish.
+	 *
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public synchronized void stop() throws InterruptedException {
+		if (server == null) {
+			return;
+		}
+		for (EventLoop loop : loops) {
+			loop.shutdown();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		try {
+			server.close();
+		}
+		catch (IOException ex) {
+			// Nothing left to release.
+		}
+		server = null;
+	}
+
+	/**
+	 * @return The bound address, or null if the server is not running.
+	 */
+	public synchronized SocketAddress getLocalAddress() {
+		return server == null ? null : server.socket().getLocalSocketAddress();
+	}
+}
@@ -0,0 +1,40 @@
+package com.sendmail.milter.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executor {@link BlockingMilterServer} runs its sessions on by default.
+ * <p>
+ * This is the implementation for Java versions without virtual threads: a cached pool of platform threads, one per
+ * open session. The multi-release jar replaces it on Java 21 and later with one starting a virtual thread per session.
+ */
+public final class SessionExecutors {
+
+	private SessionExecutors() {
+		throw new IllegalStateException("You have no class!");
+	}
+
+	/**
+	 * @return A new executor running each submitted session on its own thread.
+	 */
+	public static ExecutorService newSessionExecutor() {
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "milter-session-" + count.getAndIncrement());
+			}
+		});
+	}
+
+	/**
+	 * @return true if {@link #newSessionExecutor()} runs sessions on virtual threads.
+	 */
+	public static boolean isVirtual() {
+		return false;
+	}
+}
@@ -0,0 +1,94 @@
+package com.sendmail.milter.server;
+
+import com.sendmail.milter.IMilterHandler;
+import com.sendmail.milter.MilterStatusFuture;
+import com.sendmail.milter.codec.MilterDecoder;
+import com.sendmail.milter.spi.IMilterHandlerFactory;
+import com.sendmail.milter.spi.IMilterHandlerPool;
+import com.sendmail.milter.spi.IMilterNegotiationCacheProvider;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Start and end of a session's handler, shared by both servers.
+ */
+final class Sessions {
+
+	private static final Logger LOG = LoggerFactory.getLogger(Sessions.class);
+
+	/**
+	 * Interval of the progress notifications keeping the MTA waiting for a pending end of message. Well below the 10
+	 * second default reply timeout of sendmail.
+	 */
+	static final long HEARTBEAT_MILLIS = 5000;
+
+	private Sessions() {
+		throw new IllegalStateException("You have no class!");
+	}
+
+	static void start(IMilterHandlerFactory factory, MilterDecoder decoder) {
+		if (factory instanceof IMilterNegotiationCacheProvider) {
+			decoder.setNegotiationCache(((IMilterNegotiationCacheProvider) factory).getNegotiationCache(
+					decoder.getHandler()));
+		}
+	}
+
+	/**
+	 * Send the reply of the decoder's pending callback, logging its failure if it failed.
+	 *
+	 * @return true if nothing is pending any more.
+	 */
+	static boolean resume(MilterDecoder decoder) throws IOException {
+		MilterStatusFuture pending = decoder.getPending();
+		if (pending != null && pending.getFailure() != null) {
+			LOG.error("Asynchronous milter handler failed", pending.getFailure());
+		}
+		return decoder.resume();
+	}
+
+	/**
+	 * Wait for the decoder's pending callbacks, sending progress notifications meanwhile. Only for sessions having a
+	 * thread of their own.
+	 */
+	static void await(MilterDecoder decoder) throws IOException {
+		for (MilterStatusFuture pending; (pending = decoder.getPending()) != null;) {
+			try {
+				while (!pending.await(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS)) {
+					decoder.progress();
+				}
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for the milter handler");
+			}
+			resume(decoder);
+		}
+	}
+
+	/**
+	 * Close the handler unless the MTA already quit, and hand it back to its pool if it is still usable.
+	 *
+	 * @param failed Whether the handler threw, leaving it in an unknown state.
+	 */
+	static void end(IMilterHandlerFactory factory, MilterDecoder decoder, boolean failed) {
+		IMilterHandler handler = decoder.getHandler();
+		if (!decoder.isClosed()) {
+			try {
+				handler.close();
+			}
+			catch (RuntimeException ex) {
+				LOG.error("Milter handler failed closing", ex);
+				failed = true;
+			}
+		}
+		if (!failed && factory instanceof IMilterHandlerPool) {
+			((IMilterHandlerPool) factory).release(handler);
+		}
+	}
+}
@@ -0,0 +1,6 @@
+/**
+ * Reference milter server. {@link com.sendmail.milter.server.MilterServer} accepts MTA connections and serves them
+ * with handlers from an {@link com.sendmail.milter.spi.IMilterHandlerFactory}, loaded through
+ * {@link java.util.ServiceLoader} unless one is given.
+ */
+package com.sendmail.milter.server;
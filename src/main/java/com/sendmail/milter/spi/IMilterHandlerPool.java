@@ -0,0 +1,18 @@
+package com.sendmail.milter.spi;
+
+import com.sendmail.milter.IMilterHandler;
+
+/**
+ * Factory that recycles handlers. Runners aware of it hand every handler back once its connection is over, instead of
+ * dropping it.
+ */
+public interface IMilterHandlerPool extends IMilterHandlerFactory {
+
+	/**
+	 * Return a handler obtained from {@link #newInstance()}. Its {@link IMilterHandler#close()} must already have been
+	 * called. Handlers that failed with an exception should not be returned.
+	 *
+	 * @param handler The handler.
+	 */
+	public void release(IMilterHandler handler);
+}
@@ -0,0 +1,18 @@
+package com.sendmail.milter.spi;
+
+import java.io.IOException;
+
+/**
+ * Warms up a factory before it serves mail, by running sessions through its handlers so their code is compiled, their
+ * caches are filled and its pool, if it has one, holds handlers ready for use.
+ * {@link com.sendmail.milter.mta.MilterLoadGenerator} runs synthetic sessions.
+ */
+public interface IMilterHandlerWarmup {
+
+	/**
+	 * @param factory The factory to warm up.
+	 * @throws IOException if the handlers failed, so the factory should not serve mail.
+	 * @throws InterruptedException if interrupted while warming up.
+	 */
+	public void warmUp(IMilterHandlerFactory factory) throws IOException, InterruptedException;
+}
@@ -0,0 +1,17 @@
+package com.sendmail.milter.spi;
+
+import com.sendmail.milter.IMilterHandler;
+import com.sendmail.milter.codec.MilterNegotiationCache;
+
+/**
+ * Factory sharing the negotiation results of its handlers. Runners aware of it negotiate each new connection through
+ * the cache given for its handler, so factories wrapping others pass on the cache of the one the handler came from.
+ */
+public interface IMilterNegotiationCacheProvider extends IMilterHandlerFactory {
+
+	/**
+	 * @param handler A handler obtained from {@link #newInstance()}.
+	 * @return The cache to share the handler's negotiation results through, or null if they are not to be shared.
+	 */
+	public MilterNegotiationCache getNegotiationCache(IMilterHandler handler);
+}
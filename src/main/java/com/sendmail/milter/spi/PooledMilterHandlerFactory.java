@@ -0,0 +1,133 @@
+package com.sendmail.milter.spi;
+
+import com.sendmail.milter.IMilterHandler;
+import com.sendmail.milter.codec.MilterNegotiationCache;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps a factory so handlers are recycled through {@link IMilterHandler#reset()} rather than created anew for every
+ * connection. Worthwhile for handlers that are expensive to build, such as ones carrying compiled rule sets.
+ * <p>
+ * Idle handlers are kept most recently used first, so the warmest ones are reused. At most <code>maxIdle</code> are
+ * kept, and those idle longer than the timeout are dropped whenever the pool is used.
+ */
+public final class PooledMilterHandlerFactory implements IMilterHandlerPool, IMilterNegotiationCacheProvider {
+
+	private final IMilterHandlerFactory factory;
+	private final long idleNanos;
+	private final MilterNegotiationCache negotiationCache;
+
+	/**
+	 * Idle handlers, oldest first, with the time each was released.
+	 */
+	private final IMilterHandler[] idle;
+	private final long[] idleSince;
+	private int size;
+
+	/**
+	 * @param factory The factory creating handlers when none are idle.
+	 * @param maxIdle The most idle handlers to keep.
+	 * @param idleTimeout How long a handler may stay idle before it is dropped.
+	 * @param unit The unit of <code>idleTimeout</code>.
+	 * @param cacheNegotiation Whether to share negotiation results between the handlers, per MTA capability set. Only
+	 * valid if their negotiation depends on nothing but the MTA's version and flags.
+	 */
+	public PooledMilterHandlerFactory(IMilterHandlerFactory factory, int maxIdle, long idleTimeout, TimeUnit unit,
+			boolean cacheNegotiation) {
+		if (maxIdle < 0) {
+			throw new IllegalArgumentException("maxIdle cannot be negative");
+		}
+		this.factory = factory;
+		this.idleNanos = unit.toNanos(idleTimeout);
+		this.negotiationCache = cacheNegotiation ? new MilterNegotiationCache() : null;
+		this.idle = new IMilterHandler[maxIdle];
+		this.idleSince = new long[maxIdle];
+	}
+
+	@Override
+	public IMilterHandler newInstance() {
+		synchronized (this) {
+			evict(System.nanoTime());
+			if (size > 0) {
+				IMilterHandler handler = idle[--size];
+				idle[size] = null;
+				return handler;
+			}
+		}
+		return factory.newInstance();
+	}
+
+	@Override
+	public void release(IMilterHandler handler) {
+		try {
+			handler.reset();
+		}
+		catch (RuntimeException ex) {
+			// Not in a reusable state.
+			return;
+		}
+		long now = System.nanoTime();
+		synchronized (this) {
+			evict(now);
+			if (idle.length == 0) {
+				return;
+			}
+			if (size == idle.length) {
+				// Full: drop the oldest.
+				System.arraycopy(idle, 1, idle, 0, size - 1);
+				System.arraycopy(idleSince, 1, idleSince, 0, size - 1);
+				--size;
+			}
+			idle[size] = handler;
+			idleSince[size++] = now;
+		}
+	}
+
+	/**
+	 * @return The cache to share negotiation results through, or null if they are not to be shared.
+	 */
+	public MilterNegotiationCache getNegotiationCache() {
+		return negotiationCache;
+	}
+
+	@Override
+	public MilterNegotiationCache getNegotiationCache(IMilterHandler handler) {
+		return negotiationCache;
+	}
+
+	/**
+	 * @return The number of idle handlers.
+	 */
+	public synchronized int getIdleCount() {
+		return size;
+	}
+
+	/**
+	 * Drop all idle handlers and cached negotiation results.
+	 */
+	public synchronized void clear() {
+		for (int i = 0; i < size; ++i) {
+			idle[i] = null;
+		}
+		size = 0;
+		if (negotiationCache != null) {
+			negotiationCache.clear();
+		}
+	}
+
+	private void evict(long now) {
+		int expired = 0;
+		while (expired < size && now - idleSince[expired] > idleNanos) {
+			++expired;
+		}
+		if (expired > 0) {
+			System.arraycopy(idle, expired, idle, 0, size - expired);
+			System.arraycopy(idleSince, expired, idleSince, 0, size - expired);
+			for (int i = size - expired; i < size; ++i) {
+				idle[i] = null;
+			}
+			size -= expired;
+		}
+	}
+}
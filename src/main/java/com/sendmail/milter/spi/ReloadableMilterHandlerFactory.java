@@ -0,0 +1,262 @@
+package com.sendmail.milter.spi;
+
+import com.sendmail.milter.IMilterHandler;
+import com.sendmail.milter.codec.MilterNegotiationCache;
+import com.sendmail.milter.server.MilterServer;
+
+import java.io.IOException;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the factory a runner serves, and swaps in a new one, say with a new rule set, without a restart. Connections
+ * made after a {@link #reload} get handlers of the new factory, while those already open keep theirs until they close,
+ * even when the MTA reuses them for further sessions with {@link com.sendmail.milter.MilterConstants#SMFIC_QUIT_NC}.
+ * Handlers of a replaced factory are not pooled again, and it is {@link PooledMilterHandlerFactory#clear() cleared}.
+ * <p>
+ * Given an {@link IMilterHandlerWarmup}, the new factory is warmed up before it takes over, so its code is compiled and
+ * its pool filled by then, and a factory whose handlers fail is never swapped in.
+ * <p>
+ * Negotiation results are shared through the cache of the factory each handler came from, so results of a replaced
+ * factory never reach handlers of the new one, nor the other way round.
+ * <p>
+ * The factory each handler came from is looked up by identity of the handler, whatever its <code>equals</code> says.
+ * Handlers the runner does not hand back, because they failed, are forgotten once collected.
+ */
+public final class ReloadableMilterHandlerFactory implements IMilterHandlerPool, IMilterNegotiationCacheProvider {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ReloadableMilterHandlerFactory.class);
+
+	private volatile IMilterHandlerFactory factory;
+	private volatile IMilterHandlerWarmup warmup;
+	private volatile int generation;
+
+	/**
+	 * Handlers in use, with the factory they came from.
+	 */
+	private final Owners owners = new Owners();
+
+	/**
+	 * Held to hand a handler back to its factory, and taken exclusively to replace the factory, so no handler is
+	 * pooled by a factory already replaced and cleared.
+	 */
+	private final ReadWriteLock swap = new ReentrantReadWriteLock();
+
+	/**
+	 * @param factory The factory to serve first.
+	 */
+	public ReloadableMilterHandlerFactory(IMilterHandlerFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * @param warmup How to warm new factories up before they take over, or null to swap them in cold.
+	 */
+	public void setWarmup(IMilterHandlerWarmup warmup) {
+		this.warmup = warmup;
+	}
+
+	/**
+	 * @return The factory new connections get handlers from.
+	 */
+	public IMilterHandlerFactory getFactory() {
+		return factory;
+	}
+
+	/**
+	 * @return How many times the factory was replaced.
+	 */
+	public int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * @return How many handlers of replaced factories are still in use. Once none are, the class loader of a replaced
+	 * factory is only held by whatever else refers to it.
+	 */
+	public int getRetiredCount() {
+		return owners.countOthers(factory);
+	}
+
+	@Override
+	public IMilterHandler newInstance() {
+		IMilterHandlerFactory current = factory;
+		IMilterHandler handler = current.newInstance();
+		owners.put(handler, current);
+		return handler;
+	}
+
+	@Override
+	public void release(IMilterHandler handler) {
+		IMilterHandlerFactory owner = owners.remove(handler);
+		swap.readLock().lock();
+		try {
+			if (owner == factory && owner instanceof IMilterHandlerPool) {
+				((IMilterHandlerPool) owner).release(handler);
+			}
+		}
+		finally {
+			swap.readLock().unlock();
+		}
+	}
+
+	@Override
+	public MilterNegotiationCache getNegotiationCache(IMilterHandler handler) {
+		IMilterHandlerFactory owner = owners.get(handler);
+		if (owner instanceof IMilterNegotiationCacheProvider) {
+			return ((IMilterNegotiationCacheProvider) owner).getNegotiationCache(handler);
+		}
+		return null;
+	}
+
+	/**
+	 * Warm a factory up, then serve it to new connections.
+	 *
+	 * @param next The new factory.
+	 * @return The factory replaced.
+	 * @throws IOException if the warm-up failed. The factory is not replaced.
+	 * @throws InterruptedException if interrupted while warming up. The factory is not replaced.
+	 */
+	public IMilterHandlerFactory reload(IMilterHandlerFactory next) throws IOException, InterruptedException {
+		IMilterHandlerWarmup currentWarmup = warmup;
+		if (currentWarmup != null) {
+			long started = System.nanoTime();
+			currentWarmup.warmUp(next);
+			LOG.info("Warmed up {} in {} ms", next.getClass().getName(), (System.nanoTime() - started) / 1000000);
+		}
+		IMilterHandlerFactory previous;
+		int current;
+		swap.writeLock().lock();
+		try {
+			previous = factory;
+			factory = next;
+			current = ++generation;
+		}
+		finally {
+			swap.writeLock().unlock();
+		}
+		if (previous instanceof PooledMilterHandlerFactory) {
+			((PooledMilterHandlerFactory) previous).clear();
+		}
+		LOG.info("Replaced {} with {}, generation {}", previous.getClass().getName(), next.getClass().getName(),
+				current);
+		return previous;
+	}
+
+	/**
+	 * Reload the first {@link IMilterHandlerFactory} registered in <code>META-INF/services</code> of a class loader,
+	 * typically a new one over the new rule set's jars.
+	 *
+	 * @param loader The class loader to search.
+	 * @return The factory replaced.
+	 * @throws IOException if the warm-up failed. The factory is not replaced.
+	 * @throws InterruptedException if interrupted while warming up. The factory is not replaced.
+	 * @throws IllegalStateException if no factory is registered.
+	 * @see MilterServer#loadFactory(ClassLoader)
+	 */
+	public IMilterHandlerFactory reload(ClassLoader loader) throws IOException, InterruptedException {
+		return reload(MilterServer.loadFactory(loader));
+	}
+
+	/**
+	 * Handlers with the factory each came from, looked up by identity and held weakly.
+	 */
+	private static final class Owners {
+
+		private final Map<Integer, Owner> chains = new HashMap<Integer, Owner>();
+		private final ReferenceQueue<IMilterHandler> collected = new ReferenceQueue<IMilterHandler>();
+
+		synchronized void put(IMilterHandler handler, IMilterHandlerFactory factory) {
+			expunge();
+			Integer hash = Integer.valueOf(System.identityHashCode(handler));
+			chains.put(hash, new Owner(handler, hash, factory, chains.get(hash), collected));
+		}
+
+		synchronized IMilterHandlerFactory get(IMilterHandler handler) {
+			for (Owner owner = chains.get(Integer.valueOf(System.identityHashCode(handler))); owner != null;
+					owner = owner.next) {
+				if (owner.get() == handler) {
+					return owner.factory;
+				}
+			}
+			return null;
+		}
+
+		synchronized IMilterHandlerFactory remove(IMilterHandler handler) {
+			expunge();
+			Integer hash = Integer.valueOf(System.identityHashCode(handler));
+			for (Owner owner = chains.get(hash); owner != null; owner = owner.next) {
+				if (owner.get() == handler) {
+					unlink(owner);
+					return owner.factory;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * @return How many handlers came from another factory.
+		 */
+		synchronized int countOthers(IMilterHandlerFactory factory) {
+			expunge();
+			int count = 0;
+			for (Owner chain : chains.values()) {
+				for (Owner owner = chain; owner != null; owner = owner.next) {
+					if (owner.factory != factory) {
+						++count;
+					}
+				}
+			}
+			return count;
+		}
+
+		private void expunge() {
+			for (Reference<? extends IMilterHandler> ref; (ref = collected.poll()) != null;) {
+				unlink((Owner) ref);
+			}
+		}
+
+		private void unlink(Owner owner) {
+			Owner first = chains.get(owner.hash);
+			if (first == owner) {
+				if (owner.next == null) {
+					chains.remove(owner.hash);
+				}
+				else {
+					chains.put(owner.hash, owner.next);
+				}
+				return;
+			}
+			for (Owner before = first; before != null; before = before.next) {
+				if (before.next == owner) {
+					before.next = owner.next;
+					return;
+				}
+			}
+		}
+	}
+
+	private static final class Owner extends WeakReference<IMilterHandler> {
+
+		final Integer hash;
+		final IMilterHandlerFactory factory;
+		Owner next;
+
+		Owner(IMilterHandler handler, Integer hash, IMilterHandlerFactory factory, Owner next,
+				ReferenceQueue<IMilterHandler> queue) {
+			super(handler, queue);
+			this.hash = hash;
+			this.factory = factory;
+			this.next = next;
+		}
+	}
+}
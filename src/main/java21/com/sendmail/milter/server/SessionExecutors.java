@@ -0,0 +1,31 @@
+package com.sendmail.milter.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executor {@link BlockingMilterServer} runs its sessions on by default.
+ * <p>
+ * This is the Java 21 implementation of the multi-release jar: every session gets its own virtual thread, so handlers
+ * may block on DNS, LDAP or database calls without holding a platform thread.
+ */
+public final class SessionExecutors {
+
+	private SessionExecutors() {
+		throw new IllegalStateException("You have no class!");
+	}
+
+	/**
+	 * @return A new executor running each submitted session on its own thread.
+	 */
+	public static ExecutorService newSessionExecutor() {
+		return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("milter-session-", 0).factory());
+	}
+
+	/**
+	 * @return true if {@link #newSessionExecutor()} runs sessions on virtual threads.
+	 */
+	public static boolean isVirtual() {
+		return true;
+	}
+}